@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.jetty.server.Server;
+
+import com.amazonaws.regions.Region;
+import com.amazonaws.services.kinesis.clientlibrary.lib.worker.Worker;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.local.RecentCounts;
+import com.amazonaws.services.kinesis.samples.datavis.utils.HashKeySharding;
+import com.amazonaws.services.kinesis.samples.datavis.utils.SampleUtils;
+
+/**
+ * Runs the counting Kinesis Client application and the web server in one process. Counts are persisted to DynamoDB as
+ * usual, and the most recent are also held in memory where the web server reads them as soon as they are computed.
+ * Only older counts are read from DynamoDB, so the chart is no longer behind by the time it takes to write counts and
+ * read them back.
+ * <p/>
+ * The web server only sees the counts computed in this process, so this is meant for deployments with a single
+ * counting worker, such as the sample's CloudFormation stack. Run {@link HttpReferrerCounterApplication} and
+ * {@link WebServer} separately when several workers share the stream.
+ */
+public class CoLocatedApplication {
+    private static final Log LOG = LogFactory.getLog(CoLocatedApplication.class);
+
+    // Hold enough recent counts in memory to fill the dashboard's graph. Older counts are read from DynamoDB.
+    private static final long RECENT_COUNTS_RETENTION_IN_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * Start the Kinesis Client application and the web server.
+     *
+     * @param args Expecting 6 arguments: Port number, File path to static content, Application name to use for the
+     *        Kinesis Client Application, Stream name to read from, DynamoDB table name to persist counts into, and
+     *        the AWS region in which these resources exist or should be created. An optional 7th argument sets the
+     *        number of hash keys to spread each resource's counts over, and an optional 8th packs counts into one
+     *        item per block of that many seconds. Options selecting how counts are persisted to DynamoDB may be given
+     *        anywhere among them, see {@link CountPersisterOptions}.
+     * @throws Exception Error starting the web server or the Kinesis Client application.
+     */
+    public static void main(String[] args) throws Exception {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        CountPersisterOptions options = HttpReferrerCounterApplication.parseOptions(arguments);
+        if (options == null || arguments.size() < 6 || arguments.size() > 8
+                || SampleUtils.parseLocalCountsDirectory(arguments.get(4)) != null) {
+            System.err.println("Usage: " + CoLocatedApplication.class.getSimpleName()
+                    + " <port number> <directory for static content> <application name> <stream name>"
+                    + " <DynamoDB table name> <region> [write shards per resource] [count block size in seconds] "
+                    + CountPersisterOptions.USAGE);
+            System.exit(1);
+        }
+
+        int port = Integer.parseInt(arguments.get(0));
+        String wwwroot = arguments.get(1);
+        String applicationName = arguments.get(2);
+        String streamName = arguments.get(3);
+        String countsTableName = arguments.get(4);
+        Region region = SampleUtils.parseRegion(arguments.get(5));
+        int writeShardsPerResource = arguments.size() > 6 ? Integer.parseInt(arguments.get(6)) : 1;
+        int countBlockSizeInSeconds = arguments.size() > 7 ? Integer.parseInt(arguments.get(7)) : 0;
+        HttpReferrerCounterApplication.checkCountBlockSize(options, countBlockSizeInSeconds);
+
+        RecentCounts recentCounts = new RecentCounts(RECENT_COUNTS_RETENTION_IN_MILLIS);
+        // Create the worker first so the counts table exists before the web server reads it
+        Worker worker =
+                HttpReferrerCounterApplication.createWorker(applicationName,
+                        streamName,
+                        countsTableName,
+                        region,
+                        writeShardsPerResource,
+                        countBlockSizeInSeconds,
+                        options,
+                        null,
+                        recentCounts);
+        Server server =
+                WebServer.createServer(port,
+                        wwwroot,
+                        countsTableName,
+                        region,
+                        new HashKeySharding(writeShardsPerResource),
+                        countBlockSizeInSeconds,
+                        recentCounts);
+        server.start();
+
+        int exitCode = 0;
+        try {
+            worker.run();
+        } catch (Throwable t) {
+            LOG.error("Caught throwable while processing data.", t);
+            exitCode = 1;
+        }
+        System.exit(exitCode);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Options that select how the counting application persists counts to DynamoDB. They are given on the command line
+ * as "--name" or "--name=value" anywhere among the positional arguments. Without any options counts are written the
+ * way the sample always has: through the DynamoDB mapper, as fast as possible, and with only the counts not yet
+ * written held in memory.
+ */
+class CountPersisterOptions {
+    /**
+     * The options accepted, as shown in usage messages.
+     */
+    static final String USAGE = "[--writer=mapper|batch|async] [--write-ahead-log=<directory>] [--rate-limit]"
+            + " [--no-rollups]";
+
+    private static final String OPTION_PREFIX = "--";
+
+    /**
+     * How per-interval counts are written to DynamoDB.
+     */
+    enum Writer {
+        /**
+         * Through {@link com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper}.
+         */
+        MAPPER,
+        /**
+         * With pre-marshalled BatchWriteItem requests, waiting for each to complete.
+         */
+        BATCH,
+        /**
+         * With pre-marshalled BatchWriteItem requests sent through the asynchronous client, several in flight at once.
+         */
+        ASYNC
+    }
+
+    private Writer writer = Writer.MAPPER;
+    private File writeAheadLogDirectory;
+    private boolean rateLimited;
+    private boolean rollups = true;
+
+    /**
+     * Remove the options from command line arguments and parse them.
+     *
+     * @param args The command line arguments. Options are removed, leaving only the positional arguments.
+     * @return The options given.
+     * @throws IllegalArgumentException if an option is not recognized or its value is invalid.
+     */
+    static CountPersisterOptions parse(List<String> args) {
+        CountPersisterOptions options = new CountPersisterOptions();
+        Iterator<String> it = args.iterator();
+        while (it.hasNext()) {
+            String arg = it.next();
+            if (!arg.startsWith(OPTION_PREFIX)) {
+                continue;
+            }
+            it.remove();
+            int separator = arg.indexOf('=');
+            String name = separator < 0 ? arg : arg.substring(0, separator);
+            String value = separator < 0 ? null : arg.substring(separator + 1);
+            switch (name) {
+                case "--writer":
+                    options.writer = parseWriter(requireValue(name, value));
+                    break;
+                case "--write-ahead-log":
+                    options.writeAheadLogDirectory = new File(requireValue(name, value));
+                    break;
+                case "--rate-limit":
+                    requireNoValue(name, value);
+                    options.rateLimited = true;
+                    break;
+                case "--no-rollups":
+                    requireNoValue(name, value);
+                    options.rollups = false;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+        return options;
+    }
+
+    private static Writer parseWriter(String value) {
+        for (Writer writer : Writer.values()) {
+            if (writer.name().equalsIgnoreCase(value)) {
+                return writer;
+            }
+        }
+        throw new IllegalArgumentException("Unknown writer: " + value);
+    }
+
+    private static String requireValue(String name, String value) {
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException(name + " requires a value");
+        }
+        return value;
+    }
+
+    private static void requireNoValue(String name, String value) {
+        if (value != null) {
+            throw new IllegalArgumentException(name + " does not take a value");
+        }
+    }
+
+    /**
+     * Check the options can be used with counts packed into blocks of time. Blocks are always written with their own
+     * writer, so only the mapper, which is the default, may be selected.
+     *
+     * @param countBlockSizeInSeconds The count block size given, or 0 if counts are written per interval.
+     * @throws IllegalArgumentException if another writer is selected for counts packed into blocks.
+     */
+    void checkCountBlockSize(int countBlockSizeInSeconds) {
+        if (countBlockSizeInSeconds > 0 && writer != Writer.MAPPER) {
+            throw new IllegalArgumentException("--writer cannot be used with a count block size");
+        }
+    }
+
+    /**
+     * @return How per-interval counts are written to DynamoDB. Defaults to {@link Writer#MAPPER}.
+     */
+    Writer getWriter() {
+        return writer;
+    }
+
+    /**
+     * @return The directory to log counts in before they are sent to DynamoDB, or {@code null} to only hold them in
+     *         memory. Only one worker may use each directory. Defaults to {@code null}.
+     */
+    File getWriteAheadLogDirectory() {
+        return writeAheadLogDirectory;
+    }
+
+    /**
+     * @return Whether to pace writes to a fraction of the counts table's provisioned write capacity. Defaults to
+     *         {@code false}.
+     */
+    boolean isRateLimited() {
+        return rateLimited;
+    }
+
+    /**
+     * @return Whether to maintain minute and hour rollups of the counts. The web server reads long ranges from them.
+     *         Defaults to {@code true}.
+     */
+    boolean isRollups() {
+        return rollups;
+    }
+}
@@ -5,8 +5,16 @@
 
 package com.amazonaws.services.kinesis.samples.datavis;
 
-import java.net.UnknownHostException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -16,6 +24,8 @@ import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
 import com.amazonaws.regions.Region;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsync;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsyncClient;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.kinesis.AmazonKinesis;
 import com.amazonaws.services.kinesis.AmazonKinesisClient;
@@ -24,10 +34,33 @@ import com.amazonaws.services.kinesis.clientlibrary.lib.worker.InitialPositionIn
 import com.amazonaws.services.kinesis.clientlibrary.lib.worker.KinesisClientLibConfiguration;
 import com.amazonaws.services.kinesis.clientlibrary.lib.worker.Worker;
 import com.amazonaws.services.kinesis.samples.datavis.kcl.CountingRecordProcessorFactory;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.CompositeCountPersister;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.CompositeCountPersister.BackpressurePolicy;
 import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.CountPersister;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb.AsyncBatchWriteItemCountWriter;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb.AsyncCountWriter;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb.BatchWriteItemCountWriter;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb.ConsumedCapacityReportingDynamoDB;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb.CountLog;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb.CountWriter;
 import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb.DynamoDBCountPersister;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb.DynamoDBCountPersisterConfig;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb.MapperCountWriter;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb.RollupCountWriter;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb.TimeBucketedCountWriter;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb.WriteRateLimiter;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.export.CountExportConfig;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.export.CountExportPersister;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.export.CountExportWriter;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.local.LocalCountPersister;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.local.RecentCountPersister;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.local.RecentCounts;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.local.TimeSeriesWriter;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.timing.NanoClock;
 import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPair;
+import com.amazonaws.services.kinesis.samples.datavis.utils.CountRollups;
 import com.amazonaws.services.kinesis.samples.datavis.utils.DynamoDBUtils;
+import com.amazonaws.services.kinesis.samples.datavis.utils.HashKeySharding;
 import com.amazonaws.services.kinesis.samples.datavis.utils.SampleUtils;
 import com.amazonaws.services.kinesis.samples.datavis.utils.StreamUtils;
 
@@ -42,26 +75,131 @@ public class HttpReferrerCounterApplication {
     private static final int COMPUTE_RANGE_FOR_COUNTS_IN_MILLIS = 10000;
     // Update the counts every 1 second
     private static final int COMPUTE_INTERVAL_IN_MILLIS = 1000;
+    // When counts are packed into time-bucketed items write at most this often so each item is rewritten a few times
+    // per block rather than every interval
+    private static final long COUNT_BLOCK_WRITE_INTERVAL_IN_MILLIS = 5000L;
+    // Sum counts over every minute and hour so the web server can chart long ranges from a few items
+    private static final int[] ROLLUP_RESOLUTIONS_IN_SECONDS = { CountRollups.MINUTE_RESOLUTION_IN_SECONDS,
+            CountRollups.HOUR_RESOLUTION_IN_SECONDS };
+    // Write rollups at most this often
+    private static final long ROLLUP_FLUSH_INTERVAL_IN_MILLIS = 10000L;
+    // The most BatchWriteItem requests for per-interval counts to have in flight at once with the asynchronous writer
+    private static final int MAX_IN_FLIGHT_COUNT_WRITES = 8;
+    // Counts stored locally are kept for a day
+    private static final long LOCAL_COUNTS_RETENTION_IN_MILLIS = TimeUnit.DAYS.toMillis(1);
+    // When counts are also exported to files each sink may fall this many intervals behind before the record processors
+    // wait for it. Exports are for batch jobs that need every interval so they are never dropped.
+    private static final int SINK_QUEUE_CAPACITY_IN_INTERVALS = 60;
 
     /**
      * Start the Kinesis Client application.
      * 
      * @param args Expecting 4 arguments: Application name to use for the Kinesis Client Application, Stream name to
-     *        read from, DynamoDB table name to persist counts into, and the AWS region in which these resources
-     *        exist or should be created.
+     *        read from, DynamoDB table name to persist counts into (or "file:" followed by a directory to store them
+     *        on this machine instead), and the AWS region in which these resources exist or should be created. An
+     *        optional 5th argument sets the number of hash keys to spread each resource's counts over, and an optional
+     *        6th packs counts into one item per block of that many seconds. The web server must be started with the
+     *        same values. An optional 7th argument is a directory to also export every interval's counts to as
+     *        newline-delimited JSON files for batch jobs. Options selecting how counts are persisted to DynamoDB may
+     *        be given anywhere among them, see {@link CountPersisterOptions}.
      */
-    public static void main(String[] args) throws UnknownHostException {
-        if (args.length != 4) {
+    public static void main(String[] args) throws IOException {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        CountPersisterOptions options = parseOptions(arguments);
+        if (options == null || arguments.size() < 4 || arguments.size() > 7) {
             System.err.println("Usage: " + HttpReferrerCounterApplication.class.getSimpleName()
-                    + " <application name> <stream name> <DynamoDB table name> <region>");
+                    + " <application name> <stream name> <DynamoDB table name | file:directory> <region>"
+                    + " [write shards per resource] [count block size in seconds] [export directory] "
+                    + CountPersisterOptions.USAGE);
             System.exit(1);
         }
 
-        String applicationName = args[0];
-        String streamName = args[1];
-        String countsTableName = args[2];
-        Region region = SampleUtils.parseRegion(args[3]);
+        String applicationName = arguments.get(0);
+        String streamName = arguments.get(1);
+        String countsTableName = arguments.get(2);
+        Region region = SampleUtils.parseRegion(arguments.get(3));
+        int writeShardsPerResource = arguments.size() > 4 ? Integer.parseInt(arguments.get(4)) : 1;
+        int countBlockSizeInSeconds = arguments.size() > 5 ? Integer.parseInt(arguments.get(5)) : 0;
+        File exportDirectory = arguments.size() > 6 ? new File(arguments.get(6)) : null;
+        checkCountBlockSize(options, countBlockSizeInSeconds);
 
+        Worker worker =
+                createWorker(applicationName,
+                        streamName,
+                        countsTableName,
+                        region,
+                        writeShardsPerResource,
+                        countBlockSizeInSeconds,
+                        options,
+                        exportDirectory,
+                        null);
+
+        int exitCode = 0;
+        try {
+            worker.run();
+        } catch (Throwable t) {
+            LOG.error("Caught throwable while processing data.", t);
+            exitCode = 1;
+        }
+        System.exit(exitCode);
+    }
+
+    /**
+     * Remove the count persister options from command line arguments and parse them.
+     *
+     * @param arguments The command line arguments. Options are removed, leaving only the positional arguments.
+     * @return The options given, or {@code null} if they are invalid. The reason has been printed.
+     */
+    static CountPersisterOptions parseOptions(List<String> arguments) {
+        try {
+            return CountPersisterOptions.parse(arguments);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Check the count persister options can be used with the count block size given. If not, the JVM is terminated
+     * with an exit code of 1.
+     */
+    static void checkCountBlockSize(CountPersisterOptions options, int countBlockSizeInSeconds) {
+        try {
+            options.checkCountBlockSize(countBlockSizeInSeconds);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Create a Kinesis Client application worker that counts HTTP referrer pairs, creating the stream and counts table
+     * if they don't exist. It is not started.
+     *
+     * @param applicationName Application name to use for the Kinesis Client Application.
+     * @param streamName Stream name to read from.
+     * @param countsTableName DynamoDB table name to persist counts into, or "file:" followed by a directory to store
+     *        them on this machine instead.
+     * @param region The AWS region in which these resources exist or should be created.
+     * @param writeShardsPerResource The number of hash keys to spread each resource's counts over.
+     * @param countBlockSizeInSeconds Pack counts into one item per block of this many seconds, or 0 to write an item
+     *        per interval.
+     * @param options Selects how counts are persisted to DynamoDB. Ignored when counts are stored on this machine.
+     * @param exportDirectory A directory to also export every interval's counts to. May be {@code null}.
+     * @param recentCounts Where to also hold the most recent counts in memory for a web server in this process. May
+     *        be {@code null}.
+     * @return The worker.
+     * @throws IOException Error opening the local store or write-ahead log for counts.
+     */
+    static Worker createWorker(String applicationName,
+            String streamName,
+            String countsTableName,
+            Region region,
+            int writeShardsPerResource,
+            int countBlockSizeInSeconds,
+            CountPersisterOptions options,
+            File exportDirectory,
+            RecentCounts recentCounts) throws IOException {
         AWSCredentialsProvider credentialsProvider = new DefaultAWSCredentialsProviderChain();
         ClientConfiguration clientConfig = SampleUtils.configureUserAgentForSample(new ClientConfiguration());
         AmazonKinesis kinesis = new AmazonKinesisClient(credentialsProvider, clientConfig);
@@ -74,10 +212,6 @@ public class HttpReferrerCounterApplication {
         streamUtils.createStreamIfNotExists(streamName, 2);
         LOG.info(String.format("%s stream is ready for use", streamName));
 
-        DynamoDBUtils dynamoDBUtils = new DynamoDBUtils(dynamoDB);
-        dynamoDBUtils.createCountTableIfNotExists(countsTableName);
-        LOG.info(String.format("%s DynamoDB table is ready for use", countsTableName));
-
         String workerId = String.valueOf(UUID.randomUUID());
         LOG.info(String.format("Using working id: %s", workerId));
         KinesisClientLibConfiguration kclConfig =
@@ -86,9 +220,65 @@ public class HttpReferrerCounterApplication {
         kclConfig.withRegionName(region.getName());
         kclConfig.withInitialPositionInStream(InitialPositionInStream.LATEST);
 
-        // Persist counts to DynamoDB
-        DynamoDBCountPersister persister =
-                new DynamoDBCountPersister(dynamoDBUtils.createMapperForTable(countsTableName));
+        CountPersister<HttpReferrerPair> persister;
+        File localCountsDirectory = SampleUtils.parseLocalCountsDirectory(countsTableName);
+        if (localCountsDirectory != null) {
+            // Store counts on this machine for a web server on the same machine to read
+            TimeSeriesWriter timeSeriesWriter =
+                    new TimeSeriesWriter(localCountsDirectory,
+                            TimeSeriesWriter.DEFAULT_SEGMENT_SIZE_IN_BYTES,
+                            LOCAL_COUNTS_RETENTION_IN_MILLIS);
+            persister =
+                    new LocalCountPersister(timeSeriesWriter,
+                            new DynamoDBCountPersisterConfig().getMaxReferrersPerResource());
+            LOG.info(String.format("Storing counts locally in %s", localCountsDirectory));
+        } else {
+            final DynamoDBCountPersister dynamoDBCountPersister =
+                    createDynamoDBCountPersister(dynamoDB,
+                            credentialsProvider,
+                            clientConfig,
+                            region,
+                            countsTableName,
+                            writeShardsPerResource,
+                            countBlockSizeInSeconds,
+                            options);
+            // Stop the persister's threads, including any asynchronous client's, and close its log when we exit
+            Runtime.getRuntime().addShutdownHook(new Thread("DynamoDBCountPersisterShutdown") {
+                @Override
+                public void run() {
+                    try {
+                        dynamoDBCountPersister.shutdown();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            persister = dynamoDBCountPersister;
+        }
+
+        if (exportDirectory != null || recentCounts != null) {
+            // Send counts to the other sinks alongside the primary persister without any waiting on another
+            CompositeCountPersister<HttpReferrerPair> composite = new CompositeCountPersister<>();
+            composite.addSink("primary", persister, SINK_QUEUE_CAPACITY_IN_INTERVALS, BackpressurePolicy.BLOCK);
+            if (exportDirectory != null) {
+                composite.addSink("export",
+                        new CountExportPersister(new CountExportWriter(exportDirectory, new CountExportConfig())),
+                        SINK_QUEUE_CAPACITY_IN_INTERVALS,
+                        BackpressurePolicy.BLOCK);
+                LOG.info(String.format("Exporting counts to %s", exportDirectory));
+            }
+            if (recentCounts != null) {
+                // Holding counts in memory never falls behind, and the web server relies on it having every interval
+                composite.addSink("recent",
+                        new RecentCountPersister(recentCounts,
+                                new HashKeySharding(writeShardsPerResource),
+                                new DynamoDBCountPersisterConfig().getMaxReferrersPerResource(),
+                                COMPUTE_INTERVAL_IN_MILLIS),
+                        SINK_QUEUE_CAPACITY_IN_INTERVALS,
+                        BackpressurePolicy.BLOCK);
+            }
+            persister = composite;
+        }
 
         IRecordProcessorFactory recordProcessor =
                 new CountingRecordProcessorFactory<HttpReferrerPair>(HttpReferrerPair.class,
@@ -96,15 +286,149 @@ public class HttpReferrerCounterApplication {
                         COMPUTE_RANGE_FOR_COUNTS_IN_MILLIS,
                         COMPUTE_INTERVAL_IN_MILLIS);
 
-        Worker worker = new Worker(recordProcessor, kclConfig);
+        return new Worker(recordProcessor, kclConfig);
+    }
 
-        int exitCode = 0;
-        try {
-            worker.run();
-        } catch (Throwable t) {
-            LOG.error("Caught throwable while processing data.", t);
-            exitCode = 1;
+    /**
+     * Create the configuration counts are persisted to DynamoDB with. The web server uses it to tell how long counts
+     * may take to be written.
+     *
+     * @param writeShardsPerResource The number of hash keys each resource's counts are spread over.
+     * @param countBlockSizeInSeconds The length of time each item covers if counts are stored in time-bucketed items,
+     *        or 0 if they are not.
+     * @return The persister configuration.
+     */
+    static DynamoDBCountPersisterConfig createPersisterConfig(int writeShardsPerResource,
+            int countBlockSizeInSeconds) {
+        DynamoDBCountPersisterConfig persisterConfig = new DynamoDBCountPersisterConfig();
+        persisterConfig.setWriteShardsPerResource(writeShardsPerResource);
+        persisterConfig.setCountIntervalInMillis(COMPUTE_INTERVAL_IN_MILLIS);
+        if (countBlockSizeInSeconds > 0) {
+            persisterConfig.setMinWriteIntervalInMillis(COUNT_BLOCK_WRITE_INTERVAL_IN_MILLIS);
         }
-        System.exit(exitCode);
+        return persisterConfig;
+    }
+
+    /**
+     * Create a persister that sends counts to DynamoDB, creating the counts table if it doesn't exist.
+     */
+    private static DynamoDBCountPersister createDynamoDBCountPersister(AmazonDynamoDB dynamoDB,
+            AWSCredentialsProvider credentialsProvider,
+            ClientConfiguration clientConfig,
+            Region region,
+            String countsTableName,
+            int writeShardsPerResource,
+            int countBlockSizeInSeconds,
+            CountPersisterOptions options) throws IOException {
+        DynamoDBUtils dynamoDBUtils = new DynamoDBUtils(dynamoDB);
+        dynamoDBUtils.createCountTableIfNotExists(countsTableName);
+        LOG.info(String.format("%s DynamoDB table is ready for use", countsTableName));
+
+        DynamoDBCountPersisterConfig persisterConfig =
+                createPersisterConfig(writeShardsPerResource, countBlockSizeInSeconds);
+        WriteRateLimiter rateLimiter = null;
+        AmazonDynamoDB countsDynamoDB = dynamoDB;
+        if (options.isRateLimited()) {
+            // Pace writes to a fraction of the table's provisioned write capacity
+            double writeCapacityUnitsPerSecond =
+                    dynamoDBUtils.getProvisionedWriteCapacity(countsTableName)
+                            * persisterConfig.getWriteCapacityFraction();
+            rateLimiter =
+                    new WriteRateLimiter(writeCapacityUnitsPerSecond,
+                            writeCapacityUnitsPerSecond * persisterConfig.getWriteBurstInSeconds(),
+                            new NanoClock());
+            countsDynamoDB = ConsumedCapacityReportingDynamoDB.wrap(dynamoDB, rateLimiter);
+            LOG.info(String.format("Pacing writes to %.1f write capacity units per second",
+                    writeCapacityUnitsPerSecond));
+        }
+        CountLog countLog = null;
+        if (options.getWriteAheadLogDirectory() != null) {
+            // Log counts locally so checkpoints don't have to wait on DynamoDB
+            countLog = new CountLog(options.getWriteAheadLogDirectory(), CountLog.DEFAULT_SEGMENT_SIZE_IN_BYTES);
+            countLog.open();
+            LOG.info(String.format("Logging counts in %s before sending them to DynamoDB",
+                    options.getWriteAheadLogDirectory()));
+        }
+        HashKeySharding sharding = new HashKeySharding(writeShardsPerResource);
+
+        if (countBlockSizeInSeconds > 0) {
+            // Pack the counts for each block of time into a single item
+            CountWriter countWriter =
+                    new TimeBucketedCountWriter(countsDynamoDB,
+                            countsTableName,
+                            TimeUnit.SECONDS.toMillis(countBlockSizeInSeconds));
+            if (options.isRollups()) {
+                countWriter =
+                        new RollupCountWriter(countWriter,
+                                countsDynamoDB,
+                                countsTableName,
+                                sharding,
+                                ROLLUP_RESOLUTIONS_IN_SECONDS,
+                                persisterConfig.getMaxReferrersPerResource(),
+                                ROLLUP_FLUSH_INTERVAL_IN_MILLIS);
+            }
+            return new DynamoDBCountPersister(countWriter, persisterConfig, rateLimiter, countLog);
+        }
+        if (options.getWriter() == CountPersisterOptions.Writer.ASYNC) {
+            // Pipeline pre-marshalled BatchWriteItem requests through the asynchronous client, with a client thread
+            // per write in flight
+            AmazonDynamoDBAsync dynamoDBAsync =
+                    new AmazonDynamoDBAsyncClient(credentialsProvider,
+                            clientConfig,
+                            Executors.newFixedThreadPool(MAX_IN_FLIGHT_COUNT_WRITES,
+                                    newDaemonThreadFactory("DynamoDBCountWriter")));
+            dynamoDBAsync.setRegion(region);
+            AsyncCountWriter countWriter =
+                    new AsyncBatchWriteItemCountWriter(dynamoDBAsync,
+                            countsTableName,
+                            MAX_IN_FLIGHT_COUNT_WRITES,
+                            rateLimiter);
+            if (options.isRollups()) {
+                countWriter =
+                        new RollupCountWriter(countWriter,
+                                countsDynamoDB,
+                                countsTableName,
+                                sharding,
+                                ROLLUP_RESOLUTIONS_IN_SECONDS,
+                                persisterConfig.getMaxReferrersPerResource(),
+                                ROLLUP_FLUSH_INTERVAL_IN_MILLIS);
+            }
+            return new DynamoDBCountPersister(countWriter, persisterConfig, rateLimiter, countLog);
+        }
+        CountWriter countWriter;
+        if (options.getWriter() == CountPersisterOptions.Writer.BATCH) {
+            // Send pre-marshalled BatchWriteItem requests rather than have the mapper build them
+            countWriter = new BatchWriteItemCountWriter(countsDynamoDB, countsTableName);
+        } else {
+            countWriter =
+                    new MapperCountWriter(new DynamoDBUtils(countsDynamoDB).createMapperForTable(countsTableName));
+        }
+        if (options.isRollups()) {
+            countWriter =
+                    new RollupCountWriter(countWriter,
+                            countsDynamoDB,
+                            countsTableName,
+                            sharding,
+                            ROLLUP_RESOLUTIONS_IN_SECONDS,
+                            persisterConfig.getMaxReferrersPerResource(),
+                            ROLLUP_FLUSH_INTERVAL_IN_MILLIS);
+        }
+        return new DynamoDBCountPersister(countWriter, persisterConfig, rateLimiter, countLog);
+    }
+
+    /**
+     * @return A factory for daemon threads named after a prefix and a sequence number.
+     */
+    private static ThreadFactory newDaemonThreadFactory(final String namePrefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, namePrefix + "-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
     }
 }
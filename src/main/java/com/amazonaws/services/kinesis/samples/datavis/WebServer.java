@@ -5,6 +5,18 @@
 
 package com.amazonaws.services.kinesis.samples.datavis;
 
+import java.io.File;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServlet;
+
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.DefaultHandler;
 import org.eclipse.jetty.server.handler.HandlerList;
@@ -18,32 +30,119 @@ import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
 import com.amazonaws.regions.Region;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.local.RecentCounts;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.local.TimeSeriesReader;
+import com.amazonaws.services.kinesis.samples.datavis.utils.CountRollups;
 import com.amazonaws.services.kinesis.samples.datavis.utils.DynamoDBUtils;
+import com.amazonaws.services.kinesis.samples.datavis.utils.HashKeySharding;
 import com.amazonaws.services.kinesis.samples.datavis.utils.SampleUtils;
+import com.amazonaws.services.kinesis.samples.datavis.webserver.BatchGetCountsServlet;
+import com.amazonaws.services.kinesis.samples.datavis.webserver.BlockCountReader;
+import com.amazonaws.services.kinesis.samples.datavis.webserver.BoundedAsyncServlet;
+import com.amazonaws.services.kinesis.samples.datavis.webserver.CachingCountReader;
+import com.amazonaws.services.kinesis.samples.datavis.webserver.CountReader;
+import com.amazonaws.services.kinesis.samples.datavis.webserver.CountsCache;
 import com.amazonaws.services.kinesis.samples.datavis.webserver.GetCountsServlet;
+import com.amazonaws.services.kinesis.samples.datavis.webserver.IntervalCountReader;
+import com.amazonaws.services.kinesis.samples.datavis.webserver.LocalCountReader;
+import com.amazonaws.services.kinesis.samples.datavis.webserver.RecentCountReader;
+import com.amazonaws.services.kinesis.samples.datavis.webserver.RollupCountReader;
+import com.amazonaws.services.kinesis.samples.datavis.webserver.StreamCountsServlet;
 
 /**
  * Create an embedded HTTP server that responds with counts on the provided port.
  */
 public class WebServer {
+    // Upper bound on threads used to query the hash keys of sharded resources and the segments of long ranges
+    private static final int MAX_QUERY_THREADS = 16;
+    // The counting application persists counts every second
+    private static final long COUNT_INTERVAL_IN_MILLIS = 1000L;
+    // Read rollups rather than per-interval counts when a range would return more points than this
+    private static final int MAX_POINTS_PER_QUERY = 600;
+    // Counts only change once an interval so requests for the same resource and range share results for that long
+    private static final int MAX_CACHED_RESULTS = 1000;
+    // Threads polling for new counts on behalf of stream subscribers. Each polls a resource once per interval.
+    private static final int STREAM_POLL_THREADS = 4;
+    // New stream subscribers are sent this much recent history, enough to fill the dashboard's graph
+    private static final long STREAM_HISTORY_IN_MILLIS = TimeUnit.MINUTES.toMillis(2);
+    // Threads querying resources for batch requests, shared by every batch
+    private static final int BATCH_QUERY_THREADS = 16;
+    // Resource queries waiting for a batch query thread. Queries beyond this are reported as errors.
+    private static final int MAX_QUEUED_BATCH_QUERIES = 1000;
+    // How long a batch waits for its resources to be read
+    private static final long BATCH_TIMEOUT_IN_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    // Threads serving count requests, so slow queries don't tie up the threads serving static content
+    private static final int REQUEST_THREADS = 32;
+    // Count requests waiting for a thread. Requests beyond this are turned away with 503.
+    private static final int MAX_QUEUED_REQUESTS = 200;
+    // Count requests that wait longer than this for a thread are turned away with 503
+    private static final long REQUEST_QUEUE_TIMEOUT_IN_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    // Per-interval counts are cached in blocks of this length once the counting application is done writing them
+    private static final long CACHED_BLOCK_SIZE_IN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    // Sealed blocks are read again this often. A running counting application has written every count in a block
+    // once it is sealed, but counts sent from its write-ahead log after a restart, or counted again when records are
+    // replayed, can be written later.
+    private static final long CACHED_BLOCK_EXPIRY_IN_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    // The most per-interval counts to keep in cached blocks
+    private static final int MAX_CACHED_BLOCK_COUNTS = 100000;
+    // Bounds how long a single DynamoDB request may wait for a response
+    private static final int DYNAMODB_SOCKET_TIMEOUT_IN_MILLIS = (int) TimeUnit.SECONDS.toMillis(10);
+
     /**
      * Start an embedded web server.
      * 
      * @param args Expecting 4 arguments: Port number, File path to static content, the name of the
-     *        DynamoDB table where counts are persisted to, and the AWS region in which these resources
-     *        exist or should be created.
+     *        DynamoDB table where counts are persisted to (or "file:" followed by the directory counts are stored in
+     *        on this machine), and the AWS region in which these resources
+     *        exist or should be created. An optional 5th argument is the number of hash keys each resource's
+     *        counts are spread over, and an optional 6th the length of time in seconds each item covers if counts
+     *        are stored in time-bucketed items. Both must match the values the counting application was started
+     *        with.
      * @throws Exception Error starting the web server.
      */
     public static void main(String[] args) throws Exception {
-        if (args.length != 4) {
+        if (args.length < 4 || args.length > 6) {
             System.err.println("Usage: " + WebServer.class
-                    + " <port number> <directory for static content> <DynamoDB table name> <region>");
+                    + " <port number> <directory for static content> <DynamoDB table name | file:directory> <region>"
+                    + " [write shards per resource] [count block size in seconds]");
             System.exit(1);
         }
-        Server server = new Server(Integer.parseInt(args[0]));
+        int port = Integer.parseInt(args[0]);
         String wwwroot = args[1];
         String countsTableName = args[2];
         Region region = SampleUtils.parseRegion(args[3]);
+        HashKeySharding sharding = new HashKeySharding(args.length > 4 ? Integer.parseInt(args[4]) : 1);
+        int countBlockSizeInSeconds = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+
+        Server server = createServer(port, wwwroot, countsTableName, region, sharding, countBlockSizeInSeconds, null);
+        server.start();
+        server.join();
+    }
+
+    /**
+     * Create an embedded web server that serves static content and counts. It is not started.
+     *
+     * @param port Port number to listen on.
+     * @param wwwroot File path to static content.
+     * @param countsTableName The name of the DynamoDB table counts are persisted to, or "file:" followed by the
+     *        directory counts are stored in on this machine.
+     * @param region The AWS region the table is in.
+     * @param sharding The number of hash keys each resource's counts are spread over.
+     * @param countBlockSizeInSeconds The length of time each item covers if counts are stored in time-bucketed items,
+     *        or 0 if they are not.
+     * @param recentCounts The most recent counts held in memory by a counting application in this process. May be
+     *        {@code null} to read every count from the table.
+     * @return The server.
+     */
+    static Server createServer(int port,
+            String wwwroot,
+            String countsTableName,
+            Region region,
+            HashKeySharding sharding,
+            int countBlockSizeInSeconds,
+            RecentCounts recentCounts) {
+        Server server = new Server(port);
 
         // Servlet context
         ServletContextHandler context =
@@ -57,13 +156,37 @@ public class WebServer {
         resources.setResourceBase(wwwroot);
 
         // Create the servlet to handle /GetCounts
-        AWSCredentialsProvider credentialsProvider = new DefaultAWSCredentialsProviderChain();
-        ClientConfiguration clientConfig = SampleUtils.configureUserAgentForSample(new ClientConfiguration());
-        AmazonDynamoDB dynamoDB = new AmazonDynamoDBClient(credentialsProvider, clientConfig);
-        dynamoDB.setRegion(region);
-        DynamoDBUtils dynamoDBUtils = new DynamoDBUtils(dynamoDB);
-        context.addServlet(new ServletHolder(new GetCountsServlet(dynamoDBUtils.createMapperForTable(countsTableName))),
-                "/GetCounts/*");
+        GetCountsServlet servlet;
+        File localCountsDirectory = SampleUtils.parseLocalCountsDirectory(countsTableName);
+        if (localCountsDirectory != null) {
+            // Read counts stored on this machine
+            servlet = new GetCountsServlet(new LocalCountReader(new TimeSeriesReader(localCountsDirectory)),
+                    new HashKeySharding(1),
+                    null);
+        } else {
+            servlet = createDynamoDBServlet(countsTableName, region, sharding, countBlockSizeInSeconds, recentCounts);
+        }
+        // Serve count requests on a bounded pool of their own
+        ExecutorService requestExecutor =
+                new ThreadPoolExecutor(REQUEST_THREADS, REQUEST_THREADS, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(MAX_QUEUED_REQUESTS));
+        context.addServlet(newBoundedAsyncHolder(servlet, requestExecutor), "/GetCounts/*");
+
+        // Stream new counts to subscribers, polling once per resource however many subscribe. Counts still being
+        // written are read again the same way polling clients read them.
+        ScheduledExecutorService streamScheduler = Executors.newScheduledThreadPool(STREAM_POLL_THREADS);
+        ServletHolder streamHolder =
+                new ServletHolder(new StreamCountsServlet(servlet, streamScheduler, COUNT_INTERVAL_IN_MILLIS,
+                        STREAM_HISTORY_IN_MILLIS, servlet.getSettleTimeInMillis()));
+        streamHolder.setAsyncSupported(true);
+        context.addServlet(streamHolder, "/StreamCounts/*");
+
+        // Query many resources at once on a bounded pool
+        ExecutorService batchExecutor =
+                new ThreadPoolExecutor(BATCH_QUERY_THREADS, BATCH_QUERY_THREADS, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(MAX_QUEUED_BATCH_QUERIES));
+        context.addServlet(newBoundedAsyncHolder(new BatchGetCountsServlet(servlet, batchExecutor,
+                BATCH_TIMEOUT_IN_MILLIS), requestExecutor), "/BatchGetCounts/*");
 
         HandlerList handlers = new HandlerList();
         handlers.addHandler(context);
@@ -71,7 +194,66 @@ public class WebServer {
         handlers.addHandler(new DefaultHandler());
 
         server.setHandler(handlers);
-        server.start();
-        server.join();
+        return server;
+    }
+
+    /**
+     * Hold a servlet that serves requests on an executor, turning them away when it is saturated.
+     */
+    private static ServletHolder newBoundedAsyncHolder(HttpServlet servlet, ExecutorService executor) {
+        ServletHolder holder =
+                new ServletHolder(new BoundedAsyncServlet(servlet, executor, REQUEST_QUEUE_TIMEOUT_IN_MILLIS));
+        holder.setAsyncSupported(true);
+        return holder;
+    }
+
+    /**
+     * Create a servlet that reads counts from DynamoDB.
+     */
+    private static GetCountsServlet createDynamoDBServlet(String countsTableName,
+            Region region,
+            HashKeySharding sharding,
+            int countBlockSizeInSeconds,
+            RecentCounts recentCounts) {
+        AWSCredentialsProvider credentialsProvider = new DefaultAWSCredentialsProviderChain();
+        ClientConfiguration clientConfig = SampleUtils.configureUserAgentForSample(new ClientConfiguration());
+        clientConfig.setSocketTimeout(DYNAMODB_SOCKET_TIMEOUT_IN_MILLIS);
+        AmazonDynamoDB dynamoDB = new AmazonDynamoDBClient(credentialsProvider, clientConfig);
+        dynamoDB.setRegion(region);
+        DynamoDBUtils dynamoDBUtils = new DynamoDBUtils(dynamoDB);
+        DynamoDBMapper mapper = dynamoDBUtils.createMapperForTable(countsTableName);
+        // How long the counting application may take to write a count, whether another shard's or a retry
+        long maxWriteDelayInMillis =
+                HttpReferrerCounterApplication.createPersisterConfig(sharding.getWriteShards(), countBlockSizeInSeconds)
+                        .getMaxWriteDelayInMillis();
+        CountReader reader =
+                countBlockSizeInSeconds > 0 ? new BlockCountReader(mapper,
+                        TimeUnit.SECONDS.toMillis(countBlockSizeInSeconds)) : new IntervalCountReader(mapper);
+        // Only the open blocks at the end of a range are read from the table once the rest have been read. A block is
+        // sealed once the counting application is done writing it.
+        reader = new CachingCountReader(reader, CACHED_BLOCK_SIZE_IN_MILLIS, maxWriteDelayInMillis,
+                CACHED_BLOCK_EXPIRY_IN_MILLIS, MAX_CACHED_BLOCK_COUNTS);
+        if (recentCounts != null) {
+            // The newest counts are read from the counting application's memory rather than the table
+            reader = new RecentCountReader(recentCounts, reader);
+        }
+        // Long ranges are read from the minute and hour rollups the counting application maintains
+        NavigableMap<Long, CountReader> readersByResolution = new TreeMap<>();
+        readersByResolution.put(COUNT_INTERVAL_IN_MILLIS, reader);
+        for (int resolution : new int[] { CountRollups.MINUTE_RESOLUTION_IN_SECONDS,
+                CountRollups.HOUR_RESOLUTION_IN_SECONDS }) {
+            readersByResolution.put(TimeUnit.SECONDS.toMillis(resolution), new RollupCountReader(mapper, resolution));
+        }
+        // Query the hash keys of sharded resources, and the segments of long ranges, in parallel
+        ExecutorService queryExecutor =
+                Executors.newFixedThreadPool(Math.min(sharding.getWriteShards() * GetCountsServlet.MAX_SEGMENTS,
+                        MAX_QUERY_THREADS));
+        // Counts for recent intervals may still be written, so polls read them again until the persister is done
+        return new GetCountsServlet(readersByResolution,
+                MAX_POINTS_PER_QUERY,
+                sharding,
+                queryExecutor,
+                new CountsCache(COUNT_INTERVAL_IN_MILLIS, MAX_CACHED_RESULTS),
+                maxWriteDelayInMillis);
     }
 }
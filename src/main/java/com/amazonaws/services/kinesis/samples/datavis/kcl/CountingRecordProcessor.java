@@ -6,6 +6,7 @@
 package com.amazonaws.services.kinesis.samples.datavis.kcl;
 
 import java.io.IOException;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executors;
@@ -33,6 +34,10 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 /**
  * Computes a map of (HttpReferrerPair -> count(pair)) over a fixed range of time. Counts are computed at the intervals
  * provided.
+ * <p/>
+ * The window is advanced half way between wall-clock interval boundaries (multiples of the interval since the epoch).
+ * Counts are persisted with the boundary each advance follows, counted from the first rather than read from the clock,
+ * so every boundary is seen exactly once even if an advance runs late.
  *
  * @param <T> The type of records this processor is capable of counting.
  */
@@ -55,6 +60,10 @@ public class CountingRecordProcessor<T> implements IRecordProcessor {
     // Counter for keeping track of counts per interval.
     private SlidingWindowCounter<T> counter;
 
+    // The start of the interval the next advance of the window closes, in milliseconds since the epoch. Only used
+    // while holding the lock on the counter.
+    private long nextIntervalStartInMillis;
+
     // The shard this processor is processing
     private String kinesisShardId;
 
@@ -124,6 +133,14 @@ public class CountingRecordProcessor<T> implements IRecordProcessor {
         // Create a sliding window whose size is large enough to hold an entire range of individual interval counts.
         counter = new SlidingWindowCounter<>((int) (computeRangeInMillis / computeIntervalInMillis));
 
+        long now = System.currentTimeMillis();
+        long initialDelayInMillis =
+                alignToIntervalMidpoint(now,
+                        TimeUnit.SECONDS.toMillis(config.getInitialWindowAdvanceDelayInSeconds()),
+                        computeIntervalInMillis);
+        long firstAdvanceAt = now + initialDelayInMillis;
+        nextIntervalStartInMillis = firstAdvanceAt - firstAdvanceAt % computeIntervalInMillis;
+
         // Create a scheduled task that runs every computeIntervalInMillis to compute and
         // persist the counts.
         scheduledExecutor.scheduleAtFixedRate(new Runnable() {
@@ -140,18 +157,39 @@ public class CountingRecordProcessor<T> implements IRecordProcessor {
                 }
             }
         },
-                TimeUnit.SECONDS.toMillis(config.getInitialWindowAdvanceDelayInSeconds()),
+                initialDelayInMillis,
                 computeIntervalInMillis,
                 TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * Adjust a delay so it ends at the midpoint of a wall-clock interval, i.e. half an interval after a multiple of the
+     * interval since the epoch. The nearest midpoint is chosen so the delay changes by at most half an interval.
+     *
+     * @param nowInMillis The current time in milliseconds since the epoch.
+     * @param delayInMillis The delay to adjust.
+     * @param intervalInMillis The length of each interval.
+     * @return The adjusted delay. This is never negative.
+     */
+    static long alignToIntervalMidpoint(long nowInMillis, long delayInMillis, long intervalInMillis) {
+        long target = nowInMillis + delayInMillis;
+        // How far the target is past the previous midpoint
+        long pastMidpoint = ((target - intervalInMillis / 2) % intervalInMillis + intervalInMillis) % intervalInMillis;
+        long aligned =
+                pastMidpoint <= intervalInMillis / 2 ? target - pastMidpoint : target + intervalInMillis - pastMidpoint;
+        return Math.max(0L, aligned - nowInMillis);
+    }
+
     /**
      * Advance the internal sliding window counter one interval. This will invoke our count persister if the window is
      * full.
      */
     protected void advanceOneInterval() {
         Map<T, Long> counts = null;
+        Date intervalStart;
         synchronized (counter) {
+            intervalStart = new Date(nextIntervalStartInMillis);
+            nextIntervalStartInMillis += computeIntervalInMillis;
             // Only persist the counts if we have a full range of data to report. We don't want partial
             // counts each time the process starts.
             if (shouldPersistCounts()) {
@@ -168,7 +206,7 @@ public class CountingRecordProcessor<T> implements IRecordProcessor {
         }
         // Persist the counts if we have a full range
         if (counts != null) {
-            persister.persist(counts);
+            persister.persist(counts, intervalStart, kinesisShardId);
         }
     }
 
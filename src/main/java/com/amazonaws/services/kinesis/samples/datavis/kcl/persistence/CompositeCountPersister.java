@@ -0,0 +1,374 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Sends counts to several persisters, or sinks, at once. Each sink has its own bounded queue of intervals and its own
+ * thread so a slow sink never delays the others. What happens when a sink's queue is full is decided by its
+ * {@link BackpressurePolicy}.
+ * <p/>
+ * Checkpointing queues a checkpoint behind every sink's pending intervals and waits for all of them. Sinks checkpoint
+ * in parallel, so a checkpoint takes as long as the slowest sink rather than the sum of them all.
+ *
+ * @param <T> Type of objects this persister can persist.
+ */
+public class CompositeCountPersister<T> implements CountPersister<T> {
+    private static final Log LOG = LogFactory.getLog(CompositeCountPersister.class);
+
+    // How often to check that a sink's thread is still running while waiting for it to checkpoint
+    private static final long CHECKPOINT_LIVENESS_CHECK_INTERVAL_IN_MILLIS = 1000L;
+
+    /**
+     * What to do with a new interval of counts when a sink's queue is full.
+     */
+    public enum BackpressurePolicy {
+        /**
+         * Wait for the sink to make room. This delays the record processors, and so every other sink, until the sink
+         * catches up. Use this for sinks that must see every interval.
+         */
+        BLOCK,
+        /**
+         * Drop the oldest queued interval. Use this for sinks that only care about the latest counts.
+         */
+        DROP_OLDEST,
+        /**
+         * Drop the new interval.
+         */
+        DROP_NEWEST
+    }
+
+    private final List<Sink<T>> sinks = new ArrayList<>();
+    private boolean started;
+
+    /**
+     * Add a persister to send counts to. Sinks must be added before this persister is initialized.
+     *
+     * @param name Name of the sink, used for its thread and in log messages.
+     * @param persister The persister to send counts to.
+     * @param queueCapacity The maximum number of intervals to queue for the sink.
+     * @param policy What to do with new intervals when the queue is full.
+     * @return The sink, to monitor how far behind it is.
+     */
+    public synchronized Sink<T> addSink(String name,
+            CountPersister<T> persister,
+            int queueCapacity,
+            BackpressurePolicy policy) {
+        if (name == null) {
+            throw new NullPointerException("name must not be null");
+        }
+        if (persister == null) {
+            throw new NullPointerException("persister must not be null");
+        }
+        if (policy == null) {
+            throw new NullPointerException("policy must not be null");
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be >= 1");
+        }
+        if (started) {
+            throw new IllegalStateException("Sinks must be added before the persister is initialized");
+        }
+        Sink<T> sink = new Sink<>(name, persister, queueCapacity, policy);
+        sinks.add(sink);
+        return sink;
+    }
+
+    /**
+     * @return The sinks counts are sent to.
+     */
+    public synchronized List<Sink<T>> getSinks() {
+        return Collections.unmodifiableList(new ArrayList<>(sinks));
+    }
+
+    /**
+     * Initialize every sink. Every record processor initializes this persister, but each sink's thread is only started
+     * once.
+     */
+    @Override
+    public void initialize() {
+        for (Sink<T> sink : getSinks()) {
+            sink.persister.initialize();
+        }
+        synchronized (this) {
+            if (started) {
+                return;
+            }
+            started = true;
+            for (Sink<T> sink : sinks) {
+                sink.start();
+            }
+        }
+    }
+
+    @Override
+    public void persist(Map<T, Long> objectCounts, Date intervalStart, String shardId) {
+        if (objectCounts.isEmpty()) {
+            return;
+        }
+        // Every sink sees the same counts so make sure none of them can change them
+        Map<T, Long> counts = Collections.unmodifiableMap(objectCounts);
+        for (Sink<T> sink : getSinks()) {
+            sink.offer(counts, intervalStart, shardId);
+        }
+    }
+
+    /**
+     * Checkpoint every sink in parallel once it has persisted every interval queued before this call. This waits for
+     * the slowest sink.
+     *
+     * @throws IllegalStateException if a sink failed to checkpoint or its thread is no longer running.
+     */
+    @Override
+    public void checkpoint() throws InterruptedException {
+        List<Sink<T>> targets = getSinks();
+        List<Checkpoint> checkpoints = new ArrayList<>(targets.size());
+        for (Sink<T> sink : targets) {
+            checkpoints.add(sink.requestCheckpoint());
+        }
+        for (int i = 0; i < targets.size(); i++) {
+            targets.get(i).await(checkpoints.get(i));
+        }
+    }
+
+    /**
+     * Work queued for a sink.
+     */
+    private static class Task {
+        // When, in System.nanoTime(), the task was queued
+        private final long queuedAt = System.nanoTime();
+    }
+
+    private static class Interval<T> extends Task {
+        private final Map<T, Long> counts;
+        private final Date start;
+        private final String shardId;
+
+        Interval(Map<T, Long> counts, Date start, String shardId) {
+            this.counts = counts;
+            this.start = start;
+            this.shardId = shardId;
+        }
+    }
+
+    private static class Checkpoint extends Task {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Exception failure;
+    }
+
+    /**
+     * A persister counts are sent to, with its own queue and thread.
+     *
+     * @param <T> Type of objects the sink persists.
+     */
+    public static class Sink<T> {
+        private final String name;
+        private final CountPersister<T> persister;
+        private final BackpressurePolicy policy;
+
+        // Intervals and checkpoints waiting to be handled. Only intervals count towards the queue's capacity.
+        private final BlockingDeque<Task> queue = new LinkedBlockingDeque<>();
+        // One permit for each interval that may be queued
+        private final Semaphore capacity;
+
+        private volatile Thread thread;
+
+        // Metrics
+        private final AtomicLong persistedIntervals = new AtomicLong();
+        private final AtomicLong droppedIntervals = new AtomicLong();
+        private final AtomicLong failedIntervals = new AtomicLong();
+
+        private Sink(String name, CountPersister<T> persister, int queueCapacity, BackpressurePolicy policy) {
+            this.name = name;
+            this.persister = persister;
+            this.policy = policy;
+            this.capacity = new Semaphore(queueCapacity);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The number of intervals waiting to be persisted.
+         */
+        public int getQueuedIntervals() {
+            int intervals = 0;
+            for (Task task : queue) {
+                if (task instanceof Interval) {
+                    intervals++;
+                }
+            }
+            return intervals;
+        }
+
+        /**
+         * @return How long, in milliseconds, the oldest queued interval or checkpoint has been waiting. This is 0 when
+         *         the sink has caught up.
+         */
+        public long getLagInMillis() {
+            Task oldest = queue.peekFirst();
+            return oldest == null ? 0L : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.queuedAt);
+        }
+
+        /**
+         * @return The number of intervals the sink has persisted.
+         */
+        public long getPersistedIntervals() {
+            return persistedIntervals.get();
+        }
+
+        /**
+         * @return The number of intervals dropped because the sink's queue was full.
+         */
+        public long getDroppedIntervals() {
+            return droppedIntervals.get();
+        }
+
+        /**
+         * @return The number of intervals the sink threw an exception persisting.
+         */
+        public long getFailedIntervals() {
+            return failedIntervals.get();
+        }
+
+        private void start() {
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }, "CountPersisterSink-" + name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Queue an interval according to the sink's backpressure policy.
+         */
+        private synchronized void offer(Map<T, Long> counts, Date intervalStart, String shardId) {
+            switch (policy) {
+                case BLOCK:
+                    try {
+                        capacity.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        drop("Interrupted while waiting for");
+                        return;
+                    }
+                    break;
+                case DROP_NEWEST:
+                    if (!capacity.tryAcquire()) {
+                        drop("Queue full for");
+                        return;
+                    }
+                    break;
+                case DROP_OLDEST:
+                    while (!capacity.tryAcquire()) {
+                        // The sink's thread may take the oldest interval first, in which case it frees a permit
+                        for (Task task : queue) {
+                            if (task instanceof Interval && queue.removeFirstOccurrence(task)) {
+                                capacity.release();
+                                drop("Queue full for");
+                                break;
+                            }
+                        }
+                    }
+                    break;
+            }
+            queue.addLast(new Interval<>(counts, intervalStart, shardId));
+        }
+
+        private void drop(String reason) {
+            long dropped = droppedIntervals.incrementAndGet();
+            LOG.warn(String.format("%s sink %s. Dropped an interval of counts (%d dropped so far).",
+                    reason,
+                    name,
+                    dropped));
+        }
+
+        private Checkpoint requestCheckpoint() {
+            Checkpoint checkpoint = new Checkpoint();
+            queue.addLast(checkpoint);
+            return checkpoint;
+        }
+
+        /**
+         * Wait for a checkpoint to complete.
+         */
+        private void await(Checkpoint checkpoint) throws InterruptedException {
+            while (!checkpoint.done.await(CHECKPOINT_LIVENESS_CHECK_INTERVAL_IN_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (thread == null || !thread.isAlive()) {
+                    throw new IllegalStateException("Thread for sink " + name
+                            + " is not running. Counts are not persisted and we should not checkpoint!");
+                }
+            }
+            if (checkpoint.failure != null) {
+                throw new IllegalStateException("Sink " + name + " failed to checkpoint", checkpoint.failure);
+            }
+        }
+
+        /**
+         * Persist intervals and checkpoint in the order they were queued until interrupted.
+         */
+        @SuppressWarnings("unchecked")
+        private void drain() {
+            while (!Thread.currentThread().isInterrupted()) {
+                Task task;
+                try {
+                    task = queue.takeFirst();
+                } catch (InterruptedException e) {
+                    LOG.error("Thread for sink " + name + " was interrupted. Counts will no longer be persisted to it!",
+                            e);
+                    return;
+                }
+                if (task instanceof Interval) {
+                    capacity.release();
+                    persist((Interval<T>) task);
+                } else {
+                    checkpoint((Checkpoint) task);
+                }
+            }
+        }
+
+        private void persist(Interval<T> interval) {
+            try {
+                persister.persist(interval.counts, interval.start, interval.shardId);
+                persistedIntervals.incrementAndGet();
+            } catch (RuntimeException ex) {
+                failedIntervals.incrementAndGet();
+                LOG.error("Sink " + name + " failed to persist an interval of counts", ex);
+            }
+        }
+
+        private void checkpoint(Checkpoint checkpoint) {
+            try {
+                persister.checkpoint();
+            } catch (InterruptedException e) {
+                checkpoint.failure = e;
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException ex) {
+                checkpoint.failure = ex;
+            } finally {
+                checkpoint.done.countDown();
+            }
+        }
+    }
+}
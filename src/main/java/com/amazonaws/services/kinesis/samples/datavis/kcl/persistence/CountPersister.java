@@ -7,6 +7,7 @@ package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence;
 
 import com.amazonaws.services.kinesis.samples.datavis.kcl.CountingRecordProcessor;
 
+import java.util.Date;
 import java.util.Map;
 
 /**
@@ -25,12 +26,17 @@ public interface CountPersister<T> {
      * Persist the map of objects to counts.
      *
      * @param objectCounts
+     * @param intervalStart The start of the interval the counts were computed for. Counts persisted again for the same
+     *        interval, e.g. when replayed after a failure, are given the same interval whenever they are persisted.
+     * @param shardId The Kinesis shard the counts were computed from. Every shard counts its own records, so counts
+     *        from different shards for the same interval are kept apart and counts persisted again by the same shard
+     *        replace those it persisted before.
      */
-    public void persist(Map<T, Long> objectCounts);
+    public void persist(Map<T, Long> objectCounts, Date intervalStart, String shardId);
 
     /**
      * Indicates this persister should flush its internal state and guarantee all records received from calls to
-     * {@link #persist(Map)} are completely handled.
+     * {@link #persist(Map, Date, String)} are completely handled.
      *
      * @throws InterruptedException if any thread interrupted the current thread while performing a checkpoint.
      */
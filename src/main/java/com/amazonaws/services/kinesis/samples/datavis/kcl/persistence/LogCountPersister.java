@@ -8,6 +8,7 @@ package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.util.Date;
 import java.util.Map;
 
 /**
@@ -23,9 +24,9 @@ public class LogCountPersister<T> implements CountPersister<T> {
     }
 
     @Override
-    public void persist(Map<T, Long> objectCounts) {
+    public void persist(Map<T, Long> objectCounts, Date intervalStart, String shardId) {
         if (!objectCounts.isEmpty()) {
-            LOG.info("Current totals:");
+            LOG.info("Current totals from " + shardId + " as of " + intervalStart + ":");
             LOG.info("----------------------------------------");
             for (Map.Entry<T, Long> entry : objectCounts.entrySet()) {
                 LOG.info(String.format("%s\t%s", entry.getKey(), entry.getValue()));
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsync;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+
+/**
+ * Writes counts with BatchWriteItem requests sent through the asynchronous DynamoDB client. Items are the same as those
+ * written by {@link BatchWriteItemCountWriter}.
+ * <p/>
+ * At most a fixed number of requests are in flight at once. Once that many are outstanding
+ * {@link #write(List, WriteCallback)} blocks until one completes, which holds counts back in the caller's queue rather
+ * than piling up requests in the client.
+ * <p/>
+ * If a {@link WriteRateLimiter} is provided every request asks for the capacity it consumed and reports it when it
+ * completes.
+ * <p/>
+ * Writes must be started from a single thread. Callbacks are called from the client's threads.
+ */
+public class AsyncBatchWriteItemCountWriter implements AsyncCountWriter {
+    private static final Log LOG = LogFactory.getLog(AsyncBatchWriteItemCountWriter.class);
+
+    // DynamoDB accepts at most 25 items in a single BatchWriteItem request
+    private static final int MAX_ITEMS_PER_BATCH = 25;
+
+    private AmazonDynamoDBAsync dynamoDB;
+    private String tableName;
+    private WriteRateLimiter rateLimiter;
+
+    // Builds items for counts. This is only used by the thread starting writes.
+    private BatchWriteItemCountWriter items;
+
+    // One permit per request that may be in flight
+    private Semaphore inFlightRequests;
+    private int maxInFlightRequests;
+
+    /**
+     * @param dynamoDB The asynchronous Amazon DynamoDB client to send requests with.
+     * @param tableName The table to write counts to.
+     * @param maxInFlightRequests The most BatchWriteItem requests to have outstanding at once.
+     * @param rateLimiter Rate limiter to report consumed capacity to. May be {@code null}.
+     */
+    public AsyncBatchWriteItemCountWriter(AmazonDynamoDBAsync dynamoDB,
+            String tableName,
+            int maxInFlightRequests,
+            WriteRateLimiter rateLimiter) {
+        if (dynamoDB == null) {
+            throw new NullPointerException("dynamoDB must not be null");
+        }
+        if (tableName == null) {
+            throw new NullPointerException("tableName must not be null");
+        }
+        if (maxInFlightRequests < 1) {
+            throw new IllegalArgumentException("maxInFlightRequests must be >= 1");
+        }
+        this.dynamoDB = dynamoDB;
+        this.tableName = tableName;
+        this.rateLimiter = rateLimiter;
+        this.items = new BatchWriteItemCountWriter(dynamoDB, tableName);
+        this.inFlightRequests = new Semaphore(maxInFlightRequests);
+        this.maxInFlightRequests = maxInFlightRequests;
+    }
+
+    @Override
+    public void write(List<HttpReferrerPairsCount> counts, WriteCallback callback) throws InterruptedException {
+        if (callback == null) {
+            throw new NullPointerException("callback must not be null");
+        }
+        for (int start = 0; start < counts.size(); start += MAX_ITEMS_PER_BATCH) {
+            // Copy the batch since the caller may reuse its list once this returns
+            List<HttpReferrerPairsCount> batch =
+                    new ArrayList<>(counts.subList(start, Math.min(start + MAX_ITEMS_PER_BATCH, counts.size())));
+            inFlightRequests.acquire();
+            writeBatch(batch, callback);
+        }
+    }
+
+    /**
+     * Shut down the client, and with it the threads it sends requests on.
+     */
+    @Override
+    public void shutdown() {
+        dynamoDB.shutdown();
+    }
+
+    /**
+     * @return The number of BatchWriteItem requests currently outstanding.
+     */
+    public int getInFlightRequests() {
+        return maxInFlightRequests - inFlightRequests.availablePermits();
+    }
+
+    /**
+     * Send a single BatchWriteItem request. A permit must have been acquired for it.
+     */
+    private void writeBatch(final List<HttpReferrerPairsCount> counts, final WriteCallback callback) {
+        List<WriteRequest> batch = new ArrayList<>(counts.size());
+        for (HttpReferrerPairsCount count : counts) {
+            batch.add(new WriteRequest().withPutRequest(new PutRequest().withItem(items.toItem(count))));
+        }
+        BatchWriteItemRequest request =
+                new BatchWriteItemRequest().withRequestItems(Collections.singletonMap(tableName, batch));
+        if (rateLimiter != null) {
+            request.setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        }
+
+        try {
+            dynamoDB.batchWriteItemAsync(request, new AsyncHandler<BatchWriteItemRequest, BatchWriteItemResult>() {
+                @Override
+                public void onSuccess(BatchWriteItemRequest request, BatchWriteItemResult result) {
+                    inFlightRequests.release();
+                    if (rateLimiter != null) {
+                        ConsumedCapacityReportingDynamoDB.report(rateLimiter, request, result);
+                    }
+                    List<HttpReferrerPairsCount> failed = new ArrayList<>();
+                    Map<String, List<WriteRequest>> unprocessedItems = result.getUnprocessedItems();
+                    if (unprocessedItems != null && unprocessedItems.containsKey(tableName)) {
+                        CountItemKeys.matchUnprocessed(CountItemKeys.indexByKey(counts),
+                                unprocessedItems.get(tableName),
+                                failed);
+                    }
+                    callback.onComplete(counts, failed);
+                }
+
+                @Override
+                public void onError(Exception ex) {
+                    inFlightRequests.release();
+                    LOG.warn("Error sending count batch to DynamoDB. Failed counts will be retried.", ex);
+                    callback.onComplete(counts, counts);
+                }
+            });
+        } catch (AmazonClientException | RejectedExecutionException ex) {
+            // The request was never started, e.g. because the client has been shut down
+            inFlightRequests.release();
+            LOG.warn("Unable to send count batch to DynamoDB. Failed counts will be retried.", ex);
+            callback.onComplete(counts, counts);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
+
+import java.util.List;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+
+/**
+ * Writes counts as items to a DynamoDB table without waiting for DynamoDB to respond. This lets a single thread keep
+ * many writes in flight.
+ */
+public interface AsyncCountWriter {
+
+    /**
+     * Start writing counts to DynamoDB. This may block while too many writes are already in flight.
+     *
+     * @param counts The counts to write.
+     * @param callback Told the outcome of every count. It may be called several times, each time for a subset of the
+     *        counts, from other threads and possibly before this returns.
+     * @throws InterruptedException if interrupted while waiting for an earlier write to complete. Counts not yet
+     *         started are not passed to the callback.
+     */
+    public void write(List<HttpReferrerPairsCount> counts, WriteCallback callback) throws InterruptedException;
+
+    /**
+     * Stop the threads this writer uses. Writes still in flight may not complete and no more may be started.
+     */
+    public void shutdown();
+
+    /**
+     * Receives the outcome of an asynchronous write.
+     */
+    public interface WriteCallback {
+
+        /**
+         * @param counts The counts this write attempted.
+         * @param failed The counts DynamoDB did not accept. These may be retried.
+         */
+        public void onComplete(List<HttpReferrerPairsCount> counts, List<HttpReferrerPairsCount> failed);
+    }
+}
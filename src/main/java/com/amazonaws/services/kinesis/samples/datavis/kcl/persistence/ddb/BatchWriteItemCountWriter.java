@@ -0,0 +1,141 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
+
+import java.io.ByteArrayOutputStream;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.util.Base64;
+
+/**
+ * Writes counts with raw BatchWriteItem requests. Items are built directly as attribute value maps rather than through
+ * {@link DynamoDBMapper}'s reflection, which saves a noticeable amount of CPU and garbage when writing many counts per
+ * interval. The items written are identical to those the mapper writes for {@link HttpReferrerPairsCount}.
+ * <p/>
+ * Unprocessed items are not retried here. They are returned so the caller can retry them with backoff.
+ * <p/>
+ * This reuses internal buffers between writes and is not safe for use by multiple threads.
+ */
+public class BatchWriteItemCountWriter implements CountWriter {
+    private static final Log LOG = LogFactory.getLog(BatchWriteItemCountWriter.class);
+
+    // DynamoDB accepts at most 25 items in a single BatchWriteItem request
+    private static final int MAX_ITEMS_PER_BATCH = 25;
+
+    private AmazonDynamoDB dynamoDB;
+    private String tableName;
+
+    // Counts from the same interval share a timestamp, so remember the last one we formatted
+    private final DateFormat iso8601 = CountItemKeys.newIso8601Format();
+    private long lastTimestampMillis = Long.MIN_VALUE;
+    private String lastFormattedTimestamp;
+
+    // Reused for every batch and every referrer count encoding
+    private final List<WriteRequest> batch = new ArrayList<>(MAX_ITEMS_PER_BATCH);
+    private final ByteArrayOutputStream referrerCountsBuffer = new ByteArrayOutputStream(4096);
+
+    /**
+     * @param dynamoDB The Amazon DynamoDB client to send requests with.
+     * @param tableName The table to write counts to.
+     */
+    public BatchWriteItemCountWriter(AmazonDynamoDB dynamoDB, String tableName) {
+        if (dynamoDB == null) {
+            throw new NullPointerException("dynamoDB must not be null");
+        }
+        if (tableName == null) {
+            throw new NullPointerException("tableName must not be null");
+        }
+        this.dynamoDB = dynamoDB;
+        this.tableName = tableName;
+    }
+
+    @Override
+    public List<HttpReferrerPairsCount> write(List<HttpReferrerPairsCount> counts) {
+        List<HttpReferrerPairsCount> failed = new ArrayList<>();
+        for (int start = 0; start < counts.size(); start += MAX_ITEMS_PER_BATCH) {
+            writeBatch(counts.subList(start, Math.min(start + MAX_ITEMS_PER_BATCH, counts.size())), failed);
+        }
+        return failed;
+    }
+
+    /**
+     * Send a single BatchWriteItem request.
+     *
+     * @param counts Counts to write. Must not exceed {@link #MAX_ITEMS_PER_BATCH}.
+     * @param failed Counts that were not written are added to this list.
+     */
+    private void writeBatch(List<HttpReferrerPairsCount> counts, List<HttpReferrerPairsCount> failed) {
+        batch.clear();
+        for (HttpReferrerPairsCount count : counts) {
+            batch.add(new WriteRequest().withPutRequest(new PutRequest().withItem(toItem(count))));
+        }
+        BatchWriteItemRequest request =
+                new BatchWriteItemRequest().withRequestItems(Collections.singletonMap(tableName, batch));
+
+        BatchWriteItemResult result;
+        try {
+            result = dynamoDB.batchWriteItem(request);
+        } catch (AmazonClientException ex) {
+            LOG.warn("Error sending count batch to DynamoDB. Failed counts will be retried.", ex);
+            failed.addAll(counts);
+            return;
+        }
+
+        Map<String, List<WriteRequest>> unprocessedItems = result.getUnprocessedItems();
+        if (unprocessedItems != null && unprocessedItems.containsKey(tableName)) {
+            CountItemKeys.matchUnprocessed(CountItemKeys.indexByKey(counts), unprocessedItems.get(tableName), failed);
+        }
+    }
+
+    /**
+     * Build the item for a count. This must match what {@link DynamoDBMapper} would write for the same count: null
+     * attributes are omitted and the range key is the timestamp as an ISO-8601 string in UTC followed by the shard id,
+     * see {@link HttpReferrerPairsCount#getRangeKey()}.
+     *
+     * @param count The count to convert.
+     * @return Attribute values for the count's item.
+     */
+    Map<String, AttributeValue> toItem(HttpReferrerPairsCount count) {
+        Map<String, AttributeValue> item = new HashMap<>(8);
+        item.put(CountItemKeys.ATTRIBUTE_RESOURCE, new AttributeValue().withS(count.getResource()));
+        String rangeKey = HttpReferrerPairsCount.toRangeKey(formatTimestamp(count.getTimestamp()), count.getShardId());
+        item.put(CountItemKeys.ATTRIBUTE_TIMESTAMP, new AttributeValue().withS(rangeKey));
+        if (count.getHost() != null) {
+            item.put(CountItemKeys.ATTRIBUTE_HOST, new AttributeValue().withS(count.getHost()));
+        }
+        if (count.getReferrerCounts() != null) {
+            byte[] encoded = ReferrerCountsCodec.encode(count.getReferrerCounts(), referrerCountsBuffer);
+            item.put(CountItemKeys.ATTRIBUTE_REFERRER_COUNTS, new AttributeValue().withS(Base64.encodeAsString(encoded)));
+        }
+        return item;
+    }
+
+    private String formatTimestamp(Date timestamp) {
+        if (timestamp.getTime() != lastTimestampMillis) {
+            lastTimestampMillis = timestamp.getTime();
+            lastFormattedTimestamp = iso8601.format(timestamp);
+        }
+        return lastFormattedTimestamp;
+    }
+}
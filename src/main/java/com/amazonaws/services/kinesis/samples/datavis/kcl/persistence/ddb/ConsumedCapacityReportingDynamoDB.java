@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+/**
+ * Decorates an {@link AmazonDynamoDB} client so every BatchWriteItem and PutItem request asks DynamoDB for the
+ * capacity it consumed and reports it to a {@link WriteRateLimiter}. {@link DynamoDBMapper} doesn't expose the requests it sends, so wrapping
+ * the client it uses is the only way to observe consumed capacity for mapper writes. All other calls are passed through
+ * untouched.
+ */
+public class ConsumedCapacityReportingDynamoDB implements InvocationHandler {
+    private AmazonDynamoDB delegate;
+    private WriteRateLimiter rateLimiter;
+
+    private ConsumedCapacityReportingDynamoDB(AmazonDynamoDB delegate, WriteRateLimiter rateLimiter) {
+        this.delegate = delegate;
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Wrap a client to report capacity consumed by batch writes.
+     *
+     * @param delegate The client to send requests with.
+     * @param rateLimiter The rate limiter to report consumed capacity to.
+     * @return A client that reports the capacity consumed by every BatchWriteItem and PutItem request it sends.
+     */
+    public static AmazonDynamoDB wrap(AmazonDynamoDB delegate, WriteRateLimiter rateLimiter) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate must not be null");
+        }
+        if (rateLimiter == null) {
+            throw new NullPointerException("rateLimiter must not be null");
+        }
+        return (AmazonDynamoDB) Proxy.newProxyInstance(AmazonDynamoDB.class.getClassLoader(),
+                new Class<?>[] { AmazonDynamoDB.class },
+                new ConsumedCapacityReportingDynamoDB(delegate, rateLimiter));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if ("batchWriteItem".equals(method.getName()) && args != null && args.length == 1
+                && args[0] instanceof BatchWriteItemRequest) {
+            BatchWriteItemRequest request = (BatchWriteItemRequest) args[0];
+            request.setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+            BatchWriteItemResult result = (BatchWriteItemResult) call(method, args);
+            report(rateLimiter, request, result);
+            return result;
+        }
+        if ("putItem".equals(method.getName()) && args != null && args.length == 1
+                && args[0] instanceof PutItemRequest) {
+            ((PutItemRequest) args[0]).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+            PutItemResult result = (PutItemResult) call(method, args);
+            if (result != null && result.getConsumedCapacity() != null
+                    && result.getConsumedCapacity().getCapacityUnits() != null) {
+                rateLimiter.recordConsumedCapacity(result.getConsumedCapacity().getCapacityUnits(), 1);
+            }
+            return result;
+        }
+        return call(method, args);
+    }
+
+    private Object call(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(delegate, args);
+        } catch (InvocationTargetException ex) {
+            // Rethrow what the client threw, not the reflective wrapper
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Report the capacity consumed by a BatchWriteItem request sent with {@link ReturnConsumedCapacity#TOTAL}.
+     */
+    static void report(WriteRateLimiter rateLimiter, BatchWriteItemRequest request, BatchWriteItemResult result) {
+        if (result == null || result.getConsumedCapacity() == null) {
+            return;
+        }
+        double consumed = 0;
+        for (ConsumedCapacity capacity : result.getConsumedCapacity()) {
+            if (capacity.getCapacityUnits() != null) {
+                consumed += capacity.getCapacityUnits();
+            }
+        }
+        rateLimiter.recordConsumedCapacity(consumed, countWrittenItems(request, result));
+    }
+
+    private static int countWrittenItems(BatchWriteItemRequest request, BatchWriteItemResult result) {
+        int items = countItems(request.getRequestItems().values());
+        if (result.getUnprocessedItems() != null) {
+            items -= countItems(result.getUnprocessedItems().values());
+        }
+        return items;
+    }
+
+    private static int countItems(Iterable<List<WriteRequest>> requests) {
+        int items = 0;
+        for (List<WriteRequest> tableRequests : requests) {
+            items += tableRequests.size();
+        }
+        return items;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+
+/**
+ * Helpers for identifying count items by their primary key. This is used to match the unprocessed items DynamoDB
+ * returns from a batch write back to the counts they were created from.
+ * <p/>
+ * Every timestamp stored as or compared with a range key is formatted and parsed here.
+ */
+public class CountItemKeys {
+    static final String ATTRIBUTE_RESOURCE = "resource";
+    static final String ATTRIBUTE_TIMESTAMP = "timestamp";
+    static final String ATTRIBUTE_HOST = "host";
+    static final String ATTRIBUTE_REFERRER_COUNTS = "referrerCounts";
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    // Formats range keys the same way DynamoDBMapper does
+    private static final ThreadLocal<DateFormat> DATE_FORMATTER = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            return newIso8601Format();
+        }
+    };
+
+    /**
+     * @return A new formatter for ISO-8601 timestamps in UTC, as written by DynamoDBMapper for {@link Date}s.
+     */
+    static DateFormat newIso8601Format() {
+        DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        df.setTimeZone(UTC);
+        return df;
+    }
+
+    /**
+     * Format a timestamp the way it is stored as a range key.
+     */
+    public static String formatTimestamp(Date timestamp) {
+        return DATE_FORMATTER.get().format(timestamp);
+    }
+
+    /**
+     * Parse a timestamp formatted the way it is stored as a range key.
+     *
+     * @throws ParseException if the text is not a formatted timestamp.
+     */
+    public static Date parseTimestamp(String timestamp) throws ParseException {
+        return DATE_FORMATTER.get().parse(timestamp);
+    }
+
+    /**
+     * Build a string that uniquely identifies an item by its hash and range key.
+     */
+    static String toKey(String resource, String rangeKey) {
+        return resource + '\n' + rangeKey;
+    }
+
+    /**
+     * Index counts by the primary key of the item they are stored as.
+     */
+    static Map<String, HttpReferrerPairsCount> indexByKey(List<HttpReferrerPairsCount> counts) {
+        Map<String, HttpReferrerPairsCount> countsByKey = new HashMap<>();
+        for (HttpReferrerPairsCount count : counts) {
+            countsByKey.put(toKey(count.getResource(), count.getRangeKey()), count);
+        }
+        return countsByKey;
+    }
+
+    /**
+     * Find the counts that correspond to unprocessed write requests.
+     *
+     * @param countsByKey Counts indexed by {@link #indexByKey(List)}. Matched counts are removed.
+     * @param requests Unprocessed write requests.
+     * @param unprocessed Matched counts are added to this list.
+     */
+    static void matchUnprocessed(Map<String, HttpReferrerPairsCount> countsByKey,
+            List<WriteRequest> requests,
+            List<HttpReferrerPairsCount> unprocessed) {
+        for (WriteRequest request : requests) {
+            if (request.getPutRequest() == null) {
+                continue;
+            }
+            Map<String, AttributeValue> item = request.getPutRequest().getItem();
+            HttpReferrerPairsCount count =
+                    countsByKey.remove(toKey(item.get(ATTRIBUTE_RESOURCE).getS(), item.get(ATTRIBUTE_TIMESTAMP).getS()));
+            if (count != null) {
+                unprocessed.add(count);
+            }
+        }
+    }
+}
@@ -0,0 +1,506 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+
+/**
+ * An append-only, memory-mapped log of counts waiting to be sent to DynamoDB. Appending a count only copies it into a
+ * mapped file so it takes microseconds. {@link #sync()} forces appended counts to disk.
+ * <p/>
+ * The log is a series of fixed size segment files named after the log offset of their first byte. Each record is:
+ *
+ * <pre>
+ * payload length (4 bytes), CRC32 of payload (4 bytes), payload
+ * </pre>
+ *
+ * A length of -1 marks the rest of a segment as unused. Records never span segments.
+ * <p/>
+ * The offset up to which counts have been shipped to DynamoDB is stored alongside the segments. Segments that have been
+ * completely shipped are deleted. When the log is reopened after a crash reading resumes from the shipped offset, and
+ * any torn record at the end of the log is discarded.
+ * <p/>
+ * Appends are safe from multiple threads. Only one thread should read from the log.
+ */
+public class CountLog implements Closeable {
+    private static final Log LOG = LogFactory.getLog(CountLog.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE_IN_BYTES = 16 * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SHIPPED_OFFSET_FILE = "shipped.offset";
+    // Written in place of a record's length when the rest of a segment is unused
+    private static final int END_OF_SEGMENT = -1;
+    // Record length and checksum
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private File directory;
+    private int segmentSizeInBytes;
+
+    // Segments by the log offset of their first byte
+    private TreeMap<Long, Segment> segments = new TreeMap<>();
+    // The segment being appended to
+    private Segment tail;
+    // Log offset the next record will be appended at
+    private long writeOffset;
+    // Log offset up to which records have been forced to disk
+    private long syncedOffset;
+    // Log offset up to which counts have been delivered to DynamoDB
+    private long shippedOffset;
+    private boolean closed;
+
+    // Reused for every append. These are only used while holding the lock on this log.
+    private final CRC32 crc = new CRC32();
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(1024);
+    private final ByteArrayOutputStream referrerCountsBuffer = new ByteArrayOutputStream(1024);
+
+    /**
+     * Create a log. It must be opened with {@link #open()} before use.
+     *
+     * @param directory Directory to store segments in. It is created if it does not exist. Only one log may use a
+     *        directory at a time.
+     * @param segmentSizeInBytes Size of each segment file. This limits the size of a single record.
+     */
+    public CountLog(File directory, int segmentSizeInBytes) {
+        if (directory == null) {
+            throw new NullPointerException("directory must not be null");
+        }
+        if (segmentSizeInBytes <= RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("segmentSizeInBytes must be greater than " + RECORD_HEADER_SIZE);
+        }
+        this.directory = directory;
+        this.segmentSizeInBytes = segmentSizeInBytes;
+    }
+
+    /**
+     * Open the log, recovering any segments left by a previous run.
+     *
+     * @throws IOException if the log directory or segments cannot be read or created.
+     */
+    public synchronized void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create write-ahead log directory " + directory);
+        }
+        shippedOffset = readShippedOffset();
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    long baseOffset = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(baseOffset, Segment.map(file, baseOffset, (int) file.length()));
+                }
+            }
+        }
+
+        if (segments.isEmpty()) {
+            tail = createSegment(shippedOffset);
+            writeOffset = shippedOffset;
+        } else {
+            if (shippedOffset < segments.firstKey()) {
+                LOG.warn(String.format("Shipped offset %d precedes the oldest segment. Resuming from offset %d.",
+                        shippedOffset,
+                        segments.firstKey()));
+                shippedOffset = segments.firstKey();
+            }
+            tail = segments.lastEntry().getValue();
+            writeOffset = recoverTail();
+            deleteShippedSegments();
+        }
+        syncedOffset = writeOffset;
+        LOG.info(String.format("Opened write-ahead log in %s. %d bytes have not been shipped.",
+                directory,
+                writeOffset - shippedOffset));
+    }
+
+    /**
+     * Append a count to the log. The count is not guaranteed to survive a crash until {@link #sync()} is called.
+     *
+     * @param count The count to append.
+     * @return The log offset just past the appended record.
+     * @throws IOException if a new segment is required and cannot be created.
+     */
+    public synchronized long append(HttpReferrerPairsCount count) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Write-ahead log is closed");
+        }
+        encode(count);
+        int recordSize = RECORD_HEADER_SIZE + recordBuffer.size();
+        if (recordSize > segmentSizeInBytes) {
+            throw new IllegalArgumentException(String.format("Count for resource %s needs %d bytes but segments are only %d bytes",
+                    count.getResource(),
+                    recordSize,
+                    segmentSizeInBytes));
+        }
+
+        int position = (int) (writeOffset - tail.baseOffset);
+        if (tail.size - position < recordSize) {
+            // Mark the rest of this segment unused and start a new one
+            if (tail.size - position >= 4) {
+                tail.buffer.putInt(position, END_OF_SEGMENT);
+            }
+            tail = createSegment(tail.baseOffset + tail.size);
+            writeOffset = tail.baseOffset;
+            position = 0;
+        }
+
+        crc.reset();
+        byte[] payload = recordBuffer.toByteArray();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer buffer = tail.buffer;
+        buffer.position(position);
+        buffer.putInt(payload.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(payload);
+        writeOffset += recordSize;
+
+        // Wake up the reader
+        notifyAll();
+        return writeOffset;
+    }
+
+    /**
+     * Force all appended records to disk. Once this returns they will be recovered if the process crashes.
+     */
+    public void sync() {
+        List<Segment> unsynced;
+        long offset;
+        synchronized (this) {
+            offset = writeOffset;
+            if (offset == syncedOffset) {
+                return;
+            }
+            // Shipped segments may have been deleted since we last synced
+            Long firstUnsynced = segments.floorKey(syncedOffset);
+            unsynced = new ArrayList<>(segments.tailMap(firstUnsynced == null ? segments.firstKey() : firstUnsynced,
+                    true).values());
+        }
+        // Don't hold the lock while waiting on the disk so appends can continue
+        for (Segment segment : unsynced) {
+            segment.buffer.force();
+        }
+        synchronized (this) {
+            syncedOffset = Math.max(syncedOffset, offset);
+        }
+    }
+
+    /**
+     * Read records from the log, blocking until at least one record is available.
+     *
+     * @param offset The log offset to read from. This must be the start of a record, e.g. the shipped offset or the
+     *        next offset of a previously read entry.
+     * @param maxRecords The maximum number of records to return.
+     * @return Records in the order they were appended. This is only empty if the log was closed while waiting.
+     * @throws InterruptedException if interrupted while waiting for records.
+     */
+    public List<Entry> read(long offset, int maxRecords) throws InterruptedException {
+        long end;
+        synchronized (this) {
+            while (writeOffset <= offset && !closed) {
+                wait();
+            }
+            end = writeOffset;
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        long position = offset;
+        while (position < end && entries.size() < maxRecords) {
+            Segment segment;
+            synchronized (this) {
+                segment = segments.floorEntry(position).getValue();
+            }
+            // Use our own view of the buffer so we don't disturb the appender's position
+            ByteBuffer buffer = segment.buffer.duplicate();
+            int relative = (int) (position - segment.baseOffset);
+            if (segment.size - relative < 4 || buffer.getInt(relative) == END_OF_SEGMENT) {
+                position = segment.baseOffset + segment.size;
+                continue;
+            }
+            byte[] payload = readPayload(buffer, relative);
+            if (payload == null) {
+                throw new IllegalStateException("Corrupt write-ahead log record at offset " + position);
+            }
+            long nextOffset = position + RECORD_HEADER_SIZE + payload.length;
+            entries.add(new Entry(decode(payload), position, nextOffset));
+            position = nextOffset;
+        }
+        return entries;
+    }
+
+    /**
+     * Record that every record before an offset has been delivered. This is persisted so a reopened log resumes
+     * reading from here, and segments entirely before it are deleted.
+     *
+     * @param offset Log offset up to which records have been shipped.
+     * @throws IOException if the shipped offset cannot be saved.
+     */
+    public void markShipped(long offset) throws IOException {
+        File tmp = new File(directory, SHIPPED_OFFSET_FILE + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(ByteBuffer.allocate(8).putLong(offset).array());
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(),
+                new File(directory, SHIPPED_OFFSET_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        synchronized (this) {
+            shippedOffset = Math.max(shippedOffset, offset);
+            deleteShippedSegments();
+        }
+    }
+
+    /**
+     * @return The log offset up to which records have been shipped.
+     */
+    public synchronized long getShippedOffset() {
+        return shippedOffset;
+    }
+
+    /**
+     * @return The log offset the next record will be appended at.
+     */
+    public synchronized long getWriteOffset() {
+        return writeOffset;
+    }
+
+    /**
+     * Sync and close the log. Any thread waiting to read is woken up.
+     */
+    @Override
+    public void close() {
+        sync();
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Find the end of the last segment's valid records and clear anything after it. A crash may leave a partially
+     * written record, or pages of later records, which must not be mistaken for valid records later.
+     *
+     * @return The log offset just past the last valid record.
+     */
+    private long recoverTail() {
+        ByteBuffer buffer = tail.buffer.duplicate();
+        int position = 0;
+        while (tail.size - position >= RECORD_HEADER_SIZE) {
+            int length = buffer.getInt(position);
+            if (length == END_OF_SEGMENT || length == 0) {
+                break;
+            }
+            byte[] payload = readPayload(buffer, position);
+            if (payload == null) {
+                LOG.warn(String.format("Discarding torn record at offset %d in write-ahead log",
+                        tail.baseOffset + position));
+                break;
+            }
+            position += RECORD_HEADER_SIZE + payload.length;
+        }
+        for (int i = position; i < tail.size; i++) {
+            buffer.put(i, (byte) 0);
+        }
+        return tail.baseOffset + position;
+    }
+
+    /**
+     * Read and verify a record's payload.
+     *
+     * @return The payload, or {@code null} if the record is incomplete or fails its checksum.
+     */
+    private byte[] readPayload(ByteBuffer buffer, int position) {
+        int length = buffer.getInt(position);
+        if (length <= 0 || length > buffer.capacity() - position - RECORD_HEADER_SIZE) {
+            return null;
+        }
+        int checksum = buffer.getInt(position + 4);
+        byte[] payload = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position + RECORD_HEADER_SIZE);
+        view.get(payload);
+        CRC32 check = new CRC32();
+        check.update(payload, 0, payload.length);
+        return (int) check.getValue() == checksum ? payload : null;
+    }
+
+    private Segment createSegment(long baseOffset) throws IOException {
+        Segment segment = Segment.map(new File(directory, baseOffset + SEGMENT_SUFFIX), baseOffset, segmentSizeInBytes);
+        segments.put(baseOffset, segment);
+        return segment;
+    }
+
+    private void deleteShippedSegments() {
+        while (segments.size() > 1) {
+            Map.Entry<Long, Segment> oldest = segments.firstEntry();
+            Segment segment = oldest.getValue();
+            if (segment.baseOffset + segment.size > shippedOffset) {
+                return;
+            }
+            segments.remove(oldest.getKey());
+            if (!segment.file.delete()) {
+                LOG.warn("Unable to delete shipped write-ahead log segment " + segment.file);
+            }
+        }
+    }
+
+    private long readShippedOffset() throws IOException {
+        File file = new File(directory, SHIPPED_OFFSET_FILE);
+        if (!file.exists()) {
+            return 0L;
+        }
+        return ByteBuffer.wrap(Files.readAllBytes(file.toPath())).getLong();
+    }
+
+    /**
+     * Encode a count into {@link #recordBuffer}:
+     *
+     * <pre>
+     * resource length (varint), resource UTF-8 bytes
+     * timestamp in milliseconds (varint)
+     * host length + 1 (varint, 0 if null), host UTF-8 bytes
+     * referrer counts length + 1 (varint, 0 if null), referrer counts encoded with {@link ReferrerCountsCodec}
+     * shard id length + 1 (varint, 0 if null), shard id UTF-8 bytes
+     * </pre>
+     *
+     * Records logged before the shard id was added end after the referrer counts and are read with no shard id.
+     */
+    private void encode(HttpReferrerPairsCount count) {
+        recordBuffer.reset();
+        byte[] resource = count.getResource().getBytes(UTF8);
+        ReferrerCountsCodec.writeVarint(recordBuffer, resource.length);
+        recordBuffer.write(resource, 0, resource.length);
+        ReferrerCountsCodec.writeVarint(recordBuffer, count.getTimestamp().getTime());
+        writeOptional(count.getHost() == null ? null : count.getHost().getBytes(UTF8));
+        writeOptional(count.getReferrerCounts() == null ? null : ReferrerCountsCodec.encode(count.getReferrerCounts(),
+                referrerCountsBuffer));
+        writeOptional(count.getShardId() == null ? null : count.getShardId().getBytes(UTF8));
+    }
+
+    private void writeOptional(byte[] bytes) {
+        if (bytes == null) {
+            ReferrerCountsCodec.writeVarint(recordBuffer, 0);
+        } else {
+            ReferrerCountsCodec.writeVarint(recordBuffer, bytes.length + 1);
+            recordBuffer.write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static HttpReferrerPairsCount decode(byte[] payload) {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(payload);
+            HttpReferrerPairsCount count = new HttpReferrerPairsCount();
+            byte[] resource = new byte[(int) ReferrerCountsCodec.readVarint(in)];
+            in.get(resource);
+            count.setResource(new String(resource, UTF8));
+            count.setTimestamp(new Date(ReferrerCountsCodec.readVarint(in)));
+            byte[] host = readOptional(in);
+            count.setHost(host == null ? null : new String(host, UTF8));
+            byte[] referrerCounts = readOptional(in);
+            count.setReferrerCounts(referrerCounts == null ? null : ReferrerCountsCodec.decode(referrerCounts));
+            byte[] shardId = in.hasRemaining() ? readOptional(in) : null;
+            count.setShardId(shardId == null ? null : new String(shardId, UTF8));
+            return count;
+        } catch (BufferUnderflowException ex) {
+            throw new IllegalStateException("Truncated write-ahead log record", ex);
+        }
+    }
+
+    private static byte[] readOptional(ByteBuffer in) {
+        int length = (int) ReferrerCountsCodec.readVarint(in);
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length - 1];
+        in.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * A count read from the log and where it was stored.
+     */
+    public static class Entry {
+        private final HttpReferrerPairsCount count;
+        private final long offset;
+        private final long nextOffset;
+
+        Entry(HttpReferrerPairsCount count, long offset, long nextOffset) {
+            this.count = count;
+            this.offset = offset;
+            this.nextOffset = nextOffset;
+        }
+
+        public HttpReferrerPairsCount getCount() {
+            return count;
+        }
+
+        /**
+         * @return The log offset of this record.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return The log offset just past this record.
+         */
+        public long getNextOffset() {
+            return nextOffset;
+        }
+    }
+
+    /**
+     * A memory-mapped segment file.
+     */
+    private static class Segment {
+        private final File file;
+        private final long baseOffset;
+        private final int size;
+        private final MappedByteBuffer buffer;
+
+        private Segment(File file, long baseOffset, int size, MappedByteBuffer buffer) {
+            this.file = file;
+            this.baseOffset = baseOffset;
+            this.size = size;
+            this.buffer = buffer;
+        }
+
+        static Segment map(File file, long baseOffset, int size) throws IOException {
+            // The mapping remains valid after the file is closed
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(size);
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                return new Segment(file, baseOffset, size, buffer);
+            }
+        }
+    }
+}
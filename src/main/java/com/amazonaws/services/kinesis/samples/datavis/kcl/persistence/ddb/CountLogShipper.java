@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+
+/**
+ * Replays a {@link CountLog} into the queue of counts to send to DynamoDB and tracks which records have been shipped.
+ * Counts can be written out of order when some are retried, so the shipped offset only advances past a record once it
+ * and every record before it has been written or dropped.
+ */
+class CountLogShipper implements Runnable {
+    private static final Log LOG = LogFactory.getLog(CountLogShipper.class);
+
+    // Read at most this many records from the log at a time
+    private static final int MAX_RECORDS_PER_READ = 1000;
+
+    private CountLog log;
+    private BlockingQueue<HttpReferrerPairsCount> queue;
+
+    // Log offsets of the records read but not yet shipped, by the count read from them
+    private final Map<HttpReferrerPairsCount, Long> unshipped = new IdentityHashMap<>();
+    private final TreeSet<Long> unshippedOffsets = new TreeSet<>();
+    // Log offset of the next record to read
+    private long readOffset;
+    // The shipped offset last saved to the log
+    private long savedOffset;
+    // Set once shipping is stopped on purpose, so being interrupted is not an error
+    private volatile boolean stopped;
+
+    /**
+     * @param log The log to read counts from. It must be open.
+     * @param queue Counts read from the log are put in this queue. This blocks when the queue is full.
+     */
+    CountLogShipper(CountLog log, BlockingQueue<HttpReferrerPairsCount> queue) {
+        this.log = log;
+        this.queue = queue;
+        this.readOffset = log.getShippedOffset();
+        this.savedOffset = readOffset;
+    }
+
+    @Override
+    public void run() {
+        long offset = readOffset;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                for (CountLog.Entry entry : log.read(offset, MAX_RECORDS_PER_READ)) {
+                    synchronized (this) {
+                        unshipped.put(entry.getCount(), entry.getOffset());
+                        unshippedOffsets.add(entry.getOffset());
+                        readOffset = entry.getNextOffset();
+                    }
+                    queue.put(entry.getCount());
+                }
+                synchronized (this) {
+                    offset = readOffset;
+                }
+            } catch (InterruptedException e) {
+                if (stopped) {
+                    return;
+                }
+                LOG.error("Thread that ships the write-ahead log to DynamoDB was interrupted. Logged counts will no longer be shipped!",
+                        e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stop shipping once the thread running this shipper is interrupted, without reporting it as an error.
+     */
+    void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Mark a count as shipped because it was written to DynamoDB or intentionally dropped. Counts that were not read
+     * from the log are ignored.
+     */
+    synchronized void shipped(HttpReferrerPairsCount count) {
+        Long offset = unshipped.remove(count);
+        if (offset != null) {
+            unshippedOffsets.remove(offset);
+        }
+    }
+
+    /**
+     * @return The log offset before which every record has been shipped.
+     */
+    synchronized long getShippedOffset() {
+        return unshippedOffsets.isEmpty() ? readOffset : unshippedOffsets.first();
+    }
+
+    /**
+     * Save the shipped offset to the log if it has advanced. This allows the log to delete shipped segments and is
+     * where reading resumes after a restart.
+     */
+    synchronized void saveProgress() {
+        long offset = getShippedOffset();
+        if (offset <= savedOffset) {
+            return;
+        }
+        try {
+            log.markShipped(offset);
+            savedOffset = offset;
+        } catch (IOException ex) {
+            LOG.warn("Unable to save write-ahead log shipped offset. Counts may be shipped again after a restart.", ex);
+        }
+    }
+}
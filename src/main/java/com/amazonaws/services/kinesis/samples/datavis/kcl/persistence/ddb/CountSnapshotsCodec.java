@@ -0,0 +1,156 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+
+/**
+ * A compact binary encoding for the per-interval snapshots of one resource packed into a single item.
+ * <p/>
+ * The encoded form is:
+ *
+ * <pre>
+ * format version (1 byte)
+ * flags (1 byte, bit 0 set if the body is deflated)
+ * [uncompressed body length (varint), only if deflated]
+ * body:
+ *   number of snapshots (varint)
+ *   snapshots in ascending order by timestamp:
+ *     milliseconds since the previous snapshot, or since the epoch for the first (varint)
+ *     host length + 1 (varint, 0 if null), host UTF-8 bytes
+ *     shard id length + 1 (varint, 0 if null), shard id UTF-8 bytes
+ *     referrer counts length (varint), referrer counts encoded with {@link ReferrerCountsCodec}
+ * </pre>
+ *
+ * Version 1 had no shard id. It is still decoded, with no shard id for any snapshot.
+ *
+ * Snapshots of the same resource repeat the same referrers, so the body is deflated when doing so makes it smaller.
+ * The resource is not stored since it is the item's hash key.
+ */
+public class CountSnapshotsCodec {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final byte FORMAT_VERSION = 2;
+    private static final byte FORMAT_VERSION_WITHOUT_SHARD_ID = 1;
+    private static final byte FLAG_DEFLATED = 0x1;
+
+    /**
+     * Encode snapshots.
+     *
+     * @param snapshots Snapshots in ascending order by timestamp. Snapshots from different shards may share a
+     *        timestamp. Referrer counts must not be null.
+     * @return The encoded snapshots.
+     */
+    public static byte[] encode(Collection<HttpReferrerPairsCount> snapshots) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(64 * snapshots.size() + 8);
+        ByteArrayOutputStream scratch = new ByteArrayOutputStream(256);
+        ReferrerCountsCodec.writeVarint(body, snapshots.size());
+        long previous = 0;
+        for (HttpReferrerPairsCount snapshot : snapshots) {
+            long timestamp = snapshot.getTimestamp().getTime();
+            if (timestamp < previous) {
+                throw new IllegalArgumentException("Snapshots must be in ascending order by timestamp");
+            }
+            ReferrerCountsCodec.writeVarint(body, timestamp - previous);
+            previous = timestamp;
+
+            writeOptional(body, snapshot.getHost());
+            writeOptional(body, snapshot.getShardId());
+
+            byte[] referrerCounts = ReferrerCountsCodec.encode(snapshot.getReferrerCounts(), scratch);
+            ReferrerCountsCodec.writeVarint(body, referrerCounts.length);
+            body.write(referrerCounts, 0, referrerCounts.length);
+        }
+        byte[] raw = body.toByteArray();
+
+        // Only use the deflated body if it saves space
+        byte[] deflated = ReferrerCountsCodec.deflate(raw);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(raw.length, deflated.length) + 8);
+        out.write(FORMAT_VERSION);
+        if (deflated.length + ReferrerCountsCodec.varintLength(raw.length) < raw.length) {
+            out.write(FLAG_DEFLATED);
+            ReferrerCountsCodec.writeVarint(out, raw.length);
+            out.write(deflated, 0, deflated.length);
+        } else {
+            out.write(0);
+            out.write(raw, 0, raw.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeOptional(ByteArrayOutputStream body, String value) {
+        if (value == null) {
+            ReferrerCountsCodec.writeVarint(body, 0);
+        } else {
+            byte[] bytes = value.getBytes(UTF8);
+            ReferrerCountsCodec.writeVarint(body, bytes.length + 1);
+            body.write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static String readOptional(ByteBuffer in) {
+        int length = (int) ReferrerCountsCodec.readVarint(in);
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length - 1];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Decode snapshots previously encoded with {@link #encode(Collection)}.
+     *
+     * @param encoded The encoded snapshots.
+     * @return The snapshots in ascending order by timestamp. Their resource is not set.
+     * @throws IllegalArgumentException if the data is not a valid encoding.
+     */
+    public static List<HttpReferrerPairsCount> decode(byte[] encoded) {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(encoded);
+            byte version = in.get();
+            if (version != FORMAT_VERSION && version != FORMAT_VERSION_WITHOUT_SHARD_ID) {
+                throw new IllegalArgumentException("Unsupported count snapshots format version: " + version);
+            }
+            byte flags = in.get();
+            if ((flags & FLAG_DEFLATED) != 0) {
+                int rawLength = (int) ReferrerCountsCodec.readVarint(in);
+                in = ByteBuffer.wrap(ReferrerCountsCodec.inflate(encoded, in.position(), rawLength));
+            }
+
+            int size = (int) ReferrerCountsCodec.readVarint(in);
+            List<HttpReferrerPairsCount> snapshots = new ArrayList<>(size);
+            long timestamp = 0;
+            for (int i = 0; i < size; i++) {
+                HttpReferrerPairsCount snapshot = new HttpReferrerPairsCount();
+                timestamp += ReferrerCountsCodec.readVarint(in);
+                snapshot.setTimestamp(new Date(timestamp));
+
+                snapshot.setHost(readOptional(in));
+                if (version != FORMAT_VERSION_WITHOUT_SHARD_ID) {
+                    snapshot.setShardId(readOptional(in));
+                }
+
+                byte[] referrerCounts = new byte[(int) ReferrerCountsCodec.readVarint(in)];
+                in.get(referrerCounts);
+                snapshot.setReferrerCounts(ReferrerCountsCodec.decode(referrerCounts));
+                snapshots.add(snapshot);
+            }
+            return snapshots;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException ex) {
+            throw new IllegalArgumentException("Truncated or corrupt count snapshots", ex);
+        }
+    }
+}
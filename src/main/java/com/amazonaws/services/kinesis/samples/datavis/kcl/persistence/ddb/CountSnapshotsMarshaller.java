@@ -0,0 +1,31 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
+
+import java.util.List;
+
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMarshaller;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerCountsBlock;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.util.Base64;
+
+/**
+ * Marshall the snapshots packed into a {@link HttpReferrerCountsBlock} when using the {@link DynamoDBMapper}. Snapshots
+ * are written with the {@link CountSnapshotsCodec} encoding and stored Base64 encoded.
+ */
+public class CountSnapshotsMarshaller implements DynamoDBMarshaller<List<HttpReferrerPairsCount>> {
+
+    @Override
+    public String marshall(List<HttpReferrerPairsCount> snapshots) {
+        return Base64.encodeAsString(CountSnapshotsCodec.encode(snapshots));
+    }
+
+    @Override
+    public List<HttpReferrerPairsCount> unmarshall(Class<List<HttpReferrerPairsCount>> clazz, String value) {
+        return CountSnapshotsCodec.decode(Base64.decode(value));
+    }
+}
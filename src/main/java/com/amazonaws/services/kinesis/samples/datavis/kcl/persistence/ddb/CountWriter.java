@@ -0,0 +1,26 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
+
+import java.util.List;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+
+/**
+ * Writes counts as items to a DynamoDB table.
+ */
+public interface CountWriter {
+
+    /**
+     * Write counts to DynamoDB.
+     *
+     * @param counts The counts to write.
+     * @return The counts DynamoDB did not accept. These may be retried.
+     * @throws RuntimeException if the write failed in a way that leaves it unknown which counts were written. All counts
+     *         should be retried.
+     */
+    public List<HttpReferrerPairsCount> write(List<HttpReferrerPairsCount> counts);
+}
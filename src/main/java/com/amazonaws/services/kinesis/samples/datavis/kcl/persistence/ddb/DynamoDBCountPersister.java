@@ -5,41 +5,80 @@
 
 package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.TimeZone;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
-import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper.FailedBatch;
 import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.CountPersister;
 import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPair;
 import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
-import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+import com.amazonaws.services.kinesis.samples.datavis.utils.HashKeySharding;
+import com.amazonaws.services.kinesis.samples.datavis.utils.ReferrerCountUtils;
+import com.amazonaws.services.kinesis.samples.datavis.utils.SampleUtils;
 
 /**
  * Persists counts to DynamoDB. This uses a separate thread to send counts to DynamoDB to decouple any network latency
- * from affecting the thread we use to update counts.
+ * from affecting the thread we use to update counts. Every record processor shares and initializes the persister, but
+ * only one thread sends counts, so the {@link CountWriter} or {@link AsyncCountWriter} is only used by that thread.
+ * <p/>
+ * Counts are stamped with the start of the interval they were computed for, see
+ * {@link DynamoDBCountPersisterConfig#getCountIntervalInMillis()}, and the Kinesis shard they were computed from, so
+ * each shard writes at most one item per resource per interval. Every shard counts its own records, so the same
+ * resource is written by several shards in an interval, each to an item of its own that readers sum. The interval and
+ * shard come from the record processor rather than the clock or host, so counts persisted again by a shard for an
+ * interval, e.g. when replayed after a failure or by two workers briefly processing the same shard, overwrite the item
+ * already written instead of adding another. Only the newest count for an item is written.
+ * <p/>
+ * Counts DynamoDB does not accept, e.g. due to throttling, are retried with capped exponential backoff and jitter until
+ * they are older than {@link DynamoDBCountPersisterConfig#getMaxRetryAgeInMillis()}.
+ * <p/>
+ * If a {@link WriteRateLimiter} is provided writes are paced to the capacity it allows. When there is not enough
+ * capacity to write everything that is pending only the newest count for each resource from each shard is written.
+ * <p/>
+ * Counts are written under the hash key chosen by {@link HashKeySharding}, which may add a suffix to the resource to
+ * spread a popular resource's writes over several partitions.
+ * <p/>
+ * If a {@link CountLog} is provided counts are appended to it instead of being queued in memory, and a background thread
+ * ships the log to DynamoDB. Checkpointing then only has to sync the log to disk rather than wait on DynamoDB. Counts
+ * logged but not shipped before a crash are shipped when the log is reopened.
+ * <p/>
+ * If an {@link AsyncCountWriter} is provided the sending thread does not wait for DynamoDB. It keeps starting writes,
+ * up to the writer's in-flight limit, and each write's callback schedules retries for its failed counts and marks its
+ * written counts as shipped. Checkpointing waits for every write in flight to complete.
+ * <p/>
+ * {@link #shutdown()} stops the threads this persister and its writer use and closes the write-ahead log.
  */
 public class DynamoDBCountPersister implements CountPersister<HttpReferrerPair> {
     private static final Log LOG = LogFactory.getLog(DynamoDBCountPersister.class);
 
-    // Generate UTC timestamps
-    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    // Writes counts to DynamoDB. This is only used by the thread sending counts to DynamoDB. Exactly one of these is
+    // set.
+    private CountWriter writer;
+    private AsyncCountWriter asyncWriter;
 
-    private DynamoDBMapper mapper;
+    private DynamoDBCountPersisterConfig config;
+
+    // Chooses the hash key to write each resource's counts under
+    private HashKeySharding sharding;
 
     /**
      * This is used to limit the in memory queue. This number is the total counts we could generate for 10 unique
@@ -49,11 +88,52 @@ public class DynamoDBCountPersister implements CountPersister<HttpReferrerPair>
      */
     private static final int MAX_COUNTS_IN_MEMORY = 60000;
 
+    // Asynchronous writes may schedule retries at any time, so don't wait longer than this for new counts while
+    // writing asynchronously
+    private static final long ASYNC_POLL_INTERVAL_IN_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
     // The queue holds all pending referrer pair counts to be sent to DynamoDB.
     private BlockingQueue<HttpReferrerPairsCount> counts = new LinkedBlockingQueue<>(MAX_COUNTS_IN_MEMORY);
 
-    // The thread to use for sending counts to DynamoDB.
+    // Counts that failed to be written and are waiting for their backoff to elapse before being sent again. This is
+    // only modified by the thread sending counts to DynamoDB and, when writing asynchronously, by write callbacks.
+    private DelayQueue<PendingRetry> retries = new DelayQueue<>();
+
+    private ExponentialBackoff backoff;
+
+    // Paces writes to the table's capacity. This is null if writes are not rate limited.
+    private WriteRateLimiter rateLimiter;
+
+    // Retry metrics
+    private AtomicLong retryAttempts = new AtomicLong();
+    private AtomicLong retrySuccesses = new AtomicLong();
+    private AtomicLong retriesAbandoned = new AtomicLong();
+    private AtomicLong totalRetryLatencyInMillis = new AtomicLong();
+    // Number of counts not written because a newer count for the same resource was written instead
+    private AtomicLong coalescedCounts = new AtomicLong();
+    // Number of counts sent asynchronously whose writes have not completed
+    private AtomicLong inFlightCounts = new AtomicLong();
+
+    // The one thread sending counts to DynamoDB, started by the first record processor to initialize this persister.
+    // Checkpointing fails if it has stopped.
     private Thread dynamoDBSender;
+    // Set once this persister is shut down, so its threads stop without reporting an error
+    private volatile boolean shutdown;
+
+    // The name of the thread sending counts to DynamoDB
+    static final String SENDER_THREAD_NAME = "DynamoDBCountSender";
+
+    // How long to wait for each of this persister's threads to stop when shutting down
+    private static final long THREAD_STOP_TIMEOUT_IN_MILLIS = 5000L;
+
+    // When, in System.nanoTime(), the next write may be sent. Only the sending thread uses this, see initialize().
+    private long nextWriteAt = System.nanoTime();
+
+    // Local write-ahead log of counts to send. This is null if counts are only queued in memory.
+    private CountLog log;
+    // Replays the write-ahead log into the queue of counts to send
+    private CountLogShipper shipper;
+    private Thread logShipperThread;
 
     /**
      * The hostname of this machine. Used to indicate which host updated a set of counts.
@@ -66,19 +146,117 @@ public class DynamoDBCountPersister implements CountPersister<HttpReferrerPair>
      * @param mapper Amazon DynamoDB Mapper to use.
      */
     public DynamoDBCountPersister(DynamoDBMapper mapper) {
-        if (mapper == null) {
-            throw new NullPointerException("mapper must not be null");
+        this(mapper, new DynamoDBCountPersisterConfig());
+    }
+
+    /**
+     * Create a new persister with a DynamoDBMapper to translate counts to items and send to Amazon DynamoDB.
+     *
+     * @param mapper Amazon DynamoDB Mapper to use.
+     * @param config Configuration for this persister.
+     */
+    public DynamoDBCountPersister(DynamoDBMapper mapper, DynamoDBCountPersisterConfig config) {
+        this(mapper, config, null);
+    }
+
+    /**
+     * Create a new persister whose writes are paced by a rate limiter. The mapper should be backed by a client that
+     * reports consumed capacity to the rate limiter, see {@link ConsumedCapacityReportingDynamoDB}.
+     *
+     * @param mapper Amazon DynamoDB Mapper to use.
+     * @param config Configuration for this persister.
+     * @param rateLimiter Rate limiter to pace writes with. May be {@code null} to write as fast as possible.
+     */
+    public DynamoDBCountPersister(DynamoDBMapper mapper,
+            DynamoDBCountPersisterConfig config,
+            WriteRateLimiter rateLimiter) {
+        this(new MapperCountWriter(mapper), config, rateLimiter);
+    }
+
+    /**
+     * Create a new persister that sends counts to Amazon DynamoDB with the provided writer.
+     *
+     * @param writer Writer to send counts to DynamoDB with.
+     * @param config Configuration for this persister.
+     * @param rateLimiter Rate limiter to pace writes with. May be {@code null} to write as fast as possible.
+     */
+    public DynamoDBCountPersister(CountWriter writer,
+            DynamoDBCountPersisterConfig config,
+            WriteRateLimiter rateLimiter) {
+        this(writer, config, rateLimiter, null);
+    }
+
+    /**
+     * Create a new persister that logs counts locally before sending them to Amazon DynamoDB with the provided writer.
+     *
+     * @param writer Writer to send counts to DynamoDB with.
+     * @param config Configuration for this persister.
+     * @param rateLimiter Rate limiter to pace writes with. May be {@code null} to write as fast as possible.
+     * @param log An open write-ahead log to append counts to. May be {@code null} to only queue counts in memory.
+     */
+    public DynamoDBCountPersister(CountWriter writer,
+            DynamoDBCountPersisterConfig config,
+            WriteRateLimiter rateLimiter,
+            CountLog log) {
+        this(writer, null, config, rateLimiter, log);
+        if (writer == null) {
+            throw new NullPointerException("writer must not be null");
+        }
+    }
+
+    /**
+     * Create a new persister that sends counts to Amazon DynamoDB asynchronously with the provided writer.
+     *
+     * @param asyncWriter Writer to start writes to DynamoDB with.
+     * @param config Configuration for this persister.
+     * @param rateLimiter Rate limiter to pace writes with. May be {@code null} to write as fast as possible.
+     * @param log An open write-ahead log to append counts to. May be {@code null} to only queue counts in memory.
+     */
+    public DynamoDBCountPersister(AsyncCountWriter asyncWriter,
+            DynamoDBCountPersisterConfig config,
+            WriteRateLimiter rateLimiter,
+            CountLog log) {
+        this(null, asyncWriter, config, rateLimiter, log);
+        if (asyncWriter == null) {
+            throw new NullPointerException("asyncWriter must not be null");
         }
-        this.mapper = mapper;
     }
 
+    private DynamoDBCountPersister(CountWriter writer,
+            AsyncCountWriter asyncWriter,
+            DynamoDBCountPersisterConfig config,
+            WriteRateLimiter rateLimiter,
+            CountLog log) {
+        if (config == null) {
+            throw new NullPointerException("config must not be null");
+        }
+        if (config.getCountIntervalInMillis() < 1) {
+            throw new IllegalArgumentException("countIntervalInMillis must be >= 1");
+        }
+        this.writer = writer;
+        this.asyncWriter = asyncWriter;
+        this.config = config;
+        this.rateLimiter = rateLimiter;
+        this.log = log;
+        this.sharding = new HashKeySharding(config.getWriteShardsPerResource());
+        this.backoff =
+                new ExponentialBackoff(config.getRetryBaseDelayInMillis(), config.getRetryMaxDelayInMillis(), new Random());
+    }
+
+    /**
+     * Start sending counts to DynamoDB. Every record processor initializes this persister, but only the first call
+     * starts the threads that send counts.
+     */
     @Override
-    public void initialize() {
+    public synchronized void initialize() {
+        if (dynamoDBSender != null) {
+            return;
+        }
         // Resolve our hostname so we can tag the counts this persister produces.
-        hostname = resolveHostname();
+        hostname = SampleUtils.resolveHostname();
 
         // This thread is responsible for draining the queue of new counts and sending them in batches to DynamoDB
-        dynamoDBSender = new Thread() {
+        dynamoDBSender = new Thread(SENDER_THREAD_NAME) {
 
             @Override
             public void run() {
@@ -90,14 +268,13 @@ public class DynamoDBCountPersister implements CountPersister<HttpReferrerPair>
                     try {
                         // Drain anything that's in the queue to the buffer and write the items to DynamoDB
                         sendQueueToDynamoDB(buffer);
-                        // We wait for an empty queue before checkpointing. Notify that thread when we're empty in
-                        // case it is waiting.
-                        synchronized(counts) {
-                            if (counts.isEmpty()) {
-                                counts.notify();
-                            }
-                        }
+                        // We wait for an empty queue and no pending retries before checkpointing. Notify that thread
+                        // when we're empty in case it is waiting.
+                        notifyIfIdle();
                     } catch (InterruptedException e) {
+                        if (shutdown) {
+                            return;
+                        }
                         LOG.error("Thread that handles persisting counts to DynamoDB was interrupted. Counts will no longer be persisted!",
                                 e);
                         return;
@@ -110,10 +287,67 @@ public class DynamoDBCountPersister implements CountPersister<HttpReferrerPair>
         };
         dynamoDBSender.setDaemon(true);
         dynamoDBSender.start();
+
+        if (log != null) {
+            startLogShipper();
+        }
+    }
+
+    /**
+     * Start shipping the write-ahead log. Every record processor initializes this persister, but there must only be
+     * one reader of the log.
+     */
+    private synchronized void startLogShipper() {
+        if (logShipperThread != null) {
+            return;
+        }
+        shipper = new CountLogShipper(log, counts);
+        logShipperThread = new Thread(shipper);
+        logShipperThread.setDaemon(true);
+        logShipperThread.start();
+    }
+
+    /**
+     * Stop sending counts to DynamoDB, stop the threads of this persister and its {@link AsyncCountWriter}, and close
+     * the write-ahead log. Counts not yet written are not sent, though logged counts are shipped when the log is
+     * reopened. Call {@link #checkpoint()} first to wait for counts to be persisted.
+     *
+     * @throws InterruptedException if interrupted while waiting for this persister's threads to stop.
+     */
+    public void shutdown() throws InterruptedException {
+        shutdown = true;
+        Thread sender;
+        Thread shipperThread;
+        synchronized (this) {
+            sender = dynamoDBSender;
+            shipperThread = logShipperThread;
+            if (shipper != null) {
+                shipper.stop();
+            }
+        }
+        if (sender != null) {
+            sender.interrupt();
+        }
+        if (shipperThread != null) {
+            shipperThread.interrupt();
+        }
+        // Wait for the threads to stop so neither is using the writer or the log as they are released
+        if (sender != null) {
+            sender.join(THREAD_STOP_TIMEOUT_IN_MILLIS);
+        }
+        if (shipperThread != null) {
+            shipperThread.join(THREAD_STOP_TIMEOUT_IN_MILLIS);
+        }
+        if (asyncWriter != null) {
+            asyncWriter.shutdown();
+        }
+        if (log != null) {
+            log.close();
+        }
     }
 
     @Override
-    public void persist(Map<HttpReferrerPair, Long> objectCounts) {
+    public void persist(Map<HttpReferrerPair, Long> objectCounts, Date intervalStart, String shardId) {
         if (objectCounts.isEmpty()) {
             // short circuit to avoid creating a map when we have no objects to persist
             return;
@@ -121,61 +355,53 @@ public class DynamoDBCountPersister implements CountPersister<HttpReferrerPair>
 
         // Use a local collection to batch writing the new counts into the queue. This will allow the queue drainer
         // to remain simple as it doesn't have to account for less than full batches.
+        Collection<HttpReferrerPairsCount> newCounts =
+                ReferrerCountUtils.toIntervalCounts(objectCounts,
+                        intervalStart,
+                        config.getCountIntervalInMillis(),
+                        shardId,
+                        hostname,
+                        sharding,
+                        config.getMaxReferrersPerResource());
+        if (log == null) {
+            counts.addAll(newCounts);
+        } else {
+            appendToLog(newCounts);
+        }
+    }
 
-        // We map resource to pair counts so we can easily look up a resource and add referrer counts to it
-        Map<String, HttpReferrerPairsCount> countMap = new HashMap<>();
-
-        for (Map.Entry<HttpReferrerPair, Long> count : objectCounts.entrySet()) {
-            // Check for an existing counts for this resource
-            HttpReferrerPair pair = count.getKey();
-            HttpReferrerPairsCount pairCount = countMap.get(pair.getResource());
-            if (pairCount == null) {
-                // Create a new pair if this resource hasn't been seen yet in this batch
-                pairCount = new HttpReferrerPairsCount();
-                pairCount.setResource(pair.getResource());
-                pairCount.setTimestamp(Calendar.getInstance(UTC).getTime());
-                pairCount.setReferrerCounts(new ArrayList<ReferrerCount>());
-                pairCount.setHost(hostname);
-                countMap.put(pair.getResource(), pairCount);
+    private void appendToLog(Collection<HttpReferrerPairsCount> newCounts) {
+        try {
+            for (HttpReferrerPairsCount count : newCounts) {
+                log.append(count);
             }
-
-            // Add referrer to list of refcounts for this resource and time
-            ReferrerCount refCount = new ReferrerCount();
-            refCount.setReferrer(pair.getReferrer());
-            refCount.setCount(count.getValue());
-            pairCount.getReferrerCounts().add(refCount);
-        }
-
-        // Top N calculation for this interval
-        // By sorting the referrer counts list in descending order the consumer of the count data can choose their own
-        // N.
-        for (HttpReferrerPairsCount count : countMap.values()) {
-            Collections.sort(count.getReferrerCounts(), new Comparator<ReferrerCount>() {
-                @Override
-                public int compare(ReferrerCount c1, ReferrerCount c2) {
-                    if (c2.getCount() > c1.getCount()) {
-                        return 1;
-                    } else if (c1.getCount() == c2.getCount()) {
-                        return 0;
-                    } else {
-                        return -1;
-                    }
-                }
-            });
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to append counts to the write-ahead log", ex);
         }
-        counts.addAll(countMap.values());
     }
 
     /**
-     * We will block until the entire queue of counts has been drained.
+     * We will block until the entire queue of counts has been drained and every failed count has either been retried
+     * successfully or abandoned for being too old. If counts are logged locally we only wait for the log to be synced
+     * to disk.
      */
     @Override
     public void checkpoint() throws InterruptedException {
-        // We need to make sure all counts are flushed to DynamoDB before we return successfully.
+        if (log != null) {
+            if (logShipperThread == null || !logShipperThread.isAlive()) {
+                throw new IllegalStateException("Write-ahead log shipper thread is not running. Counts are not persisted and we should not checkpoint!");
+            }
+            // Logged counts will survive a crash. The shipper sends them to DynamoDB in the background.
+            log.sync();
+            return;
+        }
+        // We need to make sure all counts are flushed to DynamoDB before we return successfully. Only one thread sends
+        // them, however many record processors share this persister.
         if (dynamoDBSender.isAlive()) {
-            // If the DynamoDB thread is running wait until our counts queue is empty
+            // If the DynamoDB thread is running wait until our counts queue is empty, nothing is waiting to be retried
+            // and no asynchronous writes are in flight
             synchronized(counts) {
-                while (!counts.isEmpty()) {
+                while (!isIdle()) {
                     counts.wait();
                 }
                 // All the counts we currently know about have been persisted. It is now safe to return from this blocking call.
@@ -185,49 +411,394 @@ public class DynamoDBCountPersister implements CountPersister<HttpReferrerPair>
         }
     }
 
+    private boolean isIdle() {
+        return counts.isEmpty() && retries.isEmpty() && inFlightCounts.get() == 0;
+    }
+
     /**
-     * Drain the queue of pending counts into the provided buffer and write those counts to DynamoDB. This blocks until
-     * data is available in the queue.
+     * Wake any thread waiting to checkpoint if every count we know about has been persisted.
+     */
+    private void notifyIfIdle() {
+        synchronized (counts) {
+            if (isIdle()) {
+                counts.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Drain the queue of pending counts, and any failed counts whose backoff has elapsed, into the provided buffer and
+     * write those counts to DynamoDB. This blocks until data is available in the queue or a retry is due.
      *
      * @param buffer A reusable buffer with sufficient space to drain the entire queue if necessary. This is provided as
      *        an optimization to avoid allocating a new buffer every interval.
      * @throws InterruptedException Thread interrupted while waiting for new data to arrive in the queue.
      */
     protected void sendQueueToDynamoDB(List<HttpReferrerPairsCount> buffer) throws InterruptedException {
-        // Block while waiting for data
-        buffer.add(counts.take());
+        // Block while waiting for data or until the next retry is due
+        PendingRetry nextRetry = retries.peek();
+        long maxWaitInNanos = nextRetry == null ? Long.MAX_VALUE : nextRetry.getDelay(TimeUnit.NANOSECONDS);
+        if (asyncWriter != null) {
+            maxWaitInNanos = Math.min(maxWaitInNanos, ASYNC_POLL_INTERVAL_IN_NANOS);
+        }
+        HttpReferrerPairsCount next =
+                maxWaitInNanos == Long.MAX_VALUE ? counts.take() : counts.poll(maxWaitInNanos, TimeUnit.NANOSECONDS);
+        if (next != null) {
+            buffer.add(next);
+        }
+        // Give more counts a chance to arrive if we wrote recently
+        long untilNextWrite = nextWriteAt - System.nanoTime();
+        if (untilNextWrite > 0) {
+            TimeUnit.NANOSECONDS.sleep(untilNextWrite);
+        }
         // Drain as much of the queue as we can.
-        // DynamoDBMapper will handle splitting the batch sizes for us.
+        // The writer will handle splitting the batch sizes for us.
         counts.drainTo(buffer);
+
+        // Add any retries whose backoff has elapsed. Keep track of them so we know which attempt this is for each.
+        Map<HttpReferrerPairsCount, PendingRetry> retrying = new IdentityHashMap<>();
+        List<PendingRetry> dueRetries = new ArrayList<>();
+        retries.drainTo(dueRetries);
+        for (PendingRetry retry : dueRetries) {
+            if (isTooOldToRetry(retry.count)) {
+                abandonRetry(retry.count, retry.attempt);
+            } else {
+                buffer.add(retry.count);
+                retrying.put(retry.count, retry);
+            }
+        }
+
+        if (buffer.isEmpty()) {
+            return;
+        }
+
+        // A batch may not write the same item twice. Only the newest count persisted for each item is written.
+        for (HttpReferrerPairsCount superseded : coalesceByKey(buffer, retrying)) {
+            retrying.remove(superseded);
+            markShipped(superseded);
+        }
+
+        if (rateLimiter != null) {
+            // Only write the newest count for each resource from each shard if we can't afford to write them all
+            if (!rateLimiter.canAfford(buffer.size())) {
+                for (HttpReferrerPairsCount coalesced : coalesceByResource(buffer)) {
+                    retrying.remove(coalesced);
+                    markShipped(coalesced);
+                }
+            }
+            // Wait for any capacity we've overdrawn to become available again
+            rateLimiter.awaitCapacity();
+        }
+
+        if (asyncWriter != null) {
+            writeAsync(buffer, retrying);
+            return;
+        }
+
+        List<HttpReferrerPairsCount> failed;
+        nextWriteAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getMinWriteIntervalInMillis());
         try {
             long start = System.nanoTime();
             // Write the contents of the buffer as items to our table
-            List<FailedBatch> failures = mapper.batchWrite(buffer, Collections.emptyList());
+            failed = writer.write(buffer);
             long end = System.nanoTime();
-            LOG.info(String.format("%d new counts sent to DynamoDB in %dms",
-                    buffer.size(),
+            LOG.info(String.format("%d new counts (%d retries) sent to DynamoDB in %dms",
+                    buffer.size() - retrying.size(),
+                    retrying.size(),
                     TimeUnit.NANOSECONDS.toMillis(end - start)));
+        } catch (Exception ex) {
+            LOG.error("Error sending new counts to DynamoDB. They will be retried.", ex);
+            failed = buffer;
+        }
+        completeWrite(buffer, failed, retrying);
+    }
 
-            for (FailedBatch failure : failures) {
-                LOG.warn("Error sending count batch to DynamoDB. This will not be retried!", failure.getException());
+    /**
+     * Start writing counts without waiting for DynamoDB to respond. Each batch is completed from the writer's callback.
+     *
+     * @param buffer Counts to write. This may be reused once this returns.
+     * @param retrying The retries being attempted, by count. This must not be modified once this is called.
+     */
+    private void writeAsync(List<HttpReferrerPairsCount> buffer,
+            final Map<HttpReferrerPairsCount, PendingRetry> retrying) throws InterruptedException {
+        nextWriteAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getMinWriteIntervalInMillis());
+        // Count the writes as in flight before starting them since they may complete before write() returns
+        inFlightCounts.addAndGet(buffer.size());
+        long start = System.nanoTime();
+        asyncWriter.write(buffer, new AsyncCountWriter.WriteCallback() {
+            @Override
+            public void onComplete(List<HttpReferrerPairsCount> counts, List<HttpReferrerPairsCount> failed) {
+                try {
+                    completeWrite(counts, failed, retrying);
+                } finally {
+                    inFlightCounts.addAndGet(-counts.size());
+                    notifyIfIdle();
+                }
             }
-        } catch (Exception ex) {
-            LOG.error("Error sending new counts to DynamoDB. The some counts may not be persisted.", ex);
+        });
+        long end = System.nanoTime();
+        LOG.info(String.format("%d new counts (%d retries) sent to DynamoDB asynchronously in %dms, %d in flight",
+                buffer.size() - retrying.size(),
+                retrying.size(),
+                TimeUnit.NANOSECONDS.toMillis(end - start),
+                inFlightCounts.get()));
+    }
+
+    /**
+     * Retry the counts that failed to be written and record the rest as shipped. This is called from the writer's
+     * callbacks when writing asynchronously.
+     *
+     * @param counts The counts the write attempted.
+     * @param failed The counts DynamoDB did not accept.
+     * @param retrying The retries being attempted, by count.
+     */
+    private void completeWrite(List<HttpReferrerPairsCount> counts,
+            List<HttpReferrerPairsCount> failed,
+            Map<HttpReferrerPairsCount, PendingRetry> retrying) {
+        Set<HttpReferrerPairsCount> failedSet =
+                Collections.newSetFromMap(new IdentityHashMap<HttpReferrerPairsCount, Boolean>());
+        failedSet.addAll(failed);
+
+        // Record how long it took for retried counts that finally made it in to DynamoDB
+        long now = System.nanoTime();
+        for (HttpReferrerPairsCount count : counts) {
+            PendingRetry retry = retrying.get(count);
+            if (retry != null && !failedSet.contains(count)) {
+                retrySuccesses.incrementAndGet();
+                totalRetryLatencyInMillis.addAndGet(TimeUnit.NANOSECONDS.toMillis(now - retry.firstFailedAt));
+            }
+        }
+
+        for (HttpReferrerPairsCount count : failedSet) {
+            scheduleRetry(count, retrying.get(count));
+        }
+
+        if (shipper != null) {
+            for (HttpReferrerPairsCount count : counts) {
+                if (!failedSet.contains(count)) {
+                    shipper.shipped(count);
+                }
+            }
+            shipper.saveProgress();
+        }
+
+        if (!failedSet.isEmpty()) {
+            LOG.info(String.format("Retry stats: %d attempts, %d succeeded, %d abandoned, %dms average latency",
+                    retryAttempts.get(),
+                    retrySuccesses.get(),
+                    retriesAbandoned.get(),
+                    getAverageRetryLatencyInMillis()));
         }
     }
 
     /**
-     * Resolve the hostname of the machine executing this code.
+     * Remove all but the newest count for each item, by hash and range key, from the buffer. Counts for the same item
+     * were persisted for the same interval by the same shard, so the newest replaces the others. New counts are newer
+     * than retries, and later counts newer than earlier ones.
      *
-     * @return The hostname, or "unknown", if one cannot be determined.
+     * @param buffer Counts to coalesce. This is modified in place and retains the relative order of counts kept.
+     * @param retrying The retries in the buffer.
+     * @return The counts that were removed.
      */
-    private String resolveHostname() {
-        try {
-            return InetAddress.getLocalHost().getHostName();
-        } catch (UnknownHostException uhe) {
-            LOG.warn("Unable to determine hostname. Counts from this worker will be registered as counted by 'unknown'!",
-                    uhe);
+    private List<HttpReferrerPairsCount> coalesceByKey(List<HttpReferrerPairsCount> buffer,
+            Map<HttpReferrerPairsCount, PendingRetry> retrying) {
+        Map<String, HttpReferrerPairsCount> newest = new HashMap<>();
+        for (HttpReferrerPairsCount count : buffer) {
+            String key = CountItemKeys.toKey(count.getResource(), count.getRangeKey());
+            HttpReferrerPairsCount current = newest.get(key);
+            if (current == null || retrying.containsKey(current) || !retrying.containsKey(count)) {
+                newest.put(key, count);
+            }
+        }
+        if (newest.size() == buffer.size()) {
+            return Collections.emptyList();
+        }
+
+        List<HttpReferrerPairsCount> removed = new ArrayList<>();
+        Set<HttpReferrerPairsCount> kept =
+                Collections.newSetFromMap(new IdentityHashMap<HttpReferrerPairsCount, Boolean>());
+        kept.addAll(newest.values());
+        Iterator<HttpReferrerPairsCount> it = buffer.iterator();
+        while (it.hasNext()) {
+            HttpReferrerPairsCount count = it.next();
+            if (!kept.contains(count)) {
+                removed.add(count);
+                it.remove();
+            }
+        }
+        coalescedCounts.addAndGet(removed.size());
+        return removed;
+    }
+
+    /**
+     * Remove all but the newest count for each resource from each shard from the buffer.
+     *
+     * @param buffer Counts to coalesce. This is modified in place and retains the relative order of counts kept.
+     * @return The counts that were removed.
+     */
+    private List<HttpReferrerPairsCount> coalesceByResource(List<HttpReferrerPairsCount> buffer) {
+        Map<String, HttpReferrerPairsCount> newest = new HashMap<>();
+        for (HttpReferrerPairsCount count : buffer) {
+            String key = toResourceAndShard(count);
+            HttpReferrerPairsCount current = newest.get(key);
+            if (current == null || !count.getTimestamp().before(current.getTimestamp())) {
+                newest.put(key, count);
+            }
+        }
+
+        List<HttpReferrerPairsCount> removed = new ArrayList<>();
+        List<HttpReferrerPairsCount> kept = new ArrayList<>(newest.size());
+        for (HttpReferrerPairsCount count : buffer) {
+            if (newest.get(toResourceAndShard(count)) == count) {
+                kept.add(count);
+            } else {
+                removed.add(count);
+            }
+        }
+        buffer.clear();
+        buffer.addAll(kept);
+
+        coalescedCounts.addAndGet(removed.size());
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("Over write budget. Coalesced %d counts into %d.",
+                    removed.size() + kept.size(),
+                    kept.size()));
+        }
+        return removed;
+    }
+
+    /**
+     * @return A key identifying the resource and shard of a count, regardless of its interval.
+     */
+    private static String toResourceAndShard(HttpReferrerPairsCount count) {
+        return count.getResource() + '\n' + count.getShardId();
+    }
+
+    /**
+     * Queue a count to be retried after backing off, or abandon it if it is too old to be worth retrying.
+     *
+     * @param count The count that failed to be written.
+     * @param previous The retry this attempt was made from, or {@code null} if this was the first attempt.
+     */
+    private void scheduleRetry(HttpReferrerPairsCount count, PendingRetry previous) {
+        int attempt = previous == null ? 1 : previous.attempt + 1;
+        if (isTooOldToRetry(count)) {
+            abandonRetry(count, attempt);
+            return;
+        }
+        long firstFailedAt = previous == null ? System.nanoTime() : previous.firstFailedAt;
+        long readyAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff.getDelayInMillis(attempt));
+        retries.add(new PendingRetry(count, attempt, firstFailedAt, readyAt));
+        retryAttempts.incrementAndGet();
+    }
+
+    private boolean isTooOldToRetry(HttpReferrerPairsCount count) {
+        long ageInMillis = System.currentTimeMillis() - count.getTimestamp().getTime();
+        return ageInMillis > config.getMaxRetryAgeInMillis();
+    }
+
+    private void abandonRetry(HttpReferrerPairsCount count, int attempt) {
+        retriesAbandoned.incrementAndGet();
+        markShipped(count);
+        LOG.warn(String.format("Dropping counts for resource %s at %s after %d attempts. They are older than %dms.",
+                count.getResource(),
+                CountItemKeys.formatTimestamp(count.getTimestamp()),
+                attempt,
+                config.getMaxRetryAgeInMillis()));
+    }
+
+    /**
+     * Record that a count read from the write-ahead log no longer needs to be sent, either because it was written or
+     * because it was dropped.
+     */
+    private void markShipped(HttpReferrerPairsCount count) {
+        if (shipper != null) {
+            shipper.shipped(count);
+        }
+    }
+
+    /**
+     * @return The number of bytes in the write-ahead log that have not been shipped to DynamoDB, or 0 if counts are not
+     *         logged.
+     */
+    public long getUnshippedLogBytes() {
+        if (shipper == null) {
+            return 0L;
+        }
+        return log.getWriteOffset() - shipper.getShippedOffset();
+    }
+
+    /**
+     * @return The number of counts sent asynchronously whose writes have not completed.
+     */
+    public long getInFlightCounts() {
+        return inFlightCounts.get();
+    }
+
+    /**
+     * @return The total number of times a failed count has been queued to be retried.
+     */
+    public long getRetryAttempts() {
+        return retryAttempts.get();
+    }
+
+    /**
+     * @return The number of failed counts that were eventually written by a retry.
+     */
+    public long getRetrySuccesses() {
+        return retrySuccesses.get();
+    }
+
+    /**
+     * @return The number of failed counts that were dropped because they were too old to retry.
+     */
+    public long getRetriesAbandoned() {
+        return retriesAbandoned.get();
+    }
+
+    /**
+     * @return The number of counts skipped because a newer count for the same resource was written instead.
+     */
+    public long getCoalescedCounts() {
+        return coalescedCounts.get();
+    }
+
+    /**
+     * @return The average time, in milliseconds, between a count first failing and it being written by a retry.
+     */
+    public long getAverageRetryLatencyInMillis() {
+        long successes = retrySuccesses.get();
+        return successes == 0 ? 0 : totalRetryLatencyInMillis.get() / successes;
+    }
+
+    /**
+     * A count waiting to be sent to DynamoDB again.
+     */
+    private static class PendingRetry implements Delayed {
+        private final HttpReferrerPairsCount count;
+        // The attempt this retry is for, starting at 1
+        private final int attempt;
+        // When, in System.nanoTime(), the count first failed to be written
+        private final long firstFailedAt;
+        // When, in System.nanoTime(), the count may be sent again
+        private final long readyAt;
+
+        public PendingRetry(HttpReferrerPairsCount count, int attempt, long firstFailedAt, long readyAt) {
+            this.count = count;
+            this.attempt = attempt;
+            this.firstFailedAt = firstFailedAt;
+            this.readyAt = readyAt;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(readyAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            long diff = getDelay(TimeUnit.NANOSECONDS) - o.getDelay(TimeUnit.NANOSECONDS);
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
         }
-        return "unknown";
     }
 }
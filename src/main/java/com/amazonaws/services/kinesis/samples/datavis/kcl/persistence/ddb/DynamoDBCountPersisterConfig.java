@@ -0,0 +1,182 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
+
+/**
+ * The configuration settings for a {@link DynamoDBCountPersister}.
+ */
+public class DynamoDBCountPersisterConfig {
+    // Backoff settings for retrying counts DynamoDB did not accept
+    private long retryBaseDelayInMillis = 100L;
+    private long retryMaxDelayInMillis = 5000L;
+    // Counts older than this are dropped instead of retried. A fresher interval will have replaced them on the graph.
+    private long maxRetryAgeInMillis = 30000L;
+    // Only the referrers with the highest counts are written for each resource. The rest are summed into one entry to
+    // keep items well under the DynamoDB item size limit.
+    private int maxReferrersPerResource = 100;
+    // Fraction of the table's provisioned write capacity a rate limited persister aims to use, and how many seconds of
+    // that rate may be saved up for bursts.
+    private double writeCapacityFraction = 0.8;
+    private double writeBurstInSeconds = 2.0;
+    // Number of hash keys each resource's counts are spread over to avoid a hot partition for popular resources. The
+    // web server must be configured with the same value.
+    private int writeShardsPerResource = 1;
+    // Minimum time between writes to DynamoDB. Counts persisted in the meantime are written together. This lets a
+    // TimeBucketedCountWriter rewrite each block a few times instead of once per interval.
+    private long minWriteIntervalInMillis = 0L;
+    // Length of the interval counts are computed over. Counts are stamped with the start of the interval they were
+    // computed for, so a count persisted again for the same interval overwrites the first instead of adding another
+    // item.
+    private long countIntervalInMillis = 1000L;
+
+    public long getRetryBaseDelayInMillis() {
+        return retryBaseDelayInMillis;
+    }
+
+    public void setRetryBaseDelayInMillis(long retryBaseDelayInMillis) {
+        this.retryBaseDelayInMillis = retryBaseDelayInMillis;
+    }
+
+    public long getRetryMaxDelayInMillis() {
+        return retryMaxDelayInMillis;
+    }
+
+    public void setRetryMaxDelayInMillis(long retryMaxDelayInMillis) {
+        this.retryMaxDelayInMillis = retryMaxDelayInMillis;
+    }
+
+    public long getMaxRetryAgeInMillis() {
+        return maxRetryAgeInMillis;
+    }
+
+    public void setMaxRetryAgeInMillis(long maxRetryAgeInMillis) {
+        this.maxRetryAgeInMillis = maxRetryAgeInMillis;
+    }
+
+    public int getMaxReferrersPerResource() {
+        return maxReferrersPerResource;
+    }
+
+    public void setMaxReferrersPerResource(int maxReferrersPerResource) {
+        this.maxReferrersPerResource = maxReferrersPerResource;
+    }
+
+    public double getWriteCapacityFraction() {
+        return writeCapacityFraction;
+    }
+
+    public void setWriteCapacityFraction(double writeCapacityFraction) {
+        this.writeCapacityFraction = writeCapacityFraction;
+    }
+
+    public double getWriteBurstInSeconds() {
+        return writeBurstInSeconds;
+    }
+
+    public void setWriteBurstInSeconds(double writeBurstInSeconds) {
+        this.writeBurstInSeconds = writeBurstInSeconds;
+    }
+
+    public int getWriteShardsPerResource() {
+        return writeShardsPerResource;
+    }
+
+    public void setWriteShardsPerResource(int writeShardsPerResource) {
+        this.writeShardsPerResource = writeShardsPerResource;
+    }
+
+    public long getMinWriteIntervalInMillis() {
+        return minWriteIntervalInMillis;
+    }
+
+    public void setMinWriteIntervalInMillis(long minWriteIntervalInMillis) {
+        this.minWriteIntervalInMillis = minWriteIntervalInMillis;
+    }
+
+    public long getCountIntervalInMillis() {
+        return countIntervalInMillis;
+    }
+
+    public void setCountIntervalInMillis(long countIntervalInMillis) {
+        this.countIntervalInMillis = countIntervalInMillis;
+    }
+
+    /**
+     * How long after the start of its interval a count may still be written while the persister is running: the
+     * interval itself, the oldest a count is retried at, and one more backoff and minimum write interval for that
+     * last attempt to be sent. Readers that want complete intervals should wait at least this long.
+     * <p/>
+     * This does not cover counts sent from a write-ahead log after the counting application restarts, or intervals
+     * counted again when the Kinesis Client Library replays records after a failover. Those may be written any time
+     * later.
+     *
+     * @return The longest a count may take to be written, in milliseconds.
+     */
+    public long getMaxWriteDelayInMillis() {
+        return countIntervalInMillis + maxRetryAgeInMillis + retryMaxDelayInMillis + minWriteIntervalInMillis;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        long temp;
+        result = prime * result + (int) (countIntervalInMillis ^ (countIntervalInMillis >>> 32));
+        result = prime * result + maxReferrersPerResource;
+        result = prime * result + (int) (maxRetryAgeInMillis ^ (maxRetryAgeInMillis >>> 32));
+        result = prime * result + (int) (minWriteIntervalInMillis ^ (minWriteIntervalInMillis >>> 32));
+        result = prime * result + (int) (retryBaseDelayInMillis ^ (retryBaseDelayInMillis >>> 32));
+        result = prime * result + (int) (retryMaxDelayInMillis ^ (retryMaxDelayInMillis >>> 32));
+        temp = Double.doubleToLongBits(writeBurstInSeconds);
+        result = prime * result + (int) (temp ^ (temp >>> 32));
+        temp = Double.doubleToLongBits(writeCapacityFraction);
+        result = prime * result + (int) (temp ^ (temp >>> 32));
+        result = prime * result + writeShardsPerResource;
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        DynamoDBCountPersisterConfig other = (DynamoDBCountPersisterConfig) obj;
+        if (countIntervalInMillis != other.countIntervalInMillis) {
+            return false;
+        }
+        if (maxReferrersPerResource != other.maxReferrersPerResource) {
+            return false;
+        }
+        if (maxRetryAgeInMillis != other.maxRetryAgeInMillis) {
+            return false;
+        }
+        if (minWriteIntervalInMillis != other.minWriteIntervalInMillis) {
+            return false;
+        }
+        if (retryBaseDelayInMillis != other.retryBaseDelayInMillis) {
+            return false;
+        }
+        if (retryMaxDelayInMillis != other.retryMaxDelayInMillis) {
+            return false;
+        }
+        if (Double.doubleToLongBits(writeBurstInSeconds) != Double.doubleToLongBits(other.writeBurstInSeconds)) {
+            return false;
+        }
+        if (Double.doubleToLongBits(writeCapacityFraction) != Double.doubleToLongBits(other.writeCapacityFraction)) {
+            return false;
+        }
+        if (writeShardsPerResource != other.writeShardsPerResource) {
+            return false;
+        }
+        return true;
+    }
+}
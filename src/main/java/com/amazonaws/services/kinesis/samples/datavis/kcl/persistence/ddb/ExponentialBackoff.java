@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
+
+import java.util.Random;
+
+/**
+ * Computes capped exponential backoff delays with "full jitter". The delay for an attempt is chosen uniformly at random
+ * between 0 and min(max delay, base delay * 2^(attempt - 1)), so the first retry waits at most the base delay.
+ * Randomizing the entire delay spreads retries from many workers out over time so they don't all hit a throttled table
+ * at the same moment.
+ */
+public class ExponentialBackoff {
+    private long baseDelayInMillis;
+    private long maxDelayInMillis;
+    private Random random;
+
+    /**
+     * Create a new backoff calculator.
+     *
+     * @param baseDelayInMillis The upper bound of the delay for the first attempt.
+     * @param maxDelayInMillis The largest delay this will ever produce.
+     * @param random Source of randomness for jitter.
+     */
+    public ExponentialBackoff(long baseDelayInMillis, long maxDelayInMillis, Random random) {
+        if (baseDelayInMillis < 0) {
+            throw new IllegalArgumentException("baseDelayInMillis must be >= 0");
+        }
+        if (maxDelayInMillis < baseDelayInMillis) {
+            throw new IllegalArgumentException("maxDelayInMillis must be >= baseDelayInMillis");
+        }
+        if (random == null) {
+            throw new NullPointerException("random must not be null");
+        }
+        this.baseDelayInMillis = baseDelayInMillis;
+        this.maxDelayInMillis = maxDelayInMillis;
+        this.random = random;
+    }
+
+    /**
+     * Compute the delay before making the given attempt.
+     *
+     * @param attempt The retry attempt, starting at 1 for the first retry.
+     * @return Time to wait, in milliseconds, before the attempt should be made.
+     */
+    public long getDelayInMillis(int attempt) {
+        if (attempt < 1) {
+            throw new IllegalArgumentException("attempt must be >= 1");
+        }
+        // Cap the exponent so we don't overflow when shifting. Anything past this is clamped to the max delay anyway.
+        int exponent = Math.min(attempt - 1, 30);
+        long ceiling = Math.min(maxDelayInMillis, baseDelayInMillis << exponent);
+        if (ceiling <= 0) {
+            return 0;
+        }
+        return (long) (random.nextDouble() * (ceiling + 1));
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper.FailedBatch;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+
+/**
+ * Writes counts with {@link DynamoDBMapper#batchWrite(List, List)}.
+ */
+public class MapperCountWriter implements CountWriter {
+    private static final Log LOG = LogFactory.getLog(MapperCountWriter.class);
+
+    private DynamoDBMapper mapper;
+
+    /**
+     * @param mapper Amazon DynamoDB Mapper to use.
+     */
+    public MapperCountWriter(DynamoDBMapper mapper) {
+        if (mapper == null) {
+            throw new NullPointerException("mapper must not be null");
+        }
+        this.mapper = mapper;
+    }
+
+    @Override
+    public List<HttpReferrerPairsCount> write(List<HttpReferrerPairsCount> counts) {
+        // DynamoDBMapper will handle splitting the batch sizes for us.
+        List<FailedBatch> failures = mapper.batchWrite(counts, Collections.emptyList());
+        if (failures == null || failures.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        // Match the unprocessed items in each failed batch back to the counts we sent
+        Map<String, HttpReferrerPairsCount> countsByKey = CountItemKeys.indexByKey(counts);
+        List<HttpReferrerPairsCount> failed = new ArrayList<>();
+        for (FailedBatch failure : failures) {
+            LOG.warn("Error sending count batch to DynamoDB. Failed counts will be retried.", failure.getException());
+            if (failure.getUnprocessedItems() == null) {
+                continue;
+            }
+            for (List<WriteRequest> requests : failure.getUnprocessedItems().values()) {
+                CountItemKeys.matchUnprocessed(countsByKey, requests, failed);
+            }
+        }
+        return failed;
+    }
+}
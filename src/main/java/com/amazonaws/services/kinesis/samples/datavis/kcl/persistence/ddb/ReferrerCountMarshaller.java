@@ -5,12 +5,45 @@
 
 package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
 
+import java.io.IOException;
+import java.util.List;
+
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
-import com.amazonaws.services.dynamodbv2.datamodeling.JsonMarshaller;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMarshaller;
 import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+import com.amazonaws.util.Base64;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
- * Marshall {@link ReferrerCount}s as JSON strings when using the {@link DynamoDBMapper}.
+ * Marshall {@link ReferrerCount}s when using the {@link DynamoDBMapper}. Counts are written with the compact
+ * {@link ReferrerCountsCodec} encoding. The mapper only supports marshalling to string attributes so the encoded bytes
+ * are stored Base64 encoded.
+ * <p/>
+ * Items written before the compact encoding was introduced stored counts as JSON arrays. Those are still read.
  */
-public class ReferrerCountMarshaller extends JsonMarshaller<ReferrerCount> {
+public class ReferrerCountMarshaller implements DynamoDBMarshaller<List<ReferrerCount>> {
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private static final TypeReference<List<ReferrerCount>> REFERRER_COUNTS_TYPE =
+            new TypeReference<List<ReferrerCount>>() {
+            };
+
+    @Override
+    public String marshall(List<ReferrerCount> referrerCounts) {
+        return Base64.encodeAsString(ReferrerCountsCodec.encode(referrerCounts));
+    }
+
+    @Override
+    public List<ReferrerCount> unmarshall(Class<List<ReferrerCount>> clazz, String value) {
+        // Legacy items are JSON arrays. A Base64 string can never start with '['.
+        if (value.startsWith("[")) {
+            try {
+                return JSON.readValue(value, REFERRER_COUNTS_TYPE);
+            } catch (IOException ex) {
+                throw new IllegalArgumentException("Unable to parse legacy JSON referrer counts", ex);
+            }
+        }
+        return ReferrerCountsCodec.decode(Base64.decode(value));
+    }
 }
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+
+/**
+ * A compact binary encoding for a list of {@link ReferrerCount}s.
+ * <p/>
+ * The encoded form is:
+ *
+ * <pre>
+ * format version (1 byte)
+ * flags (1 byte, bit 0 set if the body is deflated)
+ * [uncompressed body length (varint), only if deflated]
+ * body:
+ *   number of unique referrers (varint)
+ *   referrer dictionary, sorted, each entry front coded against the previous one:
+ *     bytes shared with previous entry (varint), remaining byte length (varint), remaining UTF-8 bytes
+ *   number of counts (varint)
+ *   counts in their original order:
+ *     index of referrer in dictionary (varint), count (varint)
+ * </pre>
+ *
+ * Referrers commonly share long prefixes such as "http://www.", so sorting and front coding them removes most of the
+ * repetition JSON would carry. The body is only deflated when doing so makes it smaller.
+ */
+public class ReferrerCountsCodec {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final byte FORMAT_VERSION = 1;
+    private static final byte FLAG_DEFLATED = 0x1;
+
+    /**
+     * Encode referrer counts. The order of the counts is preserved.
+     *
+     * @param referrerCounts Counts to encode. Referrers must not be null.
+     * @return The encoded counts.
+     */
+    public static byte[] encode(List<ReferrerCount> referrerCounts) {
+        return encode(referrerCounts, new ByteArrayOutputStream(16 * referrerCounts.size() + 8));
+    }
+
+    /**
+     * Encode referrer counts using a caller provided scratch buffer. This avoids allocating a new buffer for every
+     * encoding when many lists are encoded by the same thread.
+     *
+     * @param referrerCounts Counts to encode. Referrers must not be null.
+     * @param scratch Buffer to build the uncompressed body in. It is reset before use.
+     * @return The encoded counts.
+     */
+    public static byte[] encode(List<ReferrerCount> referrerCounts, ByteArrayOutputStream scratch) {
+        // Build the dictionary of unique referrers in sorted order
+        String[] dictionary = uniqueSortedReferrers(referrerCounts);
+        Map<String, Integer> indexes = new HashMap<>();
+        for (int i = 0; i < dictionary.length; i++) {
+            indexes.put(dictionary[i], i);
+        }
+
+        ByteArrayOutputStream body = scratch;
+        body.reset();
+        writeVarint(body, dictionary.length);
+        byte[] previous = new byte[0];
+        for (String referrer : dictionary) {
+            byte[] current = referrer.getBytes(UTF8);
+            int shared = sharedPrefixLength(previous, current);
+            writeVarint(body, shared);
+            writeVarint(body, current.length - shared);
+            body.write(current, shared, current.length - shared);
+            previous = current;
+        }
+
+        writeVarint(body, referrerCounts.size());
+        for (ReferrerCount referrerCount : referrerCounts) {
+            writeVarint(body, indexes.get(referrerCount.getReferrer()));
+            writeVarint(body, referrerCount.getCount());
+        }
+        byte[] raw = body.toByteArray();
+
+        // Only use the deflated body if it saves space
+        byte[] deflated = deflate(raw);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(raw.length, deflated.length) + 8);
+        out.write(FORMAT_VERSION);
+        if (deflated.length + varintLength(raw.length) < raw.length) {
+            out.write(FLAG_DEFLATED);
+            writeVarint(out, raw.length);
+            out.write(deflated, 0, deflated.length);
+        } else {
+            out.write(0);
+            out.write(raw, 0, raw.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode referrer counts previously encoded with {@link #encode(List)}.
+     *
+     * @param encoded The encoded counts.
+     * @return The referrer counts in the order they were encoded.
+     * @throws IllegalArgumentException if the data is not a valid encoding.
+     */
+    public static List<ReferrerCount> decode(byte[] encoded) {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(encoded);
+            byte version = in.get();
+            if (version != FORMAT_VERSION) {
+                throw new IllegalArgumentException("Unsupported referrer counts format version: " + version);
+            }
+            byte flags = in.get();
+            if ((flags & FLAG_DEFLATED) != 0) {
+                int rawLength = (int) readVarint(in);
+                in = ByteBuffer.wrap(inflate(encoded, in.position(), rawLength));
+            }
+
+            String[] dictionary = new String[(int) readVarint(in)];
+            byte[] previous = new byte[0];
+            for (int i = 0; i < dictionary.length; i++) {
+                int shared = (int) readVarint(in);
+                int remaining = (int) readVarint(in);
+                if (shared > previous.length) {
+                    throw new IllegalArgumentException("Referrer shares more bytes than the previous referrer has");
+                }
+                byte[] current = Arrays.copyOf(previous, shared + remaining);
+                in.get(current, shared, remaining);
+                dictionary[i] = new String(current, UTF8);
+                previous = current;
+            }
+
+            int size = (int) readVarint(in);
+            List<ReferrerCount> referrerCounts = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                ReferrerCount referrerCount = new ReferrerCount();
+                referrerCount.setReferrer(dictionary[(int) readVarint(in)]);
+                referrerCount.setCount(readVarint(in));
+                referrerCounts.add(referrerCount);
+            }
+            return referrerCounts;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("Truncated or corrupt referrer counts", ex);
+        }
+    }
+
+    private static String[] uniqueSortedReferrers(List<ReferrerCount> referrerCounts) {
+        String[] referrers = new String[referrerCounts.size()];
+        for (int i = 0; i < referrers.length; i++) {
+            referrers[i] = referrerCounts.get(i).getReferrer();
+        }
+        Arrays.sort(referrers);
+        // Remove duplicates in place
+        int unique = 0;
+        for (int i = 0; i < referrers.length; i++) {
+            if (unique == 0 || !referrers[i].equals(referrers[unique - 1])) {
+                referrers[unique++] = referrers[i];
+            }
+        }
+        return Arrays.copyOf(referrers, unique);
+    }
+
+    private static int sharedPrefixLength(byte[] a, byte[] b) {
+        int max = Math.min(a.length, b.length);
+        int i = 0;
+        while (i < max && a[i] == b[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length);
+            byte[] chunk = new byte[Math.max(64, raw.length)];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(chunk);
+                out.write(chunk, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static byte[] inflate(byte[] encoded, int offset, int rawLength) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(encoded, offset, encoded.length - offset);
+            byte[] raw = new byte[rawLength];
+            int read = 0;
+            while (read < rawLength) {
+                int n = inflater.inflate(raw, read, rawLength - read);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                read += n;
+            }
+            if (read != rawLength) {
+                throw new IllegalArgumentException("Deflated referrer counts are shorter than expected");
+            }
+            return raw;
+        } catch (DataFormatException ex) {
+            throw new IllegalArgumentException("Corrupt deflated referrer counts", ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Write a non-negative value as an unsigned LEB128 varint.
+     */
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Cannot encode negative value: " + value);
+        }
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Read an unsigned LEB128 varint.
+     */
+    static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    static int varintLength(long value) {
+        int length = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+}
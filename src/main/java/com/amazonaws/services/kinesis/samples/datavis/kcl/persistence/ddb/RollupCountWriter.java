@@ -0,0 +1,748 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.ExpectedAttributeValue;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerCountsRollup;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+import com.amazonaws.services.kinesis.samples.datavis.utils.CountRollups;
+import com.amazonaws.services.kinesis.samples.datavis.utils.HashKeySharding;
+import com.amazonaws.services.kinesis.samples.datavis.utils.ReferrerCountUtils;
+import com.amazonaws.util.Base64;
+
+/**
+ * Writes counts with another {@link CountWriter} and maintains coarser rollups of them, see {@link CountRollups}. Every
+ * count the delegate writes successfully is added to an in-memory rollup for each resolution. Rollups are written to
+ * DynamoDB when their bucket of time closes, and while it is open at most once per flush interval scaled by the
+ * rollup's resolution, so they cost a small fraction of the capacity used by per-interval counts. With a 10 second
+ * flush interval and resolutions of a minute and an hour, minute rollups are written every 10 seconds and hour rollups
+ * every 10 minutes.
+ * <p/>
+ * Each resource's counts are written under a different hash key every interval, see {@link HashKeySharding}. A bucket's
+ * counts are rolled up into a single item under the hash key chosen for the bucket as a whole, so every rollup
+ * averages all of a resource's counts in its bucket.
+ * <p/>
+ * Each rollup item holds the sum of every count in its bucket, trimmed to the top referrers, and the number of
+ * intervals summed. Every Kinesis shard writes its own count for a resource and interval, which readers of per-interval
+ * counts add together, so an interval is one sample however many shards counted it. The intervals summed are stored
+ * with the item as a bitmap of the seconds in its bucket, so counts added later for an interval already summed are not
+ * counted as another sample. Rollups from several workers for the same hash key are added together: writes are
+ * conditional on the item's version and a conflicting write is merged and tried once more.
+ * <p/>
+ * Rollups are best effort. Counts not yet rolled up into DynamoDB are lost if the worker stops, and counts written
+ * again after a restart are summed again, raising the average of their bucket by their share of it. Readers divide by
+ * the number of intervals summed, so a lost interval doesn't lower the average.
+ * <p/>
+ * Rollups are written on their own thread so the delegate, or its callbacks if it is asynchronous, only wait to add
+ * counts to them. A rollup that fails to be written {@value #MAX_ROLLUP_WRITE_ATTEMPTS} times in a row is dropped.
+ * <p/>
+ * Writes must be started from a single thread.
+ */
+public class RollupCountWriter implements CountWriter, AsyncCountWriter {
+    private static final Log LOG = LogFactory.getLog(RollupCountWriter.class);
+
+    static final String ATTRIBUTE_VERSION = "version";
+    static final String ATTRIBUTE_SAMPLES = "samples";
+    static final String ATTRIBUTE_INTERVALS = "intervals";
+
+    // The number of consecutive flushes a rollup may fail to be written in before it is dropped
+    static final int MAX_ROLLUP_WRITE_ATTEMPTS = 5;
+
+    // Writes the per-interval counts. Exactly one of these is set.
+    private CountWriter delegate;
+    private AsyncCountWriter asyncDelegate;
+    private AmazonDynamoDB dynamoDB;
+    private String tableName;
+    private HashKeySharding sharding;
+    private int[] resolutionsInSeconds;
+    private int maxReferrers;
+    private long flushIntervalInNanos;
+    private int finestResolutionInSeconds = Integer.MAX_VALUE;
+    private Executor flushExecutor;
+
+    // When, in System.nanoTime(), rollups are next checked for writing. This, the rollups' pending counts and the
+    // fields below are only used while holding the lock on this writer.
+    private long nextFlushAt = System.nanoTime();
+
+    // Whether a flush has been started and not yet finished. Only one flush runs at a time.
+    private boolean flushing;
+
+    // Rollups being accumulated, by rollup key and bucket start
+    private Map<String, Rollup> rollups = new LinkedHashMap<>();
+
+    // The newest count timestamp rolled up. Rollups for buckets that end before this are no longer being added to.
+    private long newestTimestamp = Long.MIN_VALUE;
+
+    // When the next open bucket closes, as a count timestamp. Rollups are flushed once a count reaches it.
+    private long nextBucketEnd = Long.MAX_VALUE;
+
+    // The number of rollup writes that failed and will be retried with the next flush
+    private AtomicLong failedRollupWrites = new AtomicLong();
+
+    // The number of rollups dropped after failing to be written too many times
+    private AtomicLong droppedRollups = new AtomicLong();
+
+    /**
+     * @param delegate Writes the per-interval counts.
+     * @param dynamoDB The Amazon DynamoDB client to write rollups with.
+     * @param tableName The table to write rollups to.
+     * @param sharding Selects the hash key for each resource's counts. This must match the persister's.
+     * @param resolutionsInSeconds The length of time each rollup item covers, one entry per resolution to maintain.
+     * @param maxReferrers The maximum number of referrers kept per rollup item. The rest are summed into a single
+     *        {@link ReferrerCountUtils#OTHER_REFERRERS} entry.
+     * @param flushIntervalInMillis How often to write rollups.
+     */
+    public RollupCountWriter(CountWriter delegate,
+            AmazonDynamoDB dynamoDB,
+            String tableName,
+            HashKeySharding sharding,
+            int[] resolutionsInSeconds,
+            int maxReferrers,
+            long flushIntervalInMillis) {
+        this(delegate,
+                dynamoDB,
+                tableName,
+                sharding,
+                resolutionsInSeconds,
+                maxReferrers,
+                flushIntervalInMillis,
+                newFlushExecutor());
+    }
+
+    /**
+     * @param flushExecutor Runs rollup flushes.
+     */
+    RollupCountWriter(CountWriter delegate,
+            AmazonDynamoDB dynamoDB,
+            String tableName,
+            HashKeySharding sharding,
+            int[] resolutionsInSeconds,
+            int maxReferrers,
+            long flushIntervalInMillis,
+            Executor flushExecutor) {
+        this(delegate,
+                null,
+                dynamoDB,
+                tableName,
+                sharding,
+                resolutionsInSeconds,
+                maxReferrers,
+                flushIntervalInMillis,
+                flushExecutor);
+        if (delegate == null) {
+            throw new NullPointerException("delegate must not be null");
+        }
+    }
+
+    /**
+     * @param asyncDelegate Writes the per-interval counts asynchronously.
+     * @param dynamoDB The Amazon DynamoDB client to write rollups with.
+     * @param tableName The table to write rollups to.
+     * @param sharding Selects the hash key for each resource's counts. This must match the persister's.
+     * @param resolutionsInSeconds The length of time each rollup item covers, one entry per resolution to maintain.
+     * @param maxReferrers The maximum number of referrers kept per rollup item. The rest are summed into a single
+     *        {@link ReferrerCountUtils#OTHER_REFERRERS} entry.
+     * @param flushIntervalInMillis How often to write rollups.
+     */
+    public RollupCountWriter(AsyncCountWriter asyncDelegate,
+            AmazonDynamoDB dynamoDB,
+            String tableName,
+            HashKeySharding sharding,
+            int[] resolutionsInSeconds,
+            int maxReferrers,
+            long flushIntervalInMillis) {
+        this(asyncDelegate,
+                dynamoDB,
+                tableName,
+                sharding,
+                resolutionsInSeconds,
+                maxReferrers,
+                flushIntervalInMillis,
+                newFlushExecutor());
+    }
+
+    /**
+     * @param flushExecutor Runs rollup flushes.
+     */
+    RollupCountWriter(AsyncCountWriter asyncDelegate,
+            AmazonDynamoDB dynamoDB,
+            String tableName,
+            HashKeySharding sharding,
+            int[] resolutionsInSeconds,
+            int maxReferrers,
+            long flushIntervalInMillis,
+            Executor flushExecutor) {
+        this(null,
+                asyncDelegate,
+                dynamoDB,
+                tableName,
+                sharding,
+                resolutionsInSeconds,
+                maxReferrers,
+                flushIntervalInMillis,
+                flushExecutor);
+        if (asyncDelegate == null) {
+            throw new NullPointerException("asyncDelegate must not be null");
+        }
+    }
+
+    private RollupCountWriter(CountWriter delegate,
+            AsyncCountWriter asyncDelegate,
+            AmazonDynamoDB dynamoDB,
+            String tableName,
+            HashKeySharding sharding,
+            int[] resolutionsInSeconds,
+            int maxReferrers,
+            long flushIntervalInMillis,
+            Executor flushExecutor) {
+        if (dynamoDB == null) {
+            throw new NullPointerException("dynamoDB must not be null");
+        }
+        if (tableName == null) {
+            throw new NullPointerException("tableName must not be null");
+        }
+        if (sharding == null) {
+            throw new NullPointerException("sharding must not be null");
+        }
+        if (resolutionsInSeconds == null) {
+            throw new NullPointerException("resolutionsInSeconds must not be null");
+        }
+        for (int resolution : resolutionsInSeconds) {
+            if (resolution < 1) {
+                throw new IllegalArgumentException("resolutionsInSeconds must all be >= 1");
+            }
+            finestResolutionInSeconds = Math.min(finestResolutionInSeconds, resolution);
+        }
+        if (maxReferrers < 1) {
+            throw new IllegalArgumentException("maxReferrers must be >= 1");
+        }
+        if (flushIntervalInMillis < 0) {
+            throw new IllegalArgumentException("flushIntervalInMillis must be >= 0");
+        }
+        if (flushExecutor == null) {
+            throw new NullPointerException("flushExecutor must not be null");
+        }
+        this.delegate = delegate;
+        this.asyncDelegate = asyncDelegate;
+        this.dynamoDB = dynamoDB;
+        this.tableName = tableName;
+        this.sharding = sharding;
+        this.resolutionsInSeconds = resolutionsInSeconds.clone();
+        this.maxReferrers = maxReferrers;
+        this.flushIntervalInNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalInMillis);
+        this.flushExecutor = flushExecutor;
+    }
+
+    /**
+     * @return A single daemon thread to write rollups on.
+     */
+    private static Executor newFlushExecutor() {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "RollupFlusher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Stop the thread rollups are flushed on, and the delegate's threads if it writes asynchronously. Rollups not yet
+     * flushed are not written.
+     */
+    @Override
+    public void shutdown() {
+        if (flushExecutor instanceof ExecutorService) {
+            ((ExecutorService) flushExecutor).shutdownNow();
+        }
+        if (asyncDelegate != null) {
+            asyncDelegate.shutdown();
+        }
+    }
+
+    @Override
+    public List<HttpReferrerPairsCount> write(List<HttpReferrerPairsCount> counts) {
+        if (delegate == null) {
+            throw new IllegalStateException("This writer writes counts asynchronously");
+        }
+        List<HttpReferrerPairsCount> failed = delegate.write(counts);
+        rollUpWritten(counts, failed);
+        return failed;
+    }
+
+    @Override
+    public void write(List<HttpReferrerPairsCount> counts, final WriteCallback callback) throws InterruptedException {
+        if (asyncDelegate == null) {
+            throw new IllegalStateException("This writer writes counts synchronously");
+        }
+        asyncDelegate.write(counts, new WriteCallback() {
+            @Override
+            public void onComplete(List<HttpReferrerPairsCount> counts, List<HttpReferrerPairsCount> failed) {
+                try {
+                    rollUpWritten(counts, failed);
+                } finally {
+                    callback.onComplete(counts, failed);
+                }
+            }
+        });
+    }
+
+    /**
+     * Roll up the counts that were written and start a flush if the flush interval has elapsed or a bucket has closed.
+     *
+     * @param counts Counts the delegate attempted to write.
+     * @param failed Counts the delegate did not write.
+     */
+    private void rollUpWritten(List<HttpReferrerPairsCount> counts, List<HttpReferrerPairsCount> failed) {
+        // Only roll up counts that were written. Failed counts are rolled up when they're retried.
+        Set<HttpReferrerPairsCount> failedSet =
+                Collections.newSetFromMap(new IdentityHashMap<HttpReferrerPairsCount, Boolean>());
+        failedSet.addAll(failed);
+        synchronized (this) {
+            for (HttpReferrerPairsCount count : counts) {
+                if (!failedSet.contains(count)) {
+                    rollUp(count);
+                }
+            }
+            if (flushing || (System.nanoTime() - nextFlushAt < 0 && newestTimestamp < nextBucketEnd)) {
+                return;
+            }
+            nextFlushAt = System.nanoTime() + flushIntervalInNanos;
+            flushing = true;
+        }
+
+        try {
+            flushExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            synchronized (this) {
+                flushing = false;
+            }
+            LOG.warn("Unable to start writing count rollups. They will be retried.", ex);
+        }
+    }
+
+    /**
+     * Add a count to its rollup for every resolution.
+     */
+    private void rollUp(HttpReferrerPairsCount count) {
+        String resource = sharding.toResource(count.getResource());
+        for (int resolution : resolutionsInSeconds) {
+            long bucketStart = CountRollups.toBucketStart(count.getTimestamp().getTime(), resolution);
+            String hashKey = sharding.toHashKey(resource, bucketStart / TimeUnit.SECONDS.toMillis(resolution));
+            String rollupKey = CountRollups.toRollupKey(hashKey, resolution);
+            String key = CountItemKeys.toKey(rollupKey, Long.toString(bucketStart));
+            Rollup rollup = rollups.get(key);
+            if (rollup == null) {
+                rollup = new Rollup(rollupKey, bucketStart, resolution);
+                rollup.nextWriteAt = System.nanoTime() + getWriteIntervalInNanos(rollup);
+                rollups.put(key, rollup);
+                if (rollup.getEnd() > newestTimestamp) {
+                    nextBucketEnd = Math.min(nextBucketEnd, rollup.getEnd());
+                }
+            }
+            rollup.pending.add(count);
+        }
+        newestTimestamp = Math.max(newestTimestamp, count.getTimestamp().getTime());
+    }
+
+    /**
+     * @return How long to wait between writes of a rollup whose bucket is still open. Coarser rollups change less
+     *         for every count added to them so they are written less often.
+     */
+    private long getWriteIntervalInNanos(Rollup rollup) {
+        return flushIntervalInNanos * (rollup.resolutionInSeconds / finestResolutionInSeconds);
+    }
+
+    /**
+     * Write every rollup with counts that have not been written yet, if its bucket has closed or it is due to be
+     * written again. Rollups for buckets that have ended are forgotten once they are written. A late count for a
+     * forgotten bucket reads its rollup again.
+     * <p/>
+     * Counts are taken from the rollups while holding the lock on this writer and written without it, so counts can
+     * be rolled up while rollups are being written. Only one flush runs at a time, so the rest of each rollup's state
+     * is only used by the flush.
+     */
+    private void flush() {
+        List<Rollup> due = new ArrayList<>();
+        List<Sums> taken = new ArrayList<>();
+        long now = System.nanoTime();
+        try {
+            synchronized (this) {
+                for (Rollup rollup : rollups.values()) {
+                    if (!rollup.pending.isEmpty()
+                            && (rollup.getEnd() <= newestTimestamp || now - rollup.nextWriteAt >= 0)) {
+                        due.add(rollup);
+                        taken.add(rollup.pending);
+                        rollup.pending = new Sums();
+                    }
+                }
+            }
+
+            for (int i = 0; i < due.size(); i++) {
+                Rollup rollup = due.get(i);
+                if (writeRollup(rollup, taken.get(i))) {
+                    rollup.failedWrites = 0;
+                    rollup.nextWriteAt = now + getWriteIntervalInNanos(rollup);
+                } else {
+                    failedRollupWrites.incrementAndGet();
+                    rollup.failedWrites++;
+                    retryOrDrop(rollup, taken.get(i));
+                }
+            }
+        } finally {
+            synchronized (this) {
+                nextBucketEnd = Long.MAX_VALUE;
+                for (Iterator<Rollup> it = rollups.values().iterator(); it.hasNext();) {
+                    Rollup rollup = it.next();
+                    if (rollup.getEnd() > newestTimestamp) {
+                        nextBucketEnd = Math.min(nextBucketEnd, rollup.getEnd());
+                    } else if (rollup.pending.isEmpty()) {
+                        it.remove();
+                    }
+                }
+                flushing = false;
+            }
+        }
+    }
+
+    /**
+     * Put the counts that failed to be written back into their rollup to be written with the next flush, or drop the
+     * rollup if it has failed to be written too many times.
+     */
+    private synchronized void retryOrDrop(Rollup rollup, Sums failed) {
+        if (rollup.failedWrites < MAX_ROLLUP_WRITE_ATTEMPTS) {
+            rollup.pending = failed.plus(rollup.pending);
+            return;
+        }
+        String key = CountItemKeys.toKey(rollup.rollupKey, Long.toString(rollup.start));
+        if (rollups.get(key) == rollup) {
+            rollups.remove(key);
+        }
+        droppedRollups.incrementAndGet();
+        LOG.error(String.format("Dropping rollup %s at %s after %d failed writes. %d counts in it are lost.",
+                rollup.rollupKey,
+                CountItemKeys.formatTimestamp(new Date(rollup.start)),
+                rollup.failedWrites,
+                failed.getSamples() + rollup.pending.getSamples()));
+    }
+
+    /**
+     * Add counts to a rollup's item.
+     *
+     * @return {@code true} if the item was written.
+     */
+    private boolean writeRollup(Rollup rollup, Sums sums) {
+        try {
+            if (!rollup.loaded) {
+                load(rollup);
+            }
+            // If someone else wrote the rollup since we read it add our counts to theirs and try once more
+            for (int attempt = 0; attempt < 2; attempt++) {
+                // Only the top referrers are stored so only keep those in memory
+                Sums merged = rollup.written.plus(sums).trim(maxReferrers);
+                try {
+                    put(rollup, merged);
+                    rollup.written = merged;
+                    return true;
+                } catch (ConditionalCheckFailedException ex) {
+                    load(rollup);
+                }
+            }
+            LOG.warn(String.format("Rollup %s at %s is being updated concurrently. It will be retried.",
+                    rollup.rollupKey,
+                    CountItemKeys.formatTimestamp(new Date(rollup.start))));
+        } catch (AmazonClientException ex) {
+            // We no longer know what the item holds so read it again next time
+            rollup.loaded = false;
+            LOG.warn("Error writing count rollup to DynamoDB. It will be retried.", ex);
+        }
+        return false;
+    }
+
+    /**
+     * Read a rollup's current sums from DynamoDB.
+     */
+    private void load(Rollup rollup) {
+        Map<String, AttributeValue> item =
+                dynamoDB.getItem(new GetItemRequest().withTableName(tableName)
+                        .withKey(toKey(rollup))
+                        .withConsistentRead(true)).getItem();
+        rollup.version = null;
+        rollup.written = new Sums();
+        if (item != null) {
+            rollup.version = Long.parseLong(item.get(ATTRIBUTE_VERSION).getN());
+            long samples = Long.parseLong(item.get(ATTRIBUTE_SAMPLES).getN());
+            AttributeValue intervals = item.get(ATTRIBUTE_INTERVALS);
+            if (intervals != null) {
+                decodeIntervals(rollup, intervals.getB(), rollup.written.intervals);
+            }
+            // Items written before intervals were recorded only have a number of samples
+            rollup.written.untrackedSamples = Math.max(0L, samples - rollup.written.intervals.size());
+            String referrerCounts = item.get(CountItemKeys.ATTRIBUTE_REFERRER_COUNTS).getS();
+            for (ReferrerCount referrerCount : ReferrerCountsCodec.decode(Base64.decode(referrerCounts))) {
+                rollup.written.add(referrerCount.getReferrer(), referrerCount.getCount());
+            }
+        }
+        rollup.loaded = true;
+    }
+
+    /**
+     * Replace the rollup item, as long as it hasn't changed since we last read or wrote it.
+     */
+    private void put(Rollup rollup, Sums sums) {
+        Map<String, ExpectedAttributeValue> expected = new HashMap<>(1);
+        if (rollup.version == null) {
+            expected.put(ATTRIBUTE_VERSION, new ExpectedAttributeValue(false));
+        } else {
+            expected.put(ATTRIBUTE_VERSION,
+                    new ExpectedAttributeValue(new AttributeValue().withN(rollup.version.toString())));
+        }
+        long nextVersion = rollup.version == null ? 1L : rollup.version + 1;
+        dynamoDB.putItem(new PutItemRequest().withTableName(tableName)
+                .withItem(toItem(rollup, sums, nextVersion))
+                .withExpected(expected));
+        rollup.version = nextVersion;
+    }
+
+    /**
+     * Build the item for a rollup. This must match what DynamoDBMapper would write for a
+     * {@link HttpReferrerCountsRollup}.
+     */
+    Map<String, AttributeValue> toItem(Rollup rollup, Sums sums, long version) {
+        Map<String, AttributeValue> item = toKey(rollup);
+        if (sums.host != null) {
+            item.put(CountItemKeys.ATTRIBUTE_HOST, new AttributeValue().withS(sums.host));
+        }
+        item.put(ATTRIBUTE_VERSION, new AttributeValue().withN(Long.toString(version)));
+        item.put(ATTRIBUTE_SAMPLES, new AttributeValue().withN(Long.toString(sums.getSamples())));
+        if (!sums.intervals.isEmpty()) {
+            item.put(ATTRIBUTE_INTERVALS, new AttributeValue().withB(encodeIntervals(rollup, sums.intervals)));
+        }
+        item.put(CountItemKeys.ATTRIBUTE_REFERRER_COUNTS,
+                new AttributeValue().withS(Base64.encodeAsString(ReferrerCountsCodec.encode(sums.topN(maxReferrers)))));
+        return item;
+    }
+
+    /**
+     * Encode the intervals summed into a rollup as a bitmap with a bit for every second of its bucket, set if the
+     * interval starting at that second was summed.
+     */
+    static ByteBuffer encodeIntervals(Rollup rollup, Set<Long> intervals) {
+        long firstSecond = TimeUnit.MILLISECONDS.toSeconds(rollup.start);
+        byte[] bitmap = new byte[(rollup.resolutionInSeconds + 7) / 8];
+        for (long second : intervals) {
+            int bit = (int) (second - firstSecond);
+            bitmap[bit >>> 3] |= 1 << (bit & 7);
+        }
+        return ByteBuffer.wrap(bitmap);
+    }
+
+    /**
+     * Decode a bitmap written by {@link #encodeIntervals(Rollup, Set)} into the seconds the intervals start at.
+     */
+    static void decodeIntervals(Rollup rollup, ByteBuffer bitmap, Set<Long> intervals) {
+        long firstSecond = TimeUnit.MILLISECONDS.toSeconds(rollup.start);
+        ByteBuffer bytes = bitmap.duplicate();
+        for (int i = 0; bytes.hasRemaining(); i++) {
+            byte b = bytes.get();
+            for (int bit = 0; bit < 8; bit++) {
+                if ((b & (1 << bit)) != 0) {
+                    intervals.add(firstSecond + i * 8 + bit);
+                }
+            }
+        }
+    }
+
+    private Map<String, AttributeValue> toKey(Rollup rollup) {
+        Map<String, AttributeValue> key = new HashMap<>(8);
+        key.put(CountItemKeys.ATTRIBUTE_RESOURCE, new AttributeValue().withS(rollup.rollupKey));
+        key.put(CountItemKeys.ATTRIBUTE_TIMESTAMP,
+                new AttributeValue().withS(CountItemKeys.formatTimestamp(new Date(rollup.start))));
+        return key;
+    }
+
+    /**
+     * @return The number of times writing a rollup failed. Failed rollups are retried with the next flush.
+     */
+    public long getFailedRollupWrites() {
+        return failedRollupWrites.get();
+    }
+
+    /**
+     * @return The number of rollups dropped after failing to be written {@value #MAX_ROLLUP_WRITE_ATTEMPTS} times in a
+     *         row.
+     */
+    public long getDroppedRollups() {
+        return droppedRollups.get();
+    }
+
+    /**
+     * A rollup for one hash key and bucket of time.
+     */
+    static class Rollup {
+        private final String rollupKey;
+        private final long start;
+        private final int resolutionInSeconds;
+        // Whether we know what the item in DynamoDB holds
+        private boolean loaded;
+        // The version of the item in DynamoDB, or null if it has not been written
+        private Long version;
+        // What the item in DynamoDB holds
+        private Sums written = new Sums();
+        // Counts rolled up but not yet written
+        private Sums pending = new Sums();
+        // When, in System.nanoTime(), the rollup is next written if its bucket is still open
+        private long nextWriteAt;
+        // The number of flushes in a row that failed to write the rollup
+        private int failedWrites;
+
+        Rollup(String rollupKey, long start, int resolutionInSeconds) {
+            this.rollupKey = rollupKey;
+            this.start = start;
+            this.resolutionInSeconds = resolutionInSeconds;
+        }
+
+        long getEnd() {
+            return start + TimeUnit.SECONDS.toMillis(resolutionInSeconds);
+        }
+    }
+
+    /**
+     * Referrer counts summed over some number of intervals.
+     */
+    static class Sums {
+        private final Map<String, Long> counts = new HashMap<>();
+        // The intervals summed, by the second they start at. The counts from every shard for an interval are one
+        // sample.
+        private final Set<Long> intervals = new HashSet<>();
+        // Samples read from an item that does not record which intervals they are
+        private long untrackedSamples;
+        private String host;
+
+        /**
+         * @return The number of intervals summed.
+         */
+        long getSamples() {
+            return untrackedSamples + intervals.size();
+        }
+
+        boolean isEmpty() {
+            return getSamples() == 0;
+        }
+
+        void add(HttpReferrerPairsCount count) {
+            for (ReferrerCount referrerCount : count.getReferrerCounts()) {
+                add(referrerCount.getReferrer(), referrerCount.getCount());
+            }
+            intervals.add(TimeUnit.MILLISECONDS.toSeconds(count.getTimestamp().getTime()));
+            host = count.getHost();
+        }
+
+        void add(String referrer, long count) {
+            Long sum = counts.get(referrer);
+            counts.put(referrer, sum == null ? count : sum + count);
+        }
+
+        /**
+         * @return New sums of these and the other's counts. The host is the other's, if set.
+         */
+        Sums plus(Sums other) {
+            Sums sums = new Sums();
+            for (Sums s : new Sums[] { this, other }) {
+                for (Map.Entry<String, Long> count : s.counts.entrySet()) {
+                    sums.add(count.getKey(), count.getValue());
+                }
+                sums.intervals.addAll(s.intervals);
+                sums.untrackedSamples += s.untrackedSamples;
+                if (s.host != null) {
+                    sums.host = s.host;
+                }
+            }
+            return sums;
+        }
+
+        /**
+         * @return New sums with only the top N referrers. The rest are summed into a single other entry.
+         */
+        Sums trim(int n) {
+            Sums trimmed = new Sums();
+            for (ReferrerCount referrerCount : topN(n)) {
+                trimmed.add(referrerCount.getReferrer(), referrerCount.getCount());
+            }
+            trimmed.intervals.addAll(intervals);
+            trimmed.untrackedSamples = untrackedSamples;
+            trimmed.host = host;
+            return trimmed;
+        }
+
+        /**
+         * @return The top referrers, in descending order, followed by one entry summing all others if any were left
+         *         out. Referrers already summed into the other entry stay there.
+         */
+        List<ReferrerCount> topN(int n) {
+            List<ReferrerCount> referrerCounts = new ArrayList<>(counts.size());
+            for (Map.Entry<String, Long> count : counts.entrySet()) {
+                if (!ReferrerCountUtils.OTHER_REFERRERS.equals(count.getKey())) {
+                    ReferrerCount referrerCount = new ReferrerCount();
+                    referrerCount.setReferrer(count.getKey());
+                    referrerCount.setCount(count.getValue());
+                    referrerCounts.add(referrerCount);
+                }
+            }
+            List<ReferrerCount> top = ReferrerCountUtils.topN(referrerCounts, n);
+
+            Long other = counts.get(ReferrerCountUtils.OTHER_REFERRERS);
+            if (other != null) {
+                ReferrerCount last = top.isEmpty() ? null : top.get(top.size() - 1);
+                if (last != null && ReferrerCountUtils.OTHER_REFERRERS.equals(last.getReferrer())) {
+                    last.setCount(last.getCount() + other);
+                } else {
+                    ReferrerCount otherCount = new ReferrerCount();
+                    otherCount.setReferrer(ReferrerCountUtils.OTHER_REFERRERS);
+                    otherCount.setCount(other);
+                    top.add(otherCount);
+                }
+            }
+            return top;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.ExpectedAttributeValue;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerCountsBlock;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.utils.CountRollups;
+import com.amazonaws.util.Base64;
+
+/**
+ * Writes counts as time-bucketed items. Each item holds every per-interval count of one resource over a fixed block of
+ * time, see {@link HttpReferrerCountsBlock}. A range query then reads one item per block instead of one per interval.
+ * Block items are stored under a hash key prefixed with the block size, see {@link #toBlockKey(String, long)}, so they
+ * are never mistaken for per-interval counts.
+ * <p/>
+ * DynamoDB can't append to an attribute so each write replaces the whole block item with the snapshots it already held
+ * plus the new ones. The block being written to is kept in memory so this only needs to read the item when a block is
+ * first written to after a restart. To save write capacity the persister should write at most every few seconds, see
+ * {@link DynamoDBCountPersisterConfig#getMinWriteIntervalInMillis()}, so each block is rewritten a handful of times
+ * instead of once per interval. Once a later block has been written to, blocks that have closed are dropped from
+ * memory as soon as every snapshot in them has been written.
+ * <p/>
+ * Writes are conditional on the block's version so snapshots from another writer of the same block are merged rather
+ * than lost.
+ * <p/>
+ * This is not safe for use by multiple threads. {@link DynamoDBCountPersister} only writes from its one sending thread.
+ */
+public class TimeBucketedCountWriter implements CountWriter {
+    private static final Log LOG = LogFactory.getLog(TimeBucketedCountWriter.class);
+
+    static final String ATTRIBUTE_VERSION = "version";
+    static final String ATTRIBUTE_SNAPSHOTS = "snapshots";
+
+    private AmazonDynamoDB dynamoDB;
+    private String tableName;
+    private long blockSizeInMillis;
+
+    // The most recently written block for each hash key
+    private Map<String, Block> openBlocks = new HashMap<>();
+    // The start of the latest block written to. Blocks that start before it have closed.
+    private long latestBlockStart = Long.MIN_VALUE;
+
+    /**
+     * @param dynamoDB The Amazon DynamoDB client to send requests with.
+     * @param tableName The table to write blocks to.
+     * @param blockSizeInMillis The length of time each item covers.
+     */
+    public TimeBucketedCountWriter(AmazonDynamoDB dynamoDB, String tableName, long blockSizeInMillis) {
+        if (dynamoDB == null) {
+            throw new NullPointerException("dynamoDB must not be null");
+        }
+        if (tableName == null) {
+            throw new NullPointerException("tableName must not be null");
+        }
+        if (blockSizeInMillis < 1) {
+            throw new IllegalArgumentException("blockSizeInMillis must be >= 1");
+        }
+        this.dynamoDB = dynamoDB;
+        this.tableName = tableName;
+        this.blockSizeInMillis = blockSizeInMillis;
+    }
+
+    /**
+     * @param timestamp A count's timestamp.
+     * @param blockSizeInMillis The length of time each block covers.
+     * @return The start of the block the timestamp falls in.
+     */
+    public static long toBlockStart(long timestamp, long blockSizeInMillis) {
+        return timestamp - timestamp % blockSizeInMillis;
+    }
+
+    /**
+     * Determine the hash key to store a block under. It is prefixed with the block size, in the same style as
+     * {@link com.amazonaws.services.kinesis.samples.datavis.utils.CountRollups#toRollupKey(String, int)}, so block
+     * items don't share hash keys with per-interval counts or rollups.
+     *
+     * @param hashKey The hash key the per-interval counts are written under.
+     * @param blockSizeInMillis The length of time each block covers.
+     * @return The hash key for the block items.
+     */
+    public static String toBlockKey(String hashKey, long blockSizeInMillis) {
+        return Long.toString(blockSizeInMillis) + "ms" + CountRollups.PREFIX_SEPARATOR + hashKey;
+    }
+
+    @Override
+    public List<HttpReferrerPairsCount> write(List<HttpReferrerPairsCount> counts) {
+        // Group the counts by the block item they belong in
+        Map<String, List<HttpReferrerPairsCount>> countsByBlock = new LinkedHashMap<>();
+        for (HttpReferrerPairsCount count : counts) {
+            long blockStart = toBlockStart(count.getTimestamp().getTime(), blockSizeInMillis);
+            String key = CountItemKeys.toKey(count.getResource(), Long.toString(blockStart));
+            List<HttpReferrerPairsCount> blockCounts = countsByBlock.get(key);
+            if (blockCounts == null) {
+                blockCounts = new ArrayList<>();
+                countsByBlock.put(key, blockCounts);
+            }
+            blockCounts.add(count);
+            latestBlockStart = Math.max(latestBlockStart, blockStart);
+        }
+
+        List<HttpReferrerPairsCount> failed = new ArrayList<>();
+        for (List<HttpReferrerPairsCount> blockCounts : countsByBlock.values()) {
+            if (!writeBlock(blockCounts)) {
+                failed.addAll(blockCounts);
+            }
+        }
+        removeClosedBlocks();
+        return failed;
+    }
+
+    /**
+     * Stop keeping blocks that closed before the latest block written to, once every snapshot in them is written.
+     * Blocks with snapshots that failed to write are kept so the retry can add to them.
+     */
+    private void removeClosedBlocks() {
+        Iterator<Block> it = openBlocks.values().iterator();
+        while (it.hasNext()) {
+            Block block = it.next();
+            if (block.start < latestBlockStart && !block.unwritten) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return The number of blocks kept in memory.
+     */
+    int getOpenBlockCount() {
+        return openBlocks.size();
+    }
+
+    /**
+     * Add counts to their block and write it.
+     *
+     * @param counts Counts that all belong to the same block.
+     * @return {@code true} if the block was written.
+     */
+    private boolean writeBlock(List<HttpReferrerPairsCount> counts) {
+        String hashKey = counts.get(0).getResource();
+        long blockStart = toBlockStart(counts.get(0).getTimestamp().getTime(), blockSizeInMillis);
+        try {
+            Block open = openBlocks.get(hashKey);
+            Block block = open;
+            if (block == null || block.start != blockStart) {
+                block = load(hashKey, blockStart);
+                // Late counts for an older block must not replace the block currently being written to
+                if (open == null || blockStart > open.start) {
+                    openBlocks.put(hashKey, block);
+                }
+            }
+            block.add(counts);
+
+            // If someone else wrote the block since we read it merge their snapshots with ours and try once more
+            for (int attempt = 0; attempt < 2; attempt++) {
+                try {
+                    put(hashKey, block);
+                    return true;
+                } catch (ConditionalCheckFailedException ex) {
+                    Block latest = load(hashKey, blockStart);
+                    latest.add(block.snapshots.values());
+                    block.replaceWith(latest);
+                }
+            }
+            LOG.warn(String.format("Block for %s at %s is being updated concurrently. Counts will be retried.",
+                    hashKey,
+                    CountItemKeys.formatTimestamp(new Date(blockStart))));
+            return false;
+        } catch (AmazonClientException ex) {
+            // We no longer know the version of the block in DynamoDB so read it again next time
+            openBlocks.remove(hashKey);
+            LOG.warn("Error writing count block to DynamoDB. Failed counts will be retried.", ex);
+            return false;
+        }
+    }
+
+    /**
+     * Read a block's current snapshots from DynamoDB.
+     */
+    private Block load(String hashKey, long blockStart) {
+        Map<String, AttributeValue> item =
+                dynamoDB.getItem(new GetItemRequest().withTableName(tableName)
+                        .withKey(toKey(hashKey, blockStart))
+                        .withConsistentRead(true)).getItem();
+        Block block = new Block(blockStart);
+        if (item != null) {
+            block.version = Long.parseLong(item.get(ATTRIBUTE_VERSION).getN());
+            String snapshots = item.get(ATTRIBUTE_SNAPSHOTS).getS();
+            block.add(CountSnapshotsCodec.decode(Base64.decode(snapshots)));
+            // These snapshots are already in DynamoDB
+            block.unwritten = false;
+        }
+        return block;
+    }
+
+    /**
+     * Replace the block item, as long as it hasn't changed since we last read or wrote it.
+     */
+    private void put(String hashKey, Block block) {
+        Map<String, ExpectedAttributeValue> expected = new HashMap<>(1);
+        if (block.version == null) {
+            expected.put(ATTRIBUTE_VERSION, new ExpectedAttributeValue(false));
+        } else {
+            expected.put(ATTRIBUTE_VERSION,
+                    new ExpectedAttributeValue(new AttributeValue().withN(block.version.toString())));
+        }
+        long nextVersion = block.version == null ? 1L : block.version + 1;
+        dynamoDB.putItem(new PutItemRequest().withTableName(tableName)
+                .withItem(toItem(hashKey, block, nextVersion))
+                .withExpected(expected));
+        block.version = nextVersion;
+        block.unwritten = false;
+    }
+
+    /**
+     * Build the item for a block. This must match what DynamoDBMapper would write for a {@link HttpReferrerCountsBlock}.
+     */
+    Map<String, AttributeValue> toItem(String hashKey, Block block, long version) {
+        Map<String, AttributeValue> item = toKey(hashKey, block.start);
+        String host = block.snapshots.lastEntry().getValue().getHost();
+        if (host != null) {
+            item.put(CountItemKeys.ATTRIBUTE_HOST, new AttributeValue().withS(host));
+        }
+        item.put(ATTRIBUTE_VERSION, new AttributeValue().withN(Long.toString(version)));
+        item.put(ATTRIBUTE_SNAPSHOTS,
+                new AttributeValue().withS(Base64.encodeAsString(CountSnapshotsCodec.encode(block.snapshots.values()))));
+        return item;
+    }
+
+    private Map<String, AttributeValue> toKey(String hashKey, long blockStart) {
+        Map<String, AttributeValue> key = new HashMap<>(8);
+        key.put(CountItemKeys.ATTRIBUTE_RESOURCE, new AttributeValue().withS(toBlockKey(hashKey, blockSizeInMillis)));
+        key.put(CountItemKeys.ATTRIBUTE_TIMESTAMP,
+                new AttributeValue().withS(CountItemKeys.formatTimestamp(new Date(blockStart))));
+        return key;
+    }
+
+    /**
+     * The snapshots in a block and the version of the item they were last read from or written to.
+     */
+    static class Block {
+        private final long start;
+        // The version of the item in DynamoDB, or null if it has not been written
+        private Long version;
+        // Snapshots by range key, which orders them by timestamp and then shard. A count from the same shard for a
+        // timestamp already in the block replaces it.
+        private final TreeMap<String, HttpReferrerPairsCount> snapshots = new TreeMap<>();
+        // Whether snapshots have been added since the block was last written
+        private boolean unwritten;
+
+        Block(long start) {
+            this.start = start;
+        }
+
+        void add(Iterable<HttpReferrerPairsCount> counts) {
+            for (HttpReferrerPairsCount count : counts) {
+                snapshots.put(count.getRangeKey(), count);
+                unwritten = true;
+            }
+        }
+
+        void replaceWith(Block other) {
+            version = other.version;
+            snapshots.clear();
+            snapshots.putAll(other.snapshots);
+            unwritten = other.unwritten;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
+
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.kinesis.samples.datavis.kcl.timing.Clock;
+
+/**
+ * A token bucket that limits the rate of writes to DynamoDB based on the write capacity units they actually consumed.
+ * <p/>
+ * The bucket refills at a fixed number of capacity units per second, up to a maximum burst. Writes are not charged up
+ * front because their cost isn't known until DynamoDB reports it. Instead, the consumed capacity reported for each write
+ * is taken from the bucket after the fact, which may leave the bucket in debt. Callers wait for the debt to be repaid
+ * before writing again. This smooths writes to the configured rate on average no matter how large each write is.
+ * <p/>
+ * This is safe for use by multiple threads.
+ */
+public class WriteRateLimiter {
+    // Weight given to the newest sample when updating the average cost of writing one item
+    private static final double AVERAGE_UNITS_PER_ITEM_WEIGHT = 0.2;
+
+    private final Clock clock;
+
+    private double capacityUnitsPerSecond;
+    private double burstCapacityUnits;
+
+    // Capacity units currently available. This is negative when we owe capacity.
+    private double availableCapacityUnits;
+    // When, in clock time, we last refilled the bucket
+    private long lastRefillTime;
+
+    // Moving average of the capacity consumed per item written. Assume at least 1 unit until we know better.
+    private double averageUnitsPerItem = 1.0;
+
+    /**
+     * Create a new rate limiter with a full bucket.
+     *
+     * @param capacityUnitsPerSecond Rate at which capacity becomes available.
+     * @param burstCapacityUnits The most capacity that may accumulate while idle.
+     * @param clock The clock to measure refill time with.
+     */
+    public WriteRateLimiter(double capacityUnitsPerSecond, double burstCapacityUnits, Clock clock) {
+        if (capacityUnitsPerSecond <= 0) {
+            throw new IllegalArgumentException("capacityUnitsPerSecond must be > 0");
+        }
+        if (burstCapacityUnits < 0) {
+            throw new IllegalArgumentException("burstCapacityUnits must be >= 0");
+        }
+        if (clock == null) {
+            throw new NullPointerException("clock must not be null");
+        }
+        this.capacityUnitsPerSecond = capacityUnitsPerSecond;
+        this.burstCapacityUnits = burstCapacityUnits;
+        this.clock = clock;
+        this.availableCapacityUnits = burstCapacityUnits;
+        this.lastRefillTime = clock.getTime();
+    }
+
+    /**
+     * Charge the bucket for capacity a write consumed.
+     *
+     * @param capacityUnits Capacity units DynamoDB reported as consumed.
+     * @param items The number of items written.
+     */
+    public synchronized void recordConsumedCapacity(double capacityUnits, int items) {
+        refill();
+        availableCapacityUnits -= capacityUnits;
+        if (items > 0) {
+            averageUnitsPerItem += AVERAGE_UNITS_PER_ITEM_WEIGHT * (capacityUnits / items - averageUnitsPerItem);
+        }
+    }
+
+    /**
+     * Determine if there is enough capacity available to write a number of items right now.
+     *
+     * @param items The number of items to write.
+     * @return {@code true} if the estimated cost of the items is covered by the capacity currently available.
+     */
+    public synchronized boolean canAfford(int items) {
+        refill();
+        return availableCapacityUnits >= items * averageUnitsPerItem;
+    }
+
+    /**
+     * Wait until any capacity debt has been repaid. This returns immediately if the bucket is not in debt.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void awaitCapacity() throws InterruptedException {
+        long waitInNanos = getNanosUntilOutOfDebt();
+        if (waitInNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitInNanos);
+        }
+    }
+
+    /**
+     * Update the rate at which capacity becomes available, e.g. after the table's provisioned throughput changes.
+     *
+     * @param capacityUnitsPerSecond New rate at which capacity becomes available.
+     * @param burstCapacityUnits The most capacity that may accumulate while idle.
+     */
+    public synchronized void setRate(double capacityUnitsPerSecond, double burstCapacityUnits) {
+        if (capacityUnitsPerSecond <= 0) {
+            throw new IllegalArgumentException("capacityUnitsPerSecond must be > 0");
+        }
+        refill();
+        this.capacityUnitsPerSecond = capacityUnitsPerSecond;
+        this.burstCapacityUnits = burstCapacityUnits;
+        availableCapacityUnits = Math.min(availableCapacityUnits, burstCapacityUnits);
+    }
+
+    /**
+     * @return Capacity units currently available. Negative if the bucket is in debt.
+     */
+    public synchronized double getAvailableCapacityUnits() {
+        refill();
+        return availableCapacityUnits;
+    }
+
+    /**
+     * @return The moving average of capacity units consumed per item written.
+     */
+    public synchronized double getAverageUnitsPerItem() {
+        return averageUnitsPerItem;
+    }
+
+    private synchronized long getNanosUntilOutOfDebt() {
+        refill();
+        if (availableCapacityUnits >= 0) {
+            return 0;
+        }
+        return (long) (-availableCapacityUnits / capacityUnitsPerSecond * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * Add the capacity that has become available since we last refilled.
+     */
+    private void refill() {
+        long now = clock.getTime();
+        long elapsed = now - lastRefillTime;
+        if (elapsed > 0) {
+            double elapsedSeconds = (double) clock.getTimeUnit().toNanos(elapsed) / TimeUnit.SECONDS.toNanos(1);
+            availableCapacityUnits =
+                    Math.min(burstCapacityUnits, availableCapacityUnits + elapsedSeconds * capacityUnitsPerSecond);
+            lastRefillTime = now;
+        }
+    }
+}
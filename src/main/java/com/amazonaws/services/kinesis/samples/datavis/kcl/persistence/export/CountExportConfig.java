@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.export;
+
+/**
+ * The configuration settings for a {@link CountExportWriter}.
+ */
+public class CountExportConfig {
+    // How records are written to export files
+    private ExportFormat format = ExportFormat.NDJSON;
+    // Export files are named after this prefix, the time they were opened and a sequence number
+    private String filePrefix = "counts";
+    // Records are encoded into one of two direct buffers of this size. When one fills up it is written to the current
+    // file in the background while the other is filled.
+    private int bufferSizeInBytes = 1024 * 1024;
+    // Buffered records are written at least this often even if the buffer isn't full
+    private long flushIntervalInMillis = 1000L;
+    // A file is completed and a new one started once it reaches this size or has been open this long, whichever comes
+    // first
+    private long maxFileSizeInBytes = 128L * 1024 * 1024;
+    private long maxFileAgeInMillis = 15L * 60 * 1000;
+
+    public ExportFormat getFormat() {
+        return format;
+    }
+
+    public void setFormat(ExportFormat format) {
+        this.format = format;
+    }
+
+    public String getFilePrefix() {
+        return filePrefix;
+    }
+
+    public void setFilePrefix(String filePrefix) {
+        this.filePrefix = filePrefix;
+    }
+
+    public int getBufferSizeInBytes() {
+        return bufferSizeInBytes;
+    }
+
+    public void setBufferSizeInBytes(int bufferSizeInBytes) {
+        this.bufferSizeInBytes = bufferSizeInBytes;
+    }
+
+    public long getFlushIntervalInMillis() {
+        return flushIntervalInMillis;
+    }
+
+    public void setFlushIntervalInMillis(long flushIntervalInMillis) {
+        this.flushIntervalInMillis = flushIntervalInMillis;
+    }
+
+    public long getMaxFileSizeInBytes() {
+        return maxFileSizeInBytes;
+    }
+
+    public void setMaxFileSizeInBytes(long maxFileSizeInBytes) {
+        this.maxFileSizeInBytes = maxFileSizeInBytes;
+    }
+
+    public long getMaxFileAgeInMillis() {
+        return maxFileAgeInMillis;
+    }
+
+    public void setMaxFileAgeInMillis(long maxFileAgeInMillis) {
+        this.maxFileAgeInMillis = maxFileAgeInMillis;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.export;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Date;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.CountPersister;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPair;
+
+/**
+ * Exports every interval's counts to rolling files for offline batch jobs. Every count of a referrer for a resource is
+ * written as its own record through a {@link CountExportWriter}, so exporting costs a copy into a buffer rather than a
+ * request to DynamoDB or a log line.
+ * <p/>
+ * Checkpointing waits for every exported record to be forced to disk, so a batch job sees at least every count
+ * checkpointed. Counts for an interval are repeated if a worker restarts from an earlier checkpoint.
+ */
+public class CountExportPersister implements CountPersister<HttpReferrerPair> {
+    private static final Log LOG = LogFactory.getLog(CountExportPersister.class);
+
+    private CountExportWriter writer;
+
+    /**
+     * The hostname of this machine. Used to indicate which host exported a set of counts.
+     */
+    private String hostname;
+
+    /**
+     * @param writer Writer for the export files.
+     */
+    public CountExportPersister(CountExportWriter writer) {
+        if (writer == null) {
+            throw new NullPointerException("writer must not be null");
+        }
+        this.writer = writer;
+    }
+
+    @Override
+    public void initialize() {
+        hostname = resolveHostname();
+        try {
+            writer.open();
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to open export files", ex);
+        }
+    }
+
+    @Override
+    public void persist(Map<HttpReferrerPair, Long> objectCounts, Date intervalStart, String shardId) {
+        long timestamp = intervalStart.getTime();
+        try {
+            for (Map.Entry<HttpReferrerPair, Long> count : objectCounts.entrySet()) {
+                HttpReferrerPair pair = count.getKey();
+                writer.append(timestamp, hostname, pair.getResource(), pair.getReferrer(), count.getValue());
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to export counts", ex);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while exporting counts", e);
+        }
+    }
+
+    /**
+     * Force every exported record to disk.
+     */
+    @Override
+    public void checkpoint() throws InterruptedException {
+        try {
+            writer.flush();
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to flush export files. We should not checkpoint!", ex);
+        }
+    }
+
+    /**
+     * Resolve the hostname of the machine executing this code.
+     *
+     * @return The hostname, or "unknown", if one cannot be determined.
+     */
+    private String resolveHostname() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException uhe) {
+            LOG.warn("Unable to determine hostname. Counts from this worker will be exported as counted by 'unknown'!",
+                    uhe);
+        }
+        return "unknown";
+    }
+}
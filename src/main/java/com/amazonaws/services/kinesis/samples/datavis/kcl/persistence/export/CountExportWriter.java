@@ -0,0 +1,418 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.export;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.samples.datavis.kcl.timing.Clock;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.timing.NanoClock;
+
+/**
+ * Writes count records to rolling export files for offline batch jobs, see {@link ExportFormat}.
+ * <p/>
+ * Records are encoded straight into one of two reusable direct buffers. When the buffer being filled is full, or every
+ * flush interval, a background thread writes it to the current file while the other buffer is filled. Appending a
+ * record only blocks if both buffers are full.
+ * <p/>
+ * A file is written with a {@value #IN_PROGRESS_SUFFIX} suffix, which is removed once the file reaches its size or age
+ * limit and has been forced to disk. Batch jobs should only pick up files without the suffix. A file left in progress
+ * by a worker that crashed contains whole buffers of records but is never completed.
+ * <p/>
+ * Appends are safe from multiple threads. Only one writer may use a directory at a time.
+ */
+public class CountExportWriter implements Closeable {
+    private static final Log LOG = LogFactory.getLog(CountExportWriter.class);
+
+    public static final String IN_PROGRESS_SUFFIX = ".inprogress";
+
+    private final File directory;
+    private final String filePrefix;
+    private final ExportFormat format;
+    private final long flushIntervalInMillis;
+    private final long maxFileSizeInBytes;
+    private final long maxFileAgeInMillis;
+    private final Clock clock;
+
+    // Everything up to the file fields is only used while holding the lock on this writer
+    private final ExportFormat.RecordEncoder encoder;
+    // The buffer records are encoded into
+    private ByteBuffer active;
+    // The buffer waiting to be, or being, written by the flusher. null if there is none.
+    private ByteBuffer full;
+    // The buffer to fill once the active one is full. null while the flusher has it.
+    private ByteBuffer free;
+    // The number of buffers handed to the flusher, and how many of those it has written
+    private long buffersHandedOff;
+    private long buffersWritten;
+    private IOException failure;
+    private Thread flusher;
+    private boolean closed;
+
+    // The file being written. These are only used while holding the file lock.
+    private final Object fileLock = new Object();
+    private final byte[] fileHeader;
+    private FileChannel channel;
+    private File inProgressFile;
+    private long fileSizeInBytes;
+    private long fileOpenedAt;
+    private long fileSequenceNumber;
+
+    // Metrics
+    private final AtomicLong recordsAppended = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong filesCompleted = new AtomicLong();
+
+    /**
+     * @param directory Directory to write export files to. It is created if it does not exist.
+     * @param config Configuration for the writer.
+     */
+    public CountExportWriter(File directory, CountExportConfig config) {
+        this(directory, config, new NanoClock());
+    }
+
+    /**
+     * @param directory Directory to write export files to. It is created if it does not exist.
+     * @param config Configuration for the writer.
+     * @param clock Clock used to decide when a file has reached its age limit.
+     */
+    CountExportWriter(File directory, CountExportConfig config, Clock clock) {
+        if (directory == null) {
+            throw new NullPointerException("directory must not be null");
+        }
+        if (config == null) {
+            throw new NullPointerException("config must not be null");
+        }
+        if (config.getFormat() == null) {
+            throw new NullPointerException("format must not be null");
+        }
+        if (config.getFilePrefix() == null) {
+            throw new NullPointerException("filePrefix must not be null");
+        }
+        if (clock == null) {
+            throw new NullPointerException("clock must not be null");
+        }
+        if (config.getBufferSizeInBytes() < 1) {
+            throw new IllegalArgumentException("bufferSizeInBytes must be >= 1");
+        }
+        if (config.getFlushIntervalInMillis() < 1) {
+            throw new IllegalArgumentException("flushIntervalInMillis must be >= 1");
+        }
+        if (config.getMaxFileSizeInBytes() < 1) {
+            throw new IllegalArgumentException("maxFileSizeInBytes must be >= 1");
+        }
+        if (config.getMaxFileAgeInMillis() < 0) {
+            throw new IllegalArgumentException("maxFileAgeInMillis must be >= 0");
+        }
+        this.directory = directory;
+        this.filePrefix = config.getFilePrefix();
+        this.format = config.getFormat();
+        this.flushIntervalInMillis = config.getFlushIntervalInMillis();
+        this.maxFileSizeInBytes = config.getMaxFileSizeInBytes();
+        this.maxFileAgeInMillis = config.getMaxFileAgeInMillis();
+        this.clock = clock;
+        this.encoder = format.newEncoder();
+        this.fileHeader = encoder.getFileHeader();
+        this.active = ByteBuffer.allocateDirect(config.getBufferSizeInBytes());
+        this.free = ByteBuffer.allocateDirect(config.getBufferSizeInBytes());
+    }
+
+    /**
+     * Create the export directory and start writing buffers in the background. This does nothing if the writer is
+     * already open.
+     *
+     * @throws IOException if the directory could not be created.
+     */
+    public synchronized void open() throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Export writer is closed");
+        }
+        if (flusher != null) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create export directory " + directory);
+        }
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushInBackground();
+            }
+        }, "CountExportFlusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Append a record. It is written to the current file in the background, and is only guaranteed to be on disk after
+     * {@link #flush()}.
+     *
+     * @param timestamp When the count was taken, in milliseconds since the epoch.
+     * @param host The host that counted the referrer. May be {@code null}.
+     * @param resource The resource that was requested.
+     * @param referrer The referrer of the requests.
+     * @param count The number of requests.
+     * @throws IOException if the flusher has failed to write a buffer.
+     * @throws IllegalArgumentException if the record can never fit in a buffer.
+     * @throws InterruptedException if interrupted while waiting for the flusher to free a buffer.
+     */
+    public synchronized void append(long timestamp, String host, String resource, String referrer, long count)
+        throws IOException, InterruptedException {
+        checkOpen();
+        if (!encoder.encode(timestamp, host, resource, referrer, count, active)) {
+            if (active.position() > 0) {
+                handOff();
+            }
+            if (!encoder.encode(timestamp, host, resource, referrer, count, active)) {
+                throw new IllegalArgumentException("Record for resource " + resource + " is larger than the "
+                        + active.capacity() + " byte export buffer");
+            }
+        }
+        recordsAppended.incrementAndGet();
+    }
+
+    /**
+     * Write every record appended so far to the current file and force it to disk.
+     *
+     * @throws IOException if the records could not be written.
+     * @throws InterruptedException if interrupted while waiting for the flusher.
+     */
+    public void flush() throws IOException, InterruptedException {
+        synchronized (this) {
+            checkOpen();
+            if (active.position() > 0) {
+                handOff();
+            }
+            long target = buffersHandedOff;
+            while (buffersWritten < target) {
+                checkFailure();
+                wait();
+            }
+        }
+        synchronized (fileLock) {
+            if (channel != null) {
+                channel.force(false);
+            }
+        }
+    }
+
+    /**
+     * Write every record appended so far and complete the current file.
+     *
+     * @throws IOException if the records could not be written or the file completed.
+     */
+    @Override
+    public void close() throws IOException {
+        Thread stopping;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+            stopping = flusher;
+        }
+        if (stopping == null) {
+            return;
+        }
+        try {
+            stopping.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for export files to be written", e);
+        }
+        synchronized (this) {
+            checkFailure();
+        }
+    }
+
+    /**
+     * @return The number of records appended.
+     */
+    public long getRecordsAppended() {
+        return recordsAppended.get();
+    }
+
+    /**
+     * @return The number of bytes written to export files, including file headers.
+     */
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * @return The number of export files completed.
+     */
+    public long getFilesCompleted() {
+        return filesCompleted.get();
+    }
+
+    private void checkOpen() throws IOException {
+        if (flusher == null || closed) {
+            throw new IllegalStateException("Export writer is not open");
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Unable to write export files", failure);
+        }
+    }
+
+    /**
+     * Hand the active buffer to the flusher and start filling the other one, waiting for the flusher to finish with it
+     * if necessary. Must be called while holding the lock on this writer.
+     */
+    private void handOff() throws IOException, InterruptedException {
+        while (full != null) {
+            checkFailure();
+            wait();
+        }
+        swapBuffers();
+    }
+
+    private void swapBuffers() {
+        full = active;
+        active = free;
+        free = null;
+        buffersHandedOff++;
+        notifyAll();
+    }
+
+    /**
+     * Write buffers as they are handed off, and the active buffer every flush interval, until closed.
+     */
+    private void flushInBackground() {
+        try {
+            while (true) {
+                ByteBuffer buffer;
+                synchronized (this) {
+                    long deadline = System.currentTimeMillis() + flushIntervalInMillis;
+                    long remaining = flushIntervalInMillis;
+                    while (full == null && !closed && remaining > 0) {
+                        wait(remaining);
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                    if (full == null && active.position() > 0) {
+                        swapBuffers();
+                    }
+                    buffer = full;
+                }
+
+                synchronized (fileLock) {
+                    if (buffer == null) {
+                        if (isClosed()) {
+                            if (channel != null) {
+                                completeFile();
+                            }
+                            return;
+                        }
+                        // Nothing to write but the current file may have reached its age limit
+                        if (channel != null && isExpired()) {
+                            completeFile();
+                        }
+                        continue;
+                    }
+                    write(buffer);
+                }
+
+                synchronized (this) {
+                    buffer.clear();
+                    free = buffer;
+                    full = null;
+                    buffersWritten++;
+                    notifyAll();
+                }
+            }
+        } catch (IOException ex) {
+            LOG.error("Unable to write export files. Counts will no longer be exported!", ex);
+            synchronized (this) {
+                failure = ex;
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            LOG.error("Export flusher was interrupted. Counts will no longer be exported!", e);
+            synchronized (this) {
+                failure = new IOException("Export flusher was interrupted", e);
+                notifyAll();
+            }
+        }
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Write a buffer to the current file, starting a new file first if the current one has reached its limits.
+     */
+    private void write(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        if (channel != null
+                && ((fileSizeInBytes > fileHeader.length && fileSizeInBytes + buffer.remaining() > maxFileSizeInBytes)
+                || isExpired())) {
+            completeFile();
+        }
+        if (channel == null) {
+            openFile();
+        }
+        while (buffer.hasRemaining()) {
+            int written = channel.write(buffer);
+            fileSizeInBytes += written;
+            bytesWritten.addAndGet(written);
+        }
+    }
+
+    private boolean isExpired() {
+        return maxFileAgeInMillis > 0
+                && clock.getTimeUnit().toMillis(clock.getTime() - fileOpenedAt) >= maxFileAgeInMillis;
+    }
+
+    private void openFile() throws IOException {
+        // Name files so they sort in the order they were written
+        String name =
+                String.format("%s-%d-%06d%s%s",
+                        filePrefix,
+                        System.currentTimeMillis(),
+                        fileSequenceNumber++,
+                        format.getFileExtension(),
+                        IN_PROGRESS_SUFFIX);
+        inProgressFile = new File(directory, name);
+        channel = new FileOutputStream(inProgressFile).getChannel();
+        fileOpenedAt = clock.getTime();
+        fileSizeInBytes = 0;
+        ByteBuffer header = ByteBuffer.wrap(fileHeader);
+        while (header.hasRemaining()) {
+            fileSizeInBytes += channel.write(header);
+        }
+        bytesWritten.addAndGet(fileHeader.length);
+    }
+
+    /**
+     * Force the current file to disk, close it and remove its in-progress suffix.
+     */
+    private void completeFile() throws IOException {
+        channel.force(false);
+        channel.close();
+        channel = null;
+        String name = inProgressFile.getName();
+        File completed = new File(directory, name.substring(0, name.length() - IN_PROGRESS_SUFFIX.length()));
+        if (!inProgressFile.renameTo(completed)) {
+            throw new IOException("Unable to complete export file " + inProgressFile);
+        }
+        filesCompleted.incrementAndGet();
+        LOG.info(String.format("Completed export file %s (%d bytes)", completed, fileSizeInBytes));
+    }
+}
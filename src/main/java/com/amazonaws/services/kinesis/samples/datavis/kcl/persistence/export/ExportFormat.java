@@ -0,0 +1,231 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.export;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * How counts are written to export files. Every record is one count of a referrer for a resource, reported by a host
+ * for an interval ending at a timestamp. Records are self-contained so a file can be split anywhere between records
+ * and every record can be read without the ones before it.
+ */
+public enum ExportFormat {
+    /**
+     * One JSON object per line, e.g.
+     *
+     * <pre>
+     * {"timestamp":1400000000000,"host":"worker-1","resource":"/index.html","referrer":"http://a.com","count":7}
+     * </pre>
+     *
+     * The timestamp is in milliseconds since the epoch.
+     */
+    NDJSON(".ndjson") {
+        @Override
+        RecordEncoder newEncoder() {
+            return new NdjsonEncoder();
+        }
+    },
+    /**
+     * A 4 byte magic number ("KCX1") at the start of every file followed by big-endian records that can be read with a
+     * {@link java.io.DataInputStream}:
+     *
+     * <pre>
+     * length of the rest of the record (4 bytes), timestamp (8 bytes), count (8 bytes), host, resource, referrer
+     * </pre>
+     *
+     * Strings are an unsigned 2 byte length followed by that many bytes of UTF-8.
+     */
+    BINARY(".bin") {
+        @Override
+        RecordEncoder newEncoder() {
+            return new BinaryEncoder();
+        }
+    };
+
+    static final int BINARY_MAGIC = 0x4B435831; // "KCX1"
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String fileExtension;
+
+    private ExportFormat(String fileExtension) {
+        this.fileExtension = fileExtension;
+    }
+
+    /**
+     * @return The extension of files written in this format, including the leading '.'.
+     */
+    public String getFileExtension() {
+        return fileExtension;
+    }
+
+    /**
+     * @return A new encoder for this format. Encoders keep scratch space between records so they are not thread-safe.
+     */
+    abstract RecordEncoder newEncoder();
+
+    /**
+     * Encodes records directly into a buffer without allocating per record.
+     */
+    abstract static class RecordEncoder {
+        private final CharsetEncoder utf8 =
+                UTF8.newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        /**
+         * @return The bytes every file starts with. This may be empty.
+         */
+        abstract byte[] getFileHeader();
+
+        /**
+         * Encode a record at the buffer's position.
+         *
+         * @return {@code true} if the record was encoded. {@code false} if it did not fit, in which case the buffer's
+         *         position is unchanged.
+         * @throws IllegalArgumentException if the record cannot be encoded in this format. The buffer's position is
+         *         unchanged.
+         */
+        boolean encode(long timestamp, String host, String resource, String referrer, long count, ByteBuffer out) {
+            int start = out.position();
+            boolean encoded = false;
+            try {
+                encoded = tryEncode(timestamp, host == null ? "" : host, resource, referrer, count, out);
+                return encoded;
+            } finally {
+                if (!encoded) {
+                    out.position(start);
+                }
+            }
+        }
+
+        /**
+         * Encode a record at the buffer's position. The position does not need to be restored if it doesn't fit.
+         */
+        abstract boolean tryEncode(long timestamp,
+                String host,
+                String resource,
+                String referrer,
+                long count,
+                ByteBuffer out);
+
+        /**
+         * Encode characters as UTF-8 at the buffer's position.
+         *
+         * @return {@code false} if they did not fit.
+         */
+        boolean putUtf8(CharSequence chars, ByteBuffer out) {
+            utf8.reset();
+            CharBuffer in = CharBuffer.wrap(chars);
+            CoderResult result = utf8.encode(in, out, true);
+            if (result.isOverflow()) {
+                return false;
+            }
+            return !utf8.flush(out).isOverflow();
+        }
+    }
+
+    private static class NdjsonEncoder extends RecordEncoder {
+        // Reused for every line
+        private final StringBuilder line = new StringBuilder(256);
+
+        @Override
+        byte[] getFileHeader() {
+            return new byte[0];
+        }
+
+        @Override
+        boolean tryEncode(long timestamp, String host, String resource, String referrer, long count, ByteBuffer out) {
+            line.setLength(0);
+            line.append("{\"timestamp\":").append(timestamp);
+            appendField("host", host);
+            appendField("resource", resource);
+            appendField("referrer", referrer);
+            line.append(",\"count\":").append(count).append("}\n");
+            return putUtf8(line, out);
+        }
+
+        private void appendField(String name, String value) {
+            line.append(",\"").append(name).append("\":\"");
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"':
+                        line.append("\\\"");
+                        break;
+                    case '\\':
+                        line.append("\\\\");
+                        break;
+                    case '\n':
+                        line.append("\\n");
+                        break;
+                    case '\r':
+                        line.append("\\r");
+                        break;
+                    case '\t':
+                        line.append("\\t");
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            line.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            line.append(c);
+                        }
+                }
+            }
+            line.append('"');
+        }
+    }
+
+    private static class BinaryEncoder extends RecordEncoder {
+        private static final int MAX_STRING_LENGTH = 0xFFFF;
+
+        @Override
+        byte[] getFileHeader() {
+            return ByteBuffer.allocate(4).putInt(BINARY_MAGIC).array();
+        }
+
+        @Override
+        boolean tryEncode(long timestamp, String host, String resource, String referrer, long count, ByteBuffer out) {
+            int start = out.position();
+            if (out.remaining() < 20) {
+                return false;
+            }
+            // The length is filled in once the strings have been encoded
+            out.position(start + 4);
+            out.putLong(timestamp);
+            out.putLong(count);
+            if (!putString(host, out) || !putString(resource, out) || !putString(referrer, out)) {
+                return false;
+            }
+            out.putInt(start, out.position() - start - 4);
+            return true;
+        }
+
+        private boolean putString(String value, ByteBuffer out) {
+            if (out.remaining() < 2) {
+                return false;
+            }
+            int start = out.position();
+            out.position(start + 2);
+            if (!putUtf8(value, out)) {
+                return false;
+            }
+            int length = out.position() - start - 2;
+            if (length > MAX_STRING_LENGTH) {
+                throw new IllegalArgumentException("String is longer than " + MAX_STRING_LENGTH + " bytes: "
+                        + value.substring(0, 64) + "...");
+            }
+            out.putShort(start, (short) length);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.local;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.CountPersister;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPair;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+import com.amazonaws.services.kinesis.samples.datavis.utils.ReferrerCountUtils;
+
+/**
+ * Persists counts to a local time-series store on this machine. Counts are appended as they're produced, which only
+ * costs a write to the page cache, so there is no need for a background thread or retries. A web server on the same
+ * machine can read them with a {@link TimeSeriesReader}.
+ * <p/>
+ * This is intended for single-machine deployments and load tests where DynamoDB's network round trips and provisioned
+ * capacity get in the way.
+ */
+public class LocalCountPersister implements CountPersister<HttpReferrerPair> {
+    private static final Log LOG = LogFactory.getLog(LocalCountPersister.class);
+
+    private TimeSeriesWriter writer;
+    private int maxReferrersPerResource;
+
+    /**
+     * The hostname of this machine. Used to indicate which host updated a set of counts.
+     */
+    private String hostname;
+
+    /**
+     * @param writer Writer for the time-series store to append counts to.
+     * @param maxReferrersPerResource The maximum number of referrers to keep for each resource every interval.
+     */
+    public LocalCountPersister(TimeSeriesWriter writer, int maxReferrersPerResource) {
+        if (writer == null) {
+            throw new NullPointerException("writer must not be null");
+        }
+        if (maxReferrersPerResource < 1) {
+            throw new IllegalArgumentException("maxReferrersPerResource must be >= 1");
+        }
+        this.writer = writer;
+        this.maxReferrersPerResource = maxReferrersPerResource;
+    }
+
+    @Override
+    public void initialize() {
+        hostname = resolveHostname();
+    }
+
+    @Override
+    public void persist(Map<HttpReferrerPair, Long> objectCounts, Date intervalStart, String shardId) {
+        if (objectCounts.isEmpty()) {
+            return;
+        }
+
+        Date timestamp = intervalStart;
+        Map<String, HttpReferrerPairsCount> countMap = new HashMap<>();
+        for (Map.Entry<HttpReferrerPair, Long> count : objectCounts.entrySet()) {
+            HttpReferrerPair pair = count.getKey();
+            HttpReferrerPairsCount pairCount = countMap.get(pair.getResource());
+            if (pairCount == null) {
+                pairCount = new HttpReferrerPairsCount();
+                pairCount.setResource(pair.getResource());
+                pairCount.setTimestamp(timestamp);
+                pairCount.setReferrerCounts(new ArrayList<ReferrerCount>());
+                pairCount.setHost(hostname);
+                countMap.put(pair.getResource(), pairCount);
+            }
+
+            ReferrerCount refCount = new ReferrerCount();
+            refCount.setReferrer(pair.getReferrer());
+            refCount.setCount(count.getValue());
+            pairCount.getReferrerCounts().add(refCount);
+        }
+
+        try {
+            for (HttpReferrerPairsCount count : countMap.values()) {
+                // Keep the top referrers in descending order, which is also how they're stored most compactly
+                count.setReferrerCounts(ReferrerCountUtils.topN(count.getReferrerCounts(), maxReferrersPerResource));
+                writer.append(count);
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to append counts to the local time-series store", ex);
+        }
+    }
+
+    /**
+     * Counts are already in the time-series store. We only need to force them to disk.
+     */
+    @Override
+    public void checkpoint() {
+        try {
+            writer.sync();
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to sync the local time-series store. We should not checkpoint!",
+                    ex);
+        }
+    }
+
+    /**
+     * Resolve the hostname of the machine executing this code.
+     *
+     * @return The hostname, or "unknown", if one cannot be determined.
+     */
+    private String resolveHostname() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException uhe) {
+            LOG.warn("Unable to determine hostname. Counts from this worker will be registered as counted by 'unknown'!",
+                    uhe);
+        }
+        return "unknown";
+    }
+}
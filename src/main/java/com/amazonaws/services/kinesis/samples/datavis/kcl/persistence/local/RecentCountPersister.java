@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.local;
+
+import java.util.Date;
+import java.util.Map;
+
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.CountPersister;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPair;
+import com.amazonaws.services.kinesis.samples.datavis.utils.HashKeySharding;
+import com.amazonaws.services.kinesis.samples.datavis.utils.ReferrerCountUtils;
+import com.amazonaws.services.kinesis.samples.datavis.utils.SampleUtils;
+
+/**
+ * Persists counts to {@link RecentCounts} in memory, for a web server in the same process to read without waiting on
+ * DynamoDB. Counts are keyed and timestamped exactly as the DynamoDB persister writes them, by hash key, the start of
+ * their interval and their shard, so the two can be read side by side and split at any point in time.
+ * <p/>
+ * Nothing is durable, so checkpointing has nothing to wait for. This is meant to run alongside a persister that
+ * stores every count.
+ */
+public class RecentCountPersister implements CountPersister<HttpReferrerPair> {
+    private RecentCounts recentCounts;
+    private HashKeySharding sharding;
+    private int maxReferrersPerResource;
+    private long countIntervalInMillis;
+
+    /**
+     * The hostname of this machine. Used to indicate which host updated a set of counts.
+     */
+    private String hostname;
+
+    /**
+     * @param recentCounts Where to hold the counts.
+     * @param sharding Selects the hash key for each resource's counts. This must match the DynamoDB persister's.
+     * @param maxReferrersPerResource The maximum number of referrers to keep for each resource every interval.
+     * @param countIntervalInMillis The length of each interval counts are timestamped with the start of.
+     */
+    public RecentCountPersister(RecentCounts recentCounts,
+            HashKeySharding sharding,
+            int maxReferrersPerResource,
+            long countIntervalInMillis) {
+        if (recentCounts == null) {
+            throw new NullPointerException("recentCounts must not be null");
+        }
+        if (sharding == null) {
+            throw new NullPointerException("sharding must not be null");
+        }
+        if (maxReferrersPerResource < 1) {
+            throw new IllegalArgumentException("maxReferrersPerResource must be >= 1");
+        }
+        if (countIntervalInMillis < 1) {
+            throw new IllegalArgumentException("countIntervalInMillis must be >= 1");
+        }
+        this.recentCounts = recentCounts;
+        this.sharding = sharding;
+        this.maxReferrersPerResource = maxReferrersPerResource;
+        this.countIntervalInMillis = countIntervalInMillis;
+    }
+
+    @Override
+    public void initialize() {
+        hostname = SampleUtils.resolveHostname();
+    }
+
+    @Override
+    public void persist(Map<HttpReferrerPair, Long> objectCounts, Date intervalStart, String shardId) {
+        if (objectCounts.isEmpty()) {
+            return;
+        }
+
+        recentCounts.addAll(ReferrerCountUtils.toIntervalCounts(objectCounts,
+                intervalStart,
+                countIntervalInMillis,
+                shardId,
+                hostname,
+                sharding,
+                maxReferrersPerResource));
+    }
+
+    /**
+     * Counts are only held in memory so there is nothing to flush.
+     */
+    @Override
+    public void checkpoint() {
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.local;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import com.amazonaws.services.kinesis.samples.datavis.kcl.timing.Clock;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.timing.MillisClock;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.utils.ReferrerCountUtils;
+
+/**
+ * Holds the counts persisted over a recent window of time in memory, by hash key, timestamp and shard, so a web server
+ * in the same process can read them as soon as they are computed instead of waiting for them to reach DynamoDB. Counts
+ * older than the retention period are discarded as new counts arrive.
+ * <p/>
+ * Only the counts added to this instance are held, so it is complete only when the worker feeding it processes every
+ * shard of the stream. See {@link #getCoveredSince()} for the range of time it can answer for.
+ */
+public class RecentCounts {
+    private final long retentionInMillis;
+    private final Clock clock;
+    // Counts held before this time were never added
+    private final long createdAt;
+
+    // Counts by hash key, timestamp and shard. Guarded by itself.
+    private final Map<String, NavigableMap<Long, Map<String, HttpReferrerPairsCount>>> countsByHashKey =
+            new HashMap<>();
+
+    /**
+     * @param retentionInMillis How long to hold counts for.
+     */
+    public RecentCounts(long retentionInMillis) {
+        this(retentionInMillis, new MillisClock());
+    }
+
+    RecentCounts(long retentionInMillis, Clock clock) {
+        if (retentionInMillis < 1) {
+            throw new IllegalArgumentException("retentionInMillis must be >= 1");
+        }
+        if (clock == null) {
+            throw new NullPointerException("clock must not be null");
+        }
+        this.retentionInMillis = retentionInMillis;
+        this.clock = clock;
+        this.createdAt = now();
+    }
+
+    /**
+     * Add counts and discard those older than the retention period. A count replaces any other with the same hash key,
+     * timestamp and shard, as the newest write to the same item does in DynamoDB.
+     *
+     * @param counts Counts to add. Their resource is the hash key they are stored under.
+     */
+    public void addAll(Collection<HttpReferrerPairsCount> counts) {
+        long expiredAt = now() - retentionInMillis;
+        synchronized (countsByHashKey) {
+            for (HttpReferrerPairsCount count : counts) {
+                if (count.getTimestamp().getTime() <= expiredAt) {
+                    continue;
+                }
+                NavigableMap<Long, Map<String, HttpReferrerPairsCount>> timeline =
+                        countsByHashKey.get(count.getResource());
+                if (timeline == null) {
+                    timeline = new TreeMap<>();
+                    countsByHashKey.put(count.getResource(), timeline);
+                }
+                Map<String, HttpReferrerPairsCount> byShard = timeline.get(count.getTimestamp().getTime());
+                if (byShard == null) {
+                    byShard = new HashMap<>();
+                    timeline.put(count.getTimestamp().getTime(), byShard);
+                }
+                byShard.put(count.getShardId(), count);
+            }
+            Iterator<NavigableMap<Long, Map<String, HttpReferrerPairsCount>>> it =
+                    countsByHashKey.values().iterator();
+            while (it.hasNext()) {
+                NavigableMap<Long, Map<String, HttpReferrerPairsCount>> timeline = it.next();
+                timeline.headMap(expiredAt, true).clear();
+                if (timeline.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Every count with a timestamp after this time is held. Counts up to it must be read from elsewhere.
+     */
+    public Date getCoveredSince() {
+        return new Date(Math.max(createdAt, now() - retentionInMillis));
+    }
+
+    /**
+     * Read copies of the counts held for a hash key in a range of time, in ascending order by timestamp. The counts
+     * from every shard for the same timestamp are summed into one.
+     *
+     * @param hashKey The hash key to read counts for.
+     * @param startTime Only counts with a timestamp after this are returned.
+     * @param endTime Only counts with a timestamp no later than this are returned. May be {@code null} to read every
+     *        count after the start time.
+     * @param limit The most counts to return.
+     * @return The counts held in the range.
+     */
+    public List<HttpReferrerPairsCount> read(String hashKey, Date startTime, Date endTime, int limit) {
+        List<HttpReferrerPairsCount> copies = new ArrayList<>();
+        synchronized (countsByHashKey) {
+            NavigableMap<Long, Map<String, HttpReferrerPairsCount>> timeline = countsByHashKey.get(hashKey);
+            if (timeline == null || (endTime != null && !endTime.after(startTime))) {
+                return copies;
+            }
+            NavigableMap<Long, Map<String, HttpReferrerPairsCount>> range =
+                    timeline.tailMap(startTime.getTime(), false);
+            if (endTime != null) {
+                range = range.headMap(endTime.getTime(), true);
+            }
+            for (Map<String, HttpReferrerPairsCount> byShard : range.values()) {
+                if (copies.size() >= limit) {
+                    break;
+                }
+                HttpReferrerPairsCount count = ReferrerCountUtils.merge(new ArrayList<>(byShard.values()));
+                // Callers may change the counts returned to them, so the counts held are never returned
+                copies.add(ReferrerCountUtils.copy(count));
+            }
+        }
+        return copies;
+    }
+
+    private long now() {
+        return clock.getTimeUnit().toMillis(clock.getTime());
+    }
+}
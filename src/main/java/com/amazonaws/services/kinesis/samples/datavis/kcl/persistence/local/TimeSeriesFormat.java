@@ -0,0 +1,320 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.local;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+
+/**
+ * The on-disk format of the local time-series store shared by {@link TimeSeriesWriter} and {@link TimeSeriesReader}.
+ * <p/>
+ * Each resource has its own directory of append-only segment files named after the timestamp of their first record.
+ * A segment starts with a 4 byte magic number followed by records:
+ *
+ * <pre>
+ * payload length (4 bytes), CRC32 of payload (4 bytes), payload
+ * </pre>
+ *
+ * A payload is one count. Its timestamp is stored as the delta-of-delta from the previous two records in the segment, or
+ * in full for the first record. Strings (the host and referrers) are stored once per segment and referred to by index
+ * after that. The referrers and their counts are stored as two columns, the counts as zig-zag varint deltas from the
+ * previous count since they are sorted by count:
+ *
+ * <pre>
+ * timestamp, host, number of referrers, referrer * N, count delta * N
+ * </pre>
+ *
+ * A string is a varint index + 1 into the strings seen so far in the segment, or 0 followed by its varint length and
+ * UTF-8 bytes when it's first seen. A null host is stored as an empty string.
+ */
+class TimeSeriesFormat {
+    static final int MAGIC = 0x54535331; // "TSS1"
+    static final int SEGMENT_HEADER_SIZE = 4;
+    // Record length and checksum
+    static final int RECORD_HEADER_SIZE = 8;
+    static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Escape a resource so it is safe to use as a directory name. Resources are request paths so '/' and '.' must be
+     * escaped.
+     */
+    static String toDirectoryName(String resource) {
+        try {
+            return URLEncoder.encode(resource, "UTF-8").replace(".", "%2E").replace("*", "%2A");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException("UTF-8 is not supported", ex);
+        }
+    }
+
+    /**
+     * @param segment A segment file.
+     * @return The timestamp of the first record in the segment, or -1 if the file is not a segment.
+     */
+    static long toSegmentStart(File segment) {
+        String name = segment.getName();
+        if (!name.endsWith(SEGMENT_SUFFIX)) {
+            return -1L;
+        }
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException ex) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Read and verify the payload of the record at the buffer's position. The buffer's position is moved past the record
+     * if it is valid.
+     *
+     * @param segment A segment, limited to the bytes that have been written.
+     * @return The payload, or {@code null} if there is no complete record at the buffer's position.
+     */
+    static byte[] nextRecord(ByteBuffer segment) {
+        int position = segment.position();
+        if (segment.limit() - position < RECORD_HEADER_SIZE) {
+            return null;
+        }
+        int length = segment.getInt(position);
+        if (length <= 0 || length > segment.limit() - position - RECORD_HEADER_SIZE) {
+            return null;
+        }
+        int checksum = segment.getInt(position + 4);
+        byte[] payload = new byte[length];
+        segment.position(position + RECORD_HEADER_SIZE);
+        segment.get(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        if ((int) crc.getValue() != checksum) {
+            segment.position(position);
+            return null;
+        }
+        return payload;
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    static void writeZigZag(ByteArrayOutputStream out, long value) {
+        writeVarint(out, (value << 1) ^ (value >> 63));
+    }
+
+    static long readZigZag(ByteBuffer in) {
+        long value = readVarint(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Encodes counts appended to a single segment.
+     */
+    static class Encoder {
+        private final Decoder.TimestampState timestamps = new Decoder.TimestampState();
+        private final Map<String, Integer> stringIds = new HashMap<>();
+
+        /**
+         * Resume encoding a segment that has already been written to.
+         */
+        Encoder(Decoder decoder) {
+            timestamps.copyFrom(decoder.timestamps);
+            for (int i = 0; i < decoder.strings.size(); i++) {
+                stringIds.put(decoder.strings.get(i), i);
+            }
+        }
+
+        Encoder() {
+        }
+
+        /**
+         * Encode a count. The strings it introduces are remembered, so it must be written to the segment.
+         */
+        void encode(HttpReferrerPairsCount count, ByteArrayOutputStream out) {
+            long timestamp = count.getTimestamp().getTime();
+            if (timestamps.records == 0) {
+                writeVarint(out, timestamp);
+            } else {
+                writeZigZag(out, timestamp - timestamps.previousTimestamp - timestamps.previousDelta);
+            }
+            timestamps.advance(timestamp);
+
+            writeString(out, count.getHost() == null ? "" : count.getHost());
+            List<ReferrerCount> referrerCounts = count.getReferrerCounts();
+            writeVarint(out, referrerCounts.size());
+            for (ReferrerCount referrerCount : referrerCounts) {
+                writeString(out, referrerCount.getReferrer());
+            }
+            long previous = 0;
+            for (ReferrerCount referrerCount : referrerCounts) {
+                writeZigZag(out, referrerCount.getCount() - previous);
+                previous = referrerCount.getCount();
+            }
+        }
+
+        private void writeString(ByteArrayOutputStream out, String value) {
+            Integer id = stringIds.get(value);
+            if (id != null) {
+                writeVarint(out, id + 1);
+                return;
+            }
+            stringIds.put(value, stringIds.size());
+            byte[] bytes = value.getBytes(UTF8);
+            writeVarint(out, 0);
+            writeVarint(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Decodes the counts in a single segment, in order.
+     */
+    static class Decoder {
+        private final TimestampState timestamps = new TimestampState();
+        // Every string seen in the segment. This may be shared with other decoders of the same segment that are further
+        // along, in which case strings already known are not added again.
+        private final List<String> strings;
+        // The index the next string introduced by a record gets
+        private int nextStringId;
+
+        Decoder() {
+            this.strings = new ArrayList<>();
+        }
+
+        private Decoder(List<String> strings) {
+            this.strings = strings;
+        }
+
+        /**
+         * @return A decoder that continues from the same point as this one.
+         */
+        Decoder copy() {
+            Decoder copy = new Decoder(strings);
+            copy.timestamps.copyFrom(timestamps);
+            copy.nextStringId = nextStringId;
+            return copy;
+        }
+
+        /**
+         * @return The timestamp of the last count decoded.
+         */
+        long getPreviousTimestamp() {
+            return timestamps.previousTimestamp;
+        }
+
+        /**
+         * Decode a count.
+         *
+         * @param payload A record's payload.
+         * @param resource The resource to set on the count.
+         * @throws IllegalArgumentException if the payload is malformed.
+         */
+        HttpReferrerPairsCount decode(byte[] payload, String resource) {
+            ByteBuffer in = ByteBuffer.wrap(payload);
+            try {
+                long timestamp;
+                if (timestamps.records == 0) {
+                    timestamp = readVarint(in);
+                } else {
+                    timestamp = timestamps.previousTimestamp + timestamps.previousDelta + readZigZag(in);
+                }
+
+                String host = readString(in);
+                int referrers = (int) readVarint(in);
+                List<ReferrerCount> referrerCounts = new ArrayList<>(referrers);
+                for (int i = 0; i < referrers; i++) {
+                    ReferrerCount referrerCount = new ReferrerCount();
+                    referrerCount.setReferrer(readString(in));
+                    referrerCounts.add(referrerCount);
+                }
+                long previous = 0;
+                for (ReferrerCount referrerCount : referrerCounts) {
+                    previous += readZigZag(in);
+                    referrerCount.setCount(previous);
+                }
+                timestamps.advance(timestamp);
+
+                HttpReferrerPairsCount count = new HttpReferrerPairsCount();
+                count.setResource(resource);
+                count.setTimestamp(new Date(timestamp));
+                count.setHost(host.isEmpty() ? null : host);
+                count.setReferrerCounts(referrerCounts);
+                return count;
+            } catch (BufferUnderflowException ex) {
+                throw new IllegalArgumentException("Truncated count record", ex);
+            }
+        }
+
+        private String readString(ByteBuffer in) {
+            int ref = (int) readVarint(in);
+            if (ref > 0) {
+                if (ref > strings.size()) {
+                    throw new IllegalArgumentException("Unknown string " + (ref - 1));
+                }
+                return strings.get(ref - 1);
+            }
+            int length = (int) readVarint(in);
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            String value = new String(bytes, UTF8);
+            if (nextStringId == strings.size()) {
+                strings.add(value);
+            }
+            nextStringId++;
+            return value;
+        }
+
+        /**
+         * What is needed to decode the next delta-of-delta timestamp.
+         */
+        static class TimestampState {
+            private long records;
+            private long previousTimestamp;
+            private long previousDelta;
+
+            void advance(long timestamp) {
+                previousDelta = records == 0 ? 0 : timestamp - previousTimestamp;
+                previousTimestamp = timestamp;
+                records++;
+            }
+
+            void copyFrom(TimestampState other) {
+                records = other.records;
+                previousTimestamp = other.previousTimestamp;
+                previousDelta = other.previousDelta;
+            }
+        }
+    }
+}
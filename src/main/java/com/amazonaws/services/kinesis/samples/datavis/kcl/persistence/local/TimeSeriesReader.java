@@ -0,0 +1,209 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.local;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+
+/**
+ * Reads counts from a local time-series store written by a {@link TimeSeriesWriter}, possibly in another process.
+ * Segments are memory-mapped and only the segments that may hold counts after the requested start time are read.
+ * <p/>
+ * Every segment's timestamps and strings are encoded relative to the counts before them, so a segment can only be
+ * decoded from its start. To avoid that on every read the decoder's state is remembered every
+ * {@link #CHECKPOINT_INTERVAL} counts, and reads resume from the last checkpoint before the start time. Counts appended
+ * since the last read are indexed as they are read.
+ * <p/>
+ * This is safe for use by multiple threads.
+ */
+public class TimeSeriesReader {
+    // Remember the decoder's state every this many counts
+    static final int CHECKPOINT_INTERVAL = 256;
+
+    private static final Comparator<HttpReferrerPairsCount> ASCENDING_BY_TIMESTAMP =
+            new Comparator<HttpReferrerPairsCount>() {
+                @Override
+                public int compare(HttpReferrerPairsCount c1, HttpReferrerPairsCount c2) {
+                    return c1.getTimestamp().compareTo(c2.getTimestamp());
+                }
+            };
+
+    private File directory;
+
+    // Checkpoints for every segment read so far
+    private final ConcurrentMap<File, SegmentIndex> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * @param directory The directory counts are stored in.
+     */
+    public TimeSeriesReader(File directory) {
+        if (directory == null) {
+            throw new NullPointerException("directory must not be null");
+        }
+        this.directory = directory;
+    }
+
+    /**
+     * Read a resource's recent counts.
+     *
+     * @param resource The resource to read counts for.
+     * @param startTime Only counts with a timestamp after this are returned.
+     * @return Counts in ascending order by timestamp.
+     * @throws IOException if a segment could not be read.
+     */
+    public List<HttpReferrerPairsCount> read(String resource, Date startTime) throws IOException {
+        File resourceDirectory = new File(directory, TimeSeriesFormat.toDirectoryName(resource));
+        List<File> segments = TimeSeriesWriter.listSegments(resourceDirectory);
+        Collections.sort(segments, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(TimeSeriesFormat.toSegmentStart(f1), TimeSeriesFormat.toSegmentStart(f2));
+            }
+        });
+        forgetDeletedSegments(resourceDirectory, segments);
+
+        // Segments before the one the start time falls in only hold older counts
+        int first = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            if (TimeSeriesFormat.toSegmentStart(segments.get(i)) <= startTime.getTime()) {
+                first = i;
+            }
+        }
+
+        List<HttpReferrerPairsCount> counts = new ArrayList<>();
+        for (File segment : segments.subList(first, segments.size())) {
+            SegmentIndex index = indexes.get(segment);
+            if (index == null) {
+                SegmentIndex created = new SegmentIndex(segment);
+                index = indexes.putIfAbsent(segment, created);
+                if (index == null) {
+                    index = created;
+                }
+            }
+            index.read(resource, startTime.getTime(), counts);
+        }
+        // Counts from several record processors may be appended slightly out of order
+        Collections.sort(counts, ASCENDING_BY_TIMESTAMP);
+        return counts;
+    }
+
+    private void forgetDeletedSegments(File resourceDirectory, List<File> segments) {
+        Set<File> existing = new HashSet<>(segments);
+        for (Iterator<File> it = indexes.keySet().iterator(); it.hasNext();) {
+            File indexed = it.next();
+            if (resourceDirectory.equals(indexed.getParentFile()) && !existing.contains(indexed)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Map the written part of a segment.
+     *
+     * @return The segment, or {@code null} if it has been deleted.
+     */
+    private static MappedByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            // The mapping remains valid after the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } catch (FileNotFoundException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Where decoding of a segment can resume from.
+     */
+    private static class Checkpoint {
+        // Position of the first record after the checkpoint
+        private final int position;
+        // The number of counts before the checkpoint
+        private final long counts;
+        private final TimeSeriesFormat.Decoder decoder;
+
+        Checkpoint(int position, long counts, TimeSeriesFormat.Decoder decoder) {
+            this.position = position;
+            this.counts = counts;
+            this.decoder = decoder;
+        }
+    }
+
+    /**
+     * Checkpoints into a single segment.
+     */
+    private static class SegmentIndex {
+        private final File file;
+        private final List<Checkpoint> checkpoints = new ArrayList<>();
+        // The end of the last record decoded
+        private int indexedPosition;
+
+        SegmentIndex(File file) {
+            this.file = file;
+        }
+
+        /**
+         * Add the counts in this segment after the start time to a list.
+         */
+        synchronized void read(String resource, long startTime, List<HttpReferrerPairsCount> counts)
+                throws IOException {
+            MappedByteBuffer segment = map(file);
+            if (segment == null || segment.limit() < TimeSeriesFormat.SEGMENT_HEADER_SIZE) {
+                return;
+            }
+            if (checkpoints.isEmpty()) {
+                if (segment.getInt(0) != TimeSeriesFormat.MAGIC) {
+                    throw new IOException("Not a time-series segment: " + file);
+                }
+                indexedPosition = TimeSeriesFormat.SEGMENT_HEADER_SIZE;
+                checkpoints.add(new Checkpoint(indexedPosition, 0L, new TimeSeriesFormat.Decoder()));
+            }
+
+            // Resume from the last checkpoint whose counts are all at or before the start time
+            Checkpoint from = checkpoints.get(0);
+            for (Checkpoint checkpoint : checkpoints) {
+                if (checkpoint.counts > 0 && checkpoint.decoder.getPreviousTimestamp() > startTime) {
+                    break;
+                }
+                from = checkpoint;
+            }
+
+            TimeSeriesFormat.Decoder decoder = from.decoder.copy();
+            long decoded = from.counts;
+            segment.position(from.position);
+            for (byte[] payload = TimeSeriesFormat.nextRecord(segment); payload != null; payload =
+                    TimeSeriesFormat.nextRecord(segment)) {
+                HttpReferrerPairsCount count = decoder.decode(payload, resource);
+                decoded++;
+                if (count.getTimestamp().getTime() > startTime) {
+                    counts.add(count);
+                }
+                // Index counts appended since the last read
+                if (segment.position() > indexedPosition) {
+                    indexedPosition = segment.position();
+                    if (decoded % CHECKPOINT_INTERVAL == 0) {
+                        checkpoints.add(new Checkpoint(indexedPosition, decoded, decoder.copy()));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.local;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+
+/**
+ * Appends counts to a local time-series store, see {@link TimeSeriesFormat}. Each resource's counts are appended to
+ * the newest segment in its directory until that segment reaches its size limit, then a new segment is started.
+ * <p/>
+ * When a resource is first appended to its newest segment is scanned and any torn record left by a crash is truncated.
+ * Segments older than the retention period are deleted when a new segment is started.
+ * <p/>
+ * Appends are safe from multiple threads. Only one writer may use a directory at a time, but any number of
+ * {@link TimeSeriesReader}s, in any process, may read from it.
+ */
+public class TimeSeriesWriter implements Closeable {
+    private static final Log LOG = LogFactory.getLog(TimeSeriesWriter.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE_IN_BYTES = 4 * 1024 * 1024;
+
+    private File directory;
+    private int segmentSizeInBytes;
+    private long retentionInMillis;
+
+    // The segment being appended to for each resource
+    private Map<String, OpenSegment> segments = new HashMap<>();
+    private boolean closed;
+
+    // Reused for every append. These are only used while holding the lock on this writer.
+    private final CRC32 crc = new CRC32();
+    private final ByteArrayOutputStream payloadBuffer = new ByteArrayOutputStream(1024);
+
+    /**
+     * @param directory Directory to store counts in. It is created if it does not exist.
+     * @param segmentSizeInBytes Start a new segment once a resource's segment reaches this size.
+     * @param retentionInMillis Delete segments whose counts are all older than this. 0 keeps counts forever.
+     */
+    public TimeSeriesWriter(File directory, int segmentSizeInBytes, long retentionInMillis) {
+        if (directory == null) {
+            throw new NullPointerException("directory must not be null");
+        }
+        if (segmentSizeInBytes <= TimeSeriesFormat.SEGMENT_HEADER_SIZE) {
+            throw new IllegalArgumentException("segmentSizeInBytes must be greater than "
+                    + TimeSeriesFormat.SEGMENT_HEADER_SIZE);
+        }
+        if (retentionInMillis < 0) {
+            throw new IllegalArgumentException("retentionInMillis must be >= 0");
+        }
+        this.directory = directory;
+        this.segmentSizeInBytes = segmentSizeInBytes;
+        this.retentionInMillis = retentionInMillis;
+    }
+
+    /**
+     * Append a count to its resource's newest segment. The count is visible to readers once this returns, but is only
+     * guaranteed to survive a crash after {@link #sync()}.
+     *
+     * @param count The count to append. Its referrer counts should be in descending order by count, as the persister
+     *        produces them, for them to be stored compactly.
+     * @throws IOException if the count could not be written.
+     */
+    public synchronized void append(HttpReferrerPairsCount count) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Time-series store is closed");
+        }
+        OpenSegment segment = segments.get(count.getResource());
+        if (segment == null) {
+            segment = openNewestSegment(count.getResource(), count.getTimestamp().getTime());
+            segments.put(count.getResource(), segment);
+        } else if (segment.size >= segmentSizeInBytes) {
+            segment.channel.force(false);
+            segment.channel.close();
+            segment = createSegment(count.getResource(), count.getTimestamp().getTime(), segment.start);
+            segments.put(count.getResource(), segment);
+            deleteExpiredSegments(count.getResource());
+        }
+
+        payloadBuffer.reset();
+        segment.encoder.encode(count, payloadBuffer);
+        byte[] payload = payloadBuffer.toByteArray();
+        crc.reset();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer record = ByteBuffer.allocate(TimeSeriesFormat.RECORD_HEADER_SIZE + payload.length);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        try {
+            while (record.hasRemaining()) {
+                segment.channel.write(record, segment.size + record.position());
+            }
+        } catch (IOException ex) {
+            // The encoder already remembers this record's strings so the segment can't be appended to any more
+            segments.remove(count.getResource());
+            segment.channel.close();
+            throw ex;
+        }
+        segment.size += record.limit();
+    }
+
+    /**
+     * Force every appended count to disk.
+     *
+     * @throws IOException if the counts could not be forced to disk.
+     */
+    public void sync() throws IOException {
+        List<FileChannel> channels;
+        synchronized (this) {
+            channels = new ArrayList<>(segments.size());
+            for (OpenSegment segment : segments.values()) {
+                channels.add(segment.channel);
+            }
+        }
+        // Don't block appends while waiting on the disk
+        for (FileChannel channel : channels) {
+            if (channel.isOpen()) {
+                channel.force(false);
+            }
+        }
+    }
+
+    /**
+     * Sync and close every open segment.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (OpenSegment segment : segments.values()) {
+            try {
+                segment.channel.force(false);
+                segment.channel.close();
+            } catch (IOException ex) {
+                LOG.warn("Error closing time-series segment " + segment.file, ex);
+            }
+        }
+        segments.clear();
+    }
+
+    /**
+     * Open the newest segment of a resource for appending, recovering it if necessary, or create the first segment.
+     */
+    private OpenSegment openNewestSegment(String resource, long timestamp) throws IOException {
+        File resourceDirectory = new File(directory, TimeSeriesFormat.toDirectoryName(resource));
+        File newest = null;
+        for (File file : listSegments(resourceDirectory)) {
+            if (newest == null || TimeSeriesFormat.toSegmentStart(file) > TimeSeriesFormat.toSegmentStart(newest)) {
+                newest = file;
+            }
+        }
+        if (newest == null) {
+            return createSegment(resource, timestamp, -1L);
+        }
+
+        OpenSegment segment = new OpenSegment(newest, TimeSeriesFormat.toSegmentStart(newest));
+        segment.channel = new RandomAccessFile(newest, "rw").getChannel();
+        ByteBuffer contents = ByteBuffer.allocate((int) segment.channel.size());
+        while (contents.hasRemaining()) {
+            if (segment.channel.read(contents, contents.position()) < 0) {
+                break;
+            }
+        }
+        contents.flip();
+
+        if (contents.remaining() < TimeSeriesFormat.SEGMENT_HEADER_SIZE
+                || contents.getInt() != TimeSeriesFormat.MAGIC) {
+            // The segment was never completely created
+            contents.position(0);
+            segment.channel.truncate(0);
+            segment.channel.write(newHeader(), 0);
+            contents.limit(0);
+        }
+
+        // Replay the segment to pick up where it left off
+        TimeSeriesFormat.Decoder decoder = new TimeSeriesFormat.Decoder();
+        int records = 0;
+        for (byte[] payload = TimeSeriesFormat.nextRecord(contents); payload != null; payload =
+                TimeSeriesFormat.nextRecord(contents)) {
+            decoder.decode(payload, resource);
+            records++;
+        }
+        segment.size = Math.max(contents.position(), TimeSeriesFormat.SEGMENT_HEADER_SIZE);
+        if (segment.size < segment.channel.size()) {
+            LOG.warn(String.format("Discarding %d bytes of torn records from time-series segment %s",
+                    segment.channel.size() - segment.size,
+                    newest));
+            segment.channel.truncate(segment.size);
+        }
+        segment.encoder = new TimeSeriesFormat.Encoder(decoder);
+        LOG.info(String.format("Resuming time-series segment %s after %d counts", newest, records));
+        return segment;
+    }
+
+    /**
+     * Create a new, empty segment.
+     *
+     * @param timestamp The timestamp of the first count to be appended to it.
+     * @param previousStart The start of the resource's previous segment, or -1 if there is none. Segment names must
+     *        increase even if a count is older than the previous segment's first.
+     */
+    private OpenSegment createSegment(String resource, long timestamp, long previousStart) throws IOException {
+        File resourceDirectory = new File(directory, TimeSeriesFormat.toDirectoryName(resource));
+        if (!resourceDirectory.isDirectory() && !resourceDirectory.mkdirs()) {
+            throw new IOException("Unable to create time-series directory " + resourceDirectory);
+        }
+        long start = Math.max(timestamp, previousStart + 1);
+        File file = new File(resourceDirectory, start + TimeSeriesFormat.SEGMENT_SUFFIX);
+        OpenSegment segment = new OpenSegment(file, start);
+        segment.channel = new RandomAccessFile(file, "rw").getChannel();
+        segment.channel.truncate(0);
+        segment.channel.write(newHeader(), 0);
+        segment.size = TimeSeriesFormat.SEGMENT_HEADER_SIZE;
+        segment.encoder = new TimeSeriesFormat.Encoder();
+        return segment;
+    }
+
+    /**
+     * Delete a resource's segments that only hold counts older than the retention period. A segment's counts are older
+     * than the start of the segment after it.
+     */
+    private void deleteExpiredSegments(String resource) {
+        if (retentionInMillis == 0) {
+            return;
+        }
+        long oldest = System.currentTimeMillis() - retentionInMillis;
+        List<File> files = listSegments(new File(directory, TimeSeriesFormat.toDirectoryName(resource)));
+        for (File file : files) {
+            long start = TimeSeriesFormat.toSegmentStart(file);
+            // Find the start of the next segment
+            long next = Long.MAX_VALUE;
+            for (File other : files) {
+                long otherStart = TimeSeriesFormat.toSegmentStart(other);
+                if (otherStart > start && otherStart < next) {
+                    next = otherStart;
+                }
+            }
+            if (next <= oldest && !file.delete()) {
+                LOG.warn("Unable to delete expired time-series segment " + file);
+            }
+        }
+    }
+
+    private static ByteBuffer newHeader() {
+        ByteBuffer header = ByteBuffer.allocate(TimeSeriesFormat.SEGMENT_HEADER_SIZE);
+        header.putInt(TimeSeriesFormat.MAGIC).flip();
+        return header;
+    }
+
+    /**
+     * @return The segment files in a resource's directory.
+     */
+    static List<File> listSegments(File resourceDirectory) {
+        List<File> segments = new ArrayList<>();
+        File[] files = resourceDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (TimeSeriesFormat.toSegmentStart(file) >= 0) {
+                    segments.add(file);
+                }
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * A segment being appended to.
+     */
+    private static class OpenSegment {
+        private final File file;
+        // The timestamp the segment is named after
+        private final long start;
+        private FileChannel channel;
+        // Bytes of valid records written, including the header
+        private long size;
+        private TimeSeriesFormat.Encoder encoder;
+
+        OpenSegment(File file, long start) {
+            this.file = file;
+            this.start = start;
+        }
+    }
+}
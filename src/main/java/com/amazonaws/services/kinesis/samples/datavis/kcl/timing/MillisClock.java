@@ -0,0 +1,24 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.timing;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A clock that responds in milliseconds since Jan 1, 1970. This is backed by {@link System#currentTimeMillis()} so its
+ * time can be compared to the timestamps of counts.
+ */
+public class MillisClock implements Clock {
+    @Override
+    public long getTime() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public TimeUnit getTimeUnit() {
+        return TimeUnit.MILLISECONDS;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.model;
+
+import java.util.Date;
+import java.util.List;
+
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBAttribute;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBHashKey;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMarshalling;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBRangeKey;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBTable;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb.CountSnapshotsMarshaller;
+
+/**
+ * The per-interval counts of a resource over a fixed block of time, packed into a single item. Storing many intervals
+ * per item saves write capacity and the number of items a range query reads.
+ */
+@DynamoDBTable(tableName = "KinesisDataVisSample-NameToBeReplacedByDynamoDBMapper")
+public class HttpReferrerCountsBlock {
+    // The block key, see TimeBucketedCountWriter#toBlockKey(String, long)
+    private String resource;
+    // The start of the block of time this item covers
+    private Date timestamp;
+    // The hostname of the worker that last updated the block
+    private String host;
+    // Incremented on every write so concurrent writers don't lose each other's snapshots
+    private Long version;
+    // Counts for each interval in the block in ascending order by timestamp. Their resource is not set.
+    private List<HttpReferrerPairsCount> snapshots;
+
+    @DynamoDBHashKey
+    public String getResource() {
+        return resource;
+    }
+
+    public void setResource(String resource) {
+        this.resource = resource;
+    }
+
+    @DynamoDBRangeKey
+    public Date getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(Date timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    @DynamoDBAttribute
+    public String getHost() {
+        return host;
+    }
+
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    @DynamoDBAttribute
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
+    @DynamoDBAttribute
+    @DynamoDBMarshalling(marshallerClass = CountSnapshotsMarshaller.class)
+    public List<HttpReferrerPairsCount> getSnapshots() {
+        return snapshots;
+    }
+
+    public void setSnapshots(List<HttpReferrerPairsCount> snapshots) {
+        this.snapshots = snapshots;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.model;
+
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.List;
+
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBAttribute;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBHashKey;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMarshalling;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBRangeKey;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBTable;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb.ReferrerCountMarshaller;
+import com.amazonaws.services.kinesis.samples.datavis.utils.CountRollups;
+
+/**
+ * The per-interval counts of a resource summed over a fixed bucket of time, e.g. a minute or an hour. See
+ * {@link CountRollups} for how rollup items are keyed.
+ */
+@DynamoDBTable(tableName = "KinesisDataVisSample-NameToBeReplacedByDynamoDBMapper")
+public class HttpReferrerCountsRollup {
+    // The rollup key, see CountRollups
+    private String resource;
+    // The start of the bucket of time this item covers
+    private Date timestamp;
+    // The hostname of the worker that last updated the rollup
+    private String host;
+    // Incremented on every write so concurrent writers don't lose each other's counts
+    private Long version;
+    // The number of intervals summed into this item. The counts from every shard for an interval are one sample.
+    private Long samples;
+    // A bitmap of the seconds in the bucket that start an interval summed into this item
+    private ByteBuffer intervals;
+    // The top referrers summed over every interval in the bucket
+    private List<ReferrerCount> referrerCounts;
+
+    @DynamoDBHashKey
+    public String getResource() {
+        return resource;
+    }
+
+    public void setResource(String resource) {
+        this.resource = resource;
+    }
+
+    @DynamoDBRangeKey
+    public Date getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(Date timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    @DynamoDBAttribute
+    public String getHost() {
+        return host;
+    }
+
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    @DynamoDBAttribute
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
+    @DynamoDBAttribute
+    public Long getSamples() {
+        return samples;
+    }
+
+    public void setSamples(Long samples) {
+        this.samples = samples;
+    }
+
+    @DynamoDBAttribute
+    public ByteBuffer getIntervals() {
+        return intervals;
+    }
+
+    public void setIntervals(ByteBuffer intervals) {
+        this.intervals = intervals;
+    }
+
+    @DynamoDBAttribute
+    @DynamoDBMarshalling(marshallerClass = ReferrerCountMarshaller.class)
+    public List<ReferrerCount> getReferrerCounts() {
+        return referrerCounts;
+    }
+
+    public void setReferrerCounts(List<ReferrerCount> referrerCounts) {
+        this.referrerCounts = referrerCounts;
+    }
+}
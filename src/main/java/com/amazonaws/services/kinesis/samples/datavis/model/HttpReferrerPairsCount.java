@@ -5,24 +5,45 @@
 
 package com.amazonaws.services.kinesis.samples.datavis.model;
 
+import java.text.ParseException;
 import java.util.Date;
 import java.util.List;
 
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBAttribute;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBHashKey;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBIgnore;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMarshalling;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBRangeKey;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBTable;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb.CountItemKeys;
 import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb.ReferrerCountMarshaller;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 
 /**
  * A resource with referrers and the number of occurrences they referred to the resource over a given period of time.
+ * <p/>
+ * Each Kinesis shard counts the records it holds, so the same resource is counted by every shard its records are in.
+ * The range key is the timestamp followed by the shard the counts were computed from, so each shard's counts for an
+ * interval are stored as an item of their own and are summed when read.
  */
 @DynamoDBTable(tableName = "KinesisDataVisSample-NameToBeReplacedByDynamoDBMapper")
 public class HttpReferrerPairsCount {
+    /**
+     * Separates the timestamp from the shard id in a range key.
+     */
+    public static final char RANGE_KEY_SEPARATOR = '#';
+    /**
+     * Appended to a formatted timestamp to sort after every range key for that timestamp and before the next
+     * timestamp. It sorts after {@link #RANGE_KEY_SEPARATOR} and every formatted timestamp is the same length.
+     */
+    public static final char RANGE_KEY_UPPER_BOUND = '$';
+
+
     private String resource;
     // The timestamp when the counts were calculated
     private Date timestamp;
+    // The Kinesis shard the counts were computed from, or null if they were written before counts were kept by shard
+    private String shardId;
     // Store the hostname of the worker that updated the count
     private String host;
     // Ordered list of referrer counts in descending order. Top N can be simply obtained by inspecting the first N
@@ -38,7 +59,7 @@ public class HttpReferrerPairsCount {
         this.resource = resource;
     }
 
-    @DynamoDBRangeKey
+    @DynamoDBIgnore
     public Date getTimestamp() {
         return timestamp;
     }
@@ -47,6 +68,52 @@ public class HttpReferrerPairsCount {
         this.timestamp = timestamp;
     }
 
+    @DynamoDBIgnore
+    @JsonIgnore
+    public String getShardId() {
+        return shardId;
+    }
+
+    public void setShardId(String shardId) {
+        this.shardId = shardId;
+    }
+
+    /**
+     * @return The timestamp and shard id as they are stored in the range key.
+     */
+    @DynamoDBRangeKey(attributeName = "timestamp")
+    @JsonIgnore
+    public String getRangeKey() {
+        return toRangeKey(CountItemKeys.formatTimestamp(timestamp), shardId);
+    }
+
+    /**
+     * Set the timestamp and shard id from a range key. Range keys written before counts were kept by shard are only a
+     * timestamp.
+     *
+     * @throws IllegalArgumentException if the range key does not start with a timestamp.
+     */
+    public void setRangeKey(String rangeKey) {
+        int separator = rangeKey.indexOf(RANGE_KEY_SEPARATOR);
+        try {
+            timestamp = CountItemKeys.parseTimestamp(separator < 0 ? rangeKey : rangeKey.substring(0, separator));
+        } catch (ParseException ex) {
+            throw new IllegalArgumentException("Range key does not start with a timestamp: " + rangeKey, ex);
+        }
+        shardId = separator < 0 ? null : rangeKey.substring(separator + 1);
+    }
+
+    /**
+     * Build a range key.
+     *
+     * @param timestamp A timestamp formatted as an ISO-8601 string.
+     * @param shardId The shard the counts were computed from, or {@code null} for a range key of only the timestamp.
+     * @return The range key.
+     */
+    public static String toRangeKey(String timestamp, String shardId) {
+        return shardId == null ? timestamp : timestamp + RANGE_KEY_SEPARATOR + shardId;
+    }
+
     @DynamoDBAttribute
     public String getHost() {
         return host;
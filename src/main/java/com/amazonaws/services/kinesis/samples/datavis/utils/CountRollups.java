@@ -0,0 +1,71 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.utils;
+
+/**
+ * Describes how pre-aggregated rollups of counts are stored. Alongside the per-interval counts each resource's counts
+ * are summed over fixed buckets of time, e.g. every minute and every hour, so a long range can be charted from a small
+ * number of items.
+ * <p/>
+ * Rollup items live in the counts table under a hash key made of the resolution, {@link #PREFIX_SEPARATOR} and the hash
+ * key {@link HashKeySharding} chooses for the bucket, as if it were a single interval. The range key is the start of
+ * the bucket.
+ */
+public class CountRollups {
+    /**
+     * Separates the resolution prefix from the hash key of the counts rolled up. Resources are request paths so they
+     * always start with '/' and can never be mistaken for a rollup key.
+     */
+    public static final char PREFIX_SEPARATOR = ':';
+
+    /**
+     * Counts summed over every minute.
+     */
+    public static final int MINUTE_RESOLUTION_IN_SECONDS = 60;
+
+    /**
+     * Counts summed over every hour.
+     */
+    public static final int HOUR_RESOLUTION_IN_SECONDS = 3600;
+
+    /**
+     * Determine the hash key to store a rollup under.
+     *
+     * @param hashKey The hash key the per-interval counts are written under.
+     * @param resolutionInSeconds The length of time each rollup item covers.
+     * @return The hash key for the rollup items.
+     */
+    public static String toRollupKey(String hashKey, int resolutionInSeconds) {
+        if (resolutionInSeconds < 1) {
+            throw new IllegalArgumentException("resolutionInSeconds must be >= 1");
+        }
+        return Integer.toString(resolutionInSeconds) + 's' + PREFIX_SEPARATOR + hashKey;
+    }
+
+    /**
+     * Recover the hash key of the counts rolled up from a rollup key.
+     *
+     * @param rollupKey A key produced by {@link #toRollupKey(String, int)}.
+     * @return The hash key the rolled up counts were written under.
+     */
+    public static String toHashKey(String rollupKey) {
+        int separator = rollupKey.indexOf(PREFIX_SEPARATOR);
+        if (separator < 0) {
+            throw new IllegalArgumentException("Not a rollup key: " + rollupKey);
+        }
+        return rollupKey.substring(separator + 1);
+    }
+
+    /**
+     * @param timestamp A count's timestamp in milliseconds.
+     * @param resolutionInSeconds The length of time each rollup item covers.
+     * @return The start of the bucket the timestamp is rolled up into.
+     */
+    public static long toBucketStart(long timestamp, int resolutionInSeconds) {
+        long resolutionInMillis = resolutionInSeconds * 1000L;
+        return timestamp - timestamp % resolutionInMillis;
+    }
+}
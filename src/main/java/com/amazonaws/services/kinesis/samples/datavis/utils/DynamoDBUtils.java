@@ -104,6 +104,16 @@ public class DynamoDBUtils {
         }
     }
 
+    /**
+     * Look up the write capacity units currently provisioned for a table.
+     *
+     * @param tableName The name of the table.
+     * @return The provisioned write capacity units of the table.
+     */
+    public long getProvisionedWriteCapacity(String tableName) {
+        return dynamoDB.describeTable(tableName).getTable().getProvisionedThroughput().getWriteCapacityUnits();
+    }
+
     /**
      * Delete a DynamoDB table.
      *
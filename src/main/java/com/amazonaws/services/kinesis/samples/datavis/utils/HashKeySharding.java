@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Spreads the counts for a resource over several DynamoDB hash keys. Every item for a resource would otherwise share
+ * the resource as its hash key, putting all writes for a popular resource on a single partition.
+ * <p/>
+ * With N write shards the hash key is the resource followed by {@link #SUFFIX_SEPARATOR} and a suffix from 0 to N-1
+ * that moves on to the next with every interval, so consecutive counts of a resource are written to different hash
+ * keys. Each resource is counted by the one worker reading its partition key, so the suffix cannot depend on the
+ * writer. The suffix depends only on the interval, so counts written again for the same interval land on the same
+ * item. Readers must query every suffix and merge the results. With a single write shard the resource is used as the
+ * hash key unchanged, as it always has been.
+ */
+public class HashKeySharding {
+    /**
+     * Separates a resource from its shard suffix. Resources are request paths so they never contain a fragment.
+     */
+    public static final char SUFFIX_SEPARATOR = '#';
+
+    private int writeShards;
+
+    /**
+     * @param writeShards The number of hash keys to spread each resource over. Writers and readers must agree on this.
+     */
+    public HashKeySharding(int writeShards) {
+        if (writeShards < 1) {
+            throw new IllegalArgumentException("writeShards must be >= 1");
+        }
+        this.writeShards = writeShards;
+    }
+
+    /**
+     * @return The number of hash keys each resource is spread over.
+     */
+    public int getWriteShards() {
+        return writeShards;
+    }
+
+    /**
+     * Determine the hash key to write a resource's counts under.
+     *
+     * @param resource The resource counted.
+     * @param interval The index of the interval the counts were computed for, their timestamp divided by the interval
+     *        length. This selects the suffix so successive intervals are written to successive hash keys.
+     * @return The hash key for the counts.
+     */
+    public String toHashKey(String resource, long interval) {
+        if (writeShards == 1) {
+            return resource;
+        }
+        long suffix = ((interval % writeShards) + writeShards) % writeShards;
+        return resource + SUFFIX_SEPARATOR + suffix;
+    }
+
+    /**
+     * @param resource The resource to look up.
+     * @return Every hash key counts for the resource may be stored under.
+     */
+    public List<String> getHashKeys(String resource) {
+        if (writeShards == 1) {
+            return Collections.singletonList(resource);
+        }
+        List<String> hashKeys = new ArrayList<>(writeShards);
+        for (int i = 0; i < writeShards; i++) {
+            hashKeys.add(resource + SUFFIX_SEPARATOR + i);
+        }
+        return hashKeys;
+    }
+
+    /**
+     * Recover the resource from a hash key.
+     *
+     * @param hashKey A hash key produced by {@link #toHashKey(String, long)}.
+     * @return The resource the hash key was created for.
+     */
+    public String toResource(String hashKey) {
+        if (writeShards == 1) {
+            return hashKey;
+        }
+        int separator = hashKey.lastIndexOf(SUFFIX_SEPARATOR);
+        return separator < 0 ? hashKey : hashKey.substring(0, separator);
+    }
+}
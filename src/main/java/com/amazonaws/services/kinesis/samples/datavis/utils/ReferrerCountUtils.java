@@ -0,0 +1,255 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPair;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+
+/**
+ * Utility methods for working with lists of {@link ReferrerCount}s and the {@link HttpReferrerPairsCount}s that hold
+ * them.
+ */
+public class ReferrerCountUtils {
+
+    /**
+     * The referrer used for the entry that sums all referrers left out of a Top N list.
+     */
+    public static final String OTHER_REFERRERS = "(other)";
+
+    /**
+     * Orders referrer counts by count, descending.
+     */
+    public static final Comparator<ReferrerCount> DESCENDING_BY_COUNT = new Comparator<ReferrerCount>() {
+        @Override
+        public int compare(ReferrerCount c1, ReferrerCount c2) {
+            if (c2.getCount() > c1.getCount()) {
+                return 1;
+            } else if (c1.getCount() == c2.getCount()) {
+                return 0;
+            } else {
+                return -1;
+            }
+        }
+    };
+
+    /**
+     * Select the N referrers with the highest counts, in descending order. If there are more than N referrers the
+     * remaining counts are summed into a single trailing {@link #OTHER_REFERRERS} entry.
+     * <p/>
+     * This uses a bounded min-heap of size N so selecting the top N of M referrers costs O(M log N) rather than the
+     * O(M log M) of sorting them all.
+     *
+     * @param referrerCounts Referrer counts in any order.
+     * @param n The maximum number of referrers to keep.
+     * @return A new list with at most N referrers in descending order, followed by an entry for all other referrers if
+     *         any were left out.
+     */
+    public static List<ReferrerCount> topN(List<ReferrerCount> referrerCounts, int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("n must be >= 1");
+        }
+        if (referrerCounts.size() <= n) {
+            List<ReferrerCount> sorted = new ArrayList<>(referrerCounts);
+            Collections.sort(sorted, DESCENDING_BY_COUNT);
+            return sorted;
+        }
+
+        // The head of the heap is the smallest count we're keeping so it is the one to evict when we find a larger one
+        PriorityQueue<ReferrerCount> heap = new PriorityQueue<>(n, Collections.reverseOrder(DESCENDING_BY_COUNT));
+        long other = 0;
+        for (ReferrerCount referrerCount : referrerCounts) {
+            if (heap.size() < n) {
+                heap.add(referrerCount);
+            } else if (referrerCount.getCount() > heap.peek().getCount()) {
+                other += heap.poll().getCount();
+                heap.add(referrerCount);
+            } else {
+                other += referrerCount.getCount();
+            }
+        }
+
+        List<ReferrerCount> top = new ArrayList<>(n + 1);
+        while (!heap.isEmpty()) {
+            top.add(heap.poll());
+        }
+        Collections.reverse(top);
+
+        ReferrerCount otherCount = new ReferrerCount();
+        otherCount.setReferrer(OTHER_REFERRERS);
+        otherCount.setCount(other);
+        top.add(otherCount);
+        return top;
+    }
+
+    /**
+     * Build the counts a shard persists for an interval, one per resource. Each is stamped with the start of the
+     * interval, never the clock, so the same interval is always written to the same items. Only the top referrers are
+     * kept, in descending order, so the consumer of the counts can choose their own N up to that maximum.
+     *
+     * @param objectCounts The count of each referrer pair over the interval. Must not be empty.
+     * @param intervalStart A time within the interval the counts were computed for.
+     * @param countIntervalInMillis The length of each interval.
+     * @param shardId The shard the counts were computed from. May be {@code null}.
+     * @param host The host that computed the counts.
+     * @param sharding Selects the hash key for each resource's counts in the interval.
+     * @param maxReferrersPerResource The most referrers to keep for each resource.
+     * @return One count per resource.
+     */
+    public static Collection<HttpReferrerPairsCount> toIntervalCounts(Map<HttpReferrerPair, Long> objectCounts,
+            Date intervalStart,
+            long countIntervalInMillis,
+            String shardId,
+            String host,
+            HashKeySharding sharding,
+            int maxReferrersPerResource) {
+        // Every resource in this batch belongs to the same interval
+        Date timestamp = toIntervalStart(intervalStart.getTime(), countIntervalInMillis);
+        long interval = timestamp.getTime() / countIntervalInMillis;
+        // We map resource to pair counts so we can easily look up a resource and add referrer counts to it
+        Map<String, HttpReferrerPairsCount> countMap = new HashMap<>();
+        for (Map.Entry<HttpReferrerPair, Long> count : objectCounts.entrySet()) {
+            HttpReferrerPair pair = count.getKey();
+            HttpReferrerPairsCount pairCount = countMap.get(pair.getResource());
+            if (pairCount == null) {
+                // Create a new pair if this resource hasn't been seen yet in this batch
+                pairCount = new HttpReferrerPairsCount();
+                pairCount.setResource(sharding.toHashKey(pair.getResource(), interval));
+                pairCount.setTimestamp(timestamp);
+                pairCount.setShardId(shardId);
+                pairCount.setReferrerCounts(new ArrayList<ReferrerCount>());
+                pairCount.setHost(host);
+                countMap.put(pair.getResource(), pairCount);
+            }
+
+            ReferrerCount refCount = new ReferrerCount();
+            refCount.setReferrer(pair.getReferrer());
+            refCount.setCount(count.getValue());
+            pairCount.getReferrerCounts().add(refCount);
+        }
+
+        for (HttpReferrerPairsCount count : countMap.values()) {
+            count.setReferrerCounts(topN(count.getReferrerCounts(), maxReferrersPerResource));
+        }
+        return countMap.values();
+    }
+
+    /**
+     * @param timeInMillis A time in milliseconds since the epoch.
+     * @param intervalInMillis The length of each interval.
+     * @return The start of the wall-clock interval the time falls in.
+     */
+    public static Date toIntervalStart(long timeInMillis, long intervalInMillis) {
+        return new Date(timeInMillis - timeInMillis % intervalInMillis);
+    }
+
+    /**
+     * Sum the counts for each referrer across several lists, e.g. counts for the same interval computed by different
+     * hosts.
+     *
+     * @param referrerCounts Lists of referrer counts to combine.
+     * @return A new list with one entry per referrer in descending order by count.
+     */
+    public static List<ReferrerCount> sum(List<List<ReferrerCount>> referrerCounts) {
+        Map<String, ReferrerCount> sums = new LinkedHashMap<>();
+        for (List<ReferrerCount> counts : referrerCounts) {
+            for (ReferrerCount count : counts) {
+                ReferrerCount sum = sums.get(count.getReferrer());
+                if (sum == null) {
+                    sum = new ReferrerCount();
+                    sum.setReferrer(count.getReferrer());
+                    sums.put(count.getReferrer(), sum);
+                }
+                sum.setCount(sum.getCount() + count.getCount());
+            }
+        }
+        List<ReferrerCount> sorted = new ArrayList<>(sums.values());
+        Collections.sort(sorted, DESCENDING_BY_COUNT);
+        return sorted;
+    }
+
+    /**
+     * Combine counts for the same resource and time, e.g. those computed by different shards, into one.
+     *
+     * @param sameTime Counts with the same resource and timestamp. Must not be empty.
+     * @return The only count if there is one, otherwise a new count with their referrer counts summed, their hosts
+     *         joined and no shard id.
+     */
+    public static HttpReferrerPairsCount merge(List<HttpReferrerPairsCount> sameTime) {
+        if (sameTime.size() == 1) {
+            return sameTime.get(0);
+        }
+        List<List<ReferrerCount>> referrerCounts = new ArrayList<>(sameTime.size());
+        StringBuilder hosts = new StringBuilder();
+        for (HttpReferrerPairsCount count : sameTime) {
+            referrerCounts.add(count.getReferrerCounts());
+            if (count.getHost() != null) {
+                hosts.append(hosts.length() == 0 ? "" : ", ").append(count.getHost());
+            }
+        }
+        HttpReferrerPairsCount merged = new HttpReferrerPairsCount();
+        merged.setResource(sameTime.get(0).getResource());
+        merged.setTimestamp(sameTime.get(0).getTimestamp());
+        merged.setHost(hosts.toString());
+        merged.setReferrerCounts(sum(referrerCounts));
+        return merged;
+    }
+
+    /**
+     * Copy a count so the copy can be changed without affecting the original. Every field is copied, including each
+     * referrer count.
+     *
+     * @param count The count to copy.
+     * @return A new count with the same fields.
+     */
+    public static HttpReferrerPairsCount copy(HttpReferrerPairsCount count) {
+        HttpReferrerPairsCount copy = new HttpReferrerPairsCount();
+        copy.setResource(count.getResource());
+        copy.setTimestamp(count.getTimestamp() == null ? null : new Date(count.getTimestamp().getTime()));
+        copy.setShardId(count.getShardId());
+        copy.setHost(count.getHost());
+        if (count.getReferrerCounts() != null) {
+            List<ReferrerCount> referrerCounts = new ArrayList<>(count.getReferrerCounts().size());
+            for (ReferrerCount referrerCount : count.getReferrerCounts()) {
+                ReferrerCount referrerCountCopy = new ReferrerCount();
+                referrerCountCopy.setReferrer(referrerCount.getReferrer());
+                referrerCountCopy.setCount(referrerCount.getCount());
+                referrerCounts.add(referrerCountCopy);
+            }
+            copy.setReferrerCounts(referrerCounts);
+        }
+        return copy;
+    }
+
+    /**
+     * Combine counts with the same timestamp, such as the items each shard writes for a resource in an interval.
+     *
+     * @param counts Counts for one resource in ascending order by timestamp.
+     * @return One count per timestamp in ascending order by timestamp.
+     */
+    public static List<HttpReferrerPairsCount> mergeByTimestamp(List<HttpReferrerPairsCount> counts) {
+        List<HttpReferrerPairsCount> merged = new ArrayList<>(counts.size());
+        int groupStart = 0;
+        for (int i = 1; i <= counts.size(); i++) {
+            if (i == counts.size() || !counts.get(i).getTimestamp().equals(counts.get(groupStart).getTimestamp())) {
+                merged.add(merge(counts.subList(groupStart, i)));
+                groupStart = i;
+            }
+        }
+        return merged;
+    }
+}
@@ -5,6 +5,13 @@
 
 package com.amazonaws.services.kinesis.samples.datavis.utils;
 
+import java.io.File;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.RegionUtils;
@@ -13,6 +20,7 @@ import com.amazonaws.regions.RegionUtils;
  * A collection of utilities for the Amazon Kinesis sample application.
  */
 public class SampleUtils {
+    private static final Log LOG = LogFactory.getLog(SampleUtils.class);
 
     /**
      * Creates a new client configuration with a uniquely identifiable value for this sample application.
@@ -34,6 +42,24 @@ public class SampleUtils {
         return newConfig;
     }
 
+    /**
+     * Counts table names starting with this store counts in a local directory instead, e.g. "file:counts".
+     */
+    public static final String LOCAL_COUNTS_PREFIX = "file:";
+
+    /**
+     * Determine whether counts should be stored locally rather than in a DynamoDB table.
+     *
+     * @param countsTable The counts table name provided to the sample.
+     * @return The directory to store counts in, or {@code null} if counts are stored in DynamoDB.
+     */
+    public static File parseLocalCountsDirectory(String countsTable) {
+        if (!countsTable.startsWith(LOCAL_COUNTS_PREFIX)) {
+            return null;
+        }
+        return new File(countsTable.substring(LOCAL_COUNTS_PREFIX.length()));
+    }
+
     /**
      * Creates a Region object corresponding to the AWS Region. If an invalid region is passed in
      * then the JVM is terminated with an exit code of 1.
@@ -51,4 +77,18 @@ public class SampleUtils {
         return region;
     }
 
+    /**
+     * Resolve the hostname of the machine executing this code. Used to indicate which host updated a set of counts.
+     *
+     * @return The hostname, or "unknown", if one cannot be determined.
+     */
+    public static String resolveHostname() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException uhe) {
+            LOG.warn("Unable to determine hostname. Counts from this worker will be registered as counted by "
+                    + "'unknown'!", uhe);
+        }
+        return "unknown";
+    }
 }
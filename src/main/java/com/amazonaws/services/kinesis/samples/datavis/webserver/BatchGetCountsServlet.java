@@ -0,0 +1,242 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.webserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.jetty.util.MultiMap;
+import org.eclipse.jetty.util.UrlEncoded;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A servlet to serve requests for the counts of many resources over the same range at once. This is a simple test and
+ * as such, its not really serializable.
+ * <p/>
+ * Each {@value #PARAMETER_RESOURCE} parameter names a resource. Every resource is queried in parallel on a bounded
+ * executor shared by every batch, so a dashboard charting many resources makes one request per refresh and waits for
+ * the slowest resource rather than the sum of them all. The response is a JSON array with an entry per resource in the
+ * order requested:
+ *
+ * <pre>
+ * [{"resource":"/index.html","cursor":"1464c5f7a68","counts":[...]},
+ *  {"resource":"/about.html","error":"Unable to read counts"}]
+ * </pre>
+ *
+ * A resource whose counts could not be read, or were not read in time, has an error instead of counts and does not
+ * fail the rest of the batch. Each cursor can be passed to {@link GetCountsServlet} to continue from.
+ */
+@SuppressWarnings("serial")
+public class BatchGetCountsServlet extends HttpServlet {
+    private static final Log LOG = LogFactory.getLog(BatchGetCountsServlet.class);
+
+    static final String PARAMETER_RESOURCE = "resource";
+    static final String PARAMETER_RANGE_IN_SECONDS = "range_in_seconds";
+
+    // The most resources a batch may request
+    static final int MAX_RESOURCES = 100;
+
+    // This is not serializable and we're not implementing safeguards to support it. Jetty is highly unlikely to
+    // serialize this servlet anyway.
+    private transient ObjectMapper JSON = new ObjectMapper();
+
+    // This is not serializable either.
+    private transient RecentCountsSource source;
+
+    // Runs the query for each resource. This is not serializable either.
+    private transient ExecutorService queryExecutor;
+
+    private long timeoutInMillis;
+
+    // Metrics
+    private final AtomicLong failedQueries = new AtomicLong();
+    private final AtomicLong rejectedQueries = new AtomicLong();
+
+    /**
+     * @param source Source of the counts for each resource.
+     * @param queryExecutor Executor to query resources in parallel. This should be bounded, as a batch queues a query
+     *        per resource. Queries it rejects are reported as errors.
+     * @param timeoutInMillis How long to wait for every resource in a batch to be read. Resources not read by then are
+     *        reported as errors.
+     */
+    public BatchGetCountsServlet(RecentCountsSource source, ExecutorService queryExecutor, long timeoutInMillis) {
+        if (source == null) {
+            throw new NullPointerException("source must not be null");
+        }
+        if (queryExecutor == null) {
+            throw new NullPointerException("queryExecutor must not be null");
+        }
+        if (timeoutInMillis < 1) {
+            throw new IllegalArgumentException("timeoutInMillis must be >= 1");
+        }
+        this.source = source;
+        this.queryExecutor = queryExecutor;
+        this.timeoutInMillis = timeoutInMillis;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        MultiMap<String> params = new MultiMap<>();
+        UrlEncoded.decodeTo(req.getQueryString(), params, "UTF-8");
+
+        // We need at least one resource and a range to properly query for counts
+        if (!params.containsKey(PARAMETER_RESOURCE) || !params.containsKey(PARAMETER_RANGE_IN_SECONDS)) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        // Each resource is only queried once however many times it is requested
+        Set<String> resources = new LinkedHashSet<>(params.getValues(PARAMETER_RESOURCE));
+        if (resources.size() > MAX_RESOURCES) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "No more than " + MAX_RESOURCES
+                    + " resources may be requested at once");
+            return;
+        }
+        final int rangeInSeconds;
+        try {
+            rangeInSeconds = Integer.parseInt(params.getString(PARAMETER_RANGE_IN_SECONDS));
+        } catch (NumberFormatException ex) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        if (rangeInSeconds < 0) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        long start = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(rangeInSeconds);
+
+        List<Result> results = new ArrayList<>(resources.size());
+        for (final String resource : resources) {
+            Result result = new Result(resource);
+            try {
+                result.future = queryExecutor.submit(new Callable<List<HttpReferrerPairsCount>>() {
+                    @Override
+                    public List<HttpReferrerPairsCount> call() throws ServletException {
+                        return source.getCounts(resource, rangeInSeconds);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                rejectedQueries.incrementAndGet();
+                result.error = "Too many queries in progress";
+            }
+            results.add(result);
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutInMillis);
+        try {
+            for (Result result : results) {
+                if (result.future != null) {
+                    await(result, deadline);
+                }
+            }
+        } finally {
+            // Don't leave queries running for resources that timed out
+            for (Result result : results) {
+                if (result.future != null) {
+                    result.future.cancel(true);
+                }
+            }
+        }
+
+        resp.setContentType("application/json");
+        resp.setStatus(HttpServletResponse.SC_OK);
+        try (JsonGenerator generator = JSON.getFactory().createGenerator(resp.getWriter())) {
+            generator.writeStartArray();
+            for (Result result : results) {
+                generator.writeStartObject();
+                generator.writeStringField("resource", result.resource);
+                if (result.error != null) {
+                    generator.writeStringField("error", result.error);
+                } else {
+                    Date after = result.counts.isEmpty() ? new Date(start)
+                            : result.counts.get(result.counts.size() - 1).getTimestamp();
+                    generator.writeStringField("cursor", GetCountsServlet.toCursor(after));
+                    generator.writeArrayFieldStart("counts");
+                    for (HttpReferrerPairsCount count : result.counts) {
+                        generator.writeObject(count);
+                    }
+                    generator.writeEndArray();
+                }
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    /**
+     * @return The number of resources whose counts could not be read or were not read in time.
+     */
+    public long getFailedQueries() {
+        return failedQueries.get();
+    }
+
+    /**
+     * @return The number of resources not queried because the executor was full.
+     */
+    public long getRejectedQueries() {
+        return rejectedQueries.get();
+    }
+
+    /**
+     * Wait until a deadline for the counts of a resource, recording the error if there are none.
+     *
+     * @param deadline The {@link System#nanoTime()} to stop waiting at.
+     */
+    private void await(Result result, long deadline) throws ServletException {
+        try {
+            result.counts = result.future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ServletException("Interrupted while querying counts", ex);
+        } catch (TimeoutException ex) {
+            failedQueries.incrementAndGet();
+            result.error = "Timed out reading counts";
+        } catch (ExecutionException ex) {
+            failedQueries.incrementAndGet();
+            if (ex.getCause() instanceof IllegalArgumentException) {
+                result.error = ex.getCause().getMessage();
+            } else {
+                LOG.error("Error querying counts for resource " + result.resource, ex.getCause());
+                result.error = "Unable to read counts";
+            }
+        }
+    }
+
+    /**
+     * The query for a resource and, once it is done, its counts or the reason it has none.
+     */
+    private static class Result {
+        private final String resource;
+        private Future<List<HttpReferrerPairsCount>> future;
+        private List<HttpReferrerPairsCount> counts;
+        private String error;
+
+        Result(String resource) {
+            this.resource = resource;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.webserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBQueryExpression;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ComparisonOperator;
+import com.amazonaws.services.dynamodbv2.model.Condition;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb.CountItemKeys;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb.TimeBucketedCountWriter;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerCountsBlock;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.utils.ReferrerCountUtils;
+
+/**
+ * Reads counts stored as time-bucketed items by a {@link TimeBucketedCountWriter}. Each item read is unpacked into its
+ * per-interval counts, and the snapshots each shard wrote for the same interval are summed.
+ */
+public class BlockCountReader implements CountReader {
+    private DynamoDBMapper mapper;
+    private long blockSizeInMillis;
+
+    /**
+     * @param mapper Mapper to query the counts table with.
+     * @param blockSizeInMillis The length of time each item covers. This must match the writer.
+     */
+    public BlockCountReader(DynamoDBMapper mapper, long blockSizeInMillis) {
+        if (mapper == null) {
+            throw new NullPointerException("DynamoDBMapper must not be null");
+        }
+        if (blockSizeInMillis < 1) {
+            throw new IllegalArgumentException("blockSizeInMillis must be >= 1");
+        }
+        this.mapper = mapper;
+        this.blockSizeInMillis = blockSizeInMillis;
+    }
+
+    @Override
+    public List<HttpReferrerPairsCount> read(String hashKey, Date startTime) {
+        return read(hashKey, startTime, null, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public List<HttpReferrerPairsCount> read(String hashKey, Date startTime, Date endTime) {
+        return read(hashKey, startTime, endTime, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public List<HttpReferrerPairsCount> read(String hashKey, Date startTime, int limit) {
+        return read(hashKey, startTime, null, limit);
+    }
+
+    /**
+     * Items hold many counts each, so items are read a page at a time only until the limit or end time is reached.
+     *
+     * @param endTime Only counts with a timestamp no later than this are returned. May be {@code null} to read every
+     *        count after the start time.
+     */
+    private List<HttpReferrerPairsCount> read(String hashKey, Date startTime, Date endTime, int limit) {
+        DynamoDBQueryExpression<HttpReferrerCountsBlock> query = new DynamoDBQueryExpression<>();
+        HttpReferrerCountsBlock hashKeyValues = new HttpReferrerCountsBlock();
+        hashKeyValues.setResource(TimeBucketedCountWriter.toBlockKey(hashKey, blockSizeInMillis));
+        query.setHashKeyValues(hashKeyValues);
+
+        // Blocks are keyed by their start so include the block the start time falls in
+        Date firstBlockStart =
+                new Date(TimeBucketedCountWriter.toBlockStart(startTime.getTime(), blockSizeInMillis));
+        Condition recentBlocks;
+        if (endTime == null) {
+            recentBlocks =
+                    new Condition().withComparisonOperator(ComparisonOperator.GE).withAttributeValueList(
+                            new AttributeValue().withS(CountItemKeys.formatTimestamp(firstBlockStart)));
+        } else {
+            // The block the end time falls in starts no later than the end time
+            recentBlocks =
+                    new Condition().withComparisonOperator(ComparisonOperator.BETWEEN).withAttributeValueList(
+                            new AttributeValue().withS(CountItemKeys.formatTimestamp(firstBlockStart)),
+                            new AttributeValue().withS(CountItemKeys.formatTimestamp(endTime)));
+        }
+        query.setRangeKeyConditions(Collections.singletonMap("timestamp", recentBlocks));
+
+        List<HttpReferrerPairsCount> counts = new ArrayList<>();
+        // Snapshots from every shard for the timestamp being read. They are summed once a later timestamp shows they
+        // have all been read.
+        List<HttpReferrerPairsCount> sameTime = new ArrayList<>();
+        for (HttpReferrerCountsBlock block : mapper.query(HttpReferrerCountsBlock.class, query)) {
+            for (HttpReferrerPairsCount snapshot : block.getSnapshots()) {
+                if (endTime != null && snapshot.getTimestamp().after(endTime)) {
+                    return addMerged(counts, sameTime);
+                }
+                if (snapshot.getTimestamp().after(startTime)) {
+                    if (!sameTime.isEmpty() && !snapshot.getTimestamp().equals(sameTime.get(0).getTimestamp())) {
+                        addMerged(counts, sameTime);
+                        if (counts.size() == limit) {
+                            // Stop before the mapper loads another page
+                            return counts;
+                        }
+                    }
+                    snapshot.setResource(hashKey);
+                    sameTime.add(snapshot);
+                }
+            }
+        }
+        return addMerged(counts, sameTime);
+    }
+
+    /**
+     * Add the sum of the snapshots for one timestamp, if there are any, to the counts read and clear them.
+     *
+     * @return The counts read.
+     */
+    private static List<HttpReferrerPairsCount> addMerged(List<HttpReferrerPairsCount> counts,
+            List<HttpReferrerPairsCount> sameTime) {
+        if (!sameTime.isEmpty()) {
+            counts.add(ReferrerCountUtils.merge(new ArrayList<>(sameTime)));
+            sameTime.clear();
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.webserver;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Serves requests with another servlet on a dedicated, bounded executor instead of the server's request threads. This
+ * is a simple test and as such, its not really serializable.
+ * <p/>
+ * Each request is suspended with Servlet 3 async processing and queued on the executor, so a burst of slow queries
+ * only ties up the executor's threads and the server's threads stay free to serve static content. When the executor is
+ * saturated the request is answered with 503 Service Unavailable straight away rather than waiting for a thread:
+ * <ul>
+ * <li>if the executor rejects it because its queue is full, or</li>
+ * <li>if it waited in the queue longer than the queue timeout, so the client has likely given up on it.</li>
+ * </ul>
+ * The time each query may take once started is bounded by the client it queries with. The servlet must be registered
+ * with async support. If it is not, requests are served on the calling thread.
+ */
+@SuppressWarnings("serial")
+public class BoundedAsyncServlet extends HttpServlet {
+    private static final Log LOG = LogFactory.getLog(BoundedAsyncServlet.class);
+
+    // Seconds a client is asked to wait before retrying a request that was turned away
+    static final String RETRY_AFTER_IN_SECONDS = "1";
+
+    // This is not serializable and we're not implementing safeguards to support it. Jetty is highly unlikely to
+    // serialize this servlet anyway.
+    private transient HttpServlet delegate;
+
+    // Runs requests. This is not serializable either.
+    private transient ExecutorService executor;
+
+    private long queueTimeoutInNanos;
+
+    // Metrics
+    private final AtomicLong rejectedRequests = new AtomicLong();
+    private final AtomicLong timedOutRequests = new AtomicLong();
+
+    /**
+     * @param delegate The servlet to serve requests with.
+     * @param executor Executor to serve requests on. This should have a bounded number of threads and a bounded queue
+     *        so it rejects requests when saturated.
+     * @param queueTimeoutInMillis The longest a request may wait for a thread before it is turned away.
+     */
+    public BoundedAsyncServlet(HttpServlet delegate, ExecutorService executor, long queueTimeoutInMillis) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate must not be null");
+        }
+        if (executor == null) {
+            throw new NullPointerException("executor must not be null");
+        }
+        if (queueTimeoutInMillis < 1) {
+            throw new IllegalArgumentException("queueTimeoutInMillis must be >= 1");
+        }
+        this.delegate = delegate;
+        this.executor = executor;
+        this.queueTimeoutInNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutInMillis);
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        if (!req.isAsyncSupported()) {
+            delegate.service(req, resp);
+            return;
+        }
+
+        final long queuedAt = System.nanoTime();
+        final AsyncContext async = req.startAsync();
+        // Requests are turned away once they have waited too long for a thread, and queries are bounded by the client
+        // they query with, so the container need not time them out. Its timeout would redispatch a request that is
+        // still being served.
+        async.setTimeout(0);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    serve(async, queuedAt);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            rejectedRequests.incrementAndGet();
+            try {
+                sendUnavailable(resp);
+            } finally {
+                async.complete();
+            }
+        }
+    }
+
+    /**
+     * @return The number of requests turned away because the executor's queue was full.
+     */
+    public long getRejectedRequests() {
+        return rejectedRequests.get();
+    }
+
+    /**
+     * @return The number of requests turned away because they waited too long for a thread.
+     */
+    public long getTimedOutRequests() {
+        return timedOutRequests.get();
+    }
+
+    /**
+     * Serve a suspended request with the delegate, then complete it.
+     */
+    private void serve(AsyncContext async, long queuedAt) {
+        HttpServletResponse resp = (HttpServletResponse) async.getResponse();
+        try {
+            if (System.nanoTime() - queuedAt > queueTimeoutInNanos) {
+                timedOutRequests.incrementAndGet();
+                sendUnavailable(resp);
+                return;
+            }
+            delegate.service(async.getRequest(), resp);
+        } catch (ServletException | IOException | RuntimeException ex) {
+            LOG.error("Error serving request", ex);
+            if (!resp.isCommitted()) {
+                try {
+                    resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                } catch (IOException | IllegalStateException e) {
+                    LOG.debug("Unable to send error response", e);
+                }
+            }
+        } finally {
+            async.complete();
+        }
+    }
+
+    private static void sendUnavailable(HttpServletResponse resp) throws IOException {
+        resp.setHeader("Retry-After", RETRY_AFTER_IN_SECONDS);
+        resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+}
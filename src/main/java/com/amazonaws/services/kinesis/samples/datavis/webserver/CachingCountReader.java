@@ -0,0 +1,258 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.webserver;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.services.kinesis.samples.datavis.kcl.timing.Clock;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.timing.MillisClock;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.utils.ReferrerCountUtils;
+
+/**
+ * Caches the counts read for each hash key in fixed-size blocks of time. Only use this for counts that never change
+ * once written, such as per-interval counts. Rollups are updated until their bucket ends and must not be cached.
+ * <p/>
+ * Blocks are aligned to the epoch. A block is sealed once it ended longer ago than the seal delay. Sealed blocks are
+ * read once and then served from memory until they expire, so overlapping ranges mostly read only the open blocks at
+ * the end of the range. Runs of consecutive sealed blocks missing from the cache are read with a single query. The
+ * blocks used least recently are evicted once the cache holds more than a number of counts.
+ * <p/>
+ * Two things are guaranteed about counts written late:
+ * <ul>
+ * <li>A count written within the seal delay after its block ends is always read. Use the longest a running persister
+ * may take to write a count, {@code DynamoDBCountPersisterConfig.getMaxWriteDelayInMillis()}.</li>
+ * <li>A count written any later is read once the block cached without it expires, no later than the expiry time after
+ * the block was read. Counts sent from a write-ahead log after the counting application restarts, and intervals counted
+ * again when records are replayed, can be written that late.</li>
+ * </ul>
+ * <p/>
+ * Paged reads are passed straight through, as a page read from the cache would not bound the items read any further.
+ */
+public class CachingCountReader implements CountReader {
+    private final CountReader delegate;
+    private final long blockSizeInMillis;
+    private final long sealDelayInMillis;
+    private final long expiryInMillis;
+    private final int maxCounts;
+    private final Clock clock;
+
+    // Sealed blocks by hash key and block start, in access order so the least recently used is evicted first. Guarded
+    // by itself.
+    private final LinkedHashMap<String, Block> blocks = new LinkedHashMap<>(16, 0.75f, true);
+    // The number of counts in every cached block. Guarded by blocks.
+    private long cachedCounts;
+
+    // Metrics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param delegate Reads the counts that are not cached.
+     * @param blockSizeInMillis The length of time each cached block covers.
+     * @param sealDelayInMillis How long after a block ends counts in it may still be written by a running persister.
+     * @param expiryInMillis How long a sealed block is served from memory before it is read again, in case counts were
+     *        written after the seal delay.
+     * @param maxCounts The most counts to keep in cached blocks.
+     */
+    public CachingCountReader(CountReader delegate,
+            long blockSizeInMillis,
+            long sealDelayInMillis,
+            long expiryInMillis,
+            int maxCounts) {
+        this(delegate, blockSizeInMillis, sealDelayInMillis, expiryInMillis, maxCounts, new MillisClock());
+    }
+
+    CachingCountReader(CountReader delegate,
+            long blockSizeInMillis,
+            long sealDelayInMillis,
+            long expiryInMillis,
+            int maxCounts,
+            Clock clock) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate must not be null");
+        }
+        if (blockSizeInMillis < 1) {
+            throw new IllegalArgumentException("blockSizeInMillis must be >= 1");
+        }
+        if (sealDelayInMillis < 0) {
+            throw new IllegalArgumentException("sealDelayInMillis must be >= 0");
+        }
+        if (expiryInMillis < 1) {
+            throw new IllegalArgumentException("expiryInMillis must be >= 1");
+        }
+        if (maxCounts < 1) {
+            throw new IllegalArgumentException("maxCounts must be >= 1");
+        }
+        if (clock == null) {
+            throw new NullPointerException("clock must not be null");
+        }
+        this.delegate = delegate;
+        this.blockSizeInMillis = blockSizeInMillis;
+        this.sealDelayInMillis = sealDelayInMillis;
+        this.expiryInMillis = expiryInMillis;
+        this.maxCounts = maxCounts;
+        this.clock = clock;
+    }
+
+    @Override
+    public List<HttpReferrerPairsCount> read(String hashKey, Date startTime) {
+        return readThrough(hashKey, startTime, null);
+    }
+
+    @Override
+    public List<HttpReferrerPairsCount> read(String hashKey, Date startTime, int limit) {
+        return delegate.read(hashKey, startTime, limit);
+    }
+
+    @Override
+    public List<HttpReferrerPairsCount> read(String hashKey, Date startTime, Date endTime) {
+        return readThrough(hashKey, startTime, endTime);
+    }
+
+    /**
+     * @return The number of sealed blocks served from the cache.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of sealed blocks read because they were not cached or had expired.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Read the sealed blocks in a range through the cache and the rest from the delegate.
+     *
+     * @param endTime Only counts with a timestamp no later than this are returned. May be {@code null} to read every
+     *        count after the start time.
+     */
+    private List<HttpReferrerPairsCount> readThrough(String hashKey, Date startTime, Date endTime) {
+        long now = clock.getTimeUnit().toMillis(clock.getTime());
+        // Blocks that start before this are sealed
+        long sealedBefore = toBlockStart(now - sealDelayInMillis);
+        long last = endTime == null ? Long.MAX_VALUE : endTime.getTime();
+
+        List<HttpReferrerPairsCount> counts = new ArrayList<>();
+        // Counts are after the start time, so the first block is the one the millisecond after it falls in
+        long block = toBlockStart(startTime.getTime() + 1);
+        while (block < sealedBefore && block <= last) {
+            List<HttpReferrerPairsCount> cached = getBlock(hashKey, block, now);
+            if (cached != null) {
+                hits.incrementAndGet();
+                addCounts(counts, cached, startTime, endTime);
+                block += blockSizeInMillis;
+                continue;
+            }
+            // Read the run of sealed blocks missing from the cache with one query
+            long runEnd = block + blockSizeInMillis;
+            while (runEnd < sealedBefore && runEnd <= last && getBlock(hashKey, runEnd, now) == null) {
+                runEnd += blockSizeInMillis;
+            }
+            List<HttpReferrerPairsCount> read = delegate.read(hashKey, new Date(block - 1), new Date(runEnd - 1));
+            Iterator<HttpReferrerPairsCount> it = read.iterator();
+            HttpReferrerPairsCount next = it.hasNext() ? it.next() : null;
+            for (; block < runEnd; block += blockSizeInMillis) {
+                // Every block in the run is cached, even those with no counts
+                List<HttpReferrerPairsCount> blockCounts = new ArrayList<>();
+                while (next != null && next.getTimestamp().getTime() < block + blockSizeInMillis) {
+                    blockCounts.add(next);
+                    next = it.hasNext() ? it.next() : null;
+                }
+                misses.incrementAndGet();
+                putBlock(hashKey, block, blockCounts, now);
+                addCounts(counts, blockCounts, startTime, endTime);
+            }
+        }
+
+        if (block <= last) {
+            // Counts in open blocks may still be written so they are always read
+            Date tailStart = new Date(Math.max(startTime.getTime(), block - 1));
+            counts.addAll(endTime == null ? delegate.read(hashKey, tailStart)
+                    : delegate.read(hashKey, tailStart, endTime));
+        }
+        return counts;
+    }
+
+    /**
+     * Add copies of the counts in a block within a range. Callers may change the counts returned to them, so cached
+     * counts are never returned.
+     */
+    private static void addCounts(List<HttpReferrerPairsCount> counts,
+            List<HttpReferrerPairsCount> block,
+            Date startTime,
+            Date endTime) {
+        for (HttpReferrerPairsCount count : block) {
+            if (count.getTimestamp().after(startTime) && (endTime == null || !count.getTimestamp().after(endTime))) {
+                counts.add(ReferrerCountUtils.copy(count));
+            }
+        }
+    }
+
+    /**
+     * @return The counts in a cached block, or {@code null} if it is not cached or has expired.
+     */
+    private List<HttpReferrerPairsCount> getBlock(String hashKey, long blockStart, long now) {
+        synchronized (blocks) {
+            Block cached = blocks.get(toKey(hashKey, blockStart));
+            if (cached == null || now - cached.cachedAt >= expiryInMillis) {
+                return null;
+            }
+            return cached.counts;
+        }
+    }
+
+    private void putBlock(String hashKey, long blockStart, List<HttpReferrerPairsCount> counts, long now) {
+        synchronized (blocks) {
+            Block replaced = blocks.put(toKey(hashKey, blockStart), new Block(counts, now));
+            cachedCounts += counts.size() - (replaced == null ? 0 : replaced.counts.size());
+            // Evict the least recently used blocks, keeping at least the block just read
+            Iterator<Block> it = blocks.values().iterator();
+            while (cachedCounts > maxCounts && blocks.size() > 1) {
+                cachedCounts -= it.next().counts.size();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return The number of cached counts.
+     */
+    long getCachedCounts() {
+        synchronized (blocks) {
+            return cachedCounts;
+        }
+    }
+
+    private long toBlockStart(long time) {
+        return time - ((time % blockSizeInMillis) + blockSizeInMillis) % blockSizeInMillis;
+    }
+
+    private static String toKey(String hashKey, long blockStart) {
+        return hashKey + '\n' + blockStart;
+    }
+
+    /**
+     * The counts in a sealed block and when they were read.
+     */
+    private static class Block {
+        private final List<HttpReferrerPairsCount> counts;
+        private final long cachedAt;
+
+        Block(List<HttpReferrerPairsCount> counts, long cachedAt) {
+            this.counts = counts;
+            this.cachedAt = cachedAt;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.webserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Counts for a resource laid out as columns for charting: one array of timestamps, a dictionary of referrers, and an
+ * array of counts per referrer with one count per timestamp. Unlike a list of {@link HttpReferrerPairsCount}s the
+ * resource, host and referrer names are written once rather than once per interval, and runs of similar numbers sit
+ * next to each other so they compress well.
+ * <p/>
+ * A referrer with no count at a timestamp has a count of 0 there.
+ */
+class ColumnarCounts {
+    /**
+     * The 4 bytes at the start of the binary format ("KCC1" when read as little-endian).
+     */
+    static final int BINARY_MAGIC = 0x3143434B;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String resource;
+    // The host of the last count
+    private final String host;
+    private final long[] timestamps;
+    private final List<String> referrers = new ArrayList<>();
+    // Counts per referrer in the same order as the referrers
+    private final List<long[]> counts = new ArrayList<>();
+
+    /**
+     * @param resource The resource the counts are for.
+     * @param countsByTimestamp Counts in ascending order by timestamp.
+     */
+    ColumnarCounts(String resource, List<HttpReferrerPairsCount> countsByTimestamp) {
+        this.resource = resource;
+        this.host = countsByTimestamp.isEmpty() ? null : countsByTimestamp.get(countsByTimestamp.size() - 1).getHost();
+        this.timestamps = new long[countsByTimestamp.size()];
+        Map<String, long[]> countsByReferrer = new HashMap<>();
+        for (int i = 0; i < timestamps.length; i++) {
+            HttpReferrerPairsCount count = countsByTimestamp.get(i);
+            timestamps[i] = count.getTimestamp().getTime();
+            for (ReferrerCount referrerCount : count.getReferrerCounts()) {
+                long[] column = countsByReferrer.get(referrerCount.getReferrer());
+                if (column == null) {
+                    // Referrers are numbered in the order they first appear
+                    column = new long[timestamps.length];
+                    countsByReferrer.put(referrerCount.getReferrer(), column);
+                    referrers.add(referrerCount.getReferrer());
+                    counts.add(column);
+                }
+                column[i] = referrerCount.getCount();
+            }
+        }
+    }
+
+    /**
+     * Write the counts as a JSON object, e.g.
+     *
+     * <pre>
+     * {"resource":"/index.html","host":"worker-1","timestamps":[1000,2000],
+     *  "referrers":["http://www.amazon.com","http://aws.amazon.com"],"counts":[[7,8],[0,3]]}
+     * </pre>
+     */
+    void writeJson(JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("resource", resource);
+        generator.writeStringField("host", host);
+        generator.writeArrayFieldStart("timestamps");
+        for (long timestamp : timestamps) {
+            generator.writeNumber(timestamp);
+        }
+        generator.writeEndArray();
+        generator.writeArrayFieldStart("referrers");
+        for (String referrer : referrers) {
+            generator.writeString(referrer);
+        }
+        generator.writeEndArray();
+        generator.writeArrayFieldStart("counts");
+        for (long[] column : counts) {
+            generator.writeStartArray();
+            for (long count : column) {
+                generator.writeNumber(count);
+            }
+            generator.writeEndArray();
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+    }
+
+    /**
+     * Write the counts in a little-endian binary format:
+     *
+     * <pre>
+     * magic (4 bytes), resource, host, number of timestamps N (4 bytes), N timestamps (8 bytes each),
+     * number of referrers R (4 bytes), then for each of the R referrers: referrer, N counts (8 bytes each)
+     * </pre>
+     *
+     * Strings are a 4 byte length followed by that many bytes of UTF-8. A missing host has a length of -1.
+     */
+    void writeBinary(OutputStream out) throws IOException {
+        ByteBuffer header = newBuffer(4);
+        header.putInt(BINARY_MAGIC);
+        write(header, out);
+        writeString(resource, out);
+        writeString(host, out);
+        writeLongs(timestamps, out, true);
+        ByteBuffer referrerCount = newBuffer(4);
+        referrerCount.putInt(referrers.size());
+        write(referrerCount, out);
+        for (int i = 0; i < referrers.size(); i++) {
+            writeString(referrers.get(i), out);
+            writeLongs(counts.get(i), out, false);
+        }
+    }
+
+    private static void writeString(String value, OutputStream out) throws IOException {
+        byte[] bytes = value == null ? null : value.getBytes(UTF8);
+        ByteBuffer length = newBuffer(4);
+        length.putInt(bytes == null ? -1 : bytes.length);
+        write(length, out);
+        if (bytes != null) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Write an array of longs, optionally preceded by its length.
+     */
+    private static void writeLongs(long[] values, OutputStream out, boolean withLength) throws IOException {
+        ByteBuffer buffer = newBuffer((withLength ? 4 : 0) + values.length * 8);
+        if (withLength) {
+            buffer.putInt(values.length);
+        }
+        for (long value : values) {
+            buffer.putLong(value);
+        }
+        write(buffer, out);
+    }
+
+    private static ByteBuffer newBuffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void write(ByteBuffer buffer, OutputStream out) throws IOException {
+        out.write(buffer.array(), 0, buffer.position());
+    }
+}
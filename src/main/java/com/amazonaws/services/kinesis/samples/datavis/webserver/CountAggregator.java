@@ -0,0 +1,188 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.webserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+import com.amazonaws.services.kinesis.samples.datavis.utils.ReferrerCountUtils;
+
+/**
+ * Reduces the counts for a resource before they are returned, so the size of a response is bounded however long the
+ * range or however many referrers there are.
+ * <p/>
+ * Counts are added one at a time in ascending order by timestamp and averaged over fixed-size time buckets aligned to
+ * the epoch, so the same bucket has the same timestamp in every response and buckets chart on the same scale as the
+ * counts in them, as rollups do. Each count is folded into its bucket and the totals per referrer as it is added, so no
+ * more than a sum per referrer per bucket is kept. If a Top N is requested the referrers with the highest totals over
+ * every bucket are kept, and the rest are summed into a single {@link ReferrerCountUtils#OTHER_REFERRERS} entry per
+ * bucket.
+ */
+class CountAggregator {
+    private final String resource;
+    private final long bucketSizeInMillis;
+    private final int topN;
+
+    private final List<Bucket> buckets = new ArrayList<>();
+    // The bucket counts are being added to. This is the last of the buckets.
+    private Bucket current;
+    // Totals per referrer over every bucket, to select the Top N from
+    private final Map<String, Long> totals = new HashMap<>();
+
+    /**
+     * @param resource The resource counts are being aggregated for.
+     * @param bucketSizeInMillis The length of time each bucket covers. Use 1 to keep every timestamp.
+     * @param topN The number of referrers to keep, or 0 to keep them all.
+     */
+    CountAggregator(String resource, long bucketSizeInMillis, int topN) {
+        if (resource == null) {
+            throw new NullPointerException("resource must not be null");
+        }
+        if (bucketSizeInMillis < 1) {
+            throw new IllegalArgumentException("bucketSizeInMillis must be >= 1");
+        }
+        if (topN < 0) {
+            throw new IllegalArgumentException("topN must be >= 0");
+        }
+        this.resource = resource;
+        this.bucketSizeInMillis = bucketSizeInMillis;
+        this.topN = topN;
+    }
+
+    /**
+     * Choose the size of buckets so a range has no more than a number of them. As buckets are aligned to the epoch, a
+     * range that doesn't start at the start of a bucket may touch one more.
+     *
+     * @param rangeInMillis The length of time being aggregated.
+     * @param maxPoints The most buckets the range should have.
+     * @param resolutionInMillis The length of time each count covers. Buckets are a multiple of this so every bucket
+     *        averages the same number of counts.
+     * @return The bucket size in milliseconds.
+     */
+    static long toBucketSize(long rangeInMillis, int maxPoints, long resolutionInMillis) {
+        long bucketSize = Math.max(1, rangeInMillis / maxPoints + (rangeInMillis % maxPoints == 0 ? 0 : 1));
+        long intervals = bucketSize / resolutionInMillis + (bucketSize % resolutionInMillis == 0 ? 0 : 1);
+        return intervals * resolutionInMillis;
+    }
+
+    /**
+     * Add the next count.
+     *
+     * @param count A count with a timestamp no earlier than those already added.
+     */
+    void add(HttpReferrerPairsCount count) {
+        long time = count.getTimestamp().getTime();
+        long bucketStart = time - ((time % bucketSizeInMillis) + bucketSizeInMillis) % bucketSizeInMillis;
+        if (current == null || current.start != bucketStart) {
+            current = new Bucket(bucketStart);
+            buckets.add(current);
+        }
+        current.host = count.getHost();
+        current.samples++;
+        for (ReferrerCount referrerCount : count.getReferrerCounts()) {
+            current.add(referrerCount.getReferrer(), referrerCount.getCount());
+            if (topN > 0) {
+                Long total = totals.get(referrerCount.getReferrer());
+                totals.put(referrerCount.getReferrer(),
+                        (total == null ? 0L : total.longValue()) + referrerCount.getCount());
+            }
+        }
+    }
+
+    /**
+     * @return A count per bucket in ascending order by timestamp, each with referrer counts in descending order.
+     */
+    List<HttpReferrerPairsCount> getCounts() {
+        Set<String> top = topN > 0 ? selectTopReferrers() : null;
+        List<HttpReferrerPairsCount> counts = new ArrayList<>(buckets.size());
+        for (Bucket bucket : buckets) {
+            List<ReferrerCount> referrerCounts = new ArrayList<>(bucket.counts.size());
+            long other = 0;
+            for (Map.Entry<String, long[]> entry : bucket.counts.entrySet()) {
+                if (top == null || top.contains(entry.getKey())) {
+                    referrerCounts.add(newReferrerCount(entry.getKey(), bucket.average(entry.getValue()[0])));
+                } else {
+                    other += entry.getValue()[0];
+                }
+            }
+            Collections.sort(referrerCounts, ReferrerCountUtils.DESCENDING_BY_COUNT);
+            if (other > 0) {
+                referrerCounts.add(newReferrerCount(ReferrerCountUtils.OTHER_REFERRERS, bucket.average(other)));
+            }
+
+            HttpReferrerPairsCount count = new HttpReferrerPairsCount();
+            count.setResource(resource);
+            count.setTimestamp(new Date(bucket.start));
+            count.setHost(bucket.host);
+            count.setReferrerCounts(referrerCounts);
+            counts.add(count);
+        }
+        return counts;
+    }
+
+    /**
+     * @return The referrers with the highest totals. Counts already summed into other referrers are never selected.
+     */
+    private Set<String> selectTopReferrers() {
+        List<ReferrerCount> referrerTotals = new ArrayList<>(totals.size());
+        for (Map.Entry<String, Long> entry : totals.entrySet()) {
+            if (!ReferrerCountUtils.OTHER_REFERRERS.equals(entry.getKey())) {
+                referrerTotals.add(newReferrerCount(entry.getKey(), entry.getValue()));
+            }
+        }
+        Set<String> top = new HashSet<>();
+        for (ReferrerCount referrerTotal : ReferrerCountUtils.topN(referrerTotals, topN)) {
+            top.add(referrerTotal.getReferrer());
+        }
+        top.remove(ReferrerCountUtils.OTHER_REFERRERS);
+        return top;
+    }
+
+    private static ReferrerCount newReferrerCount(String referrer, long count) {
+        ReferrerCount referrerCount = new ReferrerCount();
+        referrerCount.setReferrer(referrer);
+        referrerCount.setCount(count);
+        return referrerCount;
+    }
+
+    /**
+     * The sum of the counts per referrer with a timestamp in a bucket.
+     */
+    private static class Bucket {
+        private final long start;
+        // The host of the last count added
+        private String host;
+        // The number of counts added
+        private long samples;
+        // Single element arrays so sums are updated in place
+        private final Map<String, long[]> counts = new HashMap<>();
+
+        Bucket(long start) {
+            this.start = start;
+        }
+
+        void add(String referrer, long count) {
+            long[] sum = counts.get(referrer);
+            if (sum == null) {
+                sum = new long[1];
+                counts.put(referrer, sum);
+            }
+            sum[0] += count;
+        }
+
+        long average(long sum) {
+            return Math.round((double) sum / samples);
+        }
+    }
+}
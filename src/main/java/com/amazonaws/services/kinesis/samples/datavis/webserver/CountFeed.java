@@ -0,0 +1,238 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.webserver;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.servlet.ServletException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Polls for new counts of a single resource on behalf of every subscriber to it, and broadcasts each new count to all
+ * of them as a Server-Sent Event. The counts read are the same however many subscribers there are.
+ * <p/>
+ * The most recent counts are kept so a new subscriber is sent them straight away instead of querying for them itself.
+ * Each event's id is the cursor of the count it carries (see {@link GetCountsServlet#toCursor(Date)}), so a subscriber
+ * that reconnects with the last id it received is only sent the counts it missed.
+ * <p/>
+ * Counts for an interval may still be written for a while after it, by another shard or as a retry. Each poll reads
+ * the intervals within a settle time of the newest count again, and sends an event again for any whose count has
+ * changed. Subscribers replace the count they have for a timestamp with the one in the newest event for it.
+ */
+class CountFeed {
+    private static final Log LOG = LogFactory.getLog(CountFeed.class);
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    /**
+     * Receives events from the feed.
+     */
+    interface Subscriber {
+        /**
+         * Send events to the subscriber.
+         *
+         * @param events One or more complete events in the Server-Sent Events format.
+         * @throws IOException if the subscriber can no longer be sent events. It is unsubscribed.
+         */
+        void send(String events) throws IOException;
+    }
+
+    private final String resource;
+    private final RecentCountsSource source;
+    private final long historyInMillis;
+    private final long settleTimeInMillis;
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    // The timestamp of the newest count read. Guarded by this.
+    private Date cursor;
+    // Events last sent for the most recent counts by timestamp. Guarded by this.
+    private final NavigableMap<Date, String> history = new TreeMap<>();
+    // Set once the feed has no subscribers and has stopped polling. Guarded by this.
+    private boolean closed;
+
+    /**
+     * @param resource The resource to poll for counts of.
+     * @param source Source of the counts.
+     * @param now The current time in milliseconds since the epoch.
+     * @param historyInMillis How far back counts are kept to send to new subscribers. The first poll reads this far
+     *        back.
+     */
+    CountFeed(String resource, RecentCountsSource source, long now, long historyInMillis) {
+        this(resource, source, now, historyInMillis, 0L);
+    }
+
+    /**
+     * @param resource The resource to poll for counts of.
+     * @param source Source of the counts.
+     * @param now The current time in milliseconds since the epoch.
+     * @param historyInMillis How far back counts are kept to send to new subscribers. The first poll reads this far
+     *        back.
+     * @param settleTimeInMillis How long counts for an interval may still be written after it. Every poll reads this
+     *        far back from the newest count so changed counts are sent again. May be 0 if counts never change once
+     *        read.
+     */
+    CountFeed(String resource, RecentCountsSource source, long now, long historyInMillis, long settleTimeInMillis) {
+        if (resource == null) {
+            throw new NullPointerException("resource must not be null");
+        }
+        if (source == null) {
+            throw new NullPointerException("source must not be null");
+        }
+        if (historyInMillis < 0) {
+            throw new IllegalArgumentException("historyInMillis must be >= 0");
+        }
+        if (settleTimeInMillis < 0) {
+            throw new IllegalArgumentException("settleTimeInMillis must be >= 0");
+        }
+        this.resource = resource;
+        this.source = source;
+        this.historyInMillis = historyInMillis;
+        this.settleTimeInMillis = settleTimeInMillis;
+        this.cursor = new Date(now - historyInMillis);
+    }
+
+    /**
+     * Subscribe to new counts. The subscriber is sent the recent counts after a time before any new counts.
+     *
+     * @param subscriber The subscriber to send events to.
+     * @param after Only recent counts with a timestamp after this are sent, along with those within the settle time
+     *        before it since they may have changed. May be {@code null} to send every recent count.
+     * @return {@code false} if the feed is closed. Subscribe to a new feed instead.
+     * @throws IOException if the recent counts could not be sent. The subscriber is not subscribed.
+     */
+    synchronized boolean subscribe(Subscriber subscriber, Date after) throws IOException {
+        if (closed) {
+            return false;
+        }
+        StringBuilder events = new StringBuilder();
+        long oldest = cursor.getTime() - historyInMillis;
+        if (after != null) {
+            oldest = Math.max(oldest, after.getTime() - settleTimeInMillis);
+        }
+        for (String event : history.tailMap(new Date(oldest), false).values()) {
+            events.append(event);
+        }
+        if (events.length() > 0) {
+            subscriber.send(events.toString());
+        }
+        subscribers.add(subscriber);
+        return true;
+    }
+
+    /**
+     * Stop sending events to a subscriber.
+     */
+    void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    /**
+     * @return The number of subscribers to this feed.
+     */
+    int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Read the counts newer than the last poll, and those within the settle time before it, and broadcast the new and
+     * changed ones to every subscriber. If there are none, a comment is sent instead when {@code heartbeat} is set so
+     * subscribers that have gone away are noticed and intermediaries keep the connection open.
+     */
+    void poll(boolean heartbeat) {
+        Date after;
+        synchronized (this) {
+            after = new Date(cursor.getTime() - settleTimeInMillis);
+        }
+        List<HttpReferrerPairsCount> counts;
+        try {
+            counts = source.getCountsAfter(resource, after);
+        } catch (ServletException | RuntimeException ex) {
+            LOG.warn("Unable to read new counts for resource " + resource, ex);
+            return;
+        }
+
+        synchronized (this) {
+            StringBuilder events = new StringBuilder();
+            for (HttpReferrerPairsCount count : counts) {
+                Date timestamp = count.getTimestamp();
+                if (timestamp.getTime() <= cursor.getTime() - settleTimeInMillis) {
+                    continue;
+                }
+                String event = toEvent(count);
+                if (event.equals(history.put(timestamp, event))) {
+                    // Read again but unchanged since it was sent
+                    continue;
+                }
+                events.append(event);
+                if (timestamp.after(cursor)) {
+                    cursor = timestamp;
+                }
+            }
+            // Forget counts too old to be sent to new subscribers, or to be compared with counts read again
+            long oldest = cursor.getTime() - Math.max(historyInMillis, settleTimeInMillis);
+            history.headMap(new Date(oldest), true).clear();
+            if (events.length() > 0) {
+                broadcast(events.toString());
+            } else if (heartbeat) {
+                broadcast(":\n\n");
+            }
+        }
+    }
+
+    /**
+     * Close the feed if it has no subscribers. A closed feed accepts no new subscribers.
+     *
+     * @return {@code true} if the feed is closed.
+     */
+    synchronized boolean closeIfIdle() {
+        if (subscribers.isEmpty()) {
+            closed = true;
+        }
+        return closed;
+    }
+
+    /**
+     * Send events to every subscriber, unsubscribing those that can no longer receive them.
+     */
+    private void broadcast(String events) {
+        Iterator<Subscriber> it = subscribers.iterator();
+        while (it.hasNext()) {
+            Subscriber subscriber = it.next();
+            try {
+                subscriber.send(events);
+            } catch (IOException ex) {
+                LOG.debug("Subscriber to resource " + resource + " disconnected", ex);
+                subscribers.remove(subscriber);
+            }
+        }
+    }
+
+    /**
+     * Format a count as an event whose id is its cursor and whose data is the count as JSON, in the same form as
+     * {@link GetCountsServlet} returns it.
+     */
+    private static String toEvent(HttpReferrerPairsCount count) {
+        try {
+            return "id: " + GetCountsServlet.toCursor(count.getTimestamp()) + "\ndata: "
+                    + JSON.writeValueAsString(count) + "\n\n";
+        } catch (JsonProcessingException ex) {
+            throw new IllegalStateException("Unable to convert count to JSON", ex);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.webserver;
+
+import java.util.Date;
+import java.util.List;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+
+/**
+ * Reads the counts stored under a single hash key. Implementations exist for each way counts may be laid out in the
+ * counts table.
+ */
+public interface CountReader {
+
+    /**
+     * Read recent counts.
+     *
+     * @param hashKey The hash key counts are stored under.
+     * @param startTime Only counts with a timestamp after this are returned.
+     * @return Counts in ascending order by timestamp. Their resource is the hash key they were read from. The list is
+     *         fully loaded so it may be used from any thread.
+     */
+    List<HttpReferrerPairsCount> read(String hashKey, Date startTime);
+
+    /**
+     * Read a page of recent counts. Only as many counts as are returned are read from the counts table.
+     *
+     * @param hashKey The hash key counts are stored under.
+     * @param startTime Only counts with a timestamp after this are returned.
+     * @param limit The most counts to return.
+     * @return The earliest counts after the start time in ascending order by timestamp. If fewer than the limit are
+     *         returned there are no more. Their resource is the hash key they were read from. The list is fully loaded
+     *         so it may be used from any thread.
+     */
+    List<HttpReferrerPairsCount> read(String hashKey, Date startTime, int limit);
+
+    /**
+     * Read the counts in a range of time, so a long range can be read as several shorter ones in parallel.
+     *
+     * @param hashKey The hash key counts are stored under.
+     * @param startTime Only counts with a timestamp after this are returned.
+     * @param endTime Only counts with a timestamp no later than this are returned.
+     * @return Counts in ascending order by timestamp. Their resource is the hash key they were read from. The list is
+     *         fully loaded so it may be used from any thread.
+     */
+    List<HttpReferrerPairsCount> read(String hashKey, Date startTime, Date endTime);
+}
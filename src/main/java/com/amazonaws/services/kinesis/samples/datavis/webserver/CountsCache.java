@@ -0,0 +1,257 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.webserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+
+import com.amazonaws.services.kinesis.samples.datavis.kcl.timing.Clock;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.timing.NanoClock;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.utils.ReferrerCountUtils;
+
+/**
+ * Caches the counts returned for a resource and range, or since a time, for a short time. Counts only change once per
+ * interval, so every dashboard polling the same resource and range within that time can share one query.
+ * <p/>
+ * Concurrent requests that miss the cache for the same key are coalesced. The first runs the query and the rest wait
+ * for its result. A failed query is not cached, so the next request tries again. When the cache is full the result
+ * whose query started longest ago is evicted to make room for the new one.
+ * <p/>
+ * Every request is given its own copies of the counts, so callers may change them without affecting each other.
+ */
+public class CountsCache {
+    private final long ttlInNanos;
+    private final int maxEntries;
+    private final Clock clock;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    // Metrics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * @param ttlInMillis How long a result is served from the cache after its query started. Use the interval counts
+     *        are persisted at.
+     * @param maxEntries The most results to keep.
+     */
+    public CountsCache(long ttlInMillis, int maxEntries) {
+        this(ttlInMillis, maxEntries, new NanoClock());
+    }
+
+    CountsCache(long ttlInMillis, int maxEntries, Clock clock) {
+        if (ttlInMillis < 1) {
+            throw new IllegalArgumentException("ttlInMillis must be >= 1");
+        }
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be >= 1");
+        }
+        if (clock == null) {
+            throw new NullPointerException("clock must not be null");
+        }
+        this.ttlInNanos = TimeUnit.MILLISECONDS.toNanos(ttlInMillis);
+        this.maxEntries = maxEntries;
+        this.clock = clock;
+    }
+
+    /**
+     * Get the counts for a resource and range from the cache, or query them if they are not cached or have expired.
+     *
+     * @param resource The resource being requested.
+     * @param rangeInSeconds The range being requested.
+     * @param query Queries the counts. This is run on the calling thread if it is run at all.
+     * @return Copies of the counts.
+     * @throws ServletException if the query failed, whether it was run by this request or one it was coalesced with.
+     */
+    public List<HttpReferrerPairsCount> get(String resource,
+            long rangeInSeconds,
+            Callable<List<HttpReferrerPairsCount>> query) throws ServletException {
+        return get(resource + '\n' + rangeInSeconds, query);
+    }
+
+    /**
+     * Get the counts for a resource after a time from the cache, or query them if they are not cached or have expired.
+     *
+     * @param resource The resource being requested.
+     * @param since The exclusive time counts are being requested after.
+     * @param query Queries the counts. This is run on the calling thread if it is run at all.
+     * @return Copies of the counts.
+     * @throws ServletException if the query failed, whether it was run by this request or one it was coalesced with.
+     */
+    public List<HttpReferrerPairsCount> getSince(String resource,
+            Date since,
+            Callable<List<HttpReferrerPairsCount>> query) throws ServletException {
+        return get(resource + "\n>" + since.getTime(), query);
+    }
+
+    private List<HttpReferrerPairsCount> get(String key, Callable<List<HttpReferrerPairsCount>> query)
+        throws ServletException {
+        while (true) {
+            Entry entry = entries.get(key);
+            if (entry != null && !isExpired(entry)) {
+                if (entry.result.isDone()) {
+                    hits.incrementAndGet();
+                } else {
+                    coalesced.incrementAndGet();
+                }
+                return copy(await(key, entry));
+            }
+
+            Entry fresh = new Entry(query, clock.getTime());
+            boolean installed =
+                    entry == null ? entries.putIfAbsent(key, fresh) == null : entries.replace(key, entry, fresh);
+            if (!installed) {
+                // Another request started a query for this key first. Use its result.
+                continue;
+            }
+            misses.incrementAndGet();
+            if (entries.size() > maxEntries && !removeExpired()) {
+                evictOldest(key);
+            }
+            fresh.result.run();
+            return copy(await(key, fresh));
+        }
+    }
+
+    /**
+     * @return The number of requests served from a completed query.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of requests that ran a query.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return The number of requests that waited for a query another request was running.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return The number of results cached, including expired results not yet removed.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * A query still running never expires, otherwise every request that arrives while it runs would start another.
+     */
+    private boolean isExpired(Entry entry) {
+        return entry.result.isDone() && clock.getTimeUnit().toNanos(clock.getTime() - entry.startedAt) >= ttlInNanos;
+    }
+
+    /**
+     * Remove every expired result.
+     *
+     * @return {@code true} if the cache is no longer over its limit.
+     */
+    private boolean removeExpired() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (isExpired(it.next())) {
+                it.remove();
+            }
+        }
+        return entries.size() <= maxEntries;
+    }
+
+    /**
+     * Evict the results whose queries started longest ago, other than the one for a key, until the cache is no longer
+     * over its limit. Requests already waiting on an evicted query still share its result.
+     */
+    private void evictOldest(String keep) {
+        while (entries.size() > maxEntries) {
+            String oldestKey = null;
+            Entry oldest = null;
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                if (!entry.getKey().equals(keep)
+                        && (oldest == null || entry.getValue().startedAt - oldest.startedAt < 0)) {
+                    oldestKey = entry.getKey();
+                    oldest = entry.getValue();
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            entries.remove(oldestKey, oldest);
+        }
+    }
+
+    /**
+     * Copy counts for a caller. Results are shared by every request for the same key, so they are never returned.
+     */
+    private static List<HttpReferrerPairsCount> copy(List<HttpReferrerPairsCount> counts) {
+        List<HttpReferrerPairsCount> copies = new ArrayList<>(counts.size());
+        for (HttpReferrerPairsCount count : counts) {
+            copies.add(ReferrerCountUtils.copy(count));
+        }
+        return copies;
+    }
+
+    private List<HttpReferrerPairsCount> await(String key, Entry entry) throws ServletException {
+        try {
+            return entry.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServletException("Interrupted while waiting for counts", e);
+        } catch (ExecutionException e) {
+            // Don't cache failures
+            entries.remove(key, entry);
+            Throwable cause = e.getCause();
+            if (cause instanceof ServletException) {
+                throw (ServletException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ServletException("Error querying counts", cause);
+        }
+    }
+
+    /**
+     * The result of a query for a key and when, in the clock's time, the query started.
+     */
+    private static class Entry {
+        private final FutureTask<List<HttpReferrerPairsCount>> result;
+        private final long startedAt;
+
+        Entry(final Callable<List<HttpReferrerPairsCount>> query, long startedAt) {
+            this.result = new FutureTask<>(new Callable<List<HttpReferrerPairsCount>>() {
+                @Override
+                public List<HttpReferrerPairsCount> call() throws Exception {
+                    return Collections.unmodifiableList(query.call());
+                }
+            });
+            this.startedAt = startedAt;
+        }
+    }
+}
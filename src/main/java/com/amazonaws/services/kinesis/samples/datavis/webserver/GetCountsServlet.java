@@ -6,11 +6,12 @@
 package com.amazonaws.services.kinesis.samples.datavis.webserver;
 
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
-import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBQueryExpression;
-import com.amazonaws.services.dynamodbv2.model.AttributeValue;
-import com.amazonaws.services.dynamodbv2.model.ComparisonOperator;
-import com.amazonaws.services.dynamodbv2.model.Condition;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb.CountItemKeys;
 import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+import com.amazonaws.services.kinesis.samples.datavis.utils.HashKeySharding;
+import com.amazonaws.services.kinesis.samples.datavis.utils.ReferrerCountUtils;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import org.eclipse.jetty.util.MultiMap;
@@ -23,28 +24,61 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A servlet to serve requests for counts. This is a simple test and as such, its not really serializable.
+ * <p/>
+ * If counts are written to several hash keys per resource (see {@link HashKeySharding}) every hash key is queried in
+ * parallel and the results are merged. Counts from different hash keys with the same timestamp are summed.
+ * <p/>
+ * Counts may be stored at several resolutions, e.g. per interval and rolled up per minute and per hour. Each request is
+ * answered from the finest resolution that returns no more than a fixed number of points over the requested range, so
+ * long ranges read a bounded number of items.
+ * <p/>
+ * If a {@link CountsCache} is provided, requests for the same resource and range share a query until its result
+ * expires.
+ * <p/>
+ * Clients that poll can request only the counts newer than those they already have. Every response includes an opaque
+ * cursor in the {@value #HEADER_NEXT_CURSOR} header. Passing it back as the {@value #PARAMETER_CURSOR} parameter
+ * returns only counts with a later timestamp, so a steady-state poll reads and transfers only the most recent
+ * intervals instead of the whole range. Counts for an interval may still be written for a while after it, by another shard
+ * or as a retry, so the cursor is held back by a settle time: every poll returns the intervals within it again, and
+ * clients replace the counts they have for a timestamp with those returned for it. A timestamp in milliseconds may be
+ * passed as the {@value #PARAMETER_SINCE} parameter instead of a cursor. Incremental requests always read the finest
+ * resolution, as coarser counts are still updated after their timestamp. One that reaches back further than the budget
+ * per hash key allows at that resolution must be paged, and is answered with 400 Bad Request otherwise.
+ * <p/>
+ * The response can be bounded however long the range is or however many referrers there are. The
+ * {@value #PARAMETER_TOP_N} parameter keeps only the referrers with the highest counts over the whole response and sums
+ * the rest into one entry per count. The {@value #PARAMETER_MAX_POINTS} parameter averages the counts over a range into
+ * no more than about that many evenly sized time buckets. It does not apply to incremental requests, which return
+ * about one interval's worth of counts anyway.
+ * <p/>
+ * Long ranges can be read a page at a time with the {@value #PARAMETER_PAGE_SIZE} parameter. Each hash key is read no
+ * further than a page, so the memory used per request is bounded however long the range is. If there may be more
+ * counts, the response includes a token in the {@value #HEADER_CONTINUATION_TOKEN} header. Passing it back as the
+ * {@value #PARAMETER_CONTINUATION_TOKEN} parameter returns the next page at the same resolution. Pages are not cached.
+ * Ranges longer than the coarsest resolution can return within the budget per hash key must be paged. Every response
+ * is written one count at a time as it is serialized, but only once every count in it has been read, since its entity
+ * tag and cursor depend on them. Memory per request is bounded by the budget rather than flat. Long ranges that are not
+ * paged are read from each hash key as several shorter segments in parallel.
+ * <p/>
+ * The {@value #PARAMETER_FORMAT} parameter chooses how counts are laid out (see {@link ResponseFormat}). Chart clients
+ * can ask for {@code columnar} JSON, or its {@code binary} equivalent, instead of repeating the resource, host and
+ * every referrer for every interval. Every response has an entity tag, so a poll for counts that have not changed
+ * since the last is answered with 304 Not Modified.
  */
 @SuppressWarnings("serial")
-public class GetCountsServlet extends HttpServlet {
+public class GetCountsServlet extends HttpServlet implements RecentCountsSource {
 
     private static final Log LOG = LogFactory.getLog(GetCountsServlet.class);
 
-    private static final ThreadLocal<DateFormat> DATE_FORMATTER = new ThreadLocal<DateFormat>() {
-        @Override
-        protected DateFormat initialValue() {
-            // ISO-8601 format
-            DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-            df.setTimeZone(UTC);
-            return df;
-        }
-    };
-    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
 
     // This is not serializable and we're not implementing safeguards to support it. Jetty is highly unlikely to
     // serialize this servlet anyway.
@@ -52,16 +86,144 @@ public class GetCountsServlet extends HttpServlet {
 
     // This is not serializable and we're not implementing safeguards to support it. Jetty is highly unlikely to
     // serialize this servlet anyway.
-    private transient DynamoDBMapper mapper;
+    // Readers for each resolution counts are stored at, by the length of time in milliseconds each count covers
+    private transient NavigableMap<Long, CountReader> readersByResolution;
+
+    // The most counts per hash key a request should read
+    private int maxPoints;
+
+    // Determines which hash keys to query for a resource
+    private transient HashKeySharding sharding;
+
+    // Runs queries for the hash keys of sharded resources. This is null if resources are not sharded.
+    private transient ExecutorService queryExecutor;
+
+    // Shares query results between requests. This is null if every request queries for itself.
+    private transient CountsCache cache;
+
+    // How long counts may still be written after their interval. Cursors are held back this far.
+    private long settleTimeInMillis;
 
     private static final String PARAMETER_RESOURCE = "resource";
     private static final String PARAMETER_RANGE_IN_SECONDS = "range_in_seconds";
+    static final String PARAMETER_SINCE = "since";
+    static final String PARAMETER_CURSOR = "cursor";
+    static final String PARAMETER_TOP_N = "top_n";
+    static final String PARAMETER_MAX_POINTS = "max_points";
+    static final String PARAMETER_PAGE_SIZE = "page_size";
+    static final String PARAMETER_CONTINUATION_TOKEN = "continuation_token";
+    static final String PARAMETER_FORMAT = "format";
+
+    static final String HEADER_NEXT_CURSOR = "X-Next-Cursor";
+    static final String HEADER_CONTINUATION_TOKEN = "X-Continuation-Token";
+
+    // The most counts a page may have
+    static final int MAX_PAGE_SIZE = 1000;
+
+    // The fewest counts per hash key worth reading as a segment of a range of their own
+    static final int POINTS_PER_SEGMENT = 150;
+    // The most segments a range is read from each hash key in
+    public static final int MAX_SEGMENTS = 8;
 
     public GetCountsServlet(DynamoDBMapper mapper) {
-        if (mapper == null) {
-            throw new NullPointerException("DynamoDBMapper must not be null");
+        this(new IntervalCountReader(mapper), new HashKeySharding(1), null);
+    }
+
+    /**
+     * @param reader Reads counts in the layout they are stored in.
+     * @param sharding How counts are spread over hash keys. This must match the persister writing the counts.
+     * @param queryExecutor Executor to query the hash keys of a sharded resource in parallel. May be {@code null} if
+     *        resources are not sharded.
+     */
+    public GetCountsServlet(CountReader reader, HashKeySharding sharding, ExecutorService queryExecutor) {
+        this(new TreeMap<>(Collections.singletonMap(1L, reader)), Integer.MAX_VALUE, sharding, queryExecutor);
+    }
+
+    /**
+     * @param readersByResolution Readers for each resolution counts are stored at, keyed by the length of time in
+     *        milliseconds each count covers.
+     * @param maxPoints The most counts per hash key a request should read. The finest resolution within this budget
+     *        for the requested range is read, or the coarsest if none are.
+     * @param sharding How counts are spread over hash keys. This must match the persister writing the counts.
+     * @param queryExecutor Executor to query the hash keys of a sharded resource in parallel. May be {@code null} if
+     *        resources are not sharded.
+     */
+    public GetCountsServlet(NavigableMap<Long, CountReader> readersByResolution,
+            int maxPoints,
+            HashKeySharding sharding,
+            ExecutorService queryExecutor) {
+        this(readersByResolution, maxPoints, sharding, queryExecutor, null);
+    }
+
+    /**
+     * @param readersByResolution Readers for each resolution counts are stored at, keyed by the length of time in
+     *        milliseconds each count covers.
+     * @param maxPoints The most counts per hash key a request should read. The finest resolution within this budget
+     *        for the requested range is read, or the coarsest if none are.
+     * @param sharding How counts are spread over hash keys. This must match the persister writing the counts.
+     * @param queryExecutor Executor to query the hash keys of a sharded resource, and the segments of long ranges, in
+     *        parallel. May be {@code null} if resources are not sharded, to read each range with a single query.
+     * @param cache Cache to share query results between requests. May be {@code null} to query for every request.
+     */
+    public GetCountsServlet(NavigableMap<Long, CountReader> readersByResolution,
+            int maxPoints,
+            HashKeySharding sharding,
+            ExecutorService queryExecutor,
+            CountsCache cache) {
+        this(readersByResolution, maxPoints, sharding, queryExecutor, cache, 0L);
+    }
+
+    /**
+     * @param readersByResolution Readers for each resolution counts are stored at, keyed by the length of time in
+     *        milliseconds each count covers.
+     * @param maxPoints The most counts per hash key a request should read. The finest resolution within this budget
+     *        for the requested range is read, or the coarsest if none are.
+     * @param sharding How counts are spread over hash keys. This must match the persister writing the counts.
+     * @param queryExecutor Executor to query the hash keys of a sharded resource, and the segments of long ranges, in
+     *        parallel. May be {@code null} if resources are not sharded, to read each range with a single query.
+     * @param cache Cache to share query results between requests. May be {@code null} to query for every request.
+     * @param settleTimeInMillis How long after the start of an interval counts for it may still be written. Cursors
+     *        are held back at least this far so those counts are read by the next poll. May be 0 if counts are
+     *        complete once read.
+     */
+    public GetCountsServlet(NavigableMap<Long, CountReader> readersByResolution,
+            int maxPoints,
+            HashKeySharding sharding,
+            ExecutorService queryExecutor,
+            CountsCache cache,
+            long settleTimeInMillis) {
+        if (readersByResolution == null) {
+            throw new NullPointerException("readersByResolution must not be null");
+        }
+        if (readersByResolution.isEmpty()) {
+            throw new IllegalArgumentException("readersByResolution must not be empty");
         }
-        this.mapper = mapper;
+        for (Map.Entry<Long, CountReader> entry : readersByResolution.entrySet()) {
+            if (entry.getValue() == null) {
+                throw new NullPointerException("reader must not be null");
+            }
+            if (entry.getKey() < 1) {
+                throw new IllegalArgumentException("resolutions must be >= 1");
+            }
+        }
+        if (maxPoints < 1) {
+            throw new IllegalArgumentException("maxPoints must be >= 1");
+        }
+        if (sharding == null) {
+            throw new NullPointerException("sharding must not be null");
+        }
+        if (sharding.getWriteShards() > 1 && queryExecutor == null) {
+            throw new NullPointerException("queryExecutor must not be null when resources are sharded");
+        }
+        if (settleTimeInMillis < 0) {
+            throw new IllegalArgumentException("settleTimeInMillis must be >= 0");
+        }
+        this.readersByResolution = new TreeMap<>(readersByResolution);
+        this.maxPoints = maxPoints;
+        this.sharding = sharding;
+        this.queryExecutor = queryExecutor;
+        this.cache = cache;
+        this.settleTimeInMillis = settleTimeInMillis;
     }
 
     @Override
@@ -69,38 +231,651 @@ public class GetCountsServlet extends HttpServlet {
         MultiMap<String> params = new MultiMap<>();
         UrlEncoded.decodeTo(req.getQueryString(), params, "UTF-8");
 
-        // We need both parameters to properly query for counts
-        if (!params.containsKey(PARAMETER_RESOURCE) || !params.containsKey(PARAMETER_RANGE_IN_SECONDS)) {
+        // We need a resource and either a range or a point to continue from to properly query for counts
+        if (!params.containsKey(PARAMETER_RESOURCE)
+                || !(params.containsKey(PARAMETER_RANGE_IN_SECONDS) || params.containsKey(PARAMETER_SINCE)
+                        || params.containsKey(PARAMETER_CURSOR) || params.containsKey(PARAMETER_CONTINUATION_TOKEN))) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        final String resource = params.getString(PARAMETER_RESOURCE);
+
+        Date since = null;
+        int rangeInSeconds = 0;
+        int topN = 0;
+        int maxPointsToReturn = 0;
+        int pageSize = 0;
+        ResponseFormat format = ResponseFormat.JSON;
+        // The resolution and position a paged request continues from
+        long continueAtResolution = 0;
+        Date continueAfter = null;
+        try {
+            if (params.containsKey(PARAMETER_FORMAT)) {
+                format = ResponseFormat.valueOf(params.getString(PARAMETER_FORMAT).toUpperCase(Locale.US));
+            }
+            if (params.containsKey(PARAMETER_TOP_N)) {
+                topN = parsePositiveInt(params.getString(PARAMETER_TOP_N));
+            }
+            if (params.containsKey(PARAMETER_MAX_POINTS)) {
+                maxPointsToReturn = parsePositiveInt(params.getString(PARAMETER_MAX_POINTS));
+            }
+            if (params.containsKey(PARAMETER_PAGE_SIZE)) {
+                pageSize = Math.min(parsePositiveInt(params.getString(PARAMETER_PAGE_SIZE)), MAX_PAGE_SIZE);
+            }
+            if (params.containsKey(PARAMETER_CONTINUATION_TOKEN)) {
+                String token = params.getString(PARAMETER_CONTINUATION_TOKEN);
+                continueAtResolution = toResolution(token);
+                continueAfter = toContinueAfter(token);
+                if (pageSize == 0) {
+                    pageSize = MAX_PAGE_SIZE;
+                }
+            } else if (params.containsKey(PARAMETER_CURSOR)) {
+                since = fromCursor(params.getString(PARAMETER_CURSOR));
+            } else if (params.containsKey(PARAMETER_SINCE)) {
+                since = new Date(Long.parseLong(params.getString(PARAMETER_SINCE)));
+            } else {
+                // Parse query string as a single integer - the number of seconds since "now" to query for new counts
+                rangeInSeconds = Integer.parseInt(params.getString(PARAMETER_RANGE_IN_SECONDS));
+            }
+        } catch (IllegalArgumentException ex) {
+            // The range, time, cursor or token could not be parsed
             resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
             return;
         }
+        long rangeInMillis = TimeUnit.SECONDS.toMillis(rangeInSeconds);
+        if (pageSize > 0 && maxPointsToReturn > 0) {
+            // Time buckets would be split across pages
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, PARAMETER_MAX_POINTS + " cannot be used with pages");
+            return;
+        }
+        if (pageSize == 0 && since == null && !isWithinBudget(rangeInMillis)) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Range is too long to return at once. Use "
+                    + PARAMETER_PAGE_SIZE + " to read it a page at a time.");
+            return;
+        }
+        if (pageSize == 0 && since != null && !isWithinBudgetSince(since)) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Too many counts since " + CountItemKeys.formatTimestamp(
+                    since) + " to return at once. Use " + PARAMETER_PAGE_SIZE + " to read them a page at a time.");
+            return;
+        }
+
+        List<HttpReferrerPairsCount> counts;
+        // The cursor to return if there are no counts
+        Date after;
+        String continuationToken = null;
+        if (pageSize > 0) {
+            long resolution;
+            if (continueAfter != null) {
+                resolution = continueAtResolution;
+                after = continueAfter;
+            } else if (since != null) {
+                resolution = readersByResolution.firstKey();
+                after = since;
+            } else {
+                resolution = selectResolution(rangeInMillis);
+                after = new Date(System.currentTimeMillis() - rangeInMillis);
+            }
+            CountsPage page = queryPage(resolution, resource, after, pageSize);
+            counts = page.counts;
+            if (page.more) {
+                continuationToken = toContinuationToken(resolution, counts.get(counts.size() - 1).getTimestamp());
+            }
+        } else if (since != null) {
+            counts = querySince(resource, since);
+            after = since;
+        } else {
+            after = new Date(System.currentTimeMillis() - rangeInMillis);
+            counts = queryRange(resource, rangeInSeconds);
+        }
+        if (!counts.isEmpty()) {
+            // The cursor continues from the last count read, not the last bucket it was summed into
+            after = counts.get(counts.size() - 1).getTimestamp();
+        }
+        // The newest intervals may not be complete yet so the next poll reads them again
+        after = settleCursor(after, since);
+        if (topN > 0 || (maxPointsToReturn > 0 && since == null)) {
+            long bucketSize = 1;
+            if (maxPointsToReturn > 0 && since == null) {
+                bucketSize = CountAggregator.toBucketSize(rangeInMillis, maxPointsToReturn,
+                        selectResolution(rangeInMillis));
+            }
+            CountAggregator aggregator = new CountAggregator(resource, bucketSize, topN);
+            for (HttpReferrerPairsCount count : counts) {
+                aggregator.add(count);
+            }
+            counts = aggregator.getCounts();
+        }
+
+        String cursor = toCursor(after);
+        String etag = toETag(format, cursor, continuationToken, counts);
+        resp.setHeader(HEADER_NEXT_CURSOR, cursor);
+        if (continuationToken != null) {
+            resp.setHeader(HEADER_CONTINUATION_TOKEN, continuationToken);
+        }
+        resp.setHeader("ETag", etag);
+        // Let clients keep responses but make them check they are unchanged before using them again
+        resp.setHeader("Cache-Control", "no-cache");
+        if (matchesETag(req.getHeader("If-None-Match"), etag)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        // Return the counts in the format requested
+        resp.setStatus(HttpServletResponse.SC_OK);
+        switch (format) {
+            case COLUMNAR:
+                resp.setContentType("application/json");
+                try (JsonGenerator generator = JSON.getFactory().createGenerator(resp.getWriter())) {
+                    new ColumnarCounts(resource, counts).writeJson(generator);
+                }
+                break;
+            case BINARY:
+                resp.setContentType("application/octet-stream");
+                new ColumnarCounts(resource, counts).writeBinary(resp.getOutputStream());
+                break;
+            default:
+                resp.setContentType("application/json");
+                writeCounts(resp, counts);
+        }
+    }
 
-        // Parse query string as a single integer - the number of seconds since "now" to query for new counts
-        String resource = params.getString(PARAMETER_RESOURCE);
-        int rangeInSeconds = Integer.parseInt(params.getString(PARAMETER_RANGE_IN_SECONDS));
+    /**
+     * Write counts as a JSON array one at a time, so no more than a buffer of the response is held in memory.
+     */
+    private void writeCounts(HttpServletResponse resp, List<HttpReferrerPairsCount> counts) throws IOException {
+        try (JsonGenerator generator = JSON.getFactory().createGenerator(resp.getWriter())) {
+            generator.writeStartArray();
+            for (HttpReferrerPairsCount count : counts) {
+                generator.writeObject(count);
+            }
+            generator.writeEndArray();
+        }
+    }
 
+    /**
+     * Compute a weak entity tag for a response from everything in it, without serializing it. Repeated polls for
+     * counts that have not changed have the same tag so they can be answered with 304 Not Modified.
+     */
+    static String toETag(ResponseFormat format,
+            String cursor,
+            String continuationToken,
+            List<HttpReferrerPairsCount> counts) {
+        // 64-bit FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        hash = hash(hash, format.name());
+        hash = hash(hash, cursor);
+        hash = hash(hash, continuationToken);
+        for (HttpReferrerPairsCount count : counts) {
+            hash = hash(hash, count.getTimestamp().getTime());
+            hash = hash(hash, count.getHost());
+            for (ReferrerCount referrerCount : count.getReferrerCounts()) {
+                hash = hash(hash, referrerCount.getReferrer());
+                hash = hash(hash, referrerCount.getCount());
+            }
+        }
+        return "W/\"" + Long.toHexString(hash) + '"';
+    }
+
+    private static long hash(long hash, String value) {
+        if (value == null) {
+            return hash(hash, -1L);
+        }
+        hash = hash(hash, value.length());
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long hash(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash = (hash ^ (value & 0xFF)) * 0x100000001b3L;
+            value >>>= 8;
+        }
+        return hash;
+    }
+
+    /**
+     * @param ifNoneMatch The value of an If-None-Match header. May be {@code null}.
+     * @return {@code true} if the header matches the entity tag, using the weak comparison conditional GETs use.
+     */
+    static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String opaqueTag = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*")) {
+                return true;
+            }
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(opaqueTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public List<HttpReferrerPairsCount> getCounts(String resource, int rangeInSeconds) throws ServletException {
+        if (rangeInSeconds < 0) {
+            throw new IllegalArgumentException("rangeInSeconds must be >= 0");
+        }
+        if (!isWithinBudget(TimeUnit.SECONDS.toMillis(rangeInSeconds))) {
+            throw new IllegalArgumentException("Range is too long to return at once");
+        }
+        return queryRange(resource, rangeInSeconds);
+    }
+
+    /**
+     * Counts are read at the finest resolution, so a time further back than {@link #maxPoints} counts per hash key at
+     * that resolution is moved forward to the earliest time within the budget.
+     */
+    @Override
+    public List<HttpReferrerPairsCount> getCountsAfter(String resource, Date after) throws ServletException {
+        long finest = readersByResolution.firstKey();
+        long earliest = System.currentTimeMillis() - finest * maxPoints;
+        return querySince(resource, after.getTime() < earliest ? new Date(earliest) : after);
+    }
+
+    /**
+     * @return How long after the start of an interval counts for it may still be written. Cursors are held back this
+     *         far.
+     */
+    public long getSettleTimeInMillis() {
+        return settleTimeInMillis;
+    }
+
+    /**
+     * Hold a cursor back to the oldest interval counts may still be written for. The result is aligned to the finest
+     * resolution so clients polling at the same interval keep sharing cursors.
+     *
+     * @param after The timestamp of the newest count read, or where the read started if none were.
+     * @param since The cursor or time the request continued from. The cursor never moves back before it. May be
+     *        {@code null} if the request was for a range.
+     * @return The cursor to return.
+     */
+    Date settleCursor(Date after, Date since) {
+        if (settleTimeInMillis == 0) {
+            return after;
+        }
+        long finest = readersByResolution.firstKey();
+        long settled = System.currentTimeMillis() - settleTimeInMillis;
+        settled -= settled % finest;
+        if (after.getTime() <= settled) {
+            return after;
+        }
+        if (since != null && since.getTime() > settled) {
+            return since;
+        }
+        return new Date(settled);
+    }
+
+    /**
+     * Query the counts for a resource over the last range of seconds, sharing the result through the cache if there is
+     * one.
+     */
+    private List<HttpReferrerPairsCount> queryRange(final String resource, final int rangeInSeconds)
+        throws ServletException {
+        if (cache == null) {
+            return queryRangeUncached(resource, rangeInSeconds);
+        }
+        return cache.get(resource, rangeInSeconds, new Callable<List<HttpReferrerPairsCount>>() {
+            @Override
+            public List<HttpReferrerPairsCount> call() throws ServletException {
+                return queryRangeUncached(resource, rangeInSeconds);
+            }
+        });
+    }
+
+    /**
+     * Query the counts for a resource with a timestamp after a time, sharing the result through the cache if there is
+     * one. Clients polling the same resource at the same interval are given the same cursors, so they share queries.
+     */
+    private List<HttpReferrerPairsCount> querySince(final String resource, final Date since) throws ServletException {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("Querying for counts of resource %s after %s", resource,
+                    CountItemKeys.formatTimestamp(since)));
+        }
+        final long finest = readersByResolution.firstKey();
+        if (cache == null) {
+            return queryAllHashKeys(finest, resource, since);
+        }
+        return cache.getSince(resource, since, new Callable<List<HttpReferrerPairsCount>>() {
+            @Override
+            public List<HttpReferrerPairsCount> call() throws ServletException {
+                return queryAllHashKeys(finest, resource, since);
+            }
+        });
+    }
+
+    /**
+     * Query the counts for a resource over the last range of seconds.
+     */
+    private List<HttpReferrerPairsCount> queryRangeUncached(String resource, int rangeInSeconds)
+        throws ServletException {
         Calendar c = Calendar.getInstance();
         c.add(Calendar.SECOND, -1 * rangeInSeconds);
         Date startTime = c.getTime();
         if (LOG.isDebugEnabled()) {
-            LOG.debug(String.format("Querying for counts of resource %s since %s", resource, DATE_FORMATTER.get().format(startTime)));
+            LOG.debug(String.format("Querying for counts of resource %s since %s", resource,
+                    CountItemKeys.formatTimestamp(startTime)));
         }
 
-        DynamoDBQueryExpression<HttpReferrerPairsCount> query = new DynamoDBQueryExpression<>();
-        HttpReferrerPairsCount hashKey = new HttpReferrerPairsCount();
-        hashKey.setResource(resource);
-        query.setHashKeyValues(hashKey);
+        long resolution = selectResolution(TimeUnit.SECONDS.toMillis(rangeInSeconds));
+        return queryAllHashKeys(resolution, resource, startTime);
+    }
 
-        Condition recentUpdates =
-                new Condition().withComparisonOperator(ComparisonOperator.GT)
-                        .withAttributeValueList(new AttributeValue().withS(DATE_FORMATTER.get().format(startTime)));
-        query.setRangeKeyConditions(Collections.singletonMap("timestamp", recentUpdates));
+    /**
+     * @return An opaque cursor for the counts after a time.
+     */
+    static String toCursor(Date after) {
+        return Long.toHexString(after.getTime());
+    }
 
-        List<HttpReferrerPairsCount> counts = mapper.query(HttpReferrerPairsCount.class, query);
+    /**
+     * @return The time counts are requested after.
+     * @throws IllegalArgumentException if the cursor was not returned by {@link #toCursor(Date)}.
+     */
+    static Date fromCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+        return new Date(Long.parseLong(cursor, 16));
+    }
 
-        // Return the counts as JSON
-        resp.setContentType("application/json");
-        resp.setStatus(HttpServletResponse.SC_OK);
-        JSON.writeValue(resp.getWriter(), counts);
+    /**
+     * @return A token to continue reading a paged request at a resolution after a time.
+     */
+    static String toContinuationToken(long resolutionInMillis, Date after) {
+        return Long.toHexString(resolutionInMillis) + '.' + toCursor(after);
+    }
+
+    /**
+     * @return The resolution a paged request continues at.
+     * @throws IllegalArgumentException if the token is malformed or for a resolution counts are not stored at.
+     */
+    private long toResolution(String continuationToken) {
+        int separator = continuationToken.indexOf('.');
+        if (separator < 1) {
+            throw new IllegalArgumentException("Invalid continuation token: " + continuationToken);
+        }
+        long resolution = Long.parseLong(continuationToken.substring(0, separator), 16);
+        if (!readersByResolution.containsKey(resolution)) {
+            throw new IllegalArgumentException("Invalid continuation token: " + continuationToken);
+        }
+        return resolution;
+    }
+
+    /**
+     * @return The time a paged request continues after.
+     * @throws IllegalArgumentException if the token is malformed.
+     */
+    private static Date toContinueAfter(String continuationToken) {
+        return fromCursor(continuationToken.substring(continuationToken.indexOf('.') + 1));
+    }
+
+    /**
+     * @return {@code true} if a range can be read without exceeding {@link #maxPoints} counts per hash key at some
+     *         resolution.
+     */
+    private boolean isWithinBudget(long rangeInMillis) {
+        return isWithinBudget(rangeInMillis, readersByResolution.lastKey());
+    }
+
+    /**
+     * @return {@code true} if the counts after a time can be read at the finest resolution, as incremental requests
+     *         are, without exceeding {@link #maxPoints} counts per hash key.
+     */
+    private boolean isWithinBudgetSince(Date since) {
+        return isWithinBudget(System.currentTimeMillis() - since.getTime(), readersByResolution.firstKey());
+    }
+
+    private boolean isWithinBudget(long rangeInMillis, long resolution) {
+        return rangeInMillis / resolution + (rangeInMillis % resolution == 0 ? 0 : 1) <= maxPoints;
+    }
+
+    /**
+     * Choose the finest resolution that returns no more than {@link #maxPoints} counts over a range.
+     *
+     * @param rangeInMillis The length of time being queried.
+     * @return The reader for the chosen resolution, or for the coarsest resolution if none are fine enough.
+     */
+    CountReader selectReader(long rangeInMillis) {
+        return readersByResolution.get(selectResolution(rangeInMillis));
+    }
+
+    /**
+     * Choose the finest resolution that returns no more than {@link #maxPoints} counts over a range.
+     *
+     * @param rangeInMillis The length of time being queried.
+     * @return The length of time in milliseconds each count at the chosen resolution covers, or that of the coarsest
+     *         resolution if none are fine enough.
+     */
+    private long selectResolution(long rangeInMillis) {
+        for (long resolution : readersByResolution.keySet()) {
+            long points = rangeInMillis / resolution + (rangeInMillis % resolution == 0 ? 0 : 1);
+            if (points <= maxPoints) {
+                return resolution;
+            }
+        }
+        return readersByResolution.lastKey();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the value is not a number greater than 0.
+     */
+    private static int parsePositiveInt(String value) {
+        int parsed = Integer.parseInt(value);
+        if (parsed < 1) {
+            throw new IllegalArgumentException("Expected a number greater than 0: " + value);
+        }
+        return parsed;
+    }
+
+    /**
+     * Split a long range into segments to read in parallel. Each segment covers at least
+     * {@value #POINTS_PER_SEGMENT} counts, so the longer the range the more segments there are, up to
+     * {@value #MAX_SEGMENTS}.
+     *
+     * @param resolutionInMillis The length of time each count read covers.
+     * @param startTime The time the range starts after.
+     * @param now The current time in milliseconds since the epoch.
+     * @return The times the range is split at in ascending order. Segments are the ranges after the start time up to
+     *         and including the first of them, after that up to and including the second, and so on, with the last
+     *         segment having no end. This is empty if the range should be read at once.
+     */
+    static List<Date> toSegmentBoundaries(long resolutionInMillis, Date startTime, long now) {
+        long rangeInMillis = now - startTime.getTime();
+        long points = rangeInMillis / resolutionInMillis + (rangeInMillis % resolutionInMillis == 0 ? 0 : 1);
+        int segments = (int) Math.min(MAX_SEGMENTS, points / POINTS_PER_SEGMENT);
+        if (segments < 2) {
+            return Collections.emptyList();
+        }
+        // Whole intervals per segment, so segments split between counts rather than through them
+        long segmentLength = (points / segments + (points % segments == 0 ? 0 : 1)) * resolutionInMillis;
+        List<Date> boundaries = new ArrayList<>(segments - 1);
+        for (int i = 1; i < segments; i++) {
+            boundaries.add(new Date(startTime.getTime() + i * segmentLength));
+        }
+        return boundaries;
+    }
+
+    /**
+     * Query every hash key a resource's counts may be stored under and merge the results.
+     *
+     * @param resolution The resolution chosen for the request.
+     * @param resource The resource to query counts for.
+     * @param startTime Only counts after this time are returned.
+     * @return Counts for the resource in ascending order by timestamp.
+     */
+    private List<HttpReferrerPairsCount> queryAllHashKeys(long resolution, String resource, Date startTime)
+        throws ServletException {
+        return queryPage(resolution, resource, startTime, 0).counts;
+    }
+
+    /**
+     * Query a page of counts from every hash key a resource's counts may be stored under and merge the results. Each
+     * hash key is read up to the limit, so the page only includes timestamps every hash key has been read up to.
+     * <p/>
+     * If every count is requested and there is an executor to run queries on, long ranges are read from each hash key
+     * as several segments in parallel (see {@link #toSegmentBoundaries(long, Date, long)}) rather than one page after
+     * another.
+     *
+     * @param resolution The resolution chosen for the request.
+     * @param resource The resource to query counts for.
+     * @param startTime Only counts after this time are returned.
+     * @param limit The most counts to return, or 0 to return every count.
+     * @return Counts for the resource in ascending order by timestamp.
+     */
+    private CountsPage queryPage(long resolution, String resource, final Date startTime, final int limit)
+        throws ServletException {
+        final CountReader reader = readersByResolution.get(resolution);
+        List<String> hashKeys = sharding.getHashKeys(resource);
+        List<Date> boundaries = limit > 0 || queryExecutor == null ? Collections.<Date> emptyList()
+                : toSegmentBoundaries(resolution, startTime, System.currentTimeMillis());
+        if (hashKeys.size() == 1 && boundaries.isEmpty()) {
+            List<HttpReferrerPairsCount> counts = query(reader, hashKeys.get(0), startTime, limit);
+            return new CountsPage(counts, limit > 0 && counts.size() == limit);
+        }
+
+        List<Future<List<HttpReferrerPairsCount>>> results =
+                new ArrayList<>(hashKeys.size() * (boundaries.size() + 1));
+        for (final String hashKey : hashKeys) {
+            Date segmentStart = startTime;
+            for (final Date segmentEnd : boundaries) {
+                final Date start = segmentStart;
+                results.add(queryExecutor.submit(new Callable<List<HttpReferrerPairsCount>>() {
+                    @Override
+                    public List<HttpReferrerPairsCount> call() {
+                        return query(reader, hashKey, start, segmentEnd);
+                    }
+                }));
+                segmentStart = segmentEnd;
+            }
+            // The last segment, or the whole range if it is not split, reads every count after its start
+            final Date lastSegmentStart = segmentStart;
+            results.add(queryExecutor.submit(new Callable<List<HttpReferrerPairsCount>>() {
+                @Override
+                public List<HttpReferrerPairsCount> call() {
+                    return query(reader, hashKey, lastSegmentStart, limit);
+                }
+            }));
+        }
+
+        // Group the counts from all hash keys and segments by timestamp
+        SortedMap<Date, List<HttpReferrerPairsCount>> countsByTimestamp = new TreeMap<>();
+        // The latest timestamp every hash key has been read up to, if any has more counts to read
+        Date complete = null;
+        try {
+            for (Future<List<HttpReferrerPairsCount>> result : results) {
+                List<HttpReferrerPairsCount> counts = result.get();
+                if (limit > 0 && counts.size() == limit) {
+                    Date last = counts.get(counts.size() - 1).getTimestamp();
+                    complete = complete == null || last.before(complete) ? last : complete;
+                }
+                for (HttpReferrerPairsCount count : counts) {
+                    List<HttpReferrerPairsCount> sameTime = countsByTimestamp.get(count.getTimestamp());
+                    if (sameTime == null) {
+                        sameTime = new ArrayList<>(1);
+                        countsByTimestamp.put(count.getTimestamp(), sameTime);
+                    }
+                    sameTime.add(count);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServletException("Interrupted while querying counts", e);
+        } catch (ExecutionException e) {
+            throw new ServletException("Error querying counts for resource " + resource, e.getCause());
+        } finally {
+            // Don't leave queries running if one failed
+            for (Future<List<HttpReferrerPairsCount>> result : results) {
+                result.cancel(true);
+            }
+        }
+
+        boolean more = complete != null;
+        if (more) {
+            // Later timestamps may be missing counts from hash keys not read that far yet
+            countsByTimestamp = countsByTimestamp.headMap(new Date(complete.getTime() + 1));
+        }
+        List<HttpReferrerPairsCount> merged = new ArrayList<>(countsByTimestamp.size());
+        for (List<HttpReferrerPairsCount> sameTime : countsByTimestamp.values()) {
+            if (limit > 0 && merged.size() == limit) {
+                more = true;
+                break;
+            }
+            merged.add(merge(resource, sameTime));
+        }
+        return new CountsPage(merged, more);
+    }
+
+    /**
+     * Query a single hash key for counts.
+     *
+     * @param limit The most counts to read, or 0 to read every count.
+     */
+    private List<HttpReferrerPairsCount> query(CountReader reader, String hashKey, Date startTime, int limit) {
+        List<HttpReferrerPairsCount> counts =
+                limit > 0 ? reader.read(hashKey, startTime, limit) : reader.read(hashKey, startTime);
+        for (HttpReferrerPairsCount count : counts) {
+            count.setResource(sharding.toResource(count.getResource()));
+        }
+        return counts;
+    }
+
+    /**
+     * Query a single hash key for the counts in a segment of a range.
+     */
+    private List<HttpReferrerPairsCount> query(CountReader reader, String hashKey, Date startTime, Date endTime) {
+        List<HttpReferrerPairsCount> counts = reader.read(hashKey, startTime, endTime);
+        for (HttpReferrerPairsCount count : counts) {
+            count.setResource(sharding.toResource(count.getResource()));
+        }
+        return counts;
+    }
+
+    /**
+     * Combine counts for the same resource and timestamp written under different hash keys.
+     */
+    private HttpReferrerPairsCount merge(String resource, List<HttpReferrerPairsCount> sameTime) {
+        HttpReferrerPairsCount merged = ReferrerCountUtils.merge(sameTime);
+        merged.setResource(resource);
+        return merged;
+    }
+
+    /**
+     * A page of counts and whether there may be more after it.
+     */
+    private static class CountsPage {
+        private final List<HttpReferrerPairsCount> counts;
+        private final boolean more;
+
+        CountsPage(List<HttpReferrerPairsCount> counts, boolean more) {
+            this.counts = counts;
+            this.more = more;
+        }
+    }
+
+    /**
+     * How a response lays out the counts.
+     */
+    enum ResponseFormat {
+        /**
+         * A JSON array of {@link HttpReferrerPairsCount}s.
+         */
+        JSON,
+        /**
+         * A JSON object of columns, see {@link ColumnarCounts#writeJson(JsonGenerator)}.
+         */
+        COLUMNAR,
+        /**
+         * The columns in little-endian binary, see {@link ColumnarCounts#writeBinary(java.io.OutputStream)}.
+         */
+        BINARY
     }
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.webserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBQueryExpression;
+import com.amazonaws.services.dynamodbv2.datamodeling.QueryResultPage;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ComparisonOperator;
+import com.amazonaws.services.dynamodbv2.model.Condition;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb.CountItemKeys;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.utils.ReferrerCountUtils;
+
+/**
+ * Reads counts stored as one item per resource per interval from each shard. The items for the same interval are
+ * summed into one count.
+ */
+public class IntervalCountReader implements CountReader {
+
+    private DynamoDBMapper mapper;
+
+    /**
+     * @param mapper Mapper to query the counts table with.
+     */
+    public IntervalCountReader(DynamoDBMapper mapper) {
+        if (mapper == null) {
+            throw new NullPointerException("DynamoDBMapper must not be null");
+        }
+        this.mapper = mapper;
+    }
+
+    @Override
+    public List<HttpReferrerPairsCount> read(String hashKey, Date startTime) {
+        // Load every page now. The mapper lazily loads results, which must not happen on another thread.
+        return ReferrerCountUtils.mergeByTimestamp(new ArrayList<>(mapper.query(HttpReferrerPairsCount.class,
+                newQuery(hashKey, startTime))));
+    }
+
+    @Override
+    public List<HttpReferrerPairsCount> read(String hashKey, Date startTime, int limit) {
+        DynamoDBQueryExpression<HttpReferrerPairsCount> query = newQuery(hashKey, startTime);
+        query.setLimit(limit);
+        // Every shard writes an item per interval, so read pages until a timestamp after the limit shows every item
+        // for the last timestamp returned has been read
+        List<HttpReferrerPairsCount> items = new ArrayList<>();
+        List<HttpReferrerPairsCount> counts;
+        do {
+            QueryResultPage<HttpReferrerPairsCount> page = mapper.queryPage(HttpReferrerPairsCount.class, query);
+            items.addAll(page.getResults());
+            query.setExclusiveStartKey(page.getLastEvaluatedKey());
+            counts = ReferrerCountUtils.mergeByTimestamp(items);
+        } while (query.getExclusiveStartKey() != null && counts.size() <= limit);
+        return counts.size() <= limit ? counts : new ArrayList<>(counts.subList(0, limit));
+    }
+
+    @Override
+    public List<HttpReferrerPairsCount> read(String hashKey, Date startTime, Date endTime) {
+        DynamoDBQueryExpression<HttpReferrerPairsCount> query = newQuery(hashKey, startTime);
+        query.setRangeKeyConditions(Collections.singletonMap("timestamp", between(startTime, endTime)));
+        return ReferrerCountUtils.mergeByTimestamp(new ArrayList<>(mapper.query(HttpReferrerPairsCount.class, query)));
+    }
+
+    /**
+     * @return A condition for range keys with a timestamp after a start time and no later than an end time.
+     */
+    static Condition between(Date startTime, Date endTime) {
+        // Timestamps are stored to the millisecond so the millisecond after the start is the first after it
+        return new Condition().withComparisonOperator(ComparisonOperator.BETWEEN).withAttributeValueList(
+                new AttributeValue().withS(CountItemKeys.formatTimestamp(new Date(startTime.getTime() + 1))),
+                new AttributeValue().withS(afterEveryRangeKey(endTime)));
+    }
+
+    /**
+     * @return A value that sorts after every range key for a timestamp, whatever shard wrote it, and before the next.
+     */
+    static String afterEveryRangeKey(Date timestamp) {
+        return CountItemKeys.formatTimestamp(timestamp) + HttpReferrerPairsCount.RANGE_KEY_UPPER_BOUND;
+    }
+
+    private DynamoDBQueryExpression<HttpReferrerPairsCount> newQuery(String hashKey, Date startTime) {
+        DynamoDBQueryExpression<HttpReferrerPairsCount> query = new DynamoDBQueryExpression<>();
+        HttpReferrerPairsCount hashKeyValues = new HttpReferrerPairsCount();
+        hashKeyValues.setResource(hashKey);
+        query.setHashKeyValues(hashKeyValues);
+
+        Condition recentUpdates =
+                new Condition().withComparisonOperator(ComparisonOperator.GT)
+                        .withAttributeValueList(new AttributeValue().withS(afterEveryRangeKey(startTime)));
+        query.setRangeKeyConditions(Collections.singletonMap("timestamp", recentUpdates));
+        return query;
+    }
+}
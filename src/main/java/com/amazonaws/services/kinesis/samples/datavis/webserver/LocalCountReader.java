@@ -0,0 +1,62 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.webserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.local.TimeSeriesReader;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.utils.ReferrerCountUtils;
+
+/**
+ * Reads counts from a local time-series store written by a
+ * {@link com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.local.LocalCountPersister} on this machine.
+ * Counts each shard stored for the same interval are summed into one.
+ */
+public class LocalCountReader implements CountReader {
+    private TimeSeriesReader reader;
+
+    /**
+     * @param reader Reader for the time-series store counts are persisted to.
+     */
+    public LocalCountReader(TimeSeriesReader reader) {
+        if (reader == null) {
+            throw new NullPointerException("reader must not be null");
+        }
+        this.reader = reader;
+    }
+
+    @Override
+    public List<HttpReferrerPairsCount> read(String hashKey, Date startTime) {
+        try {
+            return ReferrerCountUtils.mergeByTimestamp(reader.read(hashKey, startTime));
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to read counts for " + hashKey + " from the local time-series store",
+                    ex);
+        }
+    }
+
+    @Override
+    public List<HttpReferrerPairsCount> read(String hashKey, Date startTime, int limit) {
+        List<HttpReferrerPairsCount> counts = read(hashKey, startTime);
+        return counts.size() <= limit ? counts : new ArrayList<>(counts.subList(0, limit));
+    }
+
+    @Override
+    public List<HttpReferrerPairsCount> read(String hashKey, Date startTime, Date endTime) {
+        List<HttpReferrerPairsCount> counts = new ArrayList<>();
+        for (HttpReferrerPairsCount count : read(hashKey, startTime)) {
+            if (count.getTimestamp().after(endTime)) {
+                break;
+            }
+            counts.add(count);
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.webserver;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.local.RecentCounts;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+
+/**
+ * Reads the most recent counts from the counting application's {@link RecentCounts} when it runs in the same process,
+ * and older counts from another reader. Counts are in memory as soon as they are computed, so the newest counts are
+ * charted without waiting for them to be written to and read back from DynamoDB.
+ * <p/>
+ * Each read is split at the time the recent counts cover since. Counts up to it are read from the delegate and counts
+ * after it from memory, so no count is read twice.
+ */
+public class RecentCountReader implements CountReader {
+    private final RecentCounts recentCounts;
+    private final CountReader delegate;
+
+    /**
+     * @param recentCounts The counts held by the counting application in this process.
+     * @param delegate Reads counts older than those held in memory.
+     */
+    public RecentCountReader(RecentCounts recentCounts, CountReader delegate) {
+        if (recentCounts == null) {
+            throw new NullPointerException("recentCounts must not be null");
+        }
+        if (delegate == null) {
+            throw new NullPointerException("delegate must not be null");
+        }
+        this.recentCounts = recentCounts;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public List<HttpReferrerPairsCount> read(String hashKey, Date startTime) {
+        return readSplit(hashKey, startTime, null);
+    }
+
+    @Override
+    public List<HttpReferrerPairsCount> read(String hashKey, Date startTime, int limit) {
+        Date coveredSince = recentCounts.getCoveredSince();
+        if (!startTime.before(coveredSince)) {
+            return recentCounts.read(hashKey, startTime, null, limit);
+        }
+        List<HttpReferrerPairsCount> counts = new ArrayList<>(delegate.read(hashKey, startTime, limit));
+        // Counts the delegate has after the split are read from memory instead
+        Iterator<HttpReferrerPairsCount> it = counts.iterator();
+        while (it.hasNext()) {
+            if (it.next().getTimestamp().after(coveredSince)) {
+                it.remove();
+            }
+        }
+        // A short page means the delegate has nothing more up to the split, so fill the rest of it from memory
+        if (counts.size() < limit) {
+            counts.addAll(recentCounts.read(hashKey, coveredSince, null, limit - counts.size()));
+        }
+        return counts;
+    }
+
+    @Override
+    public List<HttpReferrerPairsCount> read(String hashKey, Date startTime, Date endTime) {
+        return readSplit(hashKey, startTime, endTime);
+    }
+
+    /**
+     * Read the counts in a range from the delegate up to the split and from memory after it.
+     *
+     * @param endTime Only counts with a timestamp no later than this are returned. May be {@code null} to read every
+     *        count after the start time.
+     */
+    private List<HttpReferrerPairsCount> readSplit(String hashKey, Date startTime, Date endTime) {
+        Date coveredSince = recentCounts.getCoveredSince();
+        if (endTime != null && !endTime.after(coveredSince)) {
+            return delegate.read(hashKey, startTime, endTime);
+        }
+        if (!startTime.before(coveredSince)) {
+            return recentCounts.read(hashKey, startTime, endTime, Integer.MAX_VALUE);
+        }
+        List<HttpReferrerPairsCount> counts = new ArrayList<>(delegate.read(hashKey, startTime, coveredSince));
+        counts.addAll(recentCounts.read(hashKey, coveredSince, endTime, Integer.MAX_VALUE));
+        return counts;
+    }
+}
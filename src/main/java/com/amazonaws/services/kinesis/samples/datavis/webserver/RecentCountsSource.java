@@ -0,0 +1,41 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.webserver;
+
+import java.util.Date;
+import java.util.List;
+
+import javax.servlet.ServletException;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+
+/**
+ * Provides the recent counts for a resource, either over the last range of time or newer than those a client already
+ * has.
+ */
+public interface RecentCountsSource {
+
+    /**
+     * Get the counts for a resource over the last range of seconds.
+     *
+     * @param resource The resource to get counts for.
+     * @param rangeInSeconds How far back to get counts from.
+     * @return Counts for the resource in ascending order by timestamp. The list must not be modified.
+     * @throws IllegalArgumentException if the range is too long to return at once.
+     * @throws ServletException if the counts could not be read.
+     */
+    List<HttpReferrerPairsCount> getCounts(String resource, int rangeInSeconds) throws ServletException;
+
+    /**
+     * Get the counts for a resource with a timestamp after a time.
+     *
+     * @param resource The resource to get counts for.
+     * @param after Only counts with a timestamp after this are returned.
+     * @return Counts for the resource in ascending order by timestamp. The list must not be modified.
+     * @throws ServletException if the counts could not be read.
+     */
+    List<HttpReferrerPairsCount> getCountsAfter(String resource, Date after) throws ServletException;
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.webserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBQueryExpression;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ComparisonOperator;
+import com.amazonaws.services.dynamodbv2.model.Condition;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb.CountItemKeys;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerCountsRollup;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+import com.amazonaws.services.kinesis.samples.datavis.utils.CountRollups;
+
+/**
+ * Reads rollups of counts at a single resolution, see {@link CountRollups}. Each rollup is returned as one count
+ * timestamped with the start of its bucket. Its referrer counts are its sums divided by the number of intervals summed
+ * into it, counting the items every shard wrote for an interval once, so rollups chart on the same scale as the
+ * per-interval counts readers add up across shards.
+ */
+public class RollupCountReader implements CountReader {
+    private DynamoDBMapper mapper;
+    private int resolutionInSeconds;
+
+    /**
+     * @param mapper Mapper to query the counts table with.
+     * @param resolutionInSeconds The length of time each rollup item covers.
+     */
+    public RollupCountReader(DynamoDBMapper mapper, int resolutionInSeconds) {
+        if (mapper == null) {
+            throw new NullPointerException("DynamoDBMapper must not be null");
+        }
+        if (resolutionInSeconds < 1) {
+            throw new IllegalArgumentException("resolutionInSeconds must be >= 1");
+        }
+        this.mapper = mapper;
+        this.resolutionInSeconds = resolutionInSeconds;
+    }
+
+    @Override
+    public List<HttpReferrerPairsCount> read(String hashKey, Date startTime) {
+        List<HttpReferrerPairsCount> counts = new ArrayList<>();
+        for (HttpReferrerCountsRollup rollup : mapper.query(HttpReferrerCountsRollup.class,
+                newQuery(hashKey, startTime))) {
+            counts.add(toAverage(hashKey, rollup));
+        }
+        return counts;
+    }
+
+    @Override
+    public List<HttpReferrerPairsCount> read(String hashKey, Date startTime, int limit) {
+        DynamoDBQueryExpression<HttpReferrerCountsRollup> query = newQuery(hashKey, startTime);
+        query.setLimit(limit);
+        // A single page holds no more items than the limit
+        List<HttpReferrerCountsRollup> rollups = mapper.queryPage(HttpReferrerCountsRollup.class, query).getResults();
+        List<HttpReferrerPairsCount> counts = new ArrayList<>(rollups.size());
+        for (HttpReferrerCountsRollup rollup : rollups) {
+            counts.add(toAverage(hashKey, rollup));
+        }
+        return counts;
+    }
+
+    @Override
+    public List<HttpReferrerPairsCount> read(String hashKey, Date startTime, Date endTime) {
+        DynamoDBQueryExpression<HttpReferrerCountsRollup> query = newQuery(hashKey, startTime);
+        query.setRangeKeyConditions(Collections.singletonMap("timestamp",
+                IntervalCountReader.between(startTime, endTime)));
+        List<HttpReferrerPairsCount> counts = new ArrayList<>();
+        for (HttpReferrerCountsRollup rollup : mapper.query(HttpReferrerCountsRollup.class, query)) {
+            counts.add(toAverage(hashKey, rollup));
+        }
+        return counts;
+    }
+
+    private DynamoDBQueryExpression<HttpReferrerCountsRollup> newQuery(String hashKey, Date startTime) {
+        DynamoDBQueryExpression<HttpReferrerCountsRollup> query = new DynamoDBQueryExpression<>();
+        HttpReferrerCountsRollup hashKeyValues = new HttpReferrerCountsRollup();
+        hashKeyValues.setResource(CountRollups.toRollupKey(hashKey, resolutionInSeconds));
+        query.setHashKeyValues(hashKeyValues);
+
+        Condition recentRollups =
+                new Condition().withComparisonOperator(ComparisonOperator.GT)
+                        .withAttributeValueList(new AttributeValue().withS(CountItemKeys.formatTimestamp(startTime)));
+        query.setRangeKeyConditions(Collections.singletonMap("timestamp", recentRollups));
+        return query;
+    }
+
+    /**
+     * Convert a rollup into the average count over its bucket.
+     */
+    static HttpReferrerPairsCount toAverage(String hashKey, HttpReferrerCountsRollup rollup) {
+        long samples = Math.max(1L, rollup.getSamples());
+        List<ReferrerCount> averages = new ArrayList<>(rollup.getReferrerCounts().size());
+        for (ReferrerCount sum : rollup.getReferrerCounts()) {
+            ReferrerCount average = new ReferrerCount();
+            average.setReferrer(sum.getReferrer());
+            average.setCount(Math.round((double) sum.getCount() / samples));
+            averages.add(average);
+        }
+        HttpReferrerPairsCount count = new HttpReferrerPairsCount();
+        count.setResource(hashKey);
+        count.setTimestamp(rollup.getTimestamp());
+        count.setHost(rollup.getHost());
+        count.setReferrerCounts(averages);
+        return count;
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.webserver;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.jetty.util.MultiMap;
+import org.eclipse.jetty.util.UrlEncoded;
+
+/**
+ * Streams new counts for a resource to the browser as Server-Sent Events. This is a simple test and as such, its not
+ * really serializable.
+ * <p/>
+ * Every subscriber to a resource shares a single {@link CountFeed} that polls for new counts once per interval, so the
+ * counts read per resource are the same no matter how many dashboards are open. A feed is started by the first
+ * subscriber to a resource and stopped once it has none.
+ * <p/>
+ * Each event carries one count, formatted as {@link GetCountsServlet} formats it. A subscriber is first sent the recent
+ * counts the feed has kept, or only those after the cursor given by the {@code Last-Event-ID} header or
+ * {@value #PARAMETER_CURSOR} parameter. A count may be sent again for the same timestamp if more of it is written after
+ * it was first sent; subscribers replace the count they have for it. The servlet must be registered with async
+ * support.
+ */
+@SuppressWarnings("serial")
+public class StreamCountsServlet extends HttpServlet {
+    private static final Log LOG = LogFactory.getLog(StreamCountsServlet.class);
+
+    private static final String PARAMETER_RESOURCE = "resource";
+    static final String PARAMETER_CURSOR = "cursor";
+    private static final String HEADER_LAST_EVENT_ID = "Last-Event-ID";
+
+    // How often to send a comment to subscribers when there are no new counts, so disconnected subscribers are noticed
+    private static final long HEARTBEAT_INTERVAL_IN_MILLIS = 15000L;
+
+    // This is not serializable and we're not implementing safeguards to support it. Jetty is highly unlikely to
+    // serialize this servlet anyway.
+    private transient RecentCountsSource source;
+
+    // Polls every feed. This is not serializable either.
+    private transient ScheduledExecutorService scheduler;
+
+    private long pollIntervalInMillis;
+    private long historyInMillis;
+    private long settleTimeInMillis;
+
+    // Feeds with subscribers by resource
+    private transient ConcurrentMap<String, CountFeed> feeds = new ConcurrentHashMap<>();
+
+    // Metrics
+    private final AtomicLong subscriptions = new AtomicLong();
+
+    /**
+     * @param source Source of new counts. Queries from every feed go through this.
+     * @param scheduler Executor to poll each feed on.
+     * @param pollIntervalInMillis How often each feed polls for new counts. Use the interval counts are persisted at.
+     * @param historyInMillis How far back each feed keeps counts to send to new subscribers.
+     */
+    public StreamCountsServlet(RecentCountsSource source,
+            ScheduledExecutorService scheduler,
+            long pollIntervalInMillis,
+            long historyInMillis) {
+        this(source, scheduler, pollIntervalInMillis, historyInMillis, 0L);
+    }
+
+    /**
+     * @param source Source of new counts. Queries from every feed go through this.
+     * @param scheduler Executor to poll each feed on.
+     * @param pollIntervalInMillis How often each feed polls for new counts. Use the interval counts are persisted at.
+     * @param historyInMillis How far back each feed keeps counts to send to new subscribers.
+     * @param settleTimeInMillis How long counts for an interval may still be written after it. Each feed reads this
+     *        far back on every poll and sends the counts that changed again. May be 0 if counts never change once
+     *        read.
+     */
+    public StreamCountsServlet(RecentCountsSource source,
+            ScheduledExecutorService scheduler,
+            long pollIntervalInMillis,
+            long historyInMillis,
+            long settleTimeInMillis) {
+        if (source == null) {
+            throw new NullPointerException("source must not be null");
+        }
+        if (scheduler == null) {
+            throw new NullPointerException("scheduler must not be null");
+        }
+        if (pollIntervalInMillis < 1) {
+            throw new IllegalArgumentException("pollIntervalInMillis must be >= 1");
+        }
+        if (historyInMillis < 0) {
+            throw new IllegalArgumentException("historyInMillis must be >= 0");
+        }
+        if (settleTimeInMillis < 0) {
+            throw new IllegalArgumentException("settleTimeInMillis must be >= 0");
+        }
+        this.source = source;
+        this.scheduler = scheduler;
+        this.pollIntervalInMillis = pollIntervalInMillis;
+        this.historyInMillis = historyInMillis;
+        this.settleTimeInMillis = settleTimeInMillis;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        MultiMap<String> params = new MultiMap<>();
+        UrlEncoded.decodeTo(req.getQueryString(), params, "UTF-8");
+
+        if (!params.containsKey(PARAMETER_RESOURCE)) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        String resource = params.getString(PARAMETER_RESOURCE);
+
+        // Browsers reconnect with the id of the last event they received
+        String cursor = req.getHeader(HEADER_LAST_EVENT_ID);
+        if (cursor == null) {
+            cursor = params.getString(PARAMETER_CURSOR);
+        }
+        Date after = null;
+        if (cursor != null) {
+            try {
+                after = GetCountsServlet.fromCursor(cursor);
+            } catch (IllegalArgumentException ex) {
+                resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                return;
+            }
+        }
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType("text/event-stream");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+        resp.flushBuffer();
+
+        final AsyncContext async = req.startAsync();
+        // Streams stay open until the subscriber goes away
+        async.setTimeout(0);
+        final CountFeed.Subscriber subscriber = new CountFeed.Subscriber() {
+            @Override
+            public void send(String events) throws IOException {
+                PrintWriter writer = async.getResponse().getWriter();
+                writer.write(events);
+                writer.flush();
+                // PrintWriter swallows IOExceptions
+                if (writer.checkError()) {
+                    // Release the request. It is unsubscribed when the feed sees the exception.
+                    async.complete();
+                    throw new IOException("Unable to write to subscriber");
+                }
+            }
+        };
+
+        // Unsubscribe when the request completes. The listener is registered before subscribing, so it is notified
+        // however early the request completes, even while the backlog is being sent.
+        final AtomicReference<CountFeed> subscribed = new AtomicReference<>();
+        final AtomicBoolean completed = new AtomicBoolean();
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                release();
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                release();
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                release();
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+
+            private void release() {
+                completed.set(true);
+                CountFeed feed = subscribed.get();
+                if (feed != null) {
+                    feed.unsubscribe(subscriber);
+                }
+            }
+        });
+
+        CountFeed feed;
+        try {
+            feed = subscribe(resource, subscriber, after);
+        } catch (IOException ex) {
+            async.complete();
+            return;
+        }
+        subscribed.set(feed);
+        if (completed.get()) {
+            // The request completed before the feed was known to the listener
+            feed.unsubscribe(subscriber);
+            return;
+        }
+        subscriptions.incrementAndGet();
+    }
+
+    /**
+     * @return The number of subscriptions made since the servlet was created.
+     */
+    public long getSubscriptions() {
+        return subscriptions.get();
+    }
+
+    /**
+     * @return The number of resources being polled for subscribers.
+     */
+    public int getFeedCount() {
+        return feeds.size();
+    }
+
+    /**
+     * Subscribe to the feed for a resource, starting one if there is none.
+     *
+     * @return The feed subscribed to.
+     */
+    private CountFeed subscribe(String resource, CountFeed.Subscriber subscriber, Date after) throws IOException {
+        while (true) {
+            CountFeed feed = feeds.get(resource);
+            if (feed == null) {
+                // Subscribe before the feed is shared so it is never idle. It has no counts to send yet.
+                feed = new CountFeed(resource, source, System.currentTimeMillis(), historyInMillis, settleTimeInMillis);
+                feed.subscribe(subscriber, after);
+                if (feeds.putIfAbsent(resource, feed) == null) {
+                    startPolling(resource, feed);
+                    return feed;
+                }
+                // Another request started a feed for this resource first
+                continue;
+            }
+            if (feed.subscribe(subscriber, after)) {
+                return feed;
+            }
+            // The feed closed as we subscribed. Start another.
+            feeds.remove(resource, feed);
+        }
+    }
+
+    /**
+     * Poll for a resource's counts until its feed has no subscribers.
+     */
+    private void startPolling(final String resource, final CountFeed feed) {
+        final int pollsPerHeartbeat = (int) Math.max(1, HEARTBEAT_INTERVAL_IN_MILLIS / pollIntervalInMillis);
+        // Set once the poller has been scheduled so it can cancel itself
+        final ScheduledFuture<?>[] poller = new ScheduledFuture<?>[1];
+        Runnable poll = new Runnable() {
+            private int polls;
+
+            @Override
+            public void run() {
+                try {
+                    if (feed.closeIfIdle()) {
+                        feeds.remove(resource, feed);
+                        synchronized (poller) {
+                            poller[0].cancel(false);
+                        }
+                        return;
+                    }
+                    feed.poll(++polls % pollsPerHeartbeat == 0);
+                } catch (RuntimeException ex) {
+                    // Keep polling. An exception would stop the scheduler from running this again.
+                    LOG.error("Error polling counts for resource " + resource, ex);
+                }
+            }
+        };
+        synchronized (poller) {
+            poller[0] = scheduler.scheduleWithFixedDelay(poll, 0, pollIntervalInMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -136,8 +136,15 @@ var UIHelper = function(data, graph) {
   var updateIntervalInMillis = 400;
   // How often should the top N display be updated?
   var intervalsPerTopNUpdate = 5;
-  // How far back should we fetch data at every interval?
-  var rangeOfDataToFetchEveryIntervalInSeconds = 2;
+  // How far back should we fetch data when we have no cursor to continue
+  // from? After the first fetch only data newer than the cursor is fetched.
+  var rangeOfDataToFetchInitiallyInSeconds = graph.getTotalDurationToGraphInSeconds();
+  // The cursor returned with the last data fetched. Passing it back fetches
+  // only newer data.
+  var cursor = null;
+  // Is a fetch in progress? We don't start another until it completes so
+  // cursors are always used in order.
+  var fetching = false;
   // What should N be for our Top N display?
   var topNToCalculate = 3;
   // Keep track of when we last updated the top N display.
@@ -146,20 +153,50 @@ var UIHelper = function(data, graph) {
   var running = true;
   // Set the active resource to query for counts when updating data.
   var activeResource = "/index.html";
+  // The stream of new counts for the active resource, if the browser supports
+  // Server-Sent Events. When there is a stream we don't poll for counts.
+  var stream = null;
 
   /**
-   * Fetch counts from the last secondsAgo seconds.
+   * Subscribe to new counts for a resource. The server pushes the recent
+   * counts for it followed by each new count as it is calculated.
+   *
+   * @param {string}
+   *          resource The resource to receive counts for.
+   */
+  var subscribe = function(resource) {
+    stream = provider.subscribe(resource, function(count) {
+      data.addNewData([ count ]);
+      // Remove data that's outside the window of data we are displaying.
+      data.removeDataOlderThan((new Date()).getTime()
+          - (graph.getTotalDurationToGraphInSeconds() * 1000));
+    });
+  }
+
+  /**
+   * Fetch counts newer than those we already have, or from the last secondsAgo
+   * seconds if we have none yet.
    *
    * @param {string}
    *          resource The resource to fetch counts for.
    * @param {number}
-   *          secondsAgo The range in seconds since now to fetch counts for.
+   *          secondsAgo The range in seconds since now to fetch counts for if
+   *          we have no cursor to continue from.
    * @param {function}
    *          callback The callback to invoke when data has been updated.
    */
   var updateData = function(resource, secondsAgo, callback) {
-    // Fetch data from our data provider
-    provider.getData(resource, secondsAgo, function(newData) {
+    if (fetching) {
+      return;
+    }
+    fetching = true;
+    var received = function(newData, nextCursor) {
+      fetching = false;
+      // Ignore data for a resource that is no longer active
+      if (resource != activeResource) {
+        return;
+      }
+      cursor = nextCursor || cursor;
       // Store the data locally
       data.addNewData(newData);
       // Remove data that's outside the window of data we are displaying. This
@@ -169,7 +206,16 @@ var UIHelper = function(data, graph) {
       if (callback) {
         callback();
       }
-    });
+    };
+    var failed = function() {
+      fetching = false;
+    };
+    // Fetch data from our data provider
+    if (cursor) {
+      provider.getDataSince(resource, cursor, received, failed);
+    } else {
+      provider.getData(resource, secondsAgo, received, failed);
+    }
   }
 
   /**
@@ -194,8 +240,11 @@ var UIHelper = function(data, graph) {
    * Update the graph with new data.
    */
   var update = function() {
-    // Update our local data for the active resource
-    updateData(activeResource, rangeOfDataToFetchEveryIntervalInSeconds);
+    // Update our local data for the active resource, unless new data is
+    // pushed to us
+    if (!stream) {
+      updateData(activeResource, rangeOfDataToFetchInitiallyInSeconds);
+    }
 
     // Update top N every intervalsPerTopNUpdate intervals
     if (topNIntervalCounter++ % intervalsPerTopNUpdate == 0) {
@@ -249,7 +298,13 @@ var UIHelper = function(data, graph) {
      */
     setActiveResource : function(resource) {
       activeResource = resource;
+      // Start again from a full range of data for the new resource
+      cursor = null;
       data.removeDataOlderThan((new Date()).getTime());
+      if (stream) {
+        stream.close();
+        subscribe(resource);
+      }
     },
 
     /**
@@ -271,8 +326,16 @@ var UIHelper = function(data, graph) {
     start : function() {
       setDescription("Loading data...");
       var _this = this;
+      if (provider.canSubscribe()) {
+        // Recent data is pushed as soon as we subscribe
+        subscribe(activeResource);
+        this.decorate();
+        running = true;
+        update();
+        return;
+      }
       // Load an initial range of data, decorate the page, and start the update polling process.
-      updateData(activeResource, rangeOfDataToFetchEveryIntervalInSeconds,
+      updateData(activeResource, rangeOfDataToFetchInitiallyInSeconds,
           function() {
             // Decorate again now that we're done with the initial load
             _this.decorate();
@@ -287,6 +350,10 @@ var UIHelper = function(data, graph) {
      */
     stop : function() {
       running = false;
+      if (stream) {
+        stream.close();
+        stream = null;
+      }
     }
   }
 };
@@ -296,6 +363,7 @@ var UIHelper = function(data, graph) {
  */
 var CountDataProvider = function() {
   var _endpoint = "http://" + location.host + "/api/GetCounts";
+  var _streamEndpoint = "http://" + location.host + "/api/StreamCounts";
 
   /**
    * Builds a URL to fetch the number of counts for a given resource in the past
@@ -314,6 +382,47 @@ var CountDataProvider = function() {
         + range_in_seconds;
   };
 
+  /**
+   * Builds a URL to fetch only the counts for a given resource newer than
+   * those already fetched.
+   *
+   * @param {string}
+   *          resource The resource to request counts for.
+   * @param {string}
+   *          cursor The cursor returned with the last counts fetched.
+   *
+   * @returns The URL to send a request for new data to.
+   */
+  var buildSinceUrl = function(resource, cursor) {
+    return _endpoint + "?resource=" + resource + "&cursor="
+        + encodeURIComponent(cursor);
+  };
+
+  /**
+   * Send a request for counts.
+   *
+   * @param {string}
+   *          url The URL to request counts from.
+   * @param {function}
+   *          callback The function to call with the counts and the cursor to
+   *          continue from.
+   * @param {function}
+   *          failed The function to call if the request fails.
+   */
+  var sendRequest = function(url, callback, failed) {
+    $.ajax({
+      url : url,
+      // Send the entity tag of the last response so unchanged counts come back
+      // as 304 Not Modified with no body
+      ifModified : true
+    }).done(function(newData, textStatus, jqXHR) {
+      if (textStatus == "notmodified") {
+        newData = [];
+      }
+      callback(newData, jqXHR.getResponseHeader("X-Next-Cursor"));
+    }).fail(failed || $.noop);
+  };
+
   return {
     /**
      * Set the endpoint to request counts with.
@@ -322,6 +431,43 @@ var CountDataProvider = function() {
       _endpoint = endpoint;
     },
 
+    /**
+     * Set the endpoint to subscribe to counts with.
+     */
+    setStreamEndpoint : function(endpoint) {
+      _streamEndpoint = endpoint;
+    },
+
+    /**
+     * @returns {boolean} true if the browser supports subscribing to counts.
+     */
+    canSubscribe : function() {
+      return !!window.EventSource;
+    },
+
+    /**
+     * Subscribe to counts for a resource. The recent counts are passed to the
+     * callback provided as soon as we subscribe, followed by each new count as
+     * it is calculated. Each count is in the same format getData returns them
+     * in. The browser reconnects and receives the counts it missed if the
+     * connection is lost.
+     *
+     * @param {string}
+     *          resource The resource to receive counts for.
+     * @param {function}
+     *          callback The function to call with each count.
+     *
+     * @returns {EventSource} The subscription. Close it to unsubscribe.
+     */
+    subscribe : function(resource, callback) {
+      var source = new EventSource(_streamEndpoint + "?resource="
+          + encodeURIComponent(resource));
+      source.onmessage = function(event) {
+        callback(JSON.parse(event.data));
+      };
+      return source;
+    },
+
     /**
      * Requests new data and passed it to the callback provided. The data is
      * expected to be returned in the following format. Note: Referrer counts
@@ -346,12 +492,33 @@ var CountDataProvider = function() {
      *          counts for.
      * @param {function}
      *          callback The function to call when data has been returned from
-     *          the endpoint.
+     *          the endpoint. It is passed the data and a cursor to pass to
+     *          getDataSince to fetch only newer data.
+     * @param {function}
+     *          failed The function to call if the request fails.
+     */
+    getData : function(resource, range_in_seconds, callback, failed) {
+      sendRequest(buildUrl(resource, range_in_seconds), callback, failed);
+    },
+
+    /**
+     * Requests only the data newer than a cursor returned with earlier data and
+     * passes it to the callback provided. The data is in the same format as
+     * getData.
+     *
+     * @param {string}
+     *          resource The resource to request counts for.
+     * @param {string}
+     *          cursor The cursor returned with the last data fetched.
+     * @param {function}
+     *          callback The function to call when data has been returned from
+     *          the endpoint. It is passed the data and the cursor to continue
+     *          from next.
+     * @param {function}
+     *          failed The function to call if the request fails.
      */
-    getData : function(resource, range_in_seconds, callback) {
-      $.ajax({
-        url : buildUrl(resource, range_in_seconds)
-      }).done(callback);
+    getDataSince : function(resource, cursor, callback, failed) {
+      sendRequest(buildSinceUrl(resource, cursor), callback, failed);
     }
   }
 }
@@ -447,8 +614,13 @@ var CountData = function() {
      * @returns {object[]} The top referrers by count in descending order.
      */
     getTopN : function(n) {
-      // Create an array out of the totals so we can sort it
+      // Create an array out of the totals so we can sort it. The "(other)"
+      // series sums every referrer outside the top referrers the counter
+      // persisted for each interval so it is not a referrer itself.
       var totalsAsArray = $.map(totals, function(count, referrer) {
+        if (referrer == "(other)") {
+          return null;
+        }
         return {
           'referrer' : referrer,
           'count' : count
@@ -463,7 +635,9 @@ var CountData = function() {
     },
 
     /**
-     * Merges new count data in to our existing data set.
+     * Merges new count data in to our existing data set. The counts for a
+     * timestamp replace any we already have for it, since recent intervals are
+     * sent again as counts for them finish being written.
      *
      * @param {object} Count data returned by our data provider.
      */
@@ -478,6 +652,17 @@ var CountData = function() {
       newCountData.forEach(function(count) {
         // Update the host who last calculated the counts
         setLastUpdatedBy(count.host);
+        // Drop what we have for this timestamp. A referrer may no longer be
+        // among the top referrers now that more counts have been written.
+        $.each(data, function(referrer, referrerData) {
+          if (referrerData.data.hasOwnProperty(count.timestamp)) {
+            delete referrerData.data[count.timestamp];
+            if (Object.keys(referrerData.data).length == 0) {
+              delete data[referrer];
+            }
+            updateTotal(referrer);
+          }
+        });
         // Add individual referrer counts
         count.referrerCounts.forEach(function(refCount) {
           // Reuse or create a new data series entry for this referrer
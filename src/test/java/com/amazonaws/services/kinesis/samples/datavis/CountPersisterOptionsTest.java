@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.samples.datavis.CountPersisterOptions.Writer;
+
+public class CountPersisterOptionsTest {
+
+    @Test
+    public void GIVEN_noOptions_WHEN_parse_THEN_previousBehaviourSelected() {
+        List<String> args = new ArrayList<>(Arrays.asList("app", "stream", "table", "us-east-1"));
+
+        CountPersisterOptions options = CountPersisterOptions.parse(args);
+
+        assertEquals(Arrays.asList("app", "stream", "table", "us-east-1"), args);
+        assertEquals(Writer.MAPPER, options.getWriter());
+        assertNull(options.getWriteAheadLogDirectory());
+        assertFalse(options.isRateLimited());
+        assertTrue(options.isRollups());
+    }
+
+    @Test
+    public void GIVEN_optionsAmongArguments_WHEN_parse_THEN_optionsRemovedAndParsed() {
+        List<String> args =
+                new ArrayList<>(Arrays.asList("--writer=async",
+                        "app",
+                        "stream",
+                        "--write-ahead-log=/var/count-logs/worker-1",
+                        "table",
+                        "us-east-1",
+                        "--rate-limit",
+                        "--no-rollups"));
+
+        CountPersisterOptions options = CountPersisterOptions.parse(args);
+
+        assertEquals(Arrays.asList("app", "stream", "table", "us-east-1"), args);
+        assertEquals(Writer.ASYNC, options.getWriter());
+        assertEquals(new File("/var/count-logs/worker-1"), options.getWriteAheadLogDirectory());
+        assertTrue(options.isRateLimited());
+        assertFalse(options.isRollups());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void GIVEN_unknownOption_WHEN_parse_THEN_illegalArgumentException() {
+        CountPersisterOptions.parse(new ArrayList<>(Arrays.asList("app", "--rollups")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void GIVEN_unknownWriter_WHEN_parse_THEN_illegalArgumentException() {
+        CountPersisterOptions.parse(new ArrayList<>(Arrays.asList("--writer=sync")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void GIVEN_writeAheadLogWithoutDirectory_WHEN_parse_THEN_illegalArgumentException() {
+        CountPersisterOptions.parse(new ArrayList<>(Arrays.asList("--write-ahead-log")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void GIVEN_asyncWriter_WHEN_checkCountBlockSize_THEN_illegalArgumentException() {
+        CountPersisterOptions.parse(new ArrayList<>(Arrays.asList("--writer=async"))).checkCountBlockSize(60);
+    }
+
+    @Test
+    public void GIVEN_defaultWriter_WHEN_checkCountBlockSize_THEN_accepted() {
+        new CountPersisterOptions().checkCountBlockSize(60);
+    }
+}
@@ -8,7 +8,10 @@ package com.amazonaws.services.kinesis.samples.datavis.kcl;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
@@ -21,6 +24,8 @@ import java.nio.ByteBuffer;
 import java.security.Permission;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
@@ -28,6 +33,7 @@ import java.util.concurrent.TimeUnit;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
 import com.amazonaws.services.kinesis.clientlibrary.exceptions.InvalidStateException;
 import com.amazonaws.services.kinesis.clientlibrary.exceptions.ShutdownException;
@@ -110,7 +116,7 @@ public class CountingRecordProcessorTest {
         assertTrue((end - start) < TimeUnit.SECONDS.toNanos(config.getInitialWindowAdvanceDelayInSeconds() + 1));
 
         // Make sure the persister is not called since we don't haven't had time to collect a full window of data
-        verify(persister, never()).persist(anyMapOf(HttpReferrerPair.class, Long.class));
+        verify(persister, never()).persist(anyMapOf(HttpReferrerPair.class, Long.class), any(Date.class), anyString());
     }
 
     @Test(timeout = 5000)
@@ -126,7 +132,9 @@ public class CountingRecordProcessorTest {
         assertTrue((end - start) >= TimeUnit.SECONDS.toNanos(config.getInitialWindowAdvanceDelayInSeconds() + 1));
 
         // Make sure our persister was called at least once
-        verify(persister, atLeast(1)).persist(anyMapOf(HttpReferrerPair.class, Long.class));
+        verify(persister, atLeast(1)).persist(anyMapOf(HttpReferrerPair.class, Long.class),
+                any(Date.class),
+                anyString());
     }
 
     private Record createRecordFrom(HttpReferrerPair pair) {
@@ -160,7 +168,27 @@ public class CountingRecordProcessorTest {
 
         processor.advanceOneInterval();
 
-        verify(persister).persist(expectedCounts);
+        verify(persister).persist(eq(expectedCounts), any(Date.class), eq("shardId"));
+    }
+
+    @Test
+    public void GIVEN_fullWindow_WHEN_advanceOneInterval_THEN_persistedWithConsecutiveIntervalStarts() {
+        // Advance enough intervals to fill the window
+        for (int i = 0; i < 10; i++) {
+            processor.advanceOneInterval();
+        }
+
+        processor.advanceOneInterval();
+        processor.advanceOneInterval();
+
+        ArgumentCaptor<Date> intervalStarts = ArgumentCaptor.forClass(Date.class);
+        verify(persister, times(2)).persist(anyMapOf(HttpReferrerPair.class, Long.class),
+                intervalStarts.capture(),
+                anyString());
+        List<Date> starts = intervalStarts.getAllValues();
+        // Interval starts are counted from the first, not read from the clock when the window advances
+        assertEquals(0L, starts.get(0).getTime() % 100L);
+        assertEquals(starts.get(0).getTime() + 100L, starts.get(1).getTime());
     }
 
     @Test
@@ -186,7 +214,18 @@ public class CountingRecordProcessorTest {
         // We should have a single count for the good record
         Map<HttpReferrerPair, Long> expectedCounts = Collections.singletonMap(pair, 1L);
 
-        verify(persister).persist(expectedCounts);
+        verify(persister).persist(eq(expectedCounts), any(Date.class), anyString());
+    }
+
+    @Test
+    public void GIVEN_delay_WHEN_alignToIntervalMidpoint_THEN_delayEndsAtNearestIntervalMidpoint() {
+        // Midpoints of 1000ms intervals are at 500, 1500, 2500, ...
+        assertEquals(1400L, CountingRecordProcessor.alignToIntervalMidpoint(100L, 1000L, 1000L));
+        assertEquals(400L, CountingRecordProcessor.alignToIntervalMidpoint(100L, 0L, 1000L));
+        assertEquals(1300L, CountingRecordProcessor.alignToIntervalMidpoint(1200L, 1000L, 1000L));
+        // The nearest midpoint may be before the delay would have ended, but never before now
+        assertEquals(1400L, CountingRecordProcessor.alignToIntervalMidpoint(100L, 1900L, 1000L));
+        assertEquals(0L, CountingRecordProcessor.alignToIntervalMidpoint(1000L, 0L, 1000L));
     }
 
     @Test
@@ -313,7 +352,7 @@ public class CountingRecordProcessorTest {
 
         // When we advance to the next interval our persister should be called with a single count for our pair.
         processor.advanceOneInterval();
-        verify(persister).persist(Collections.singletonMap(pair, 1L));
+        verify(persister).persist(eq(Collections.singletonMap(pair, 1L)), any(Date.class), anyString());
 
         // Advance enough times to clear the window (once before and 9 times here = 10 elapsed intervals)
         for (int i = 0; i < 9; i++) {
@@ -322,10 +361,10 @@ public class CountingRecordProcessorTest {
 
         // Verify we have a count of 0 for our resource on the first interval immediately after it leaves the window
         processor.advanceOneInterval();
-        verify(persister).persist(Collections.singletonMap(pair, 0L));
+        verify(persister).persist(eq(Collections.singletonMap(pair, 0L)), any(Date.class), anyString());
 
         // Advance once more and verify the resource is no longer returned with any counts
         processor.advanceOneInterval();
-        verify(persister).persist(Collections.<HttpReferrerPair, Long> emptyMap());
+        verify(persister).persist(eq(Collections.<HttpReferrerPair, Long> emptyMap()), any(Date.class), anyString());
     }
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.junit.rules.Timeout;
+
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.CompositeCountPersister.BackpressurePolicy;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.CompositeCountPersister.Sink;
+
+public class CompositeCountPersisterTest {
+    private static final String SHARD_ID = "shardId-000000000000";
+
+    @Rule
+    public TestRule globalTimeout = new Timeout(5000);
+
+    private CompositeCountPersister<String> persister;
+
+    @Before
+    public void init() {
+        persister = new CompositeCountPersister<>();
+    }
+
+    @Test
+    public void GIVEN_slowSink_WHEN_persist_THEN_otherSinksKeepUpAndSlowSinkDropsOldest() throws Exception {
+        BlockingPersister slow = new BlockingPersister();
+        RecordingPersister fast = new RecordingPersister();
+        Sink<String> slowSink = persister.addSink("slow", slow, 1, BackpressurePolicy.DROP_OLDEST);
+        persister.addSink("fast", fast, 1, BackpressurePolicy.BLOCK);
+        persister.initialize();
+
+        persister.persist(counts("a", 1L), new Date(), SHARD_ID);
+        // Wait for the slow sink to be stuck persisting the first interval
+        slow.persisting.await();
+        persister.persist(counts("a", 2L), new Date(), SHARD_ID);
+        persister.persist(counts("a", 3L), new Date(), SHARD_ID);
+
+        assertEquals(1L, (long) fast.persisted.take().get("a"));
+        assertEquals(2L, (long) fast.persisted.take().get("a"));
+        assertEquals(3L, (long) fast.persisted.take().get("a"));
+        assertEquals(1, slowSink.getDroppedIntervals());
+        assertEquals(1, slowSink.getQueuedIntervals());
+        TimeUnit.MILLISECONDS.sleep(10);
+        assertTrue(slowSink.getLagInMillis() > 0);
+
+        slow.release.countDown();
+        persister.checkpoint();
+        // The second interval was dropped to make room for the third
+        assertEquals(Arrays.asList(1L, 3L), slow.persistedCounts);
+        assertEquals(0, slowSink.getQueuedIntervals());
+        assertEquals(0, slowSink.getLagInMillis());
+        assertEquals(2, slowSink.getPersistedIntervals());
+    }
+
+    @Test
+    public void GIVEN_dropNewestPolicy_WHEN_queueFull_THEN_newIntervalDropped() throws Exception {
+        BlockingPersister slow = new BlockingPersister();
+        Sink<String> sink = persister.addSink("slow", slow, 1, BackpressurePolicy.DROP_NEWEST);
+        persister.initialize();
+
+        persister.persist(counts("a", 1L), new Date(), SHARD_ID);
+        slow.persisting.await();
+        persister.persist(counts("a", 2L), new Date(), SHARD_ID);
+        persister.persist(counts("a", 3L), new Date(), SHARD_ID);
+        slow.release.countDown();
+        persister.checkpoint();
+
+        assertEquals(Arrays.asList(1L, 2L), slow.persistedCounts);
+        assertEquals(1, sink.getDroppedIntervals());
+    }
+
+    @Test
+    public void GIVEN_twoSinks_WHEN_checkpoint_THEN_sinksCheckpointInParallelAfterPersisting() throws Exception {
+        // Neither sink can finish checkpointing until both have started
+        CyclicBarrier bothCheckpointing = new CyclicBarrier(2);
+        RecordingPersister first = new RecordingPersister(bothCheckpointing);
+        RecordingPersister second = new RecordingPersister(bothCheckpointing);
+        persister.addSink("first", first, 10, BackpressurePolicy.BLOCK);
+        persister.addSink("second", second, 10, BackpressurePolicy.BLOCK);
+        persister.initialize();
+
+        persister.persist(counts("a", 1L), new Date(), SHARD_ID);
+        persister.checkpoint();
+
+        for (RecordingPersister sink : Arrays.asList(first, second)) {
+            assertEquals(1, sink.persisted.size());
+            assertEquals(1, sink.checkpoints);
+        }
+    }
+
+    @Test
+    public void GIVEN_sinkFailsToCheckpoint_WHEN_checkpoint_THEN_illegalStateException() throws Exception {
+        persister.addSink("failing", new RecordingPersister() {
+            @Override
+            public void checkpoint() {
+                throw new IllegalStateException("Unable to sync");
+            }
+        }, 1, BackpressurePolicy.BLOCK);
+        persister.initialize();
+
+        try {
+            persister.checkpoint();
+            fail("Checkpoint should fail when a sink fails to checkpoint");
+        } catch (IllegalStateException expected) {
+            assertEquals("Unable to sync", expected.getCause().getMessage());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void GIVEN_initializedPersister_WHEN_addSink_THEN_illegalStateException() {
+        persister.initialize();
+        persister.addSink("late", new RecordingPersister(), 1, BackpressurePolicy.BLOCK);
+    }
+
+    private static Map<String, Long> counts(String object, long count) {
+        return Collections.singletonMap(object, count);
+    }
+
+    /**
+     * Records the intervals persisted and the number of checkpoints.
+     */
+    private static class RecordingPersister implements CountPersister<String> {
+        protected final BlockingQueue<Map<String, Long>> persisted = new LinkedBlockingQueue<>();
+        protected volatile int checkpoints;
+        private final CyclicBarrier checkpointBarrier;
+
+        RecordingPersister() {
+            this(null);
+        }
+
+        RecordingPersister(CyclicBarrier checkpointBarrier) {
+            this.checkpointBarrier = checkpointBarrier;
+        }
+
+        @Override
+        public void initialize() {
+        }
+
+        @Override
+        public void persist(Map<String, Long> objectCounts, Date intervalStart, String shardId) {
+            persisted.add(objectCounts);
+        }
+
+        @Override
+        public void checkpoint() throws InterruptedException {
+            if (checkpointBarrier != null) {
+                try {
+                    checkpointBarrier.await();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            checkpoints++;
+        }
+    }
+
+    /**
+     * Blocks persisting the first interval until released.
+     */
+    private static class BlockingPersister implements CountPersister<String> {
+        private final CountDownLatch persisting = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final List<Long> persistedCounts = Collections.synchronizedList(new ArrayList<Long>());
+
+        @Override
+        public void initialize() {
+        }
+
+        @Override
+        public void persist(Map<String, Long> objectCounts, Date intervalStart, String shardId) {
+            persisting.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            persistedCounts.add(objectCounts.get("a"));
+        }
+
+        @Override
+        public void checkpoint() {
+        }
+    }
+}
@@ -6,15 +6,17 @@
 package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence;
 
 import java.util.Collections;
+import java.util.Date;
 
 import org.junit.Test;
 
 public class LogCountPersisterTest {
+    private static final String SHARD_ID = "shardId-000000000000";
 
     @Test
     public void GIVEN_persister_WHEN_persistWithCounts_THEN_noExceptionThrown() {
         LogCountPersister<String> persister = new LogCountPersister<>();
-        persister.persist(Collections.singletonMap("resource-a", 100L));
+        persister.persist(Collections.singletonMap("resource-a", 100L), new Date(), SHARD_ID);
     }
 
 }
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.junit.rules.Timeout;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsync;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+
+public class AsyncBatchWriteItemCountWriterTest {
+    private static final String TABLE_NAME = "table";
+
+    @Rule
+    public TestRule globalTimeout = new Timeout(5000);
+
+    private AmazonDynamoDBAsync dynamoDB;
+    // Requests sent and not yet completed, in the order they were sent
+    private BlockingQueue<SentRequest> sent;
+    // The outcome of every completed write
+    private BlockingQueue<List<List<HttpReferrerPairsCount>>> completions;
+    private AsyncCountWriter.WriteCallback callback;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void init() {
+        dynamoDB = mock(AmazonDynamoDBAsync.class);
+        sent = new LinkedBlockingQueue<>();
+        when(dynamoDB.batchWriteItemAsync(Mockito.any(BatchWriteItemRequest.class), Mockito.any(AsyncHandler.class)))
+                .thenAnswer(new Answer<Object>() {
+                    @Override
+                    public Object answer(InvocationOnMock invocation) {
+                        Object[] args = invocation.getArguments();
+                        sent.add(new SentRequest((BatchWriteItemRequest) args[0],
+                                (AsyncHandler<BatchWriteItemRequest, BatchWriteItemResult>) args[1]));
+                        return null;
+                    }
+                });
+        completions = new LinkedBlockingQueue<>();
+        callback = new AsyncCountWriter.WriteCallback() {
+            @Override
+            public void onComplete(List<HttpReferrerPairsCount> counts, List<HttpReferrerPairsCount> failed) {
+                completions.add(Arrays.asList(counts, failed));
+            }
+        };
+    }
+
+    @Test
+    public void GIVEN_maxRequestsInFlight_WHEN_written_THEN_nextBatchWaitsForOneToComplete() throws Exception {
+        final AsyncBatchWriteItemCountWriter writer =
+                new AsyncBatchWriteItemCountWriter(dynamoDB, TABLE_NAME, 1, null);
+        final List<HttpReferrerPairsCount> counts = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            counts.add(newCount("/index.html", i));
+        }
+
+        Thread writing = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    writer.write(counts, callback);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        writing.start();
+
+        SentRequest first = sent.take();
+        assertEquals(25, first.request.getRequestItems().get(TABLE_NAME).size());
+        // The second batch can't be sent while the first is in flight
+        writing.join(100);
+        assertTrue(writing.isAlive());
+        assertEquals(1, writer.getInFlightRequests());
+
+        first.handler.onSuccess(first.request, new BatchWriteItemResult());
+        SentRequest second = sent.take();
+        assertEquals(5, second.request.getRequestItems().get(TABLE_NAME).size());
+        writing.join();
+        second.handler.onSuccess(second.request, new BatchWriteItemResult());
+
+        assertEquals(0, writer.getInFlightRequests());
+        assertEquals(2, completions.size());
+        assertEquals(25, completions.take().get(0).size());
+        List<List<HttpReferrerPairsCount>> last = completions.take();
+        assertEquals(5, last.get(0).size());
+        assertTrue(last.get(1).isEmpty());
+    }
+
+    @Test
+    public void GIVEN_dynamoDBReturnsUnprocessedItems_WHEN_batchCompletes_THEN_unprocessedCountsFailed()
+            throws Exception {
+        AsyncBatchWriteItemCountWriter writer = new AsyncBatchWriteItemCountWriter(dynamoDB, TABLE_NAME, 2, null);
+        HttpReferrerPairsCount processed = newCount("/index.html", 1000L);
+        HttpReferrerPairsCount unprocessed = newCount("/about.html", 1000L);
+
+        writer.write(Arrays.asList(processed, unprocessed), callback);
+        SentRequest request = sent.take();
+        List<WriteRequest> unprocessedRequests = new ArrayList<>();
+        unprocessedRequests.add(new WriteRequest().withPutRequest(
+                new PutRequest().withItem(new BatchWriteItemCountWriter(dynamoDB, TABLE_NAME).toItem(unprocessed))));
+        request.handler.onSuccess(request.request,
+                new BatchWriteItemResult().withUnprocessedItems(Collections.singletonMap(TABLE_NAME,
+                        unprocessedRequests)));
+
+        List<List<HttpReferrerPairsCount>> completion = completions.poll(1, TimeUnit.SECONDS);
+        assertEquals(2, completion.get(0).size());
+        assertEquals(1, completion.get(1).size());
+        assertSame(unprocessed, completion.get(1).get(0));
+    }
+
+    @Test
+    public void GIVEN_requestFails_WHEN_batchCompletes_THEN_allCountsFailedAndPermitReleased() throws Exception {
+        AsyncBatchWriteItemCountWriter writer = new AsyncBatchWriteItemCountWriter(dynamoDB, TABLE_NAME, 1, null);
+        List<HttpReferrerPairsCount> counts = Arrays.asList(newCount("/index.html", 1000L));
+
+        writer.write(counts, callback);
+        sent.take().handler.onError(new AmazonServiceException("Throttled"));
+        // A permit was released so this doesn't block
+        writer.write(counts, callback);
+
+        assertEquals(counts, completions.take().get(1));
+        assertEquals(1, writer.getInFlightRequests());
+    }
+
+    private HttpReferrerPairsCount newCount(String resource, long timestamp) {
+        ReferrerCount referrerCount = new ReferrerCount();
+        referrerCount.setReferrer("http://www.amazon.com");
+        referrerCount.setCount(1002L);
+
+        HttpReferrerPairsCount count = new HttpReferrerPairsCount();
+        count.setResource(resource);
+        count.setTimestamp(new Date(timestamp));
+        count.setHost("host");
+        count.setReferrerCounts(Collections.singletonList(referrerCount));
+        return count;
+    }
+
+    private static class SentRequest {
+        private final BatchWriteItemRequest request;
+        private final AsyncHandler<BatchWriteItemRequest, BatchWriteItemResult> handler;
+
+        SentRequest(BatchWriteItemRequest request, AsyncHandler<BatchWriteItemRequest, BatchWriteItemResult> handler) {
+            this.request = request;
+            this.handler = handler;
+        }
+    }
+}
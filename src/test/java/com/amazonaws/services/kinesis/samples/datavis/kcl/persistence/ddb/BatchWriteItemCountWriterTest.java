@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+import com.amazonaws.services.kinesis.samples.datavis.utils.DynamoDBUtils;
+
+public class BatchWriteItemCountWriterTest {
+    private static final String TABLE_NAME = "table";
+
+    private AmazonDynamoDB dynamoDB;
+    // Copies of the requests sent. The writer reuses its request buffers so we can't hold on to the originals.
+    private List<List<WriteRequest>> sentBatches;
+    // Each request returns this result
+    private BatchWriteItemResult result;
+
+    @Before
+    public void init() {
+        dynamoDB = mock(AmazonDynamoDB.class);
+        sentBatches = new ArrayList<>();
+        result = new BatchWriteItemResult().withUnprocessedItems(new HashMap<String, List<WriteRequest>>());
+        when(dynamoDB.batchWriteItem(Mockito.any(BatchWriteItemRequest.class))).thenAnswer(
+                new Answer<BatchWriteItemResult>() {
+                    @Override
+                    public BatchWriteItemResult answer(InvocationOnMock invocation) {
+                        BatchWriteItemRequest request = (BatchWriteItemRequest) invocation.getArguments()[0];
+                        sentBatches.add(new ArrayList<>(request.getRequestItems().get(TABLE_NAME)));
+                        return result;
+                    }
+                });
+    }
+
+    @Test
+    public void GIVEN_count_WHEN_written_THEN_itemMatchesWhatDynamoDBMapperWrites() {
+        HttpReferrerPairsCount count = newCount("/index.html", 1397156430562L, "worker01-ec2");
+        HttpReferrerPairsCount countWithoutHost = newCount("/index.html", 1397156431562L, null);
+        HttpReferrerPairsCount countFromShard = newCount("/index.html", 1397156431562L, "worker02-ec2");
+        countFromShard.setShardId("shardId-000000000001");
+
+        new DynamoDBUtils(dynamoDB).createMapperForTable(TABLE_NAME).batchWrite(
+                Arrays.asList(count, countWithoutHost, countFromShard),
+                Collections.emptyList());
+        new BatchWriteItemCountWriter(dynamoDB, TABLE_NAME).write(
+                Arrays.asList(count, countWithoutHost, countFromShard));
+
+        assertEquals(2, sentBatches.size());
+        assertEquals(3, sentBatches.get(1).size());
+        assertEquals(toItemsByTimestamp(sentBatches.get(0)), toItemsByTimestamp(sentBatches.get(1)));
+    }
+
+    @Test
+    public void GIVEN_moreCountsThanFitInABatch_WHEN_written_THEN_countsSplitIntoBatchesOf25() {
+        List<HttpReferrerPairsCount> counts = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            counts.add(newCount("/index.html", i, "host"));
+        }
+
+        List<HttpReferrerPairsCount> failed = new BatchWriteItemCountWriter(dynamoDB, TABLE_NAME).write(counts);
+
+        assertTrue(failed.isEmpty());
+        assertEquals(3, sentBatches.size());
+        assertEquals(25, sentBatches.get(0).size());
+        assertEquals(25, sentBatches.get(1).size());
+        assertEquals(10, sentBatches.get(2).size());
+    }
+
+    @Test
+    public void GIVEN_dynamoDBReturnsUnprocessedItems_WHEN_written_THEN_unprocessedCountsReturned() {
+        HttpReferrerPairsCount processed = newCount("/index.html", 1000L, "host");
+        HttpReferrerPairsCount unprocessed = newCount("/about.html", 1000L, "host");
+        BatchWriteItemCountWriter writer = new BatchWriteItemCountWriter(dynamoDB, TABLE_NAME);
+        List<WriteRequest> unprocessedRequests = new ArrayList<>();
+        unprocessedRequests.add(new WriteRequest().withPutRequest(
+                new PutRequest().withItem(writer.toItem(unprocessed))));
+        result.setUnprocessedItems(Collections.singletonMap(TABLE_NAME, unprocessedRequests));
+
+        List<HttpReferrerPairsCount> failed = writer.write(Arrays.asList(processed, unprocessed));
+
+        assertEquals(1, failed.size());
+        assertSame(unprocessed, failed.get(0));
+    }
+
+    private Map<String, Map<String, AttributeValue>> toItemsByTimestamp(List<WriteRequest> requests) {
+        Map<String, Map<String, AttributeValue>> items = new HashMap<>();
+        for (WriteRequest request : requests) {
+            Map<String, AttributeValue> item = request.getPutRequest().getItem();
+            items.put(item.get("timestamp").getS(), item);
+        }
+        return items;
+    }
+
+    private HttpReferrerPairsCount newCount(String resource, long timestamp, String host) {
+        ReferrerCount referrerCount = new ReferrerCount();
+        referrerCount.setReferrer("http://www.amazon.com");
+        referrerCount.setCount(1002L);
+
+        HttpReferrerPairsCount count = new HttpReferrerPairsCount();
+        count.setResource(resource);
+        count.setTimestamp(new Date(timestamp));
+        count.setHost(host);
+        count.setReferrerCounts(Collections.singletonList(referrerCount));
+        return count;
+    }
+}
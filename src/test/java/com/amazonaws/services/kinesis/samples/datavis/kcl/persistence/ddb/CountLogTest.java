@@ -0,0 +1,164 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+
+public class CountLogTest {
+    private static final int SEGMENT_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void GIVEN_appendedCount_WHEN_read_THEN_countRoundTrips() throws Exception {
+        CountLog log = openLog();
+        HttpReferrerPairsCount count = newCount("/index.html", 1397156430562L);
+        count.setHost(null);
+
+        long end = log.append(count);
+        List<CountLog.Entry> entries = log.read(0L, 10);
+
+        assertEquals(1, entries.size());
+        CountLog.Entry entry = entries.get(0);
+        assertEquals(0L, entry.getOffset());
+        assertEquals(end, entry.getNextOffset());
+        assertEquals("/index.html", entry.getCount().getResource());
+        assertEquals(new Date(1397156430562L), entry.getCount().getTimestamp());
+        assertNull(entry.getCount().getHost());
+        assertEquals(1, entry.getCount().getReferrerCounts().size());
+        assertEquals("http://www.amazon.com", entry.getCount().getReferrerCounts().get(0).getReferrer());
+        assertEquals(1002L, entry.getCount().getReferrerCounts().get(0).getCount());
+    }
+
+    @Test
+    public void GIVEN_shippedOffsetSaved_WHEN_logReopened_THEN_readingResumesFromShippedOffset() throws Exception {
+        CountLog log = openLog();
+        long firstEnd = log.append(newCount("/first", 1L));
+        log.append(newCount("/second", 2L));
+        log.markShipped(firstEnd);
+        log.close();
+
+        CountLog reopened = openLog();
+        assertEquals(firstEnd, reopened.getShippedOffset());
+        List<CountLog.Entry> entries = reopened.read(reopened.getShippedOffset(), 10);
+
+        assertEquals(1, entries.size());
+        assertEquals("/second", entries.get(0).getCount().getResource());
+        assertEquals(log.getWriteOffset(), reopened.getWriteOffset());
+    }
+
+    @Test
+    public void GIVEN_segmentFills_WHEN_appended_THEN_newSegmentStartedAndShippedSegmentsDeleted() throws Exception {
+        CountLog log = openLog();
+        long end = 0L;
+        for (int i = 0; i < 200; i++) {
+            end = log.append(newCount("/resource/" + i, i));
+        }
+        assertTrue("Expected more than one segment", segmentFiles().length > 1);
+
+        // Every record is read back in order across segment boundaries
+        long offset = 0L;
+        int read = 0;
+        while (offset < end) {
+            for (CountLog.Entry entry : log.read(offset, 7)) {
+                assertEquals("/resource/" + read, entry.getCount().getResource());
+                offset = entry.getNextOffset();
+                read++;
+            }
+        }
+        assertEquals(200, read);
+
+        log.markShipped(end);
+        assertEquals(1, segmentFiles().length);
+    }
+
+    @Test
+    public void GIVEN_tornRecordAtEndOfLog_WHEN_logReopened_THEN_tornRecordDiscarded() throws Exception {
+        CountLog log = openLog();
+        long firstEnd = log.append(newCount("/first", 1L));
+        log.append(newCount("/second", 2L));
+        log.close();
+
+        // Corrupt the last byte of the second record to simulate a partial write
+        try (RandomAccessFile segment = new RandomAccessFile(new File(folder.getRoot(), "0.log"), "rw")) {
+            long lastByte = log.getWriteOffset() - 1;
+            segment.seek(lastByte);
+            int b = segment.read();
+            segment.seek(lastByte);
+            segment.write(b ^ 0xFF);
+        }
+
+        CountLog reopened = openLog();
+        assertEquals(firstEnd, reopened.getWriteOffset());
+        long end = reopened.append(newCount("/third", 3L));
+        List<CountLog.Entry> entries = reopened.read(0L, 10);
+        assertEquals(2, entries.size());
+        assertEquals("/first", entries.get(0).getCount().getResource());
+        assertEquals("/third", entries.get(1).getCount().getResource());
+        assertEquals(end, entries.get(1).getNextOffset());
+    }
+
+    @Test
+    public void GIVEN_closedLog_WHEN_readWaitingForRecords_THEN_readReturnsEmpty() throws Exception {
+        final CountLog log = openLog();
+        new Thread() {
+            @Override
+            public void run() {
+                log.close();
+            }
+        }.start();
+
+        assertTrue(log.read(0L, 10).isEmpty());
+        assertFalse(new File(folder.getRoot(), "shipped.offset").exists());
+    }
+
+    private CountLog openLog() throws IOException {
+        CountLog log = new CountLog(folder.getRoot(), SEGMENT_SIZE);
+        log.open();
+        return log;
+    }
+
+    private File[] segmentFiles() {
+        return folder.getRoot().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".log");
+            }
+        });
+    }
+
+    private HttpReferrerPairsCount newCount(String resource, long timestamp) {
+        ReferrerCount referrerCount = new ReferrerCount();
+        referrerCount.setReferrer("http://www.amazon.com");
+        referrerCount.setCount(1002L);
+
+        HttpReferrerPairsCount count = new HttpReferrerPairsCount();
+        count.setResource(resource);
+        count.setTimestamp(new Date(timestamp));
+        count.setHost("worker01-ec2");
+        count.setReferrerCounts(Arrays.asList(referrerCount));
+        return count;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+
+public class CountSnapshotsMarshallerTest {
+    private CountSnapshotsMarshaller marshaller = new CountSnapshotsMarshaller();
+
+    @Test
+    public void GIVEN_snapshots_WHEN_marshalledAndUnmarshalled_THEN_snapshotsRoundTrip() {
+        List<HttpReferrerPairsCount> snapshots =
+                Arrays.asList(newSnapshot(1397156430000L, "worker01-ec2", 5), newSnapshot(1397156431000L, null, 7));
+
+        List<HttpReferrerPairsCount> unmarshalled = marshaller.unmarshall(null, marshaller.marshall(snapshots));
+
+        assertEquals(2, unmarshalled.size());
+        assertEquals(new Date(1397156430000L), unmarshalled.get(0).getTimestamp());
+        assertEquals("worker01-ec2", unmarshalled.get(0).getHost());
+        assertEquals(5L, unmarshalled.get(0).getReferrerCounts().get(0).getCount());
+        assertEquals(new Date(1397156431000L), unmarshalled.get(1).getTimestamp());
+        assertNull(unmarshalled.get(1).getHost());
+        assertEquals(7L, unmarshalled.get(1).getReferrerCounts().get(0).getCount());
+    }
+
+    @Test
+    public void GIVEN_snapshotsFromTwoShardsAtSameTime_WHEN_encodedAndDecoded_THEN_shardIdsRoundTrip() {
+        HttpReferrerPairsCount first = newSnapshot(1397156430000L, "worker01-ec2", 5);
+        first.setShardId("shardId-000000000000");
+        HttpReferrerPairsCount second = newSnapshot(1397156430000L, "worker02-ec2", 7);
+        second.setShardId("shardId-000000000001");
+
+        byte[] encoded = CountSnapshotsCodec.encode(Arrays.asList(first, second));
+        List<HttpReferrerPairsCount> decoded = CountSnapshotsCodec.decode(encoded);
+
+        assertEquals(2, decoded.size());
+        assertEquals("shardId-000000000000", decoded.get(0).getShardId());
+        assertEquals("shardId-000000000001", decoded.get(1).getShardId());
+        assertEquals(new Date(1397156430000L), decoded.get(1).getTimestamp());
+    }
+
+    @Test
+    public void GIVEN_manySnapshotsWithSameReferrers_WHEN_encoded_THEN_smallerThanEncodingEachSeparately() {
+        List<HttpReferrerPairsCount> snapshots = new ArrayList<>();
+        int separately = 0;
+        for (int i = 0; i < 60; i++) {
+            HttpReferrerPairsCount snapshot = newSnapshot(1397156430000L + i * 1000L, "worker01-ec2", i);
+            snapshots.add(snapshot);
+            separately += ReferrerCountsCodec.encode(snapshot.getReferrerCounts()).length;
+        }
+
+        int packed = CountSnapshotsCodec.encode(snapshots).length;
+
+        assertTrue(packed + " >= " + separately, packed < separately);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void GIVEN_snapshotsOutOfOrder_WHEN_encoded_THEN_illegalArgumentException() {
+        CountSnapshotsCodec.encode(Arrays.asList(newSnapshot(2000L, null, 1), newSnapshot(1000L, null, 1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void GIVEN_truncatedSnapshots_WHEN_decoded_THEN_illegalArgumentException() {
+        byte[] encoded = CountSnapshotsCodec.encode(Arrays.asList(newSnapshot(1000L, "host", 1)));
+        CountSnapshotsCodec.decode(Arrays.copyOf(encoded, encoded.length - 2));
+    }
+
+    private HttpReferrerPairsCount newSnapshot(long timestamp, String host, long count) {
+        List<ReferrerCount> referrerCounts = new ArrayList<>();
+        for (String referrer : Arrays.asList("http://www.amazon.com", "http://aws.amazon.com", "http://www.bing.com")) {
+            ReferrerCount referrerCount = new ReferrerCount();
+            referrerCount.setReferrer(referrer);
+            referrerCount.setCount(count);
+            referrerCounts.add(referrerCount);
+        }
+        HttpReferrerPairsCount snapshot = new HttpReferrerPairsCount();
+        snapshot.setTimestamp(new Date(timestamp));
+        snapshot.setHost(host);
+        snapshot.setReferrerCounts(referrerCounts);
+        return snapshot;
+    }
+}
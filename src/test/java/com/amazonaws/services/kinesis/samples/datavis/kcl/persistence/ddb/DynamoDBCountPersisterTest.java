@@ -6,43 +6,79 @@
 package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.rules.TestRule;
 import org.junit.rules.Timeout;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper.FailedBatch;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.amazonaws.services.kinesis.samples.datavis.kcl.timing.NanoClock;
 import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPair;
 import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
 import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+import com.amazonaws.services.kinesis.samples.datavis.utils.DynamoDBUtils;
+import com.amazonaws.services.kinesis.samples.datavis.utils.HashKeySharding;
+import com.amazonaws.services.kinesis.samples.datavis.utils.ReferrerCountUtils;
 
 public class DynamoDBCountPersisterTest {
+    private static final String SHARD_ID = "shardId-000000000000";
 
     private DynamoDBCountPersister persister;
     private DynamoDBMapper mapper;
+    private DynamoDBCountPersisterConfig config;
 
     // All methods in this test class timeout after 1 second to prevent a bug when dequeuing from the blocking queue to
     // prevent our test suite from hanging.
     @Rule
     public TestRule globalTimeout = new Timeout(1000);
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Before
     public void init() {
         mapper = mock(DynamoDBMapper.class);
-        persister = new DynamoDBCountPersister(mapper);
+        config = new DynamoDBCountPersisterConfig();
+        // Retry immediately so tests don't have to wait on backoff
+        config.setRetryBaseDelayInMillis(0L);
+        config.setRetryMaxDelayInMillis(0L);
+        persister = new DynamoDBCountPersister(mapper, config);
     }
 
     @Test
@@ -51,7 +87,7 @@ public class DynamoDBCountPersisterTest {
 
         final HttpReferrerPair pair = new HttpReferrerPair("a", "b");
         final long count = 1L;
-        persister.persist(Collections.singletonMap(pair, count));
+        persister.persist(Collections.singletonMap(pair, count), new Date(), SHARD_ID);
 
         persister.sendQueueToDynamoDB(new ArrayList<HttpReferrerPairsCount>());
 
@@ -85,7 +121,7 @@ public class DynamoDBCountPersisterTest {
         counts.put(new HttpReferrerPair(resource, "f"), 20L);
 
         // Persist the counts
-        persister.persist(counts);
+        persister.persist(counts, new Date(), SHARD_ID);
 
         // Trigger the flush to DynamoDB.
         persister.sendQueueToDynamoDB(new ArrayList<HttpReferrerPairsCount>());
@@ -113,6 +149,109 @@ public class DynamoDBCountPersisterTest {
         }
     }
 
+    @Test
+    public void GIVEN_moreReferrersThanMax_WHEN_sendQueueToDynamoDB_THEN_topReferrersKeptAndRestSummedAsOther()
+        throws InterruptedException {
+        config.setMaxReferrersPerResource(2);
+        persister = new DynamoDBCountPersister(mapper, config);
+
+        String resource = "a";
+        Map<HttpReferrerPair, Long> counts = new HashMap<>();
+        counts.put(new HttpReferrerPair(resource, "b"), 10L);
+        counts.put(new HttpReferrerPair(resource, "c"), 7L);
+        counts.put(new HttpReferrerPair(resource, "d"), 15L);
+        counts.put(new HttpReferrerPair(resource, "e"), 20L);
+        counts.put(new HttpReferrerPair(resource, "f"), 3L);
+
+        persister.persist(counts, new Date(), SHARD_ID);
+        persister.sendQueueToDynamoDB(new ArrayList<HttpReferrerPairsCount>());
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        ArgumentCaptor<List<HttpReferrerPairsCount>> pairsCountCaptor = ArgumentCaptor.forClass((Class) List.class);
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        ArgumentCaptor<List<HttpReferrerPairsCount>> ignoredCaptor = ArgumentCaptor.forClass((Class) List.class);
+        verify(mapper).batchWrite(pairsCountCaptor.capture(), ignoredCaptor.capture());
+
+        List<ReferrerCount> referrerCounts = pairsCountCaptor.getValue().get(0).getReferrerCounts();
+        assertEquals(3, referrerCounts.size());
+        assertEquals("e", referrerCounts.get(0).getReferrer());
+        assertEquals(20L, referrerCounts.get(0).getCount());
+        assertEquals("d", referrerCounts.get(1).getReferrer());
+        assertEquals(15L, referrerCounts.get(1).getCount());
+        assertEquals(ReferrerCountUtils.OTHER_REFERRERS, referrerCounts.get(2).getReferrer());
+        assertEquals(20L, referrerCounts.get(2).getCount());
+    }
+
+    @Test
+    public void GIVEN_writeShardsPerResource_WHEN_sendQueueToDynamoDB_THEN_countsWrittenUnderShardedHashKey()
+        throws InterruptedException {
+        config.setWriteShardsPerResource(4);
+        persister = new DynamoDBCountPersister(mapper, config);
+
+        persister.persist(Collections.singletonMap(new HttpReferrerPair("a", "b"), 1L), new Date(), SHARD_ID);
+        persister.sendQueueToDynamoDB(new ArrayList<HttpReferrerPairsCount>());
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        ArgumentCaptor<List<HttpReferrerPairsCount>> pairsCountCaptor = ArgumentCaptor.forClass((Class) List.class);
+        verify(mapper).batchWrite(pairsCountCaptor.capture(), Mockito.anyList());
+        // The suffix is chosen by the interval the counts were computed for
+        HttpReferrerPairsCount count = pairsCountCaptor.getValue().get(0);
+        long interval = count.getTimestamp().getTime() / config.getCountIntervalInMillis();
+        assertEquals(new HashKeySharding(4).toHashKey("a", interval), count.getResource());
+        assertEquals("a#" + interval % 4, count.getResource());
+    }
+
+    @Test
+    public void GIVEN_intervalReplayedLater_WHEN_sendQueueToDynamoDB_THEN_writtenToSameItemAsFirstTime()
+        throws InterruptedException {
+        config.setWriteShardsPerResource(4);
+        persister = new DynamoDBCountPersister(mapper, config);
+        // An interval long past, as if its counts were replayed after a failover
+        Date intervalStart = new Date(1397156461000L);
+
+        persister.persist(Collections.singletonMap(new HttpReferrerPair("a", "b"), 1L), intervalStart, SHARD_ID);
+        persister.sendQueueToDynamoDB(new ArrayList<HttpReferrerPairsCount>());
+        persister.persist(Collections.singletonMap(new HttpReferrerPair("a", "b"), 1L), intervalStart, SHARD_ID);
+        persister.sendQueueToDynamoDB(new ArrayList<HttpReferrerPairsCount>());
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        ArgumentCaptor<List<HttpReferrerPairsCount>> pairsCountCaptor = ArgumentCaptor.forClass((Class) List.class);
+        verify(mapper, times(2)).batchWrite(pairsCountCaptor.capture(), Mockito.anyList());
+        for (List<HttpReferrerPairsCount> written : pairsCountCaptor.getAllValues()) {
+            assertEquals(1, written.size());
+            assertEquals(intervalStart, written.get(0).getTimestamp());
+            assertEquals(new HashKeySharding(4).toHashKey("a", 1397156461L), written.get(0).getResource());
+        }
+    }
+
+    @Test
+    public void GIVEN_twoShardsCountSameResourceInOneInterval_WHEN_sendQueueToDynamoDB_THEN_bothWrittenToTheirOwnItems()
+        throws InterruptedException {
+        // Two workers, each processing a shard with records for the same resource
+        DynamoDBCountPersister otherHost = new DynamoDBCountPersister(mapper, config);
+        Date intervalStart = new Date(1397156461000L);
+
+        persister.persist(Collections.singletonMap(new HttpReferrerPair("a", "b"), 1L), intervalStart, SHARD_ID);
+        otherHost.persist(Collections.singletonMap(new HttpReferrerPair("a", "b"), 2L),
+                intervalStart,
+                "shardId-000000000001");
+        persister.sendQueueToDynamoDB(new ArrayList<HttpReferrerPairsCount>());
+        otherHost.sendQueueToDynamoDB(new ArrayList<HttpReferrerPairsCount>());
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        ArgumentCaptor<List<HttpReferrerPairsCount>> pairsCountCaptor = ArgumentCaptor.forClass((Class) List.class);
+        verify(mapper, times(2)).batchWrite(pairsCountCaptor.capture(), Mockito.anyList());
+        HttpReferrerPairsCount first = pairsCountCaptor.getAllValues().get(0).get(0);
+        HttpReferrerPairsCount second = pairsCountCaptor.getAllValues().get(1).get(0);
+        // Same hash key and interval, but each shard's counts are kept in an item of their own
+        assertEquals(first.getResource(), second.getResource());
+        assertEquals(first.getTimestamp(), second.getTimestamp());
+        assertEquals("2014-04-10T19:01:01.000Z#" + SHARD_ID, first.getRangeKey());
+        assertEquals("2014-04-10T19:01:01.000Z#shardId-000000000001", second.getRangeKey());
+        assertEquals(1L, first.getReferrerCounts().get(0).getCount());
+        assertEquals(2L, second.getReferrerCounts().get(0).getCount());
+    }
+
     @SuppressWarnings("unchecked")
     @Test
     public void GIVEN_initializedPersister_WHEN_persist_THEN_countsPersistedInBatch() throws InterruptedException {
@@ -120,7 +259,7 @@ public class DynamoDBCountPersisterTest {
 
         final HttpReferrerPair pair = new HttpReferrerPair("a", "b");
         final long count = 1L;
-        persister.persist(Collections.singletonMap(pair, count));
+        persister.persist(Collections.singletonMap(pair, count), new Date(), SHARD_ID);
 
         // Wait for the persister thread to pick up the new counts
         Thread.sleep(100);
@@ -129,6 +268,16 @@ public class DynamoDBCountPersisterTest {
         verify(mapper).batchWrite(Mockito.any(List.class), Mockito.any(List.class));
     }
 
+    @Test
+    public void GIVEN_initializedPersister_WHEN_initializedByAnotherRecordProcessor_THEN_noOtherSenderStarted() {
+        persister.initialize();
+        int senders = countLiveSenderThreads();
+
+        persister.initialize();
+
+        assertEquals(senders, countLiveSenderThreads());
+    }
+
     @Test
     public void GIVEN_initializedPersister_WHEN_checkpoint_THEN_checkpointReturnsSuccessfully()
         throws InterruptedException {
@@ -136,4 +285,283 @@ public class DynamoDBCountPersisterTest {
 
         persister.checkpoint();
     }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void GIVEN_writeAheadLog_WHEN_checkpoint_THEN_checkpointDoesNotWaitForDynamoDB() throws Exception {
+        // Block the first write until the checkpoint has completed
+        final CountDownLatch checkpointed = new CountDownLatch(1);
+        CountWriter writer = mock(CountWriter.class);
+        when(writer.write(Mockito.anyList())).thenAnswer(new Answer<List<HttpReferrerPairsCount>>() {
+            @Override
+            public List<HttpReferrerPairsCount> answer(InvocationOnMock invocation) throws InterruptedException {
+                checkpointed.await();
+                return Collections.emptyList();
+            }
+        });
+        CountLog log = new CountLog(folder.getRoot(), CountLog.DEFAULT_SEGMENT_SIZE_IN_BYTES);
+        log.open();
+        persister = new DynamoDBCountPersister(writer, config, null, log);
+        persister.initialize();
+
+        persister.persist(Collections.singletonMap(new HttpReferrerPair("a", "b"), 1L), new Date(), SHARD_ID);
+        persister.checkpoint();
+        assertTrue(persister.getUnshippedLogBytes() > 0);
+        checkpointed.countDown();
+
+        // The shipper delivers the logged count in the background
+        while (persister.getUnshippedLogBytes() > 0) {
+            Thread.sleep(10);
+        }
+        verify(writer).write(Mockito.anyList());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void GIVEN_batchWriteReturnsUnprocessedItems_WHEN_sendQueueToDynamoDB_THEN_unprocessedCountsRetried()
+        throws InterruptedException {
+        // Reject every item in the first batch as DynamoDB would when throttled
+        when(mapper.batchWrite(Mockito.anyList(), Mockito.anyList())).thenAnswer(new Answer<List<FailedBatch>>() {
+            @Override
+            public List<FailedBatch> answer(InvocationOnMock invocation) {
+                List<HttpReferrerPairsCount> batch = (List<HttpReferrerPairsCount>) invocation.getArguments()[0];
+                return Collections.singletonList(toFailedBatch(batch));
+            }
+        }).thenReturn(Collections.<FailedBatch> emptyList());
+
+        persister.persist(Collections.singletonMap(new HttpReferrerPair("a", "b"), 1L), new Date(), SHARD_ID);
+        persister.sendQueueToDynamoDB(new ArrayList<HttpReferrerPairsCount>());
+        assertEquals(1, persister.getRetryAttempts());
+
+        // The next send should pick up the retry even though no new counts were persisted
+        persister.sendQueueToDynamoDB(new ArrayList<HttpReferrerPairsCount>());
+
+        @SuppressWarnings({ "rawtypes" })
+        ArgumentCaptor<List<HttpReferrerPairsCount>> pairsCountCaptor = ArgumentCaptor.forClass((Class) List.class);
+        verify(mapper, times(2)).batchWrite(pairsCountCaptor.capture(), Mockito.anyList());
+        List<List<HttpReferrerPairsCount>> batches = pairsCountCaptor.getAllValues();
+        assertEquals(1, batches.get(1).size());
+        assertSame(batches.get(0).get(0), batches.get(1).get(0));
+        assertEquals(1, persister.getRetrySuccesses());
+        assertEquals(0, persister.getRetriesAbandoned());
+    }
+
+    @Test
+    public void GIVEN_resourcePersistedTwiceInOneInterval_WHEN_sendQueueToDynamoDB_THEN_newestWrittenAtIntervalStart()
+        throws InterruptedException {
+        // An interval long enough that both counts are persisted in it
+        long intervalInMillis = TimeUnit.DAYS.toMillis(1);
+        config.setCountIntervalInMillis(intervalInMillis);
+        persister = new DynamoDBCountPersister(mapper, config);
+
+        persister.persist(Collections.singletonMap(new HttpReferrerPair("a", "b"), 1L), new Date(), SHARD_ID);
+        persister.persist(Collections.singletonMap(new HttpReferrerPair("a", "b"), 2L), new Date(), SHARD_ID);
+        persister.persist(Collections.singletonMap(new HttpReferrerPair("c", "b"), 3L), new Date(), SHARD_ID);
+        persister.sendQueueToDynamoDB(new ArrayList<HttpReferrerPairsCount>());
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        ArgumentCaptor<List<HttpReferrerPairsCount>> pairsCountCaptor = ArgumentCaptor.forClass((Class) List.class);
+        verify(mapper).batchWrite(pairsCountCaptor.capture(), Mockito.anyList());
+        List<HttpReferrerPairsCount> written = pairsCountCaptor.getValue();
+        assertEquals(2, written.size());
+        assertEquals("a", written.get(0).getResource());
+        assertEquals(2L, written.get(0).getReferrerCounts().get(0).getCount());
+        assertEquals("c", written.get(1).getResource());
+        assertEquals(0L, written.get(0).getTimestamp().getTime() % intervalInMillis);
+        assertEquals(written.get(0).getTimestamp(), written.get(1).getTimestamp());
+        assertEquals(1, persister.getCoalescedCounts());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void GIVEN_batchWriteThrows_WHEN_countsOlderThanMaxRetryAge_THEN_countsAbandoned()
+        throws InterruptedException {
+        config.setMaxRetryAgeInMillis(-1L);
+        persister = new DynamoDBCountPersister(mapper, config);
+        when(mapper.batchWrite(Mockito.anyList(), Mockito.anyList())).thenThrow(
+                new ProvisionedThroughputExceededException("throttled"));
+
+        persister.persist(Collections.singletonMap(new HttpReferrerPair("a", "b"), 1L), new Date(), SHARD_ID);
+        persister.sendQueueToDynamoDB(new ArrayList<HttpReferrerPairsCount>());
+
+        assertEquals(0, persister.getRetryAttempts());
+        assertEquals(1, persister.getRetriesAbandoned());
+    }
+
+    @Test
+    public void GIVEN_rateLimitedPersister_WHEN_sendQueueToDynamoDB_THEN_consumedCapacityReportedToRateLimiter()
+        throws InterruptedException {
+        // A local stand-in for DynamoDB that charges 2.5 capacity units for every batch
+        AmazonDynamoDB standIn = mock(AmazonDynamoDB.class);
+        when(standIn.batchWriteItem(Mockito.any(BatchWriteItemRequest.class))).thenReturn(
+                new BatchWriteItemResult().withUnprocessedItems(new HashMap<String, List<WriteRequest>>())
+                        .withConsumedCapacity(new ConsumedCapacity().withTableName("table").withCapacityUnits(2.5)));
+
+        WriteRateLimiter rateLimiter = new WriteRateLimiter(1, 10, new NanoClock());
+        DynamoDBUtils dynamoDBUtils = new DynamoDBUtils(ConsumedCapacityReportingDynamoDB.wrap(standIn, rateLimiter));
+        persister = new DynamoDBCountPersister(dynamoDBUtils.createMapperForTable("table"), config, rateLimiter);
+
+        persister.persist(Collections.singletonMap(new HttpReferrerPair("a", "b"), 1L), new Date(), SHARD_ID);
+        persister.sendQueueToDynamoDB(new ArrayList<HttpReferrerPairsCount>());
+
+        ArgumentCaptor<BatchWriteItemRequest> requestCaptor = ArgumentCaptor.forClass(BatchWriteItemRequest.class);
+        verify(standIn).batchWriteItem(requestCaptor.capture());
+        assertEquals(ReturnConsumedCapacity.TOTAL.toString(), requestCaptor.getValue().getReturnConsumedCapacity());
+        assertEquals(1, requestCaptor.getValue().getRequestItems().get("table").size());
+        // The limiter should have been charged for the write. Allow for a little refill while the test runs.
+        assertEquals(7.5, rateLimiter.getAvailableCapacityUnits(), 0.1);
+    }
+
+    @Test
+    public void GIVEN_rateLimiterOverBudget_WHEN_sendQueueToDynamoDB_THEN_onlyNewestCountPerResourceWritten()
+        throws InterruptedException {
+        // Put the limiter a few milliseconds in to debt so we can't afford to write everything
+        WriteRateLimiter rateLimiter = new WriteRateLimiter(1000, 1, new NanoClock());
+        rateLimiter.recordConsumedCapacity(5, 1);
+        assertFalse(rateLimiter.canAfford(2));
+        persister = new DynamoDBCountPersister(mapper, config, rateLimiter);
+
+        persister.persist(Collections.singletonMap(new HttpReferrerPair("a", "b"), 1L), new Date(), SHARD_ID);
+        TimeUnit.MILLISECONDS.sleep(2);
+        persister.persist(Collections.singletonMap(new HttpReferrerPair("a", "b"), 2L), new Date(), SHARD_ID);
+        TimeUnit.MILLISECONDS.sleep(2);
+        persister.persist(Collections.singletonMap(new HttpReferrerPair("a", "b"), 3L), new Date(), SHARD_ID);
+        persister.persist(Collections.singletonMap(new HttpReferrerPair("c", "b"), 4L), new Date(), SHARD_ID);
+        persister.sendQueueToDynamoDB(new ArrayList<HttpReferrerPairsCount>());
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        ArgumentCaptor<List<HttpReferrerPairsCount>> pairsCountCaptor = ArgumentCaptor.forClass((Class) List.class);
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        ArgumentCaptor<List<HttpReferrerPairsCount>> ignoredCaptor = ArgumentCaptor.forClass((Class) List.class);
+        verify(mapper).batchWrite(pairsCountCaptor.capture(), ignoredCaptor.capture());
+
+        List<HttpReferrerPairsCount> written = pairsCountCaptor.getValue();
+        assertEquals(2, written.size());
+        assertEquals("a", written.get(0).getResource());
+        assertEquals(3L, written.get(0).getReferrerCounts().get(0).getCount());
+        assertEquals("c", written.get(1).getResource());
+        assertEquals(2, persister.getCoalescedCounts());
+    }
+
+    @Test
+    public void GIVEN_asyncWriter_WHEN_writeCompletesWithFailures_THEN_failedCountsRetriedFromCallback()
+        throws InterruptedException {
+        RecordingAsyncCountWriter writer = new RecordingAsyncCountWriter();
+        persister = new DynamoDBCountPersister(writer, config, null, null);
+
+        persister.persist(Collections.singletonMap(new HttpReferrerPair("a", "b"), 1L), new Date(), SHARD_ID);
+        persister.sendQueueToDynamoDB(new ArrayList<HttpReferrerPairsCount>());
+        // The sending thread does not wait for the write to complete
+        RecordingAsyncCountWriter.Write first = writer.writes.take();
+        assertEquals(1, persister.getInFlightCounts());
+        assertEquals(0, persister.getRetryAttempts());
+
+        first.callback.onComplete(first.counts, first.counts);
+        assertEquals(0, persister.getInFlightCounts());
+        assertEquals(1, persister.getRetryAttempts());
+
+        // The next send picks up the retry scheduled by the callback
+        persister.sendQueueToDynamoDB(new ArrayList<HttpReferrerPairsCount>());
+        RecordingAsyncCountWriter.Write second = writer.writes.take();
+        assertSame(first.counts.get(0), second.counts.get(0));
+        second.callback.onComplete(second.counts, Collections.<HttpReferrerPairsCount> emptyList());
+        assertEquals(1, persister.getRetrySuccesses());
+    }
+
+    @Test
+    public void GIVEN_asyncWriteInFlight_WHEN_checkpoint_THEN_checkpointWaitsForWriteToComplete() throws Exception {
+        RecordingAsyncCountWriter writer = new RecordingAsyncCountWriter();
+        persister = new DynamoDBCountPersister(writer, config, null, null);
+        persister.initialize();
+
+        persister.persist(Collections.singletonMap(new HttpReferrerPair("a", "b"), 1L), new Date(), SHARD_ID);
+        RecordingAsyncCountWriter.Write write = writer.writes.take();
+        Thread checkpointing = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    persister.checkpoint();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        checkpointing.start();
+        checkpointing.join(100);
+        assertTrue(checkpointing.isAlive());
+
+        write.callback.onComplete(write.counts, Collections.<HttpReferrerPairsCount> emptyList());
+        checkpointing.join();
+    }
+
+    @Test
+    public void GIVEN_asyncWriter_WHEN_shutdown_THEN_senderStoppedAndWriterShutDown() throws Exception {
+        RecordingAsyncCountWriter writer = new RecordingAsyncCountWriter();
+        persister = new DynamoDBCountPersister(writer, config, null, null);
+        persister.initialize();
+
+        persister.shutdown();
+
+        assertTrue(writer.shutdown);
+        try {
+            persister.checkpoint();
+            fail("Checkpointing should fail once the sending thread has stopped");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    /**
+     * Records asynchronous writes so tests can complete them.
+     */
+    private static class RecordingAsyncCountWriter implements AsyncCountWriter {
+        private final BlockingQueue<Write> writes = new LinkedBlockingQueue<>();
+        private volatile boolean shutdown;
+
+        @Override
+        public void write(List<HttpReferrerPairsCount> counts, WriteCallback callback) {
+            writes.add(new Write(new ArrayList<>(counts), callback));
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        private static class Write {
+            private final List<HttpReferrerPairsCount> counts;
+            private final WriteCallback callback;
+
+            Write(List<HttpReferrerPairsCount> counts, WriteCallback callback) {
+                this.counts = counts;
+                this.callback = callback;
+            }
+        }
+    }
+
+    private int countLiveSenderThreads() {
+        int senders = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && DynamoDBCountPersister.SENDER_THREAD_NAME.equals(thread.getName())) {
+                senders++;
+            }
+        }
+        return senders;
+    }
+
+    /**
+     * Build a failed batch that contains every count provided as an unprocessed item.
+     */
+    private FailedBatch toFailedBatch(List<HttpReferrerPairsCount> counts) {
+        List<WriteRequest> requests = new ArrayList<>();
+        for (HttpReferrerPairsCount count : counts) {
+            Map<String, AttributeValue> item = new HashMap<>();
+            item.put("resource", new AttributeValue().withS(count.getResource()));
+            item.put("timestamp", new AttributeValue().withS(count.getRangeKey()));
+            requests.add(new WriteRequest().withPutRequest(new PutRequest().withItem(item)));
+        }
+        FailedBatch failure = new FailedBatch();
+        failure.setUnprocessedItems(Collections.singletonMap("table", requests));
+        failure.setException(new ProvisionedThroughputExceededException("throttled"));
+        return failure;
+    }
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.amazonaws.services.dynamodbv2.datamodeling.JsonMarshaller;
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+
+public class ReferrerCountMarshallerTest {
+
+    private ReferrerCountMarshaller marshaller = new ReferrerCountMarshaller();
+
+    @Test
+    public void GIVEN_referrerCounts_WHEN_marshalledAndUnmarshalled_THEN_countsAndOrderArePreserved() {
+        List<ReferrerCount> counts = new ArrayList<>();
+        counts.add(newCount("http://www.amazon.com", 1002L));
+        counts.add(newCount("http://aws.amazon.com", 901L));
+        counts.add(newCount("http://www.amazon.com/kinesis", 7L));
+        counts.add(newCount("http://über.example.com", 0L));
+
+        assertReferrerCountsEqual(counts, roundTrip(counts));
+    }
+
+    @Test
+    public void GIVEN_noReferrerCounts_WHEN_marshalledAndUnmarshalled_THEN_emptyListReturned() {
+        assertTrue(roundTrip(Collections.<ReferrerCount> emptyList()).isEmpty());
+    }
+
+    @Test
+    public void GIVEN_manySimilarReferrers_WHEN_encoded_THEN_bodyIsDeflatedAndSmallerThanJson() {
+        List<ReferrerCount> counts = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            String referrer = "http://www.example.com/some/long/path/page" + (i % 50) + "?ref=" + i;
+            counts.add(newCount(referrer, Long.MAX_VALUE - i));
+        }
+        byte[] encoded = ReferrerCountsCodec.encode(counts);
+        String json = new JsonMarshaller<List<ReferrerCount>>().marshall(counts);
+
+        assertEquals(1, encoded[1]);
+        assertTrue(encoded.length < json.length() / 4);
+        assertReferrerCountsEqual(counts, ReferrerCountsCodec.decode(encoded));
+    }
+
+    @Test
+    public void GIVEN_legacyJsonReferrerCounts_WHEN_unmarshalled_THEN_countsAreDecoded() {
+        List<ReferrerCount> counts = marshaller.unmarshall(null, "[{\"referrer\":\"http://www.amazon.com\",\"count\":1002},"
+                + "{\"referrer\":\"http://aws.amazon.com\",\"count\":901}]");
+
+        assertEquals(2, counts.size());
+        assertEquals("http://www.amazon.com", counts.get(0).getReferrer());
+        assertEquals(1002L, counts.get(0).getCount());
+        assertEquals("http://aws.amazon.com", counts.get(1).getReferrer());
+        assertEquals(901L, counts.get(1).getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void GIVEN_truncatedEncoding_WHEN_decoded_THEN_throwsIllegalArgumentException() {
+        byte[] encoded = ReferrerCountsCodec.encode(Collections.singletonList(newCount("http://www.amazon.com", 1L)));
+        byte[] truncated = new byte[encoded.length - 1];
+        System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+        ReferrerCountsCodec.decode(truncated);
+    }
+
+    private List<ReferrerCount> roundTrip(List<ReferrerCount> counts) {
+        return marshaller.unmarshall(null, marshaller.marshall(counts));
+    }
+
+    private void assertReferrerCountsEqual(List<ReferrerCount> expected, List<ReferrerCount> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getReferrer(), actual.get(i).getReferrer());
+            assertEquals(expected.get(i).getCount(), actual.get(i).getCount());
+        }
+    }
+
+    private ReferrerCount newCount(String referrer, long count) {
+        ReferrerCount referrerCount = new ReferrerCount();
+        referrerCount.setReferrer(referrer);
+        referrerCount.setCount(count);
+        return referrerCount;
+    }
+}
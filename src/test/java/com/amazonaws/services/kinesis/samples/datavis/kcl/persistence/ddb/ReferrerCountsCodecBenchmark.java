@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.dynamodbv2.datamodeling.JsonMarshaller;
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+
+/**
+ * Compares the attribute size and encode/decode time of the legacy JSON referrer counts against
+ * {@link ReferrerCountMarshaller}. This is not run as part of the test suite. Run it directly with:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb.ReferrerCountsCodecBenchmark
+ * </pre>
+ */
+public class ReferrerCountsCodecBenchmark {
+    private static final int WARMUP_ITERATIONS = 2000;
+    private static final int MEASURED_ITERATIONS = 5000;
+
+    public static void main(String[] args) {
+        for (int referrers : new int[] { 10, 100, 500 }) {
+            benchmark(referrers);
+        }
+    }
+
+    private static void benchmark(int referrers) {
+        List<ReferrerCount> counts = generateCounts(referrers);
+        JsonMarshaller<List<ReferrerCount>> json = new JsonMarshaller<>();
+        ReferrerCountMarshaller compact = new ReferrerCountMarshaller();
+
+        String jsonValue = json.marshall(counts);
+        String compactValue = compact.marshall(counts);
+
+        // Warm up both code paths before measuring
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            json.marshall(counts);
+            compact.unmarshall(null, compact.marshall(counts));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            json.marshall(counts);
+        }
+        long jsonEncodeNanos = (System.nanoTime() - start) / MEASURED_ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            compact.marshall(counts);
+        }
+        long compactEncodeNanos = (System.nanoTime() - start) / MEASURED_ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            compact.unmarshall(null, jsonValue);
+        }
+        long jsonDecodeNanos = (System.nanoTime() - start) / MEASURED_ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            compact.unmarshall(null, compactValue);
+        }
+        long compactDecodeNanos = (System.nanoTime() - start) / MEASURED_ITERATIONS;
+
+        System.out.println(String.format("%d referrers: size json=%dB compact=%dB (%.1f%%), "
+                + "encode json=%dus compact=%dus, decode json=%dus compact=%dus",
+                referrers,
+                jsonValue.length(),
+                compactValue.length(),
+                100.0 * compactValue.length() / jsonValue.length(),
+                TimeUnit.NANOSECONDS.toMicros(jsonEncodeNanos),
+                TimeUnit.NANOSECONDS.toMicros(compactEncodeNanos),
+                TimeUnit.NANOSECONDS.toMicros(jsonDecodeNanos),
+                TimeUnit.NANOSECONDS.toMicros(compactDecodeNanos)));
+    }
+
+    /**
+     * Generate referrer counts in descending order, shaped like what the producer sends.
+     */
+    private static List<ReferrerCount> generateCounts(int referrers) {
+        String[] sites = { "http://www.amazon.com", "http://www.google.com", "http://www.yahoo.com",
+                "http://www.bing.com", "http://www.stackoverflow.com", "http://www.reddit.com" };
+        Random random = new Random(42);
+        List<ReferrerCount> counts = new ArrayList<>(referrers);
+        long count = 100000;
+        for (int i = 0; i < referrers; i++) {
+            ReferrerCount referrerCount = new ReferrerCount();
+            referrerCount.setReferrer(sites[i % sites.length] + "/path/" + i);
+            count -= random.nextInt(200);
+            referrerCount.setCount(Math.max(count, 1));
+            counts.add(referrerCount);
+        }
+        return counts;
+    }
+}
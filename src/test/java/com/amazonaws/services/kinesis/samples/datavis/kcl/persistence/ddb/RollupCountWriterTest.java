@@ -0,0 +1,365 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerCountsRollup;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+import com.amazonaws.services.kinesis.samples.datavis.utils.DynamoDBUtils;
+import com.amazonaws.services.kinesis.samples.datavis.utils.HashKeySharding;
+import com.amazonaws.services.kinesis.samples.datavis.utils.ReferrerCountUtils;
+
+public class RollupCountWriterTest {
+    private static final String TABLE_NAME = "table";
+    // The start of a minute
+    private static final long MINUTE_START = 1397156460000L;
+    private static final HashKeySharding SHARDING = new HashKeySharding(1);
+    // Runs flushes in the thread that starts them
+    private static final Executor SAME_THREAD = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private CountWriter delegate;
+    private AmazonDynamoDB dynamoDB;
+    private RollupCountWriter writer;
+    private List<PutItemRequest> puts;
+
+    @Before
+    public void init() {
+        delegate = mock(CountWriter.class);
+        when(delegate.write(Mockito.anyListOf(HttpReferrerPairsCount.class))).thenReturn(
+                Collections.<HttpReferrerPairsCount> emptyList());
+        dynamoDB = mock(AmazonDynamoDB.class);
+        when(dynamoDB.getItem(Mockito.any(GetItemRequest.class))).thenReturn(new GetItemResult());
+        puts = new ArrayList<>();
+        when(dynamoDB.putItem(Mockito.any(PutItemRequest.class))).thenAnswer(new Answer<PutItemResult>() {
+            @Override
+            public PutItemResult answer(InvocationOnMock invocation) {
+                puts.add((PutItemRequest) invocation.getArguments()[0]);
+                return new PutItemResult();
+            }
+        });
+        // Flush on every write
+        writer = new RollupCountWriter(delegate, dynamoDB, TABLE_NAME, SHARDING, new int[] { 60 }, 2, 0L, SAME_THREAD);
+    }
+
+    @Test
+    public void GIVEN_countsInSameMinute_WHEN_written_THEN_rollupHoldsSumAndSamples() {
+        writer.write(Arrays.asList(newCount(MINUTE_START + 1000L, "a", 1L), newCount(MINUTE_START + 2000L, "a", 2L)));
+
+        assertEquals(1, puts.size());
+        PutItemRequest put = puts.get(0);
+        assertEquals("60s:/index.html", put.getItem().get("resource").getS());
+        assertEquals("2014-04-10T19:01:00.000Z", put.getItem().get("timestamp").getS());
+        assertEquals("2", put.getItem().get("samples").getN());
+        assertFalse(put.getExpected().get("version").isExists());
+        List<ReferrerCount> referrerCounts = referrerCounts(put);
+        assertEquals(1, referrerCounts.size());
+        assertEquals(3L, referrerCounts.get(0).getCount());
+    }
+
+    @Test
+    public void GIVEN_twoShardsCountSameInterval_WHEN_written_THEN_intervalSampledOnce() {
+        HttpReferrerPairsCount first = newCount(MINUTE_START + 1000L, "a", 1L);
+        first.setShardId("shardId-000000000000");
+        HttpReferrerPairsCount second = newCount(MINUTE_START + 1000L, "a", 2L);
+        second.setShardId("shardId-000000000001");
+
+        writer.write(Arrays.asList(first, second));
+
+        assertEquals("1", puts.get(0).getItem().get("samples").getN());
+        assertEquals(3L, referrerCounts(puts.get(0)).get(0).getCount());
+    }
+
+    @Test
+    public void GIVEN_rollupReadAfterRestart_WHEN_anotherShardsCountForSummedInterval_THEN_intervalNotSampledAgain() {
+        HttpReferrerPairsCount first = newCount(MINUTE_START + 1000L, "a", 1L);
+        first.setShardId("shardId-000000000000");
+        writer.write(Arrays.asList(first));
+        when(dynamoDB.getItem(Mockito.any(GetItemRequest.class))).thenReturn(new GetItemResult().withItem(puts.get(0)
+                .getItem()));
+        writer = new RollupCountWriter(delegate, dynamoDB, TABLE_NAME, SHARDING, new int[] { 60 }, 2, 0L, SAME_THREAD);
+        HttpReferrerPairsCount second = newCount(MINUTE_START + 1000L, "a", 2L);
+        second.setShardId("shardId-000000000001");
+
+        writer.write(Arrays.asList(second, newCount(MINUTE_START + 2000L, "a", 3L)));
+
+        assertEquals("2", puts.get(1).getItem().get("samples").getN());
+        assertEquals(6L, referrerCounts(puts.get(1)).get(0).getCount());
+    }
+
+    @Test
+    public void GIVEN_rollupWithoutIntervals_WHEN_moreCountsWritten_THEN_itsSamplesKept() {
+        writer.write(Arrays.asList(newCount(MINUTE_START + 1000L, "a", 1L)));
+        Map<String, AttributeValue> legacy = new HashMap<>(puts.get(0).getItem());
+        legacy.remove("intervals");
+        legacy.put("samples", new AttributeValue().withN("5"));
+        when(dynamoDB.getItem(Mockito.any(GetItemRequest.class))).thenReturn(new GetItemResult().withItem(legacy));
+        writer = new RollupCountWriter(delegate, dynamoDB, TABLE_NAME, SHARDING, new int[] { 60 }, 2, 0L, SAME_THREAD);
+
+        writer.write(Arrays.asList(newCount(MINUTE_START + 2000L, "a", 2L)));
+
+        assertEquals("6", puts.get(1).getItem().get("samples").getN());
+    }
+
+    @Test
+    public void GIVEN_countsFailedByDelegate_WHEN_written_THEN_notRolledUp() {
+        HttpReferrerPairsCount failed = newCount(MINUTE_START + 2000L, "a", 2L);
+        when(delegate.write(Mockito.anyListOf(HttpReferrerPairsCount.class))).thenReturn(Arrays.asList(failed));
+
+        List<HttpReferrerPairsCount> result = writer.write(Arrays.asList(newCount(MINUTE_START + 1000L, "a", 1L), failed));
+
+        assertEquals(Arrays.asList(failed), result);
+        assertEquals("1", puts.get(0).getItem().get("samples").getN());
+        assertEquals(1L, referrerCounts(puts.get(0)).get(0).getCount());
+    }
+
+    @Test
+    public void GIVEN_asyncDelegate_WHEN_writeCompletes_THEN_writtenCountsRolledUpBeforeCallback() throws Exception {
+        final HttpReferrerPairsCount failed = newCount(MINUTE_START + 2000L, "a", 2L);
+        AsyncCountWriter asyncDelegate = new AsyncCountWriter() {
+            @Override
+            public void write(List<HttpReferrerPairsCount> counts, WriteCallback callback) {
+                callback.onComplete(counts, Arrays.asList(failed));
+            }
+
+            @Override
+            public void shutdown() {
+            }
+        };
+        writer =
+                new RollupCountWriter(asyncDelegate, dynamoDB, TABLE_NAME, SHARDING, new int[] { 60 }, 2, 0L,
+                        SAME_THREAD);
+        final List<HttpReferrerPairsCount> failedInCallback = new ArrayList<>();
+        List<HttpReferrerPairsCount> counts = Arrays.asList(newCount(MINUTE_START + 1000L, "a", 1L), failed);
+
+        writer.write(counts, new AsyncCountWriter.WriteCallback() {
+            @Override
+            public void onComplete(List<HttpReferrerPairsCount> counts, List<HttpReferrerPairsCount> failed) {
+                // The rollup has already been written
+                assertEquals(1, puts.size());
+                failedInCallback.addAll(failed);
+            }
+        });
+
+        assertEquals(Arrays.asList(failed), failedInCallback);
+        assertEquals("1", puts.get(0).getItem().get("samples").getN());
+        assertEquals(1L, referrerCounts(puts.get(0)).get(0).getCount());
+    }
+
+    @Test
+    public void GIVEN_asyncDelegate_WHEN_writeCompletes_THEN_callbackNotBlockedOnRollupWrite() throws Exception {
+        AsyncCountWriter asyncDelegate = new AsyncCountWriter() {
+            @Override
+            public void write(List<HttpReferrerPairsCount> counts, WriteCallback callback) {
+                callback.onComplete(counts, Collections.<HttpReferrerPairsCount> emptyList());
+            }
+
+            @Override
+            public void shutdown() {
+            }
+        };
+        final List<Runnable> flushes = new ArrayList<>();
+        Executor recordFlushes = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                flushes.add(command);
+            }
+        };
+        writer =
+                new RollupCountWriter(asyncDelegate, dynamoDB, TABLE_NAME, SHARDING, new int[] { 60 }, 2, 0L,
+                        recordFlushes);
+        final List<HttpReferrerPairsCount> completed = new ArrayList<>();
+
+        writer.write(Arrays.asList(newCount(MINUTE_START + 1000L, "a", 1L)), new AsyncCountWriter.WriteCallback() {
+            @Override
+            public void onComplete(List<HttpReferrerPairsCount> counts, List<HttpReferrerPairsCount> failed) {
+                completed.addAll(counts);
+            }
+        });
+
+        assertEquals(1, completed.size());
+        assertEquals(0, puts.size());
+        assertEquals(1, flushes.size());
+        flushes.get(0).run();
+        assertEquals(1, puts.size());
+    }
+
+    @Test
+    public void GIVEN_writtenRollup_WHEN_moreCountsWritten_THEN_addedToPreviousSumsWithNextVersion() {
+        writer.write(Arrays.asList(newCount(MINUTE_START + 1000L, "a", 1L)));
+        writer.write(Arrays.asList(newCount(MINUTE_START + 2000L, "a", 2L)));
+
+        PutItemRequest second = puts.get(1);
+        assertEquals("1", second.getExpected().get("version").getValue().getN());
+        assertEquals("2", second.getItem().get("version").getN());
+        assertEquals("2", second.getItem().get("samples").getN());
+        assertEquals(3L, referrerCounts(second).get(0).getCount());
+        // The rollup is only read the first time it's written to
+        verify(dynamoDB, times(1)).getItem(Mockito.any(GetItemRequest.class));
+    }
+
+    @Test
+    public void GIVEN_moreReferrersThanMax_WHEN_writtenTwice_THEN_othersSummedIntoSingleOtherEntry() {
+        writer.write(Arrays.asList(newCount(MINUTE_START + 1000L, "a", 5L, "b", 4L, "c", 3L)));
+        writer.write(Arrays.asList(newCount(MINUTE_START + 2000L, "a", 5L, "b", 4L, "d", 2L)));
+
+        List<ReferrerCount> referrerCounts = referrerCounts(puts.get(1));
+        assertEquals(3, referrerCounts.size());
+        assertEquals("a", referrerCounts.get(0).getReferrer());
+        assertEquals(10L, referrerCounts.get(0).getCount());
+        assertEquals("b", referrerCounts.get(1).getReferrer());
+        assertEquals(8L, referrerCounts.get(1).getCount());
+        assertEquals(ReferrerCountUtils.OTHER_REFERRERS, referrerCounts.get(2).getReferrer());
+        assertEquals(5L, referrerCounts.get(2).getCount());
+    }
+
+    @Test
+    public void GIVEN_countsUnderDifferentHashKeys_WHEN_written_THEN_rolledUpUnderBucketHashKey() {
+        HashKeySharding sharding = new HashKeySharding(4);
+        writer = new RollupCountWriter(delegate, dynamoDB, TABLE_NAME, sharding, new int[] { 60 }, 2, 0L, SAME_THREAD);
+        HttpReferrerPairsCount first = newCount(MINUTE_START + 1000L, "a", 1L);
+        first.setResource(sharding.toHashKey("/index.html", (MINUTE_START + 1000L) / 1000L));
+        HttpReferrerPairsCount second = newCount(MINUTE_START + 2000L, "a", 2L);
+        second.setResource(sharding.toHashKey("/index.html", (MINUTE_START + 2000L) / 1000L));
+
+        writer.write(Arrays.asList(first, second));
+
+        assertEquals(1, puts.size());
+        assertEquals("60s:" + sharding.toHashKey("/index.html", MINUTE_START / 60000L),
+                puts.get(0).getItem().get("resource").getS());
+        assertEquals("2", puts.get(0).getItem().get("samples").getN());
+    }
+
+    @Test
+    public void GIVEN_rollupWriteFails_WHEN_writtenAgain_THEN_pendingCountsIncluded() {
+        Mockito.doThrow(new AmazonServiceException("throttled")).doAnswer(new Answer<PutItemResult>() {
+            @Override
+            public PutItemResult answer(InvocationOnMock invocation) {
+                puts.add((PutItemRequest) invocation.getArguments()[0]);
+                return new PutItemResult();
+            }
+        }).when(dynamoDB).putItem(Mockito.any(PutItemRequest.class));
+
+        writer.write(Arrays.asList(newCount(MINUTE_START + 1000L, "a", 1L)));
+        writer.write(Arrays.asList(newCount(MINUTE_START + 2000L, "a", 2L)));
+
+        assertEquals(1L, writer.getFailedRollupWrites());
+        assertEquals(1, puts.size());
+        assertEquals("2", puts.get(0).getItem().get("samples").getN());
+        assertEquals(3L, referrerCounts(puts.get(0)).get(0).getCount());
+    }
+
+    @Test
+    public void GIVEN_rollupWriteKeepsFailing_WHEN_maxAttemptsReached_THEN_rollupDropped() {
+        when(dynamoDB.putItem(Mockito.any(PutItemRequest.class))).thenThrow(new AmazonServiceException("throttled"));
+
+        for (int i = 0; i < RollupCountWriter.MAX_ROLLUP_WRITE_ATTEMPTS; i++) {
+            writer.write(Arrays.asList(newCount(MINUTE_START + 1000L, "a", 1L)));
+        }
+        assertEquals(1L, writer.getDroppedRollups());
+
+        // A later count starts a new rollup, which reads the item again
+        Mockito.reset(dynamoDB);
+        when(dynamoDB.getItem(Mockito.any(GetItemRequest.class))).thenReturn(new GetItemResult());
+        writer.write(Arrays.asList(newCount(MINUTE_START + 2000L, "a", 2L)));
+
+        ArgumentCaptor<PutItemRequest> put = ArgumentCaptor.forClass(PutItemRequest.class);
+        verify(dynamoDB).putItem(put.capture());
+        assertEquals("1", put.getValue().getItem().get("samples").getN());
+        assertEquals(RollupCountWriter.MAX_ROLLUP_WRITE_ATTEMPTS, writer.getFailedRollupWrites());
+    }
+
+    @Test
+    public void GIVEN_hourAndMinuteRollups_WHEN_minuteCloses_THEN_onlyClosedMinuteWritten() {
+        // Minute rollups are written every 10 seconds and hour rollups every 10 minutes, unless their bucket closes
+        writer =
+                new RollupCountWriter(delegate, dynamoDB, TABLE_NAME, SHARDING, new int[] { 60, 3600 }, 2, 10000L,
+                        SAME_THREAD);
+
+        writer.write(Arrays.asList(newCount(MINUTE_START + 1000L, "a", 1L)));
+        assertEquals(0, puts.size());
+        writer.write(Arrays.asList(newCount(MINUTE_START + 61000L, "a", 2L)));
+
+        assertEquals(1, puts.size());
+        assertEquals("60s:/index.html", puts.get(0).getItem().get("resource").getS());
+        assertEquals("2014-04-10T19:01:00.000Z", puts.get(0).getItem().get("timestamp").getS());
+        assertEquals("1", puts.get(0).getItem().get("samples").getN());
+    }
+
+    @Test
+    public void GIVEN_writtenRollup_WHEN_loadedWithDynamoDBMapper_THEN_sumsMatch() {
+        writer.write(Arrays.asList(newCount(MINUTE_START + 1000L, "a", 1L), newCount(MINUTE_START + 2000L, "a", 2L)));
+        when(dynamoDB.getItem(Mockito.any(GetItemRequest.class))).thenReturn(new GetItemResult().withItem(puts.get(0)
+                .getItem()));
+
+        HttpReferrerCountsRollup rollup =
+                new DynamoDBUtils(dynamoDB).createMapperForTable(TABLE_NAME).load(HttpReferrerCountsRollup.class,
+                        "60s:/index.html",
+                        new Date(MINUTE_START));
+
+        assertEquals(new Date(MINUTE_START), rollup.getTimestamp());
+        assertEquals(Long.valueOf(1L), rollup.getVersion());
+        assertEquals(Long.valueOf(2L), rollup.getSamples());
+        assertEquals(puts.get(0).getItem().get("intervals").getB(), rollup.getIntervals());
+        assertEquals("worker01-ec2", rollup.getHost());
+        assertEquals(3L, rollup.getReferrerCounts().get(0).getCount());
+    }
+
+    private List<ReferrerCount> referrerCounts(PutItemRequest put) {
+        return new ReferrerCountMarshaller().unmarshall(null, put.getItem().get("referrerCounts").getS());
+    }
+
+    private HttpReferrerPairsCount newCount(long timestamp, Object... referrersAndCounts) {
+        List<ReferrerCount> referrerCounts = new ArrayList<>();
+        for (int i = 0; i < referrersAndCounts.length; i += 2) {
+            ReferrerCount referrerCount = new ReferrerCount();
+            referrerCount.setReferrer((String) referrersAndCounts[i]);
+            referrerCount.setCount((Long) referrersAndCounts[i + 1]);
+            referrerCounts.add(referrerCount);
+        }
+
+        HttpReferrerPairsCount pairsCount = new HttpReferrerPairsCount();
+        pairsCount.setResource("/index.html");
+        pairsCount.setTimestamp(new Date(timestamp));
+        pairsCount.setHost("worker01-ec2");
+        pairsCount.setReferrerCounts(referrerCounts);
+        return pairsCount;
+    }
+}
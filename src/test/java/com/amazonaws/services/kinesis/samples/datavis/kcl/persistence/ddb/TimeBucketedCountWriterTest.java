@@ -0,0 +1,207 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerCountsBlock;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+import com.amazonaws.services.kinesis.samples.datavis.utils.DynamoDBUtils;
+
+public class TimeBucketedCountWriterTest {
+    private static final String TABLE_NAME = "table";
+    private static final long BLOCK_SIZE = 60000L;
+    // The start of a block
+    private static final long BLOCK_START = 1397156400000L;
+
+    private AmazonDynamoDB dynamoDB;
+    private TimeBucketedCountWriter writer;
+    private List<PutItemRequest> puts;
+
+    @Before
+    public void init() {
+        dynamoDB = mock(AmazonDynamoDB.class);
+        writer = new TimeBucketedCountWriter(dynamoDB, TABLE_NAME, BLOCK_SIZE);
+        puts = new ArrayList<>();
+        when(dynamoDB.getItem(Mockito.any(GetItemRequest.class))).thenReturn(new GetItemResult());
+        when(dynamoDB.putItem(Mockito.any(PutItemRequest.class))).thenAnswer(new Answer<PutItemResult>() {
+            @Override
+            public PutItemResult answer(InvocationOnMock invocation) {
+                puts.add((PutItemRequest) invocation.getArguments()[0]);
+                return new PutItemResult();
+            }
+        });
+    }
+
+    @Test
+    public void GIVEN_countsInSameBlock_WHEN_writtenSeparately_THEN_blockRewrittenWithAllSnapshotsAndNextVersion() {
+        assertTrue(writer.write(Arrays.asList(newCount(BLOCK_START + 1000L, 1L))).isEmpty());
+        assertTrue(writer.write(Arrays.asList(newCount(BLOCK_START + 2000L, 2L))).isEmpty());
+
+        assertEquals(2, puts.size());
+        assertFalse(puts.get(0).getExpected().get("version").isExists());
+        assertEquals("1", puts.get(0).getItem().get("version").getN());
+        assertEquals("1", puts.get(1).getExpected().get("version").getValue().getN());
+        assertEquals("2", puts.get(1).getItem().get("version").getN());
+        assertEquals("2014-04-10T19:00:00.000Z", puts.get(1).getItem().get("timestamp").getS());
+        assertEquals(2, snapshots(puts.get(1)).size());
+        // The block is only read the first time it's written to
+        verify(dynamoDB, times(1)).getItem(Mockito.any(GetItemRequest.class));
+    }
+
+    @Test
+    public void GIVEN_blockWrittenByAnotherWriter_WHEN_conditionFails_THEN_snapshotsMergedAndWrittenAgain() {
+        writer.write(Arrays.asList(newCount(BLOCK_START + 1000L, 1L)));
+        // Another writer added a snapshot since we wrote the block
+        TimeBucketedCountWriter other = new TimeBucketedCountWriter(dynamoDB, TABLE_NAME, BLOCK_SIZE);
+        TimeBucketedCountWriter.Block theirs = new TimeBucketedCountWriter.Block(BLOCK_START);
+        theirs.add(Arrays.asList(newCount(BLOCK_START + 1000L, 1L), newCount(BLOCK_START + 1500L, 9L)));
+        final Map<String, AttributeValue> theirItem = other.toItem("/index.html", theirs, 2L);
+        when(dynamoDB.getItem(Mockito.any(GetItemRequest.class))).thenReturn(new GetItemResult().withItem(theirItem));
+        when(dynamoDB.putItem(Mockito.any(PutItemRequest.class))).thenThrow(new ConditionalCheckFailedException("x"))
+                .thenAnswer(new Answer<PutItemResult>() {
+                    @Override
+                    public PutItemResult answer(InvocationOnMock invocation) {
+                        puts.add((PutItemRequest) invocation.getArguments()[0]);
+                        return new PutItemResult();
+                    }
+                });
+
+        assertTrue(writer.write(Arrays.asList(newCount(BLOCK_START + 2000L, 2L))).isEmpty());
+
+        PutItemRequest retry = puts.get(puts.size() - 1);
+        assertEquals("2", retry.getExpected().get("version").getValue().getN());
+        assertEquals("3", retry.getItem().get("version").getN());
+        List<HttpReferrerPairsCount> snapshots = snapshots(retry);
+        assertEquals(3, snapshots.size());
+        assertEquals(9L, snapshots.get(1).getReferrerCounts().get(0).getCount());
+    }
+
+    @Test
+    public void GIVEN_putFails_WHEN_written_THEN_countsReturnedAndBlockReadAgainNextTime() {
+        HttpReferrerPairsCount count = newCount(BLOCK_START + 1000L, 1L);
+        when(dynamoDB.putItem(Mockito.any(PutItemRequest.class))).thenThrow(new AmazonServiceException("throttled"));
+
+        List<HttpReferrerPairsCount> failed = writer.write(Arrays.asList(count));
+        writer.write(Arrays.asList(count));
+
+        assertEquals(1, failed.size());
+        assertSame(count, failed.get(0));
+        verify(dynamoDB, times(2)).getItem(Mockito.any(GetItemRequest.class));
+    }
+
+    @Test
+    public void GIVEN_writtenBlock_WHEN_loadedWithDynamoDBMapper_THEN_snapshotsMatch() {
+        writer.write(Arrays.asList(newCount(BLOCK_START + 1000L, 1L), newCount(BLOCK_START + 2000L, 2L)));
+        when(dynamoDB.getItem(Mockito.any(GetItemRequest.class))).thenReturn(new GetItemResult().withItem(puts.get(0)
+                .getItem()));
+
+        HttpReferrerCountsBlock block =
+                new DynamoDBUtils(dynamoDB).createMapperForTable(TABLE_NAME).load(HttpReferrerCountsBlock.class,
+                        TimeBucketedCountWriter.toBlockKey("/index.html", BLOCK_SIZE),
+                        new Date(BLOCK_START));
+
+        assertEquals("60000ms:/index.html", block.getResource());
+        assertEquals(new Date(BLOCK_START), block.getTimestamp());
+        assertEquals(Long.valueOf(1L), block.getVersion());
+        assertEquals("worker01-ec2", block.getHost());
+        assertEquals(2, block.getSnapshots().size());
+        assertEquals(new Date(BLOCK_START + 2000L), block.getSnapshots().get(1).getTimestamp());
+        assertEquals(2L, block.getSnapshots().get(1).getReferrerCounts().get(0).getCount());
+    }
+
+    @Test
+    public void GIVEN_counts_WHEN_written_THEN_blockStoredUnderPrefixedKey() {
+        writer.write(Arrays.asList(newCount(BLOCK_START + 1000L, 1L)));
+
+        assertEquals("60000ms:/index.html", puts.get(0).getItem().get("resource").getS());
+    }
+
+    @Test
+    public void GIVEN_blocksClosed_WHEN_laterBlockWritten_THEN_writtenClosedBlocksRemoved() {
+        writer.write(Arrays.asList(newCount(BLOCK_START + 1000L, 1L),
+                newCount("/about.html", BLOCK_START + 1000L, 1L)));
+        assertEquals(2, writer.getOpenBlockCount());
+
+        // Only /index.html is written to in the next block, but the /about.html block has closed too
+        writer.write(Arrays.asList(newCount(BLOCK_START + BLOCK_SIZE + 1000L, 1L)));
+
+        assertEquals(1, writer.getOpenBlockCount());
+    }
+
+    @Test
+    public void GIVEN_closedBlockFailedToWrite_WHEN_laterBlockWritten_THEN_keptUntilWritten() {
+        // Both attempts to write the first block fail
+        when(dynamoDB.putItem(Mockito.any(PutItemRequest.class))).thenThrow(new ConditionalCheckFailedException("x"))
+                .thenThrow(new ConditionalCheckFailedException("x"))
+                .thenAnswer(new Answer<PutItemResult>() {
+                    @Override
+                    public PutItemResult answer(InvocationOnMock invocation) {
+                        puts.add((PutItemRequest) invocation.getArguments()[0]);
+                        return new PutItemResult();
+                    }
+                });
+        HttpReferrerPairsCount late = newCount("/about.html", BLOCK_START + 1000L, 1L);
+        assertEquals(1, writer.write(Arrays.asList(late)).size());
+
+        writer.write(Arrays.asList(newCount(BLOCK_START + BLOCK_SIZE + 1000L, 1L)));
+        assertEquals(2, writer.getOpenBlockCount());
+
+        // The retry succeeds so the closed block can go
+        assertTrue(writer.write(Arrays.asList(late)).isEmpty());
+        assertEquals(1, writer.getOpenBlockCount());
+    }
+
+    private List<HttpReferrerPairsCount> snapshots(PutItemRequest put) {
+        return new CountSnapshotsMarshaller().unmarshall(null, put.getItem().get("snapshots").getS());
+    }
+
+    private HttpReferrerPairsCount newCount(long timestamp, long count) {
+        return newCount("/index.html", timestamp, count);
+    }
+
+    private HttpReferrerPairsCount newCount(String resource, long timestamp, long count) {
+        ReferrerCount referrerCount = new ReferrerCount();
+        referrerCount.setReferrer("http://www.amazon.com");
+        referrerCount.setCount(count);
+
+        HttpReferrerPairsCount pairsCount = new HttpReferrerPairsCount();
+        pairsCount.setResource(resource);
+        pairsCount.setTimestamp(new Date(timestamp));
+        pairsCount.setHost("worker01-ec2");
+        pairsCount.setReferrerCounts(Collections.singletonList(referrerCount));
+        return pairsCount;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.ddb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.samples.datavis.kcl.timing.Clock;
+
+public class WriteRateLimiterTest {
+
+    /**
+     * A clock that responds in milliseconds with whatever time it was last told to use.
+     */
+    private static class TestMillisClock implements Clock {
+        private long now;
+
+        public void setTime(long now) {
+            this.now = now;
+        }
+
+        @Override
+        public long getTime() {
+            return now;
+        }
+
+        @Override
+        public TimeUnit getTimeUnit() {
+            return TimeUnit.MILLISECONDS;
+        }
+    }
+
+    private TestMillisClock clock;
+    private WriteRateLimiter limiter;
+
+    @Before
+    public void before() {
+        clock = new TestMillisClock();
+        // 10 units per second with room to save up 20 units
+        limiter = new WriteRateLimiter(10, 20, clock);
+    }
+
+    @Test
+    public void GIVEN_newLimiter_WHEN_canAfford_THEN_burstCapacityIsAvailable() {
+        assertEquals(20.0, limiter.getAvailableCapacityUnits(), 0.001);
+        assertTrue(limiter.canAfford(20));
+        assertFalse(limiter.canAfford(21));
+    }
+
+    @Test
+    public void GIVEN_consumedMoreThanAvailable_WHEN_timePasses_THEN_debtIsRepaidAtRate() {
+        limiter.recordConsumedCapacity(30, 30);
+        assertEquals(-10.0, limiter.getAvailableCapacityUnits(), 0.001);
+        assertFalse(limiter.canAfford(1));
+
+        clock.setTime(1000);
+        assertEquals(0.0, limiter.getAvailableCapacityUnits(), 0.001);
+
+        // Never refill beyond the burst capacity
+        clock.setTime(60000);
+        assertEquals(20.0, limiter.getAvailableCapacityUnits(), 0.001);
+    }
+
+    @Test
+    public void GIVEN_largeItems_WHEN_recordConsumedCapacity_THEN_averageCostPerItemIncreases() {
+        for (int i = 0; i < 50; i++) {
+            limiter.recordConsumedCapacity(4, 1);
+            clock.setTime(clock.getTime() + 1000);
+        }
+        assertEquals(4.0, limiter.getAverageUnitsPerItem(), 0.01);
+        // 20 units available only covers 5 items at 4 units each
+        assertTrue(limiter.canAfford(5));
+        assertFalse(limiter.canAfford(6));
+    }
+
+    @Test
+    public void GIVEN_limiterNotInDebt_WHEN_awaitCapacity_THEN_returnsImmediately() throws InterruptedException {
+        long start = System.nanoTime();
+        limiter.awaitCapacity();
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPair;
+
+public class CountExportPersisterTest {
+    private static final String SHARD_ID = "shardId-000000000000";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void GIVEN_pairCounts_WHEN_persistedAndCheckpointed_THEN_everyPairExportedToDisk() throws Exception {
+        CountExportPersister persister =
+                new CountExportPersister(new CountExportWriter(folder.getRoot(), new CountExportConfig()));
+        persister.initialize();
+        Map<HttpReferrerPair, Long> counts = new HashMap<>();
+        counts.put(new HttpReferrerPair("/index.html", "a"), 1L);
+        counts.put(new HttpReferrerPair("/index.html", "b"), 5L);
+        counts.put(new HttpReferrerPair("/products", "a"), 2L);
+
+        persister.persist(counts, new Date(), SHARD_ID);
+        persister.checkpoint();
+
+        File[] files = folder.getRoot().listFiles();
+        assertEquals(1, files.length);
+        List<String> lines = Files.readAllLines(files[0].toPath(), Charset.forName("UTF-8"));
+        Collections.sort(lines);
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(0).contains("\"resource\":\"/index.html\",\"referrer\":\"a\",\"count\":1}"));
+        assertTrue(lines.get(1).contains("\"resource\":\"/index.html\",\"referrer\":\"b\",\"count\":5}"));
+        assertTrue(lines.get(2).contains("\"resource\":\"/products\",\"referrer\":\"a\",\"count\":2}"));
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.TestRule;
+import org.junit.rules.Timeout;
+
+import com.amazonaws.services.kinesis.samples.datavis.kcl.timing.Clock;
+
+public class CountExportWriterTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Rule
+    public TestRule globalTimeout = new Timeout(5000);
+
+    /**
+     * A clock that responds in milliseconds with whatever time it was last told to use.
+     */
+    private static class TestMillisClock implements Clock {
+        private volatile long now;
+
+        public void setTime(long now) {
+            this.now = now;
+        }
+
+        @Override
+        public long getTime() {
+            return now;
+        }
+
+        @Override
+        public TimeUnit getTimeUnit() {
+            return TimeUnit.MILLISECONDS;
+        }
+    }
+
+    private CountExportConfig config;
+    private TestMillisClock clock;
+
+    @Before
+    public void init() {
+        config = new CountExportConfig();
+        // Don't let the flusher complete files on its own
+        config.setMaxFileAgeInMillis(0L);
+        clock = new TestMillisClock();
+    }
+
+    @Test
+    public void GIVEN_ndjsonFormat_WHEN_flushed_THEN_oneEscapedJsonObjectPerLine() throws Exception {
+        CountExportWriter writer = new CountExportWriter(folder.getRoot(), config, clock);
+        writer.open();
+
+        writer.append(1000L, "host", "/index.html", "http://www.amazon.com", 7L);
+        writer.append(2000L, null, "/search?q=\"kinesis\"", "a\\b\n", 1L);
+        writer.flush();
+
+        File[] files = folder.getRoot().listFiles();
+        assertEquals(1, files.length);
+        assertTrue(files[0].getName().endsWith(".ndjson" + CountExportWriter.IN_PROGRESS_SUFFIX));
+        assertEquals(Arrays.asList(
+                "{\"timestamp\":1000,\"host\":\"host\",\"resource\":\"/index.html\","
+                        + "\"referrer\":\"http://www.amazon.com\",\"count\":7}",
+                "{\"timestamp\":2000,\"host\":\"\",\"resource\":\"/search?q=\\\"kinesis\\\"\","
+                        + "\"referrer\":\"a\\\\b\\n\",\"count\":1}"),
+                Files.readAllLines(files[0].toPath(), UTF8));
+        assertEquals(2, writer.getRecordsAppended());
+    }
+
+    @Test
+    public void GIVEN_binaryFormat_WHEN_closed_THEN_completedFileReadableWithDataInputStream() throws Exception {
+        config.setFormat(ExportFormat.BINARY);
+        CountExportWriter writer = new CountExportWriter(folder.getRoot(), config, clock);
+        writer.open();
+
+        writer.append(1000L, "host", "/index.html", "http://www.amazon.com", 7L);
+        writer.close();
+
+        File[] files = folder.getRoot().listFiles();
+        assertEquals(1, files.length);
+        assertTrue(files[0].getName().endsWith(".bin"));
+        try (DataInputStream in = new DataInputStream(new FileInputStream(files[0]))) {
+            assertEquals(ExportFormat.BINARY_MAGIC, in.readInt());
+            assertEquals(8 + 8 + 6 + 13 + 23, in.readInt());
+            assertEquals(1000L, in.readLong());
+            assertEquals(7L, in.readLong());
+            // Strings are ASCII so they read the same as modified UTF-8
+            assertEquals("host", in.readUTF());
+            assertEquals("/index.html", in.readUTF());
+            assertEquals("http://www.amazon.com", in.readUTF());
+            assertEquals(-1, in.read());
+        }
+        assertEquals(1, writer.getFilesCompleted());
+        assertEquals(files[0].length(), writer.getBytesWritten());
+    }
+
+    @Test
+    public void GIVEN_smallMaxFileSize_WHEN_buffersWritten_THEN_filesRolledWithoutSplittingRecords() throws Exception {
+        // Room for one or two records per buffer and a few buffers per file
+        config.setBufferSizeInBytes(200);
+        config.setMaxFileSizeInBytes(400);
+        CountExportWriter writer = new CountExportWriter(folder.getRoot(), config, clock);
+        writer.open();
+
+        for (int i = 0; i < 20; i++) {
+            writer.append(i, "host", "/index.html", "http://www.amazon.com", i);
+        }
+        writer.close();
+
+        List<String> lines = new ArrayList<>();
+        File[] files = folder.getRoot().listFiles();
+        Arrays.sort(files);
+        for (File file : files) {
+            assertFalse(file.getName().endsWith(CountExportWriter.IN_PROGRESS_SUFFIX));
+            assertTrue(file.length() <= 400);
+            lines.addAll(Files.readAllLines(file.toPath(), UTF8));
+        }
+        assertTrue(files.length > 1);
+        assertEquals(files.length, writer.getFilesCompleted());
+        assertEquals(20, lines.size());
+        for (int i = 0; i < 20; i++) {
+            assertTrue(lines.get(i).startsWith("{\"timestamp\":" + i + ","));
+        }
+    }
+
+    @Test
+    public void GIVEN_fileOlderThanMaxAge_WHEN_nextBufferWritten_THEN_fileCompleted() throws Exception {
+        config.setMaxFileAgeInMillis(1000L);
+        CountExportWriter writer = new CountExportWriter(folder.getRoot(), config, clock);
+        writer.open();
+
+        writer.append(1000L, "host", "/index.html", "http://www.amazon.com", 7L);
+        writer.flush();
+        assertEquals(0, writer.getFilesCompleted());
+
+        clock.setTime(1000L);
+        writer.append(2000L, "host", "/index.html", "http://www.amazon.com", 8L);
+        writer.flush();
+
+        assertEquals(1, writer.getFilesCompleted());
+        assertEquals(2, folder.getRoot().listFiles().length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void GIVEN_recordLargerThanBuffer_WHEN_appended_THEN_illegalArgumentException() throws Exception {
+        config.setBufferSizeInBytes(32);
+        CountExportWriter writer = new CountExportWriter(folder.getRoot(), config, clock);
+        writer.open();
+
+        writer.append(1000L, "host", "/index.html", "http://www.amazon.com", 7L);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void GIVEN_writerNotOpened_WHEN_appended_THEN_illegalStateException() throws IOException,
+        InterruptedException {
+        new CountExportWriter(folder.getRoot(), config, clock).append(1000L, "host", "/index.html", "referrer", 7L);
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.local;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPair;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.utils.ReferrerCountUtils;
+
+public class LocalCountPersisterTest {
+    private static final String SHARD_ID = "shardId-000000000000";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void GIVEN_pairCounts_WHEN_persistedAndCheckpointed_THEN_topReferrersReadable() throws Exception {
+        LocalCountPersister persister =
+                new LocalCountPersister(new TimeSeriesWriter(folder.getRoot(), 1024 * 1024, 0L), 2);
+        persister.initialize();
+        Map<HttpReferrerPair, Long> counts = new HashMap<>();
+        counts.put(new HttpReferrerPair("/index.html", "a"), 1L);
+        counts.put(new HttpReferrerPair("/index.html", "b"), 5L);
+        counts.put(new HttpReferrerPair("/index.html", "c"), 3L);
+        counts.put(new HttpReferrerPair("/products", "a"), 2L);
+
+        persister.persist(counts, new Date(), SHARD_ID);
+        persister.checkpoint();
+
+        List<HttpReferrerPairsCount> persisted =
+                new TimeSeriesReader(folder.getRoot()).read("/index.html", new Date(0L));
+        assertEquals(1, persisted.size());
+        assertEquals(3, persisted.get(0).getReferrerCounts().size());
+        assertEquals("b", persisted.get(0).getReferrerCounts().get(0).getReferrer());
+        assertEquals("c", persisted.get(0).getReferrerCounts().get(1).getReferrer());
+        assertEquals(ReferrerCountUtils.OTHER_REFERRERS, persisted.get(0).getReferrerCounts().get(2).getReferrer());
+        assertEquals(1, new TimeSeriesReader(folder.getRoot()).read("/products", new Date(0L)).size());
+    }
+}
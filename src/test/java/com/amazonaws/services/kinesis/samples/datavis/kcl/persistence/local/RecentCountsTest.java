@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.local;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.samples.datavis.kcl.timing.Clock;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPair;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+import com.amazonaws.services.kinesis.samples.datavis.utils.HashKeySharding;
+
+public class RecentCountsTest {
+    private static final String HASH_KEY = "/index.html";
+    private static final String SHARD_ID = "shardId-000000000000";
+
+    /**
+     * A clock that responds in milliseconds with whatever time it was last told to use.
+     */
+    private static class TestMillisClock implements Clock {
+        private volatile long now;
+
+        public void setTime(long now) {
+            this.now = now;
+        }
+
+        @Override
+        public long getTime() {
+            return now;
+        }
+
+        @Override
+        public TimeUnit getTimeUnit() {
+            return TimeUnit.MILLISECONDS;
+        }
+    }
+
+    private TestMillisClock clock;
+    private RecentCounts recentCounts;
+
+    @Before
+    public void init() {
+        clock = new TestMillisClock();
+        clock.setTime(100000L);
+        recentCounts = new RecentCounts(60000L, clock);
+    }
+
+    @Test
+    public void GIVEN_newlyCreated_WHEN_getCoveredSince_THEN_creationTime() {
+        assertEquals(new Date(100000L), recentCounts.getCoveredSince());
+
+        clock.setTime(200000L);
+        assertEquals(new Date(140000L), recentCounts.getCoveredSince());
+    }
+
+    @Test
+    public void GIVEN_counts_WHEN_read_THEN_copiesInRangeInOrder() {
+        recentCounts.addAll(Arrays.asList(newCount(103000L, 1L), newCount(101000L, 1L), newCount(102000L, 1L)));
+
+        List<HttpReferrerPairsCount> read = recentCounts.read(HASH_KEY, new Date(101000L), null, 10);
+        assertEquals(2, read.size());
+        assertEquals(new Date(102000L), read.get(0).getTimestamp());
+        assertEquals(new Date(103000L), read.get(1).getTimestamp());
+        assertEquals(1, recentCounts.read(HASH_KEY, new Date(100000L), new Date(101000L), 10).size());
+        assertEquals(1, recentCounts.read(HASH_KEY, new Date(100000L), null, 1).size());
+        assertEquals(0, recentCounts.read("/other.html", new Date(100000L), null, 10).size());
+
+        // Changing a count read doesn't change the count held
+        read.get(0).setResource("/changed.html");
+        assertEquals(HASH_KEY, recentCounts.read(HASH_KEY, new Date(101000L), null, 10).get(0).getResource());
+    }
+
+    @Test
+    public void GIVEN_sameHashKeyAndTimestamp_WHEN_added_THEN_newestReplacesOlder() {
+        recentCounts.addAll(Collections.singletonList(newCount(101000L, 1L)));
+        recentCounts.addAll(Collections.singletonList(newCount(101000L, 7L)));
+
+        List<HttpReferrerPairsCount> read = recentCounts.read(HASH_KEY, new Date(100000L), null, 10);
+        assertEquals(1, read.size());
+        assertEquals(7L, read.get(0).getReferrerCounts().get(0).getCount());
+    }
+
+    @Test
+    public void GIVEN_sameTimestampFromTwoShards_WHEN_read_THEN_summedIntoOneCount() {
+        HttpReferrerPairsCount first = newCount(101000L, 1L);
+        first.setShardId(SHARD_ID);
+        HttpReferrerPairsCount second = newCount(101000L, 2L);
+        second.setShardId("shardId-000000000001");
+        recentCounts.addAll(Arrays.asList(first, second));
+
+        List<HttpReferrerPairsCount> read = recentCounts.read(HASH_KEY, new Date(100000L), null, 10);
+        assertEquals(1, read.size());
+        assertEquals(3L, read.get(0).getReferrerCounts().get(0).getCount());
+    }
+
+    @Test
+    public void GIVEN_countsOlderThanRetention_WHEN_added_THEN_discarded() {
+        recentCounts.addAll(Arrays.asList(newCount(101000L, 1L), newCount(150000L, 1L)));
+        clock.setTime(170000L);
+
+        recentCounts.addAll(Collections.singletonList(newCount(169000L, 1L)));
+
+        List<HttpReferrerPairsCount> read = recentCounts.read(HASH_KEY, new Date(0L), null, 10);
+        assertEquals(2, read.size());
+        assertEquals(new Date(150000L), read.get(0).getTimestamp());
+    }
+
+    @Test
+    public void GIVEN_pairCounts_WHEN_persisted_THEN_heldByHashKeyAtIntervalStart() {
+        clock.setTime(0L);
+        recentCounts = new RecentCounts(TimeUnit.DAYS.toMillis(1), clock);
+        HashKeySharding sharding = new HashKeySharding(4);
+        RecentCountPersister persister = new RecentCountPersister(recentCounts, sharding, 10, 1000L);
+        persister.initialize();
+        Map<HttpReferrerPair, Long> counts = new HashMap<>();
+        counts.put(new HttpReferrerPair("/index.html", "a"), 1L);
+        counts.put(new HttpReferrerPair("/index.html", "b"), 5L);
+
+        persister.persist(counts, new Date(1500L), SHARD_ID);
+
+        int found = 0;
+        for (String hashKey : sharding.getHashKeys("/index.html")) {
+            for (HttpReferrerPairsCount count : recentCounts.read(hashKey, new Date(-1L), null, 10)) {
+                found++;
+                assertEquals(sharding.toHashKey("/index.html", 1L), hashKey);
+                assertEquals(new Date(1000L), count.getTimestamp());
+                assertEquals("b", count.getReferrerCounts().get(0).getReferrer());
+            }
+        }
+        assertEquals(1, found);
+    }
+
+    private static HttpReferrerPairsCount newCount(long timestamp, long value) {
+        ReferrerCount referrerCount = new ReferrerCount();
+        referrerCount.setReferrer("http://www.amazon.com");
+        referrerCount.setCount(value);
+        HttpReferrerPairsCount count = new HttpReferrerPairsCount();
+        count.setResource(HASH_KEY);
+        count.setTimestamp(new Date(timestamp));
+        count.setReferrerCounts(Collections.singletonList(referrerCount));
+        return count;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.local;
+
+import static com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.local.TimeSeriesWriterTest.newCount;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+
+public class TimeSeriesReaderTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TimeSeriesWriter writer;
+    private TimeSeriesReader reader;
+
+    @Before
+    public void init() {
+        writer = new TimeSeriesWriter(folder.getRoot(), 1024 * 1024, 0L);
+        reader = new TimeSeriesReader(folder.getRoot());
+    }
+
+    @Test
+    public void GIVEN_unknownResource_WHEN_read_THEN_empty() throws Exception {
+        assertTrue(reader.read("/index.html", new Date(0L)).isEmpty());
+    }
+
+    @Test
+    public void GIVEN_manyCounts_WHEN_readFromStartTimes_THEN_onlyLaterCountsReturned() throws Exception {
+        int total = TimeSeriesReader.CHECKPOINT_INTERVAL * 3 + 10;
+        for (int i = 1; i <= total; i++) {
+            // Referrers come and go so later counts refer to strings introduced before a checkpoint
+            writer.append(newCount("/index.html", i * 1000L, "host", "r" + (i % 7), (long) i, "r" + (i % 5), 1L));
+        }
+
+        // The first read indexes the segment. Later reads resume from checkpoints.
+        for (int start : new int[] { 0, total - 1, 1, TimeSeriesReader.CHECKPOINT_INTERVAL,
+                TimeSeriesReader.CHECKPOINT_INTERVAL + 1, total - 5, total }) {
+            List<HttpReferrerPairsCount> counts = reader.read("/index.html", new Date(start * 1000L));
+            assertEquals("start " + start, total - start, counts.size());
+            for (int i = 0; i < counts.size(); i++) {
+                long expected = start + i + 1;
+                HttpReferrerPairsCount count = counts.get(i);
+                assertEquals(new Date(expected * 1000L), count.getTimestamp());
+                assertEquals("r" + (expected % 7), count.getReferrerCounts().get(0).getReferrer());
+                assertEquals(expected, count.getReferrerCounts().get(0).getCount());
+                assertEquals("r" + (expected % 5), count.getReferrerCounts().get(1).getReferrer());
+            }
+        }
+    }
+
+    @Test
+    public void GIVEN_countsAppendedAfterRead_WHEN_readAgain_THEN_newCountsReturned() throws Exception {
+        writer.append(newCount("/index.html", 1000L, "host", "a", 1L));
+        assertEquals(1, reader.read("/index.html", new Date(0L)).size());
+
+        writer.append(newCount("/index.html", 2000L, "host", "b", 2L));
+        writer.append(newCount("/index.html", 3000L, "host", "a", 3L));
+
+        List<HttpReferrerPairsCount> counts = reader.read("/index.html", new Date(1500L));
+        assertEquals(2, counts.size());
+        assertEquals("b", counts.get(0).getReferrerCounts().get(0).getReferrer());
+        assertEquals("a", counts.get(1).getReferrerCounts().get(0).getReferrer());
+    }
+
+    @Test
+    public void GIVEN_severalSegments_WHEN_readRecentCounts_THEN_olderSegmentsSkipped() throws Exception {
+        // Only room for a single record per segment
+        writer = new TimeSeriesWriter(folder.getRoot(), 8, 0L);
+        for (int i = 1; i <= 5; i++) {
+            writer.append(newCount("/index.html", i * 1000L, "host", "a", (long) i));
+        }
+
+        List<HttpReferrerPairsCount> counts = reader.read("/index.html", new Date(3500L));
+
+        assertEquals(2, counts.size());
+        assertEquals(new Date(4000L), counts.get(0).getTimestamp());
+        assertEquals(new Date(5000L), counts.get(1).getTimestamp());
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.local;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+
+public class TimeSeriesWriterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void GIVEN_appendedCounts_WHEN_read_THEN_countsRoundTrip() throws Exception {
+        TimeSeriesWriter writer = new TimeSeriesWriter(folder.getRoot(), 1024 * 1024, 0L);
+        writer.append(newCount("/index.html", 1000L, "worker01-ec2", "a", 5L, "b", 3L, "(other)", 9L));
+        writer.append(newCount("/index.html", 2000L, null, "b", 4L, "a", 1L));
+        writer.append(newCount("/products", 2500L, "worker01-ec2", "c", 1L));
+
+        List<HttpReferrerPairsCount> counts = new TimeSeriesReader(folder.getRoot()).read("/index.html", new Date(0L));
+
+        assertEquals(2, counts.size());
+        HttpReferrerPairsCount first = counts.get(0);
+        assertEquals("/index.html", first.getResource());
+        assertEquals(new Date(1000L), first.getTimestamp());
+        assertEquals("worker01-ec2", first.getHost());
+        assertEquals(Arrays.asList("a", "b", "(other)"), referrers(first));
+        assertEquals(9L, first.getReferrerCounts().get(2).getCount());
+        HttpReferrerPairsCount second = counts.get(1);
+        assertEquals(new Date(2000L), second.getTimestamp());
+        assertNull(second.getHost());
+        assertEquals(Arrays.asList("b", "a"), referrers(second));
+        assertEquals(4L, second.getReferrerCounts().get(0).getCount());
+    }
+
+    @Test
+    public void GIVEN_regularlySpacedCounts_WHEN_appended_THEN_repeatedStringsAndTimestampsTakeFewBytes() throws Exception {
+        TimeSeriesWriter writer = new TimeSeriesWriter(folder.getRoot(), 1024 * 1024, 0L);
+        writer.append(newCount("/index.html", 1397156429000L, "worker01-ec2", "http://www.amazon.com", 4L));
+        writer.append(newCount("/index.html", 1397156430000L, "worker01-ec2", "http://www.amazon.com", 5L));
+        long before = segmentLength("/index.html");
+        writer.append(newCount("/index.html", 1397156431000L, "worker01-ec2", "http://www.amazon.com", 6L));
+        writer.append(newCount("/index.html", 1397156432000L, "worker01-ec2", "http://www.amazon.com", 7L));
+
+        // Header, timestamp delta-of-delta, host, referrer count, referrer, count
+        assertEquals(2 * (TimeSeriesFormat.RECORD_HEADER_SIZE + 5), segmentLength("/index.html") - before);
+    }
+
+    @Test
+    public void GIVEN_tornRecordAtEndOfSegment_WHEN_reopened_THEN_tornRecordDiscardedAndAppendsContinue()
+            throws Exception {
+        TimeSeriesWriter writer = new TimeSeriesWriter(folder.getRoot(), 1024 * 1024, 0L);
+        writer.append(newCount("/index.html", 1000L, "host", "a", 1L));
+        writer.append(newCount("/index.html", 2000L, "host", "b", 2L));
+        writer.close();
+        // Simulate a crash part way through appending the second record
+        File segment = segments("/index.html").get(0);
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.setLength(raf.length() - 2);
+        }
+
+        writer = new TimeSeriesWriter(folder.getRoot(), 1024 * 1024, 0L);
+        writer.append(newCount("/index.html", 3000L, "host", "a", 3L));
+
+        List<HttpReferrerPairsCount> counts = new TimeSeriesReader(folder.getRoot()).read("/index.html", new Date(0L));
+        assertEquals(2, counts.size());
+        assertEquals(new Date(1000L), counts.get(0).getTimestamp());
+        assertEquals(new Date(3000L), counts.get(1).getTimestamp());
+        assertEquals(Arrays.asList("a"), referrers(counts.get(1)));
+        assertEquals(3L, counts.get(1).getReferrerCounts().get(0).getCount());
+    }
+
+    @Test
+    public void GIVEN_fullSegment_WHEN_appended_THEN_newSegmentStartedAndExpiredSegmentsDeleted() throws Exception {
+        long now = System.currentTimeMillis();
+        // Only room for a single record per segment
+        TimeSeriesWriter writer = new TimeSeriesWriter(folder.getRoot(), 8, 60000L);
+        writer.append(newCount("/index.html", now - 300000L, "host", "a", 1L));
+        writer.append(newCount("/index.html", now - 200000L, "host", "a", 2L));
+        writer.append(newCount("/index.html", now, "host", "a", 3L));
+
+        // The first segment only holds counts older than the retention period
+        assertEquals(2, segments("/index.html").size());
+        List<HttpReferrerPairsCount> counts = new TimeSeriesReader(folder.getRoot()).read("/index.html", new Date(0L));
+        assertEquals(2, counts.size());
+        assertEquals(2L, counts.get(0).getReferrerCounts().get(0).getCount());
+        assertEquals(3L, counts.get(1).getReferrerCounts().get(0).getCount());
+    }
+
+    private long segmentLength(String resource) {
+        return segments(resource).get(0).length();
+    }
+
+    private List<File> segments(String resource) {
+        return TimeSeriesWriter.listSegments(new File(folder.getRoot(), TimeSeriesFormat.toDirectoryName(resource)));
+    }
+
+    static List<String> referrers(HttpReferrerPairsCount count) {
+        List<String> referrers = new ArrayList<>();
+        for (ReferrerCount referrerCount : count.getReferrerCounts()) {
+            referrers.add(referrerCount.getReferrer());
+        }
+        return referrers;
+    }
+
+    static HttpReferrerPairsCount newCount(String resource, long timestamp, String host, Object... referrersAndCounts) {
+        List<ReferrerCount> referrerCounts = new ArrayList<>();
+        for (int i = 0; i < referrersAndCounts.length; i += 2) {
+            ReferrerCount referrerCount = new ReferrerCount();
+            referrerCount.setReferrer((String) referrersAndCounts[i]);
+            referrerCount.setCount((Long) referrersAndCounts[i + 1]);
+            referrerCounts.add(referrerCount);
+        }
+        HttpReferrerPairsCount count = new HttpReferrerPairsCount();
+        count.setResource(resource);
+        count.setTimestamp(new Date(timestamp));
+        count.setHost(host);
+        count.setReferrerCounts(referrerCounts);
+        return count;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class CountRollupsTest {
+
+    @Test
+    public void GIVEN_shardedHashKey_WHEN_toRollupKey_THEN_prefixedWithResolutionAndMapsBack() {
+        String rollupKey = CountRollups.toRollupKey("/index.html#3", CountRollups.MINUTE_RESOLUTION_IN_SECONDS);
+
+        assertEquals("60s:/index.html#3", rollupKey);
+        assertEquals("/index.html#3", CountRollups.toHashKey(rollupKey));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void GIVEN_hashKey_WHEN_toHashKey_THEN_illegalArgumentException() {
+        CountRollups.toHashKey("/index.html");
+    }
+
+    @Test
+    public void GIVEN_timestamp_WHEN_toBucketStart_THEN_startOfMinuteAndHour() {
+        // 2014-04-10T19:01:30.500Z
+        long timestamp = 1397156490500L;
+
+        assertEquals(1397156460000L, CountRollups.toBucketStart(timestamp, CountRollups.MINUTE_RESOLUTION_IN_SECONDS));
+        assertEquals(1397156400000L, CountRollups.toBucketStart(timestamp, CountRollups.HOUR_RESOLUTION_IN_SECONDS));
+    }
+}
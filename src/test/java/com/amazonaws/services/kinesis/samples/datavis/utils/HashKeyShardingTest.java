@@ -0,0 +1,56 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class HashKeyShardingTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void GIVEN_zeroWriteShards_WHEN_created_THEN_illegalArgumentException() {
+        new HashKeySharding(0);
+    }
+
+    @Test
+    public void GIVEN_oneWriteShard_WHEN_toHashKey_THEN_resourceUnchanged() {
+        HashKeySharding sharding = new HashKeySharding(1);
+
+        assertEquals("/index.html", sharding.toHashKey("/index.html", 1397156460L));
+        assertEquals(Collections.singletonList("/index.html"), sharding.getHashKeys("/index.html"));
+        assertEquals("/index.html", sharding.toResource("/index.html"));
+    }
+
+    @Test
+    public void GIVEN_multipleWriteShards_WHEN_toHashKey_THEN_hashKeyIsOneOfTheQueriedKeysAndMapsBackToResource() {
+        HashKeySharding sharding = new HashKeySharding(4);
+
+        for (long interval = -1L; interval < 8L; interval++) {
+            String hashKey = sharding.toHashKey("/index.html", interval);
+            assertTrue(hashKey, sharding.getHashKeys("/index.html").contains(hashKey));
+            assertEquals("/index.html", sharding.toResource(hashKey));
+            // The same interval always writes to the same hash key
+            assertEquals(hashKey, sharding.toHashKey("/index.html", interval));
+        }
+        assertEquals(Arrays.asList("/index.html#0", "/index.html#1", "/index.html#2", "/index.html#3"),
+                sharding.getHashKeys("/index.html"));
+    }
+
+    @Test
+    public void GIVEN_multipleWriteShards_WHEN_toHashKeyForConsecutiveIntervals_THEN_everyHashKeyWrittenInTurn() {
+        HashKeySharding sharding = new HashKeySharding(3);
+
+        assertEquals("/index.html#0", sharding.toHashKey("/index.html", 3L));
+        assertEquals("/index.html#1", sharding.toHashKey("/index.html", 4L));
+        assertEquals("/index.html#2", sharding.toHashKey("/index.html", 5L));
+        assertEquals("/index.html#0", sharding.toHashKey("/index.html", 6L));
+    }
+}
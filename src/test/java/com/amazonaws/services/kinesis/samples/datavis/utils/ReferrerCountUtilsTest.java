@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPair;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+
+public class ReferrerCountUtilsTest {
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void GIVEN_listsWithSharedReferrers_WHEN_sum_THEN_countsSummedPerReferrerInDescendingOrder() {
+        List<ReferrerCount> first = Arrays.asList(newCount("a", 5), newCount("b", 1));
+        List<ReferrerCount> second = Arrays.asList(newCount("b", 7), newCount("c", 2));
+
+        List<ReferrerCount> sum = ReferrerCountUtils.sum(Arrays.asList(first, second));
+
+        assertEquals(3, sum.size());
+        assertEquals("b", sum.get(0).getReferrer());
+        assertEquals(8L, sum.get(0).getCount());
+        assertEquals("a", sum.get(1).getReferrer());
+        assertEquals(5L, sum.get(1).getCount());
+        assertEquals("c", sum.get(2).getReferrer());
+        assertEquals(2L, sum.get(2).getCount());
+        // The inputs are not modified
+        assertEquals(1L, first.get(1).getCount());
+    }
+
+    @Test
+    public void GIVEN_count_WHEN_copy_THEN_everyFieldCopiedAndReferrerCountsNotShared() {
+        HttpReferrerPairsCount count = new HttpReferrerPairsCount();
+        count.setResource("/index.html");
+        count.setTimestamp(new Date(1000L));
+        count.setShardId("shardId-000000000001");
+        count.setHost("worker01");
+        count.setReferrerCounts(new ArrayList<>(Arrays.asList(newCount("a", 5))));
+
+        HttpReferrerPairsCount copy = ReferrerCountUtils.copy(count);
+        count.getReferrerCounts().get(0).setCount(6);
+        count.getReferrerCounts().add(newCount("b", 1));
+
+        assertEquals("/index.html", copy.getResource());
+        assertEquals(new Date(1000L), copy.getTimestamp());
+        assertEquals("shardId-000000000001", copy.getShardId());
+        assertEquals("worker01", copy.getHost());
+        assertNotSame(count.getReferrerCounts(), copy.getReferrerCounts());
+        assertEquals(1, copy.getReferrerCounts().size());
+        assertEquals("a", copy.getReferrerCounts().get(0).getReferrer());
+        assertEquals(5L, copy.getReferrerCounts().get(0).getCount());
+    }
+
+    @Test
+    public void GIVEN_timeWithinInterval_WHEN_toIntervalStart_THEN_alignedToWallClockBoundary() {
+        assertEquals(new Date(5000L), ReferrerCountUtils.toIntervalStart(5000L, 1000L));
+        assertEquals(new Date(5000L), ReferrerCountUtils.toIntervalStart(5999L, 1000L));
+        assertEquals(new Date(6000L), ReferrerCountUtils.toIntervalStart(6000L, 1000L));
+    }
+
+    @Test
+    public void GIVEN_pairCounts_WHEN_toIntervalCounts_THEN_oneCountPerResourceWithTopReferrers() {
+        Map<HttpReferrerPair, Long> pairCounts = new HashMap<>();
+        pairCounts.put(new HttpReferrerPair("/index.html", "a"), 5L);
+        pairCounts.put(new HttpReferrerPair("/index.html", "b"), 7L);
+        pairCounts.put(new HttpReferrerPair("/index.html", "c"), 1L);
+        pairCounts.put(new HttpReferrerPair("/about.html", "a"), 2L);
+
+        Collection<HttpReferrerPairsCount> counts =
+                ReferrerCountUtils.toIntervalCounts(pairCounts, new Date(5999L), 1000L, "shardId-000000000001",
+                        "worker01", new HashKeySharding(1), 2);
+
+        assertEquals(2, counts.size());
+        for (HttpReferrerPairsCount count : counts) {
+            assertEquals(new Date(5000L), count.getTimestamp());
+            assertEquals("shardId-000000000001", count.getShardId());
+            assertEquals("worker01", count.getHost());
+            if (count.getResource().equals("/index.html")) {
+                assertEquals(3, count.getReferrerCounts().size());
+                assertEquals("b", count.getReferrerCounts().get(0).getReferrer());
+                assertEquals("a", count.getReferrerCounts().get(1).getReferrer());
+                assertEquals(ReferrerCountUtils.OTHER_REFERRERS, count.getReferrerCounts().get(2).getReferrer());
+                assertEquals(1L, count.getReferrerCounts().get(2).getCount());
+            } else {
+                assertEquals("/about.html", count.getResource());
+                assertEquals(1, count.getReferrerCounts().size());
+            }
+        }
+    }
+
+    private ReferrerCount newCount(String referrer, long count) {
+        ReferrerCount referrerCount = new ReferrerCount();
+        referrerCount.setReferrer(referrer);
+        referrerCount.setCount(count);
+        return referrerCount;
+    }
+}
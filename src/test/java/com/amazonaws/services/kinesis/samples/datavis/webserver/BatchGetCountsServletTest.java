@@ -0,0 +1,194 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+
+public class BatchGetCountsServletTest {
+    private RecentCountsSource source;
+    private ExecutorService executor;
+    private BatchGetCountsServlet servlet;
+
+    @Before
+    public void init() {
+        source = mock(RecentCountsSource.class);
+        executor = Executors.newFixedThreadPool(2);
+        servlet = new BatchGetCountsServlet(source, executor, 10000L);
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void GIVEN_oneResourceFails_WHEN_get_THEN_errorInlineAndOtherResourcesReturned() throws Exception {
+        when(source.getCounts("/index.html", 120)).thenReturn(Arrays.asList(newCount("/index.html", 1400000001000L)));
+        when(source.getCounts("/about.html", 120)).thenThrow(new ServletException("Throttled"));
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        StringWriter body = new StringWriter();
+        when(resp.getWriter()).thenReturn(new PrintWriter(body));
+
+        servlet.doGet(newRequest("resource=/index.html&resource=/about.html&range_in_seconds=120"), resp);
+
+        verify(resp).setStatus(HttpServletResponse.SC_OK);
+        String json = body.toString();
+        assertTrue(json.startsWith("[{\"resource\":\"/index.html\",\"cursor\":\""
+                + GetCountsServlet.toCursor(new Date(1400000001000L)) + "\",\"counts\":[{"));
+        assertTrue(json.endsWith("{\"resource\":\"/about.html\",\"error\":\"Unable to read counts\"}]"));
+        assertEquals(1, servlet.getFailedQueries());
+    }
+
+    @Test
+    public void GIVEN_slowResource_WHEN_get_THEN_timedOutInlineWithoutWaitingForIt() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        when(source.getCounts("/slow.html", 120)).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws InterruptedException {
+                release.await();
+                return Collections.emptyList();
+            }
+        });
+        when(source.getCounts("/index.html", 120)).thenReturn(Collections.<HttpReferrerPairsCount> emptyList());
+        servlet = new BatchGetCountsServlet(source, executor, 100L);
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        StringWriter body = new StringWriter();
+        when(resp.getWriter()).thenReturn(new PrintWriter(body));
+
+        try {
+            servlet.doGet(newRequest("resource=/slow.html&resource=/index.html&range_in_seconds=120"), resp);
+        } finally {
+            release.countDown();
+        }
+
+        assertTrue(body.toString().contains("{\"resource\":\"/slow.html\",\"error\":\"Timed out reading counts\"}"));
+        assertTrue(body.toString().contains("{\"resource\":\"/index.html\",\"cursor\":"));
+    }
+
+    @Test
+    public void GIVEN_executorFull_WHEN_get_THEN_rejectedResourcesReportedInline() throws Exception {
+        when(source.getCounts(any(String.class), eq(120))).thenReturn(
+                Collections.<HttpReferrerPairsCount> emptyList());
+        final CountDownLatch release = new CountDownLatch(1);
+        ThreadPoolExecutor full = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(1));
+        try {
+            // Occupy the thread so the first resource is queued and the second rejected
+            full.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            servlet = new BatchGetCountsServlet(source, full, 100L);
+            HttpServletResponse resp = mock(HttpServletResponse.class);
+            StringWriter body = new StringWriter();
+            when(resp.getWriter()).thenReturn(new PrintWriter(body));
+
+            servlet.doGet(newRequest("resource=/a.html&resource=/b.html&range_in_seconds=120"), resp);
+
+            assertTrue(body.toString().contains(
+                    "{\"resource\":\"/b.html\",\"error\":\"Too many queries in progress\"}"));
+            assertEquals(1, servlet.getRejectedQueries());
+        } finally {
+            release.countDown();
+            full.shutdownNow();
+        }
+    }
+
+    @Test
+    public void GIVEN_duplicateResources_WHEN_get_THEN_eachQueriedOnce() throws Exception {
+        when(source.getCounts("/index.html", 60)).thenReturn(Collections.<HttpReferrerPairsCount> emptyList());
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        StringWriter body = new StringWriter();
+        when(resp.getWriter()).thenReturn(new PrintWriter(body));
+
+        servlet.doGet(newRequest("resource=/index.html&resource=/index.html&range_in_seconds=60"), resp);
+
+        verify(source, times(1)).getCounts("/index.html", 60);
+        assertFalse(body.toString().contains("},{"));
+    }
+
+    @Test
+    public void GIVEN_tooManyResources_WHEN_get_THEN_badRequest() throws Exception {
+        StringBuilder query = new StringBuilder("range_in_seconds=60");
+        for (int i = 0; i <= BatchGetCountsServlet.MAX_RESOURCES; i++) {
+            query.append("&resource=/").append(i);
+        }
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+
+        servlet.doGet(newRequest(query.toString()), resp);
+
+        verify(resp).sendError(eq(HttpServletResponse.SC_BAD_REQUEST), any(String.class));
+        verifyZeroInteractions(source);
+    }
+
+    @Test
+    public void GIVEN_noRange_WHEN_get_THEN_badRequest() throws Exception {
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+
+        servlet.doGet(newRequest("resource=/index.html"), resp);
+
+        verify(resp).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        verify(source, times(0)).getCounts(any(String.class), anyInt());
+    }
+
+    private HttpServletRequest newRequest(String queryString) {
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getQueryString()).thenReturn(queryString);
+        return req;
+    }
+
+    private HttpReferrerPairsCount newCount(String resource, long timestamp) {
+        ReferrerCount referrerCount = new ReferrerCount();
+        referrerCount.setReferrer("http://www.amazon.com");
+        referrerCount.setCount(1L);
+        HttpReferrerPairsCount count = new HttpReferrerPairsCount();
+        count.setResource(resource);
+        count.setTimestamp(new Date(timestamp));
+        count.setReferrerCounts(Collections.singletonList(referrerCount));
+        return count;
+    }
+}
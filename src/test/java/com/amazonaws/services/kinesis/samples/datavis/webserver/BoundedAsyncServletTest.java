@@ -0,0 +1,130 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class BoundedAsyncServletTest {
+    private HttpServlet delegate;
+    private ExecutorService executor;
+    private HttpServletRequest req;
+    private HttpServletResponse resp;
+    private AsyncContext async;
+    // Tasks the executor has been given to run
+    private List<Runnable> queued;
+
+    @Before
+    public void init() {
+        delegate = mock(HttpServlet.class);
+        executor = mock(ExecutorService.class);
+        queued = new ArrayList<>();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                queued.add((Runnable) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(executor).execute(any(Runnable.class));
+        req = mock(HttpServletRequest.class);
+        resp = mock(HttpServletResponse.class);
+        async = mock(AsyncContext.class);
+        when(req.isAsyncSupported()).thenReturn(true);
+        when(req.startAsync()).thenReturn(async);
+        when(async.getRequest()).thenReturn(req);
+        when(async.getResponse()).thenReturn(resp);
+    }
+
+    @Test
+    public void GIVEN_idleExecutor_WHEN_get_THEN_servedOnExecutorAndCompleted() throws Exception {
+        BoundedAsyncServlet servlet = new BoundedAsyncServlet(delegate, executor, 1000L);
+
+        servlet.doGet(req, resp);
+
+        // Nothing is served on the request thread
+        verify(delegate, never()).service(any(ServletRequest.class), any(ServletResponse.class));
+        verify(async).setTimeout(0);
+        assertEquals(1, queued.size());
+        queued.get(0).run();
+        verify(delegate).service(req, resp);
+        verify(async).complete();
+    }
+
+    @Test
+    public void GIVEN_executorFull_WHEN_get_THEN_serviceUnavailableStraightAway() throws Exception {
+        doThrow(new RejectedExecutionException()).when(executor).execute(any(Runnable.class));
+        BoundedAsyncServlet servlet = new BoundedAsyncServlet(delegate, executor, 1000L);
+
+        servlet.doGet(req, resp);
+
+        verify(resp).setHeader("Retry-After", BoundedAsyncServlet.RETRY_AFTER_IN_SECONDS);
+        verify(resp).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        verify(async).complete();
+        verify(delegate, never()).service(any(ServletRequest.class), any(ServletResponse.class));
+        assertEquals(1, servlet.getRejectedRequests());
+    }
+
+    @Test
+    public void GIVEN_requestQueuedTooLong_WHEN_run_THEN_serviceUnavailableWithoutServing() throws Exception {
+        BoundedAsyncServlet servlet = new BoundedAsyncServlet(delegate, executor, 1L);
+        servlet.doGet(req, resp);
+
+        Thread.sleep(10L);
+        queued.get(0).run();
+
+        verify(resp).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        verify(async).complete();
+        verify(delegate, never()).service(any(ServletRequest.class), any(ServletResponse.class));
+        assertEquals(1, servlet.getTimedOutRequests());
+    }
+
+    @Test
+    public void GIVEN_delegateFails_WHEN_run_THEN_serverErrorAndCompleted() throws Exception {
+        doThrow(new IllegalStateException("Throttled")).when(delegate).service(req, resp);
+        BoundedAsyncServlet servlet = new BoundedAsyncServlet(delegate, executor, 1000L);
+        servlet.doGet(req, resp);
+
+        queued.get(0).run();
+
+        verify(resp).sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        verify(async).complete();
+    }
+
+    @Test
+    public void GIVEN_asyncNotSupported_WHEN_get_THEN_servedOnRequestThread() throws Exception {
+        when(req.isAsyncSupported()).thenReturn(false);
+        BoundedAsyncServlet servlet = new BoundedAsyncServlet(delegate, executor, 1000L);
+
+        servlet.doGet(req, resp);
+
+        verify(delegate).service(req, resp);
+        verify(req, never()).startAsync();
+        assertEquals(0, queued.size());
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.amazonaws.services.kinesis.samples.datavis.kcl.timing.Clock;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+
+public class CachingCountReaderTest {
+    private static final String HASH_KEY = "/index.html";
+
+    /**
+     * A clock that responds in milliseconds with whatever time it was last told to use.
+     */
+    private static class TestMillisClock implements Clock {
+        private volatile long now;
+
+        public void setTime(long now) {
+            this.now = now;
+        }
+
+        @Override
+        public long getTime() {
+            return now;
+        }
+
+        @Override
+        public TimeUnit getTimeUnit() {
+            return TimeUnit.MILLISECONDS;
+        }
+    }
+
+    private TestMillisClock clock;
+    private CountReader delegate;
+    private CachingCountReader reader;
+
+    @Before
+    public void init() {
+        clock = new TestMillisClock();
+        // Blocks 60000 to 240000 are sealed, and the block starting at 300000 is open
+        clock.setTime(300000L);
+        delegate = mock(CountReader.class);
+        reader = new CachingCountReader(delegate, 60000L, 0L, 600000L, 100, clock);
+        // Ranges are read from a fixed set of counts
+        when(delegate.read(eq(HASH_KEY), any(Date.class), any(Date.class))).thenAnswer(
+                new Answer<List<HttpReferrerPairsCount>>() {
+                    @Override
+                    public List<HttpReferrerPairsCount> answer(InvocationOnMock invocation) {
+                        Date startTime = (Date) invocation.getArguments()[1];
+                        Date endTime = (Date) invocation.getArguments()[2];
+                        List<HttpReferrerPairsCount> counts = new ArrayList<>();
+                        for (long timestamp : new long[] { 61000L, 130000L, 250000L, 301000L }) {
+                            if (timestamp > startTime.getTime() && timestamp <= endTime.getTime()) {
+                                counts.add(newCount(timestamp));
+                            }
+                        }
+                        return counts;
+                    }
+                });
+        when(delegate.read(eq(HASH_KEY), any(Date.class))).thenReturn(Arrays.asList(newCount(301000L)));
+    }
+
+    @Test
+    public void GIVEN_sealedBlocksRead_WHEN_readAgain_THEN_onlyOpenBlockReadFromDelegate() {
+        assertTimestamps(reader.read(HASH_KEY, new Date(59999L)), 61000L, 130000L, 250000L, 301000L);
+
+        assertTimestamps(reader.read(HASH_KEY, new Date(59999L)), 61000L, 130000L, 250000L, 301000L);
+
+        // The missing sealed blocks were read with one query, once
+        verify(delegate, times(1)).read(eq(HASH_KEY), any(Date.class), any(Date.class));
+        verify(delegate, times(2)).read(HASH_KEY, new Date(299999L));
+        assertEquals(4, reader.getMisses());
+        assertEquals(4, reader.getHits());
+    }
+
+    @Test
+    public void GIVEN_cachedBlocks_WHEN_rangeStartsAndEndsWithinBlocks_THEN_onlyCountsInRangeReturned() {
+        reader.read(HASH_KEY, new Date(59999L));
+
+        assertTimestamps(reader.read(HASH_KEY, new Date(61000L), new Date(250000L)), 130000L, 250000L);
+        verify(delegate, times(1)).read(eq(HASH_KEY), any(Date.class), any(Date.class));
+    }
+
+    @Test
+    public void GIVEN_blocksBecomeSealed_WHEN_read_THEN_newlySealedBlockCached() {
+        reader.read(HASH_KEY, new Date(59999L));
+        clock.setTime(360000L);
+        when(delegate.read(HASH_KEY, new Date(359999L))).thenReturn(Arrays.asList(newCount(361000L)));
+
+        assertTimestamps(reader.read(HASH_KEY, new Date(59999L)), 61000L, 130000L, 250000L, 301000L, 361000L);
+        verify(delegate).read(HASH_KEY, new Date(299999L), new Date(359999L));
+    }
+
+    @Test
+    public void GIVEN_cachedBlocksExpired_WHEN_readAgain_THEN_sealedBlocksReadAgain() {
+        reader = new CachingCountReader(delegate, 60000L, 0L, 30000L, 100, clock);
+        reader.read(HASH_KEY, new Date(59999L));
+        // Still within the same open block, so the same blocks are sealed
+        clock.setTime(330000L);
+
+        assertTimestamps(reader.read(HASH_KEY, new Date(59999L)), 61000L, 130000L, 250000L, 301000L);
+
+        verify(delegate, times(2)).read(HASH_KEY, new Date(59999L), new Date(299999L));
+        assertEquals(8, reader.getMisses());
+        assertEquals(0, reader.getHits());
+    }
+
+    @Test
+    public void GIVEN_sealDelay_WHEN_blockEndedWithinIt_THEN_blockNotCached() {
+        reader = new CachingCountReader(delegate, 60000L, 30000L, 600000L, 100, clock);
+        when(delegate.read(HASH_KEY, new Date(239999L))).thenReturn(
+                Arrays.asList(newCount(250000L), newCount(301000L)));
+
+        assertTimestamps(reader.read(HASH_KEY, new Date(59999L)), 61000L, 130000L, 250000L, 301000L);
+
+        // The block ending at 300000 may still be written to, so it is read with the open block
+        verify(delegate).read(HASH_KEY, new Date(59999L), new Date(239999L));
+        assertEquals(3, reader.getMisses());
+    }
+
+    @Test
+    public void GIVEN_moreCountsThanMax_WHEN_blocksCached_THEN_leastRecentlyUsedEvicted() {
+        reader = new CachingCountReader(delegate, 60000L, 0L, 600000L, 2, clock);
+        reader.read(HASH_KEY, new Date(59999L));
+        assertEquals(2, reader.getCachedCounts());
+
+        assertTimestamps(reader.read(HASH_KEY, new Date(59999L)), 61000L, 130000L, 250000L, 301000L);
+
+        // The first block was evicted so it is read again
+        verify(delegate).read(HASH_KEY, new Date(59999L), new Date(119999L));
+        assertEquals(2, reader.getCachedCounts());
+    }
+
+    @Test
+    public void GIVEN_returnedCountChanged_WHEN_readAgain_THEN_cachedCountUnchanged() {
+        reader.read(HASH_KEY, new Date(59999L)).get(0).setResource("/changed.html");
+
+        assertEquals(HASH_KEY, reader.read(HASH_KEY, new Date(59999L)).get(0).getResource());
+    }
+
+    @Test
+    public void GIVEN_page_WHEN_read_THEN_passedThrough() {
+        List<HttpReferrerPairsCount> page = Collections.singletonList(newCount(61000L));
+        when(delegate.read(HASH_KEY, new Date(59999L), 1)).thenReturn(page);
+
+        assertEquals(page, reader.read(HASH_KEY, new Date(59999L), 1));
+    }
+
+    private static void assertTimestamps(List<HttpReferrerPairsCount> counts, long... expected) {
+        List<Long> timestamps = new ArrayList<>();
+        for (HttpReferrerPairsCount count : counts) {
+            timestamps.add(count.getTimestamp().getTime());
+        }
+        List<Long> expectedTimestamps = new ArrayList<>();
+        for (long timestamp : expected) {
+            expectedTimestamps.add(timestamp);
+        }
+        assertEquals(expectedTimestamps, timestamps);
+    }
+
+    private static HttpReferrerPairsCount newCount(long timestamp) {
+        ReferrerCount referrerCount = new ReferrerCount();
+        referrerCount.setReferrer("http://www.amazon.com");
+        referrerCount.setCount(1L);
+        HttpReferrerPairsCount count = new HttpReferrerPairsCount();
+        count.setResource(HASH_KEY);
+        count.setTimestamp(new Date(timestamp));
+        count.setReferrerCounts(Collections.singletonList(referrerCount));
+        return count;
+    }
+}
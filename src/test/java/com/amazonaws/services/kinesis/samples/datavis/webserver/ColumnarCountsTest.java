@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.webserver;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+public class ColumnarCountsTest {
+    private static final String RESOURCE = "/index.html";
+
+    @Test
+    public void GIVEN_counts_WHEN_writeJson_THEN_columnPerReferrerWithZeroForMissingCounts() throws Exception {
+        ColumnarCounts columns = new ColumnarCounts(RESOURCE, Arrays.asList(
+                newCount(1000L, "host1", "a", 7L), newCount(2000L, "host2", "a", 8L, "b", 3L)));
+        StringWriter json = new StringWriter();
+
+        try (JsonGenerator generator = new JsonFactory().createGenerator(json)) {
+            columns.writeJson(generator);
+        }
+
+        assertEquals("{\"resource\":\"/index.html\",\"host\":\"host2\",\"timestamps\":[1000,2000],"
+                + "\"referrers\":[\"a\",\"b\"],\"counts\":[[7,8],[0,3]]}", json.toString());
+    }
+
+    @Test
+    public void GIVEN_counts_WHEN_writeBinary_THEN_littleEndianColumns() throws Exception {
+        ColumnarCounts columns = new ColumnarCounts(RESOURCE, Arrays.asList(
+                newCount(1000L, "host", "a", 7L), newCount(2000L, "host", "b", 3L)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        columns.writeBinary(out);
+
+        ByteBuffer binary = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(ColumnarCounts.BINARY_MAGIC, binary.getInt());
+        assertEquals(RESOURCE, readString(binary));
+        assertEquals("host", readString(binary));
+        assertEquals(2, binary.getInt());
+        assertEquals(1000L, binary.getLong());
+        assertEquals(2000L, binary.getLong());
+        assertEquals(2, binary.getInt());
+        assertEquals("a", readString(binary));
+        assertEquals(7L, binary.getLong());
+        assertEquals(0L, binary.getLong());
+        assertEquals("b", readString(binary));
+        assertEquals(0L, binary.getLong());
+        assertEquals(3L, binary.getLong());
+        assertEquals(0, binary.remaining());
+    }
+
+    @Test
+    public void GIVEN_noCounts_WHEN_writeBinary_THEN_noHostAndEmptyColumns() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        new ColumnarCounts(RESOURCE, new ArrayList<HttpReferrerPairsCount>()).writeBinary(out);
+
+        ByteBuffer binary = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        binary.getInt();
+        assertEquals(RESOURCE, readString(binary));
+        assertEquals(-1, binary.getInt());
+        assertEquals(0, binary.getInt());
+        assertEquals(0, binary.getInt());
+        assertEquals(0, binary.remaining());
+    }
+
+    private static String readString(ByteBuffer buffer) throws Exception {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static HttpReferrerPairsCount newCount(long timestamp, String host, Object... referrersAndCounts) {
+        List<ReferrerCount> referrerCounts = new ArrayList<>();
+        for (int i = 0; i < referrersAndCounts.length; i += 2) {
+            ReferrerCount referrerCount = new ReferrerCount();
+            referrerCount.setReferrer((String) referrersAndCounts[i]);
+            referrerCount.setCount((Long) referrersAndCounts[i + 1]);
+            referrerCounts.add(referrerCount);
+        }
+        HttpReferrerPairsCount count = new HttpReferrerPairsCount();
+        count.setResource(RESOURCE);
+        count.setTimestamp(new Date(timestamp));
+        count.setHost(host);
+        count.setReferrerCounts(referrerCounts);
+        return count;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.webserver;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+import com.amazonaws.services.kinesis.samples.datavis.utils.ReferrerCountUtils;
+
+public class CountAggregatorTest {
+    private static final String RESOURCE = "/index.html";
+
+    @Test
+    public void GIVEN_countsPerSecond_WHEN_aggregatedIntoTenSecondBuckets_THEN_countsAveragedPerBucket() {
+        CountAggregator aggregator = new CountAggregator(RESOURCE, 10000L, 0);
+        aggregator.add(newCount(1000L, "host1", "a", 1L, "b", 2L));
+        aggregator.add(newCount(9000L, "host1", "a", 3L));
+        aggregator.add(newCount(10000L, "host2", "b", 5L));
+
+        List<HttpReferrerPairsCount> counts = aggregator.getCounts();
+
+        assertEquals(2, counts.size());
+        assertEquals(new Date(0L), counts.get(0).getTimestamp());
+        assertEquals("host1", counts.get(0).getHost());
+        // Two counts in the first bucket
+        assertReferrerCounts(counts.get(0), "a", 2L, "b", 1L);
+        assertEquals(new Date(10000L), counts.get(1).getTimestamp());
+        assertEquals("host2", counts.get(1).getHost());
+        assertEquals(RESOURCE, counts.get(1).getResource());
+        assertReferrerCounts(counts.get(1), "b", 5L);
+    }
+
+    @Test
+    public void GIVEN_manyReferrers_WHEN_aggregatedWithTopN_THEN_topReferrersOverWholeRangeKeptAndRestSummed() {
+        CountAggregator aggregator = new CountAggregator(RESOURCE, 1L, 2);
+        // "c" has the highest count in the first interval but not overall
+        aggregator.add(newCount(1000L, "host", "c", 9L, "a", 5L, "b", 4L, ReferrerCountUtils.OTHER_REFERRERS, 1L));
+        aggregator.add(newCount(2000L, "host", "a", 5L, "b", 6L, "d", 1L));
+
+        List<HttpReferrerPairsCount> counts = aggregator.getCounts();
+
+        assertEquals(2, counts.size());
+        assertReferrerCounts(counts.get(0), "a", 5L, "b", 4L, ReferrerCountUtils.OTHER_REFERRERS, 10L);
+        assertReferrerCounts(counts.get(1), "b", 6L, "a", 5L, ReferrerCountUtils.OTHER_REFERRERS, 1L);
+    }
+
+    @Test
+    public void GIVEN_rangeAndMaxPoints_WHEN_toBucketSize_THEN_multipleOfResolution() {
+        // 120 seconds in at most 10 points of whole seconds
+        assertEquals(12000L, CountAggregator.toBucketSize(120000L, 10, 1000L));
+        // Rounded up to a whole number of intervals
+        assertEquals(13000L, CountAggregator.toBucketSize(125000L, 10, 1000L));
+        assertEquals(120000L, CountAggregator.toBucketSize(86400000L, 720, 60000L));
+        assertEquals(180000L, CountAggregator.toBucketSize(86400000L, 500, 60000L));
+        // More points than intervals leaves every interval in its own bucket
+        assertEquals(1000L, CountAggregator.toBucketSize(10000L, 600, 1000L));
+    }
+
+    private static HttpReferrerPairsCount newCount(long timestamp, String host, Object... referrersAndCounts) {
+        List<ReferrerCount> referrerCounts = new ArrayList<>();
+        for (int i = 0; i < referrersAndCounts.length; i += 2) {
+            ReferrerCount referrerCount = new ReferrerCount();
+            referrerCount.setReferrer((String) referrersAndCounts[i]);
+            referrerCount.setCount((Long) referrersAndCounts[i + 1]);
+            referrerCounts.add(referrerCount);
+        }
+        HttpReferrerPairsCount count = new HttpReferrerPairsCount();
+        count.setResource(RESOURCE);
+        count.setTimestamp(new Date(timestamp));
+        count.setHost(host);
+        count.setReferrerCounts(referrerCounts);
+        return count;
+    }
+
+    private static void assertReferrerCounts(HttpReferrerPairsCount count, Object... expectedReferrersAndCounts) {
+        List<ReferrerCount> referrerCounts = count.getReferrerCounts();
+        assertEquals(expectedReferrersAndCounts.length / 2, referrerCounts.size());
+        for (int i = 0; i < expectedReferrersAndCounts.length; i += 2) {
+            assertEquals(expectedReferrersAndCounts[i], referrerCounts.get(i / 2).getReferrer());
+            assertEquals(expectedReferrersAndCounts[i + 1], referrerCounts.get(i / 2).getCount());
+        }
+    }
+}
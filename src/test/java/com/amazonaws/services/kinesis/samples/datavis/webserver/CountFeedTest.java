@@ -0,0 +1,203 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+
+public class CountFeedTest {
+    private static final String RESOURCE = "/index.html";
+
+    private RecentCountsSource source;
+    private CountFeed feed;
+
+    @Before
+    public void init() {
+        source = mock(RecentCountsSource.class);
+        // Keep counts up to 10 seconds old
+        feed = new CountFeed(RESOURCE, source, 100000L, 10000L);
+    }
+
+    @Test
+    public void GIVEN_newFeed_WHEN_polled_THEN_historyReadAndEachCountBroadcastAsAnEvent() throws Exception {
+        when(source.getCountsAfter(RESOURCE, new Date(90000L))).thenReturn(
+                Arrays.asList(newCount(95000L), newCount(96000L)));
+        RecordingSubscriber first = new RecordingSubscriber();
+        RecordingSubscriber second = new RecordingSubscriber();
+        feed.subscribe(first, null);
+        feed.subscribe(second, null);
+
+        feed.poll(false);
+
+        assertEquals(1, first.sent.size());
+        assertEquals(first.sent, second.sent);
+        String[] events = first.sent.get(0).split("\n\n");
+        assertEquals(2, events.length);
+        assertTrue(events[0].startsWith("id: " + GetCountsServlet.toCursor(new Date(95000L)) + "\ndata: {"));
+        assertTrue(events[1].startsWith("id: " + GetCountsServlet.toCursor(new Date(96000L)) + "\ndata: {"));
+    }
+
+    @Test
+    public void GIVEN_polledFeed_WHEN_polledAgain_THEN_onlyNewerCountsRead() throws Exception {
+        when(source.getCountsAfter(RESOURCE, new Date(90000L))).thenReturn(Arrays.asList(newCount(95000L)));
+        when(source.getCountsAfter(RESOURCE, new Date(95000L))).thenReturn(Arrays.asList(newCount(96000L)));
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        feed.subscribe(subscriber, null);
+
+        feed.poll(false);
+        feed.poll(false);
+
+        assertEquals(2, subscriber.sent.size());
+        assertTrue(subscriber.sent.get(1).startsWith("id: " + GetCountsServlet.toCursor(new Date(96000L))));
+    }
+
+    @Test
+    public void GIVEN_recentCounts_WHEN_subscribedWithCursor_THEN_onlyCountsAfterCursorSent() throws Exception {
+        when(source.getCountsAfter(RESOURCE, new Date(90000L))).thenReturn(
+                Arrays.asList(newCount(95000L), newCount(96000L), newCount(97000L)));
+        feed.poll(false);
+
+        RecordingSubscriber all = new RecordingSubscriber();
+        RecordingSubscriber reconnected = new RecordingSubscriber();
+        feed.subscribe(all, null);
+        feed.subscribe(reconnected, new Date(96000L));
+
+        assertEquals(3, all.sent.get(0).split("\n\n").length);
+        assertEquals(1, reconnected.sent.size());
+        assertTrue(reconnected.sent.get(0).startsWith("id: " + GetCountsServlet.toCursor(new Date(97000L))));
+        assertEquals(1, reconnected.sent.get(0).split("\n\n").length);
+    }
+
+    @Test
+    public void GIVEN_countsOlderThanHistory_WHEN_subscribed_THEN_notSent() throws Exception {
+        when(source.getCountsAfter(RESOURCE, new Date(90000L))).thenReturn(
+                Arrays.asList(newCount(95000L), newCount(106000L)));
+        feed.poll(false);
+
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        feed.subscribe(subscriber, null);
+
+        assertEquals(1, subscriber.sent.get(0).split("\n\n").length);
+        assertTrue(subscriber.sent.get(0).startsWith("id: " + GetCountsServlet.toCursor(new Date(106000L))));
+    }
+
+    @Test
+    public void GIVEN_disconnectedSubscriber_WHEN_broadcast_THEN_unsubscribedAndFeedIdle() throws Exception {
+        when(source.getCountsAfter(eq(RESOURCE), any(Date.class))).thenReturn(
+                Collections.<HttpReferrerPairsCount> emptyList());
+        feed.subscribe(new CountFeed.Subscriber() {
+            @Override
+            public void send(String events) throws IOException {
+                throw new IOException("Connection reset");
+            }
+        }, null);
+        assertFalse(feed.closeIfIdle());
+
+        // Nothing new, so only a heartbeat is sent
+        feed.poll(true);
+
+        assertEquals(0, feed.getSubscriberCount());
+        assertTrue(feed.closeIfIdle());
+        assertFalse(feed.subscribe(new RecordingSubscriber(), null));
+    }
+
+    @Test
+    public void GIVEN_sourceFails_WHEN_polled_THEN_nextPollRetriesFromSameCursor() throws Exception {
+        when(source.getCountsAfter(RESOURCE, new Date(90000L))).thenThrow(new IllegalStateException("Throttled"))
+                .thenReturn(Arrays.asList(newCount(95000L)));
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        feed.subscribe(subscriber, null);
+
+        feed.poll(false);
+        assertEquals(0, subscriber.sent.size());
+        feed.poll(false);
+
+        assertEquals(1, subscriber.sent.size());
+    }
+
+    @Test
+    public void GIVEN_settleTime_WHEN_polledAgain_THEN_changedCountsWithinItSentAgain() throws Exception {
+        feed = new CountFeed(RESOURCE, source, 100000L, 10000L, 5000L);
+        when(source.getCountsAfter(RESOURCE, new Date(85000L))).thenReturn(
+                Arrays.asList(newCount(95000L), newCount(96000L)));
+        // Another shard's count for 95000 has been written since
+        when(source.getCountsAfter(RESOURCE, new Date(91000L))).thenReturn(
+                Arrays.asList(newCount(95000L, 2L), newCount(96000L), newCount(97000L)));
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        feed.subscribe(subscriber, null);
+
+        feed.poll(false);
+        feed.poll(false);
+
+        assertEquals(2, subscriber.sent.size());
+        String[] events = subscriber.sent.get(1).split("\n\n");
+        assertEquals(2, events.length);
+        assertTrue(events[0].startsWith("id: " + GetCountsServlet.toCursor(new Date(95000L)) + "\ndata: {"));
+        assertTrue(events[0].contains("\"count\":2"));
+        assertTrue(events[1].startsWith("id: " + GetCountsServlet.toCursor(new Date(97000L))));
+    }
+
+    @Test
+    public void GIVEN_settleTime_WHEN_subscribedWithCursor_THEN_countsWithinSettleTimeOfCursorSentToo()
+        throws Exception {
+        feed = new CountFeed(RESOURCE, source, 100000L, 10000L, 2000L);
+        when(source.getCountsAfter(RESOURCE, new Date(88000L))).thenReturn(
+                Arrays.asList(newCount(93000L), newCount(95000L), newCount(96000L), newCount(97000L)));
+        feed.poll(false);
+
+        RecordingSubscriber reconnected = new RecordingSubscriber();
+        feed.subscribe(reconnected, new Date(97000L));
+
+        String[] events = reconnected.sent.get(0).split("\n\n");
+        assertEquals(2, events.length);
+        assertTrue(events[0].startsWith("id: " + GetCountsServlet.toCursor(new Date(96000L))));
+    }
+
+    private HttpReferrerPairsCount newCount(long timestamp) {
+        return newCount(timestamp, 1L);
+    }
+
+    private HttpReferrerPairsCount newCount(long timestamp, long referrals) {
+        ReferrerCount referrerCount = new ReferrerCount();
+        referrerCount.setReferrer("http://www.amazon.com");
+        referrerCount.setCount(referrals);
+        HttpReferrerPairsCount count = new HttpReferrerPairsCount();
+        count.setResource(RESOURCE);
+        count.setTimestamp(new Date(timestamp));
+        count.setReferrerCounts(Collections.singletonList(referrerCount));
+        return count;
+    }
+
+    /**
+     * Keeps everything it is sent.
+     */
+    private static class RecordingSubscriber implements CountFeed.Subscriber {
+        private final List<String> sent = new ArrayList<>();
+
+        @Override
+        public void send(String events) {
+            sent.add(events);
+        }
+    }
+}
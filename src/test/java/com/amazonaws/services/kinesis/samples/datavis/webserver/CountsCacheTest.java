@@ -0,0 +1,236 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.junit.rules.Timeout;
+
+import com.amazonaws.services.kinesis.samples.datavis.kcl.timing.Clock;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+
+public class CountsCacheTest {
+    @Rule
+    public TestRule globalTimeout = new Timeout(5000);
+
+    /**
+     * A clock that responds in milliseconds with whatever time it was last told to use.
+     */
+    private static class TestMillisClock implements Clock {
+        private volatile long now;
+
+        public void setTime(long now) {
+            this.now = now;
+        }
+
+        @Override
+        public long getTime() {
+            return now;
+        }
+
+        @Override
+        public TimeUnit getTimeUnit() {
+            return TimeUnit.MILLISECONDS;
+        }
+    }
+
+    private TestMillisClock clock;
+    private CountsCache cache;
+    private CountingQuery query;
+    private ExecutorService executor;
+
+    @Before
+    public void init() {
+        clock = new TestMillisClock();
+        cache = new CountsCache(1000L, 10, clock);
+        query = new CountingQuery();
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void GIVEN_cachedResult_WHEN_getWithinTtl_THEN_resultServedWithoutQuerying() throws Exception {
+        List<HttpReferrerPairsCount> first = cache.get("/index.html", 10, query);
+        clock.setTime(999L);
+        List<HttpReferrerPairsCount> second = cache.get("/index.html", 10, query);
+
+        assertEquals(first, second);
+        assertEquals(1, query.calls.get());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void GIVEN_cachedResult_WHEN_ttlElapsed_THEN_queriedAgain() throws Exception {
+        cache.get("/index.html", 10, query);
+        clock.setTime(1000L);
+        cache.get("/index.html", 10, query);
+
+        assertEquals(2, query.calls.get());
+        assertEquals(2, cache.getMisses());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void GIVEN_differentRanges_WHEN_get_THEN_cachedSeparately() throws Exception {
+        cache.get("/index.html", 10, query);
+        cache.get("/index.html", 60, query);
+        cache.get("/about.html", 10, query);
+
+        assertEquals(3, query.calls.get());
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void GIVEN_queryRunning_WHEN_getSameKey_THEN_coalescedIntoOneQuery() throws Exception {
+        final CountDownLatch querying = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountingQuery slowQuery = new CountingQuery() {
+            @Override
+            public List<HttpReferrerPairsCount> call() throws Exception {
+                querying.countDown();
+                release.await();
+                return super.call();
+            }
+        };
+        Future<List<HttpReferrerPairsCount>> first = executor.submit(new Callable<List<HttpReferrerPairsCount>>() {
+            @Override
+            public List<HttpReferrerPairsCount> call() throws Exception {
+                return cache.get("/index.html", 10, slowQuery);
+            }
+        });
+        querying.await();
+
+        // The query is still running long after its TTL would have elapsed. Wait for it rather than start another.
+        clock.setTime(5000L);
+        Thread releaser = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                release.countDown();
+            }
+        };
+        releaser.start();
+        List<HttpReferrerPairsCount> second = cache.get("/index.html", 10, slowQuery);
+
+        assertEquals(first.get(), second);
+        assertEquals(1, slowQuery.calls.get());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getCoalesced());
+    }
+
+    @Test
+    public void GIVEN_queryFails_WHEN_getAgain_THEN_failureNotCached() throws Exception {
+        Callable<List<HttpReferrerPairsCount>> failing = new Callable<List<HttpReferrerPairsCount>>() {
+            @Override
+            public List<HttpReferrerPairsCount> call() throws ServletException {
+                throw new ServletException("DynamoDB unavailable");
+            }
+        };
+        try {
+            cache.get("/index.html", 10, failing);
+            fail("The query's exception should be thrown");
+        } catch (ServletException expected) {
+            assertEquals("DynamoDB unavailable", expected.getMessage());
+        }
+
+        cache.get("/index.html", 10, query);
+        assertEquals(1, query.calls.get());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void GIVEN_cacheFullOfUnexpiredResults_WHEN_getNewKey_THEN_oldestEvicted() throws Exception {
+        cache = new CountsCache(1000L, 2, clock);
+        cache.get("/index.html", 10, query);
+        clock.setTime(1L);
+        cache.get("/about.html", 10, query);
+        clock.setTime(2L);
+        cache.get("/products.html", 10, query);
+        cache.get("/products.html", 10, query);
+        cache.get("/about.html", 10, query);
+
+        assertEquals(3, query.calls.get());
+        assertEquals(2, cache.size());
+
+        // The oldest result was evicted
+        cache.get("/index.html", 10, query);
+        assertEquals(4, query.calls.get());
+    }
+
+    @Test
+    public void GIVEN_cachedResult_WHEN_countChangedByCaller_THEN_otherCallersUnaffected() throws Exception {
+        Callable<List<HttpReferrerPairsCount>> oneCount = new Callable<List<HttpReferrerPairsCount>>() {
+            @Override
+            public List<HttpReferrerPairsCount> call() {
+                ReferrerCount referrerCount = new ReferrerCount();
+                referrerCount.setReferrer("http://www.amazon.com");
+                referrerCount.setCount(1L);
+                HttpReferrerPairsCount count = new HttpReferrerPairsCount();
+                count.setResource("/index.html");
+                count.setTimestamp(new Date(1000L));
+                count.setShardId("shardId-000000000001");
+                count.setReferrerCounts(new ArrayList<>(Collections.singletonList(referrerCount)));
+                return new ArrayList<>(Collections.singletonList(count));
+            }
+        };
+        List<HttpReferrerPairsCount> first = cache.get("/index.html", 10, oneCount);
+        first.get(0).setResource("/changed.html");
+        first.get(0).getReferrerCounts().get(0).setCount(2L);
+        first.get(0).getReferrerCounts().clear();
+        first.clear();
+
+        List<HttpReferrerPairsCount> second = cache.get("/index.html", 10, oneCount);
+        assertEquals(1, second.size());
+        assertEquals("/index.html", second.get(0).getResource());
+        assertEquals("shardId-000000000001", second.get(0).getShardId());
+        assertEquals(1, second.get(0).getReferrerCounts().size());
+        assertEquals(1L, second.get(0).getReferrerCounts().get(0).getCount());
+        assertEquals(1, cache.getHits());
+    }
+
+    /**
+     * Counts how many times it is called.
+     */
+    private static class CountingQuery implements Callable<List<HttpReferrerPairsCount>> {
+        private final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public List<HttpReferrerPairsCount> call() throws Exception {
+            calls.incrementAndGet();
+            return new ArrayList<>();
+        }
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+import com.amazonaws.services.kinesis.samples.datavis.utils.HashKeySharding;
+
+public class GetCountsServletTest {
+    private CountReader perSecond;
+    private CountReader perMinute;
+    private CountReader perHour;
+    private GetCountsServlet servlet;
+
+    @Before
+    public void init() {
+        perSecond = mock(CountReader.class);
+        perMinute = mock(CountReader.class);
+        perHour = mock(CountReader.class);
+        NavigableMap<Long, CountReader> readersByResolution = new TreeMap<>();
+        readersByResolution.put(1000L, perSecond);
+        readersByResolution.put(60000L, perMinute);
+        readersByResolution.put(3600000L, perHour);
+        servlet = new GetCountsServlet(readersByResolution, 600, new HashKeySharding(1), null);
+    }
+
+    @Test
+    public void GIVEN_rangeWithinBudgetPerInterval_WHEN_selectReader_THEN_finestResolution() {
+        assertSame(perSecond, servlet.selectReader(600000L));
+    }
+
+    @Test
+    public void GIVEN_rangeOverBudgetPerInterval_WHEN_selectReader_THEN_finestResolutionWithinBudget() {
+        assertSame(perMinute, servlet.selectReader(600001L));
+        assertSame(perMinute, servlet.selectReader(36000000L));
+        assertSame(perHour, servlet.selectReader(86400000L));
+    }
+
+    @Test
+    public void GIVEN_rangeOverBudgetForEveryResolution_WHEN_selectReader_THEN_coarsestResolution() {
+        assertSame(perHour, servlet.selectReader(Long.MAX_VALUE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void GIVEN_noReaders_WHEN_created_THEN_illegalArgumentException() {
+        new GetCountsServlet(new TreeMap<Long, CountReader>(), 600, new HashKeySharding(1), null);
+    }
+
+    @Test
+    public void GIVEN_cursor_WHEN_get_THEN_finestResolutionReadAfterCursorAndNextCursorReturned() throws Exception {
+        // Recent enough to read at the finest resolution within the budget
+        long sinceMillis = System.currentTimeMillis() - 60000L;
+        Date since = new Date(sinceMillis);
+        HttpReferrerPairsCount newer = newCount(sinceMillis + 1000L);
+        HttpReferrerPairsCount newest = newCount(sinceMillis + 2000L);
+        when(perSecond.read("/index.html", since)).thenReturn(Arrays.asList(newer, newest));
+        HttpServletRequest req = newRequest("resource=/index.html&cursor=" + GetCountsServlet.toCursor(since));
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        StringWriter body = new StringWriter();
+        when(resp.getWriter()).thenReturn(new PrintWriter(body));
+
+        servlet.doGet(req, resp);
+
+        verify(resp).setStatus(HttpServletResponse.SC_OK);
+        verify(resp).setHeader(GetCountsServlet.HEADER_NEXT_CURSOR, GetCountsServlet.toCursor(newest.getTimestamp()));
+        verifyZeroInteractions(perMinute, perHour);
+        assertEquals(2, body.toString().split("\"timestamp\"").length - 1);
+    }
+
+    @Test
+    public void GIVEN_sinceWithNoNewerCounts_WHEN_get_THEN_nextCursorUnchanged() throws Exception {
+        when(perSecond.read(eq("/index.html"), any(Date.class))).thenReturn(
+                Collections.<HttpReferrerPairsCount> emptyList());
+        Date since = new Date(System.currentTimeMillis() - 60000L);
+        HttpServletRequest req = newRequest("resource=/index.html&since=" + since.getTime());
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        when(resp.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+
+        servlet.doGet(req, resp);
+
+        verify(perSecond).read("/index.html", since);
+        verify(resp).setHeader(GetCountsServlet.HEADER_NEXT_CURSOR, GetCountsServlet.toCursor(since));
+    }
+
+    @Test
+    public void GIVEN_settleTime_WHEN_get_THEN_nextCursorHeldBackToReadUnsettledIntervalsAgain() throws Exception {
+        servlet = newServletWithSettleTime(30000L);
+        long sinceMillis = System.currentTimeMillis() - 60000L;
+        Date since = new Date(sinceMillis);
+        HttpReferrerPairsCount settled = newCount(sinceMillis + 1000L);
+        HttpReferrerPairsCount unsettled = newCount(sinceMillis + 50000L);
+        when(perSecond.read("/index.html", since)).thenReturn(Arrays.asList(settled, unsettled));
+        HttpServletResponse resp = newResponse();
+
+        long before = System.currentTimeMillis();
+        servlet.doGet(newRequest("resource=/index.html&cursor=" + GetCountsServlet.toCursor(since)), resp);
+        long after = System.currentTimeMillis();
+
+        ArgumentCaptor<String> cursor = ArgumentCaptor.forClass(String.class);
+        verify(resp).setHeader(eq(GetCountsServlet.HEADER_NEXT_CURSOR), cursor.capture());
+        long next = GetCountsServlet.fromCursor(cursor.getValue()).getTime();
+        assertTrue(next > settled.getTimestamp().getTime());
+        assertTrue(next < unsettled.getTimestamp().getTime());
+        assertTrue(next >= before - 30000L - 1000L && next <= after - 30000L);
+        assertEquals(0L, next % 1000L);
+    }
+
+    @Test
+    public void GIVEN_settleTimeAndSinceWithinIt_WHEN_settleCursor_THEN_cursorNotMovedBack() {
+        servlet = newServletWithSettleTime(30000L);
+        Date since = new Date(System.currentTimeMillis() - 10000L);
+
+        assertEquals(since, servlet.settleCursor(new Date(since.getTime() + 5000L), since));
+    }
+
+    @Test
+    public void GIVEN_settleTimeAndSettledCounts_WHEN_settleCursor_THEN_cursorFromNewestCount() {
+        servlet = newServletWithSettleTime(30000L);
+        Date newest = new Date(System.currentTimeMillis() - 40000L);
+
+        assertEquals(newest, servlet.settleCursor(newest, new Date(newest.getTime() - 5000L)));
+    }
+
+    @Test
+    public void GIVEN_sinceFurtherBackThanBudgetAtFinestResolution_WHEN_get_THEN_badRequest() throws Exception {
+        // 600 points per hash key at one second each
+        HttpServletRequest req = newRequest("resource=/index.html&since=" + (System.currentTimeMillis() - 601000L));
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+
+        servlet.doGet(req, resp);
+
+        verify(resp).sendError(eq(HttpServletResponse.SC_BAD_REQUEST), any(String.class));
+        verifyZeroInteractions(perSecond, perMinute, perHour);
+    }
+
+    @Test
+    public void GIVEN_sinceFurtherBackThanBudget_WHEN_getCountsAfter_THEN_readFromEarliestTimeWithinBudget()
+        throws Exception {
+        when(perSecond.read(eq("/index.html"), any(Date.class))).thenReturn(
+                Collections.<HttpReferrerPairsCount> emptyList());
+        long before = System.currentTimeMillis();
+
+        servlet.getCountsAfter("/index.html", new Date(0L));
+
+        ArgumentCaptor<Date> after = ArgumentCaptor.forClass(Date.class);
+        verify(perSecond).read(eq("/index.html"), after.capture());
+        assertTrue(after.getValue().getTime() >= before - 600000L);
+    }
+
+    @Test
+    public void GIVEN_malformedCursor_WHEN_get_THEN_badRequest() throws Exception {
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+
+        servlet.doGet(newRequest("resource=/index.html&cursor=not-a-cursor"), resp);
+
+        verify(resp).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        verifyZeroInteractions(perSecond, perMinute, perHour);
+    }
+
+    @Test
+    public void GIVEN_rangeWithMaxPointsAndTopN_WHEN_get_THEN_countsDownsampledAndCursorFromLastCountRead()
+        throws Exception {
+        when(perSecond.read(eq("/index.html"), any(Date.class))).thenReturn(
+                Arrays.asList(newCount(1400000001000L), newCount(1400000002000L), newCount(1400000003000L)));
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        StringWriter body = new StringWriter();
+        when(resp.getWriter()).thenReturn(new PrintWriter(body));
+
+        servlet.doGet(newRequest("resource=/index.html&range_in_seconds=120&max_points=10&top_n=1"), resp);
+
+        verify(resp).setHeader(GetCountsServlet.HEADER_NEXT_CURSOR,
+                GetCountsServlet.toCursor(new Date(1400000003000L)));
+        // Every count falls in the same 12 second bucket
+        assertEquals(1, body.toString().split("\"timestamp\"").length - 1);
+        assertEquals(1, body.toString().split("\"count\":1}").length - 1);
+    }
+
+    @Test
+    public void GIVEN_maxPointsNotPositive_WHEN_get_THEN_badRequest() throws Exception {
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+
+        servlet.doGet(newRequest("resource=/index.html&range_in_seconds=120&max_points=0"), resp);
+
+        verify(resp).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        verifyZeroInteractions(perSecond, perMinute, perHour);
+    }
+
+    @Test
+    public void GIVEN_pageSize_WHEN_pagesRead_THEN_continuationTokenUntilLastPage() throws Exception {
+        when(perSecond.read(eq("/index.html"), any(Date.class), eq(2))).thenReturn(
+                Arrays.asList(newCount(1400000001000L), newCount(1400000002000L)));
+        when(perSecond.read("/index.html", new Date(1400000002000L), 2)).thenReturn(
+                Arrays.asList(newCount(1400000003000L)));
+        HttpServletResponse first = newResponse();
+
+        servlet.doGet(newRequest("resource=/index.html&range_in_seconds=120&page_size=2"), first);
+
+        String token = GetCountsServlet.toContinuationToken(1000L, new Date(1400000002000L));
+        verify(first).setHeader(GetCountsServlet.HEADER_CONTINUATION_TOKEN, token);
+        HttpServletResponse last = newResponse();
+
+        servlet.doGet(newRequest("resource=/index.html&page_size=2&continuation_token=" + token), last);
+
+        verify(perSecond).read("/index.html", new Date(1400000002000L), 2);
+        verify(last, never()).setHeader(eq(GetCountsServlet.HEADER_CONTINUATION_TOKEN), any(String.class));
+        verify(last).setHeader(GetCountsServlet.HEADER_NEXT_CURSOR,
+                GetCountsServlet.toCursor(new Date(1400000003000L)));
+    }
+
+    @Test
+    public void GIVEN_shardedResource_WHEN_pageRead_THEN_onlyTimestampsReadFromEveryHashKeyReturned() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            servlet = new GetCountsServlet(perSecond, new HashKeySharding(2), executor);
+            List<String> hashKeys = new HashKeySharding(2).getHashKeys("/index.html");
+            // The first hash key has more counts to read after 1400000003000
+            when(perSecond.read(eq(hashKeys.get(0)), any(Date.class), eq(2))).thenReturn(
+                    Arrays.asList(newCount(hashKeys.get(0), 1400000001000L),
+                            newCount(hashKeys.get(0), 1400000003000L)));
+            when(perSecond.read(eq(hashKeys.get(1)), any(Date.class), eq(2))).thenReturn(
+                    Arrays.asList(newCount(hashKeys.get(1), 1400000002000L)));
+            HttpServletResponse resp = newResponse();
+
+            servlet.doGet(newRequest("resource=/index.html&range_in_seconds=120&page_size=2"), resp);
+
+            verify(resp).setHeader(GetCountsServlet.HEADER_CONTINUATION_TOKEN,
+                    GetCountsServlet.toContinuationToken(1L, new Date(1400000002000L)));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void GIVEN_rangeTooLongForEveryResolution_WHEN_getWithoutPages_THEN_badRequest() throws Exception {
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+
+        servlet.doGet(newRequest("resource=/index.html&range_in_seconds=" + (601 * 3600)), resp);
+
+        verify(resp).sendError(eq(HttpServletResponse.SC_BAD_REQUEST), any(String.class));
+        verifyZeroInteractions(perSecond, perMinute, perHour);
+    }
+
+    @Test
+    public void GIVEN_continuationTokenForUnknownResolution_WHEN_get_THEN_badRequest() throws Exception {
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        String token = GetCountsServlet.toContinuationToken(5000L, new Date(1400000002000L));
+
+        servlet.doGet(newRequest("resource=/index.html&continuation_token=" + token), resp);
+
+        verify(resp).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    }
+
+    @Test
+    public void GIVEN_etagOfUnchangedCounts_WHEN_getIfNoneMatch_THEN_notModifiedUntilCountsChange() throws Exception {
+        when(perSecond.read(eq("/index.html"), any(Date.class))).thenReturn(
+                Arrays.asList(newCount(1400000001000L)), Arrays.asList(newCount(1400000001000L)),
+                Arrays.asList(newCount(1400000001000L), newCount(1400000002000L)));
+        String etag = GetCountsServlet.toETag(GetCountsServlet.ResponseFormat.JSON,
+                GetCountsServlet.toCursor(new Date(1400000001000L)), null, Arrays.asList(newCount(1400000001000L)));
+        HttpServletResponse first = newResponse();
+
+        servlet.doGet(newRequest("resource=/index.html&range_in_seconds=120"), first);
+
+        verify(first).setHeader("ETag", etag);
+        verify(first).setStatus(HttpServletResponse.SC_OK);
+        HttpServletRequest unchanged = newRequest("resource=/index.html&range_in_seconds=120");
+        when(unchanged.getHeader("If-None-Match")).thenReturn(etag);
+        HttpServletResponse notModified = newResponse();
+
+        servlet.doGet(unchanged, notModified);
+
+        verify(notModified).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(notModified, never()).getWriter();
+        HttpServletRequest changed = newRequest("resource=/index.html&range_in_seconds=120");
+        when(changed.getHeader("If-None-Match")).thenReturn(etag);
+        HttpServletResponse modified = newResponse();
+
+        servlet.doGet(changed, modified);
+
+        verify(modified).setStatus(HttpServletResponse.SC_OK);
+    }
+
+    @Test
+    public void GIVEN_ifNoneMatch_WHEN_matched_THEN_weakComparisonOverEveryTag() {
+        assertTrue(GetCountsServlet.matchesETag("W/\"1a\"", "W/\"1a\""));
+        assertTrue(GetCountsServlet.matchesETag("\"0b\", \"1a\"", "W/\"1a\""));
+        assertTrue(GetCountsServlet.matchesETag("*", "W/\"1a\""));
+        assertFalse(GetCountsServlet.matchesETag("W/\"1b\"", "W/\"1a\""));
+        assertFalse(GetCountsServlet.matchesETag(null, "W/\"1a\""));
+    }
+
+    @Test
+    public void GIVEN_differentFormats_WHEN_toETag_THEN_differentTags() {
+        List<HttpReferrerPairsCount> counts = Arrays.asList(newCount(1400000001000L));
+        String cursor = GetCountsServlet.toCursor(new Date(1400000001000L));
+
+        assertFalse(GetCountsServlet.toETag(GetCountsServlet.ResponseFormat.JSON, cursor, null, counts).equals(
+                GetCountsServlet.toETag(GetCountsServlet.ResponseFormat.COLUMNAR, cursor, null, counts)));
+    }
+
+    @Test
+    public void GIVEN_unknownFormat_WHEN_get_THEN_badRequest() throws Exception {
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+
+        servlet.doGet(newRequest("resource=/index.html&range_in_seconds=120&format=xml"), resp);
+
+        verify(resp).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        verifyZeroInteractions(perSecond, perMinute, perHour);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void GIVEN_rangeTooLongForEveryResolution_WHEN_getCounts_THEN_illegalArgument() throws Exception {
+        servlet.getCounts("/index.html", 601 * 3600);
+    }
+
+    @Test
+    public void GIVEN_rangeLength_WHEN_toSegmentBoundaries_THEN_moreSegmentsForLongerRanges() {
+        Date start = new Date(1400000000000L);
+        // Too short to be worth splitting
+        assertEquals(0, GetCountsServlet.toSegmentBoundaries(1000L, start, 1400000120000L).size());
+        // 600 counts in 4 segments of 150
+        assertEquals(Arrays.asList(new Date(1400000150000L), new Date(1400000300000L), new Date(1400000450000L)),
+                GetCountsServlet.toSegmentBoundaries(1000L, start, 1400000600000L));
+        // No more than the most segments however long the range
+        assertEquals(GetCountsServlet.MAX_SEGMENTS - 1,
+                GetCountsServlet.toSegmentBoundaries(1000L, start, 1400086400000L).size());
+    }
+
+    @Test
+    public void GIVEN_longRange_WHEN_get_THEN_segmentsReadInParallelAndMergedInOrder() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            NavigableMap<Long, CountReader> readersByResolution = new TreeMap<>();
+            readersByResolution.put(1000L, perSecond);
+            servlet = new GetCountsServlet(readersByResolution, 600, new HashKeySharding(1), executor);
+            // Each segment returns a count just after it starts
+            Answer<List<HttpReferrerPairsCount>> countAfterStart = new Answer<List<HttpReferrerPairsCount>>() {
+                @Override
+                public List<HttpReferrerPairsCount> answer(InvocationOnMock invocation) {
+                    Date start = (Date) invocation.getArguments()[1];
+                    return Arrays.asList(newCount(start.getTime() + 1000L));
+                }
+            };
+            when(perSecond.read(eq("/index.html"), any(Date.class), any(Date.class))).thenAnswer(countAfterStart);
+            when(perSecond.read(eq("/index.html"), any(Date.class))).thenAnswer(countAfterStart);
+            HttpServletResponse resp = mock(HttpServletResponse.class);
+            StringWriter body = new StringWriter();
+            when(resp.getWriter()).thenReturn(new PrintWriter(body));
+
+            servlet.doGet(newRequest("resource=/index.html&range_in_seconds=600"), resp);
+
+            verify(perSecond, times(3)).read(eq("/index.html"), any(Date.class), any(Date.class));
+            verify(perSecond).read(eq("/index.html"), any(Date.class));
+            String[] timestamps = body.toString().split("\"timestamp\":");
+            assertEquals(5, timestamps.length);
+            for (int i = 2; i < timestamps.length; i++) {
+                assertTrue(toMillis(timestamps[i - 1]) < toMillis(timestamps[i]));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void GIVEN_cursor_WHEN_parsed_THEN_sameTime() {
+        Date after = new Date(1400000000123L);
+        assertEquals(after, GetCountsServlet.fromCursor(GetCountsServlet.toCursor(after)));
+    }
+
+    /**
+     * @return The number of milliseconds at the start of a string.
+     */
+    private static long toMillis(String json) {
+        int end = 0;
+        while (end < json.length() && Character.isDigit(json.charAt(end))) {
+            end++;
+        }
+        return Long.parseLong(json.substring(0, end));
+    }
+
+    private GetCountsServlet newServletWithSettleTime(long settleTimeInMillis) {
+        NavigableMap<Long, CountReader> readersByResolution = new TreeMap<>();
+        readersByResolution.put(1000L, perSecond);
+        return new GetCountsServlet(readersByResolution, 600, new HashKeySharding(1), null, null, settleTimeInMillis);
+    }
+
+    private HttpServletRequest newRequest(String queryString) {
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getQueryString()).thenReturn(queryString);
+        return req;
+    }
+
+    private HttpServletResponse newResponse() throws Exception {
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        when(resp.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+        return resp;
+    }
+
+    private HttpReferrerPairsCount newCount(long timestamp) {
+        return newCount("/index.html", timestamp);
+    }
+
+    private HttpReferrerPairsCount newCount(String hashKey, long timestamp) {
+        HttpReferrerPairsCount count = new HttpReferrerPairsCount();
+        count.setResource(hashKey);
+        count.setTimestamp(new Date(timestamp));
+        ReferrerCount referrerCount = new ReferrerCount();
+        referrerCount.setReferrer("http://www.amazon.com");
+        referrerCount.setCount(1L);
+        count.setReferrerCounts(Collections.singletonList(referrerCount));
+        return count;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.samples.datavis.kcl.persistence.local.RecentCounts;
+import com.amazonaws.services.kinesis.samples.datavis.model.HttpReferrerPairsCount;
+import com.amazonaws.services.kinesis.samples.datavis.model.ReferrerCount;
+
+public class RecentCountReaderTest {
+    private static final String HASH_KEY = "/index.html";
+
+    private RecentCounts recentCounts;
+    private CountReader delegate;
+    private RecentCountReader reader;
+    // Counts after this are held in memory
+    private Date coveredSince;
+
+    @Before
+    public void init() {
+        recentCounts = mock(RecentCounts.class);
+        delegate = mock(CountReader.class);
+        reader = new RecentCountReader(recentCounts, delegate);
+        coveredSince = new Date(100000L);
+        when(recentCounts.getCoveredSince()).thenReturn(coveredSince);
+    }
+
+    @Test
+    public void GIVEN_startWithinRecentCounts_WHEN_read_THEN_readFromMemoryOnly() {
+        when(recentCounts.read(HASH_KEY, new Date(101000L), null, Integer.MAX_VALUE)).thenReturn(
+                Arrays.asList(newCount(102000L)));
+
+        assertTimestamps(reader.read(HASH_KEY, new Date(101000L)), 102000L);
+        verifyZeroInteractions(delegate);
+    }
+
+    @Test
+    public void GIVEN_startBeforeRecentCounts_WHEN_read_THEN_olderCountsReadFromDelegate() {
+        when(delegate.read(HASH_KEY, new Date(50000L), coveredSince)).thenReturn(Arrays.asList(newCount(60000L)));
+        when(recentCounts.read(HASH_KEY, coveredSince, null, Integer.MAX_VALUE)).thenReturn(
+                Arrays.asList(newCount(101000L)));
+
+        assertTimestamps(reader.read(HASH_KEY, new Date(50000L)), 60000L, 101000L);
+    }
+
+    @Test
+    public void GIVEN_rangeEndingBeforeRecentCounts_WHEN_read_THEN_readFromDelegateOnly() {
+        List<HttpReferrerPairsCount> counts = Arrays.asList(newCount(60000L));
+        when(delegate.read(HASH_KEY, new Date(50000L), new Date(90000L))).thenReturn(counts);
+
+        assertEquals(counts, reader.read(HASH_KEY, new Date(50000L), new Date(90000L)));
+    }
+
+    @Test
+    public void GIVEN_pageSpanningSplit_WHEN_read_THEN_delegateCountsAfterSplitReplacedFromMemory() {
+        when(delegate.read(HASH_KEY, new Date(50000L), 3)).thenReturn(
+                Arrays.asList(newCount(60000L), newCount(101000L), newCount(102000L)));
+        when(recentCounts.read(HASH_KEY, coveredSince, null, 2)).thenReturn(
+                Arrays.asList(newCount(101000L), newCount(102000L)));
+
+        assertTimestamps(reader.read(HASH_KEY, new Date(50000L), 3), 60000L, 101000L, 102000L);
+        verify(recentCounts).read(HASH_KEY, coveredSince, null, 2);
+    }
+
+    @Test
+    public void GIVEN_fullPageBeforeSplit_WHEN_read_THEN_readFromDelegateOnly() {
+        when(delegate.read(HASH_KEY, new Date(50000L), 2)).thenReturn(
+                Arrays.asList(newCount(60000L), newCount(70000L)));
+
+        assertTimestamps(reader.read(HASH_KEY, new Date(50000L), 2), 60000L, 70000L);
+        verify(recentCounts, never()).read(any(String.class), any(Date.class), any(Date.class), anyInt());
+    }
+
+    private static void assertTimestamps(List<HttpReferrerPairsCount> counts, long... expected) {
+        List<Long> timestamps = new ArrayList<>();
+        for (HttpReferrerPairsCount count : counts) {
+            timestamps.add(count.getTimestamp().getTime());
+        }
+        List<Long> expectedTimestamps = new ArrayList<>();
+        for (long timestamp : expected) {
+            expectedTimestamps.add(timestamp);
+        }
+        assertEquals(expectedTimestamps, timestamps);
+    }
+
+    private static HttpReferrerPairsCount newCount(long timestamp) {
+        ReferrerCount referrerCount = new ReferrerCount();
+        referrerCount.setReferrer("http://www.amazon.com");
+        referrerCount.setCount(1L);
+        HttpReferrerPairsCount count = new HttpReferrerPairsCount();
+        count.setResource(HASH_KEY);
+        count.setTimestamp(new Date(timestamp));
+        count.setReferrerCounts(Collections.singletonList(referrerCount));
+        return count;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.amazonaws.services.kinesis.samples.datavis.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class StreamCountsServletTest {
+    private ScheduledExecutorService scheduler;
+    private StreamCountsServlet servlet;
+    private HttpServletRequest req;
+    private HttpServletResponse resp;
+    private AsyncContext async;
+    // Pollers scheduled for feeds
+    private List<Runnable> pollers;
+    // Feeds running when each listener was registered
+    private List<Integer> feedsAtListenerRegistration;
+    private List<AsyncListener> listeners;
+
+    @Before
+    public void init() throws Exception {
+        scheduler = mock(ScheduledExecutorService.class);
+        pollers = new ArrayList<>();
+        when(scheduler.scheduleWithFixedDelay(any(Runnable.class), anyLong(), anyLong(), eq(TimeUnit.MILLISECONDS)))
+                .thenAnswer(new Answer<ScheduledFuture<?>>() {
+                    @Override
+                    public ScheduledFuture<?> answer(InvocationOnMock invocation) {
+                        pollers.add((Runnable) invocation.getArguments()[0]);
+                        return mock(ScheduledFuture.class);
+                    }
+                });
+        servlet = new StreamCountsServlet(mock(RecentCountsSource.class), scheduler, 1000L, 60000L);
+
+        req = mock(HttpServletRequest.class);
+        resp = mock(HttpServletResponse.class);
+        async = mock(AsyncContext.class);
+        when(req.getQueryString()).thenReturn("resource=/index.html");
+        when(req.startAsync()).thenReturn(async);
+        when(async.getResponse()).thenReturn(resp);
+        when(resp.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+        feedsAtListenerRegistration = new ArrayList<>();
+        listeners = new ArrayList<>();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                feedsAtListenerRegistration.add(servlet.getFeedCount());
+                listeners.add((AsyncListener) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(async).addListener(any(AsyncListener.class));
+    }
+
+    @Test
+    public void GIVEN_subscriber_WHEN_get_THEN_listenerRegisteredBeforeSubscribing() throws Exception {
+        servlet.doGet(req, resp);
+
+        assertEquals(1, listeners.size());
+        assertEquals(Integer.valueOf(0), feedsAtListenerRegistration.get(0));
+        assertEquals(1, servlet.getFeedCount());
+        assertEquals(1, servlet.getSubscriptions());
+    }
+
+    @Test
+    public void GIVEN_requestCompleted_WHEN_feedPolled_THEN_unsubscribedAndFeedStopped() throws Exception {
+        servlet.doGet(req, resp);
+
+        listeners.get(0).onComplete(new AsyncEvent(async));
+        pollers.get(0).run();
+
+        assertEquals(0, servlet.getFeedCount());
+    }
+}